@@ -57,6 +57,7 @@ public class Constants
 	public static final String MIMETYPE_TRANSACTION = "application/x-dvctx";
 
 	public static final int MAX_NUM_CONFIRMATIONS = 7;
+	public static final int WALLET_COLD_STORAGE_DEPTH = 1000;
 	public static final String USER_AGENT = "Devcoin Wallet";
 	public static final String DEFAULT_EXCHANGE_CURRENCY = "BTC";
 	public static final int WALLET_OPERATION_STACK_SIZE = 256 * 1024;
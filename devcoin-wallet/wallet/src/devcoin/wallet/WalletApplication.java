@@ -144,6 +144,7 @@ public class WalletApplication extends Application
 		migrateWalletToProtobuf();
 
 		loadWalletFromProtobuf();
+		wallet.setColdStorageDepth(Constants.WALLET_COLD_STORAGE_DEPTH);
 		wallet.autosaveToFile(walletFile, 1, TimeUnit.SECONDS, new WalletAutosaveEventListener());
 
 		final int lastVersionCode = prefs.getInt(Constants.PREFS_KEY_LAST_VERSION, 0);
@@ -212,7 +213,7 @@ public class WalletApplication extends Application
 		log.setLevel(Level.INFO);
 	}
 
-	private static final class WalletAutosaveEventListener implements WalletFiles.Listener
+	private static final class WalletAutosaveEventListener implements WalletFiles.SaveTimingListener
 	{
 		@Override
 		public void onBeforeAutoSave(final File file)
@@ -226,6 +227,12 @@ public class WalletApplication extends Application
 			if (Constants.TEST)
 				Io.chmod(file, 0777);
 		}
+
+		@Override
+		public void onSaveCompleted(final long saveMillis, final long lockHeldMillis)
+		{
+			log.debug("wallet saved in " + saveMillis + " ms, locked for " + lockHeldMillis + " ms");
+		}
 	}
 
 	public Wallet getWallet()
@@ -275,7 +282,16 @@ public class WalletApplication extends Application
 			{
 				walletStream = new FileInputStream(walletFile);
 
-				wallet = new WalletProtobufSerializer().readWallet(walletStream);
+				final long walletLength = walletFile.length();
+				wallet = new WalletProtobufSerializer().readWallet(walletStream, new WalletProtobufSerializer.ProgressListener()
+				{
+					@Override
+					public void onProgress(final long bytesRead, final int transactionsRead)
+					{
+						log.debug("loading wallet: " + (walletLength > 0 ? bytesRead * 100 / walletLength : 100) + "%, " + transactionsRead
+								+ " transactions");
+					}
+				});
 
 				log.info("wallet loaded from: '" + walletFile + "', took " + (System.currentTimeMillis() - start) + "ms");
 			}
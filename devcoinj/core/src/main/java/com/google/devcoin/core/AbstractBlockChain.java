@@ -360,7 +360,8 @@ public abstract class AbstractBlockChain {
             try {
 
 
-                if (contentsImportant)
+                // Blocks may already have been verified, for instance while being read from disk in parallel.
+                if (contentsImportant && !block.isVerified())
                 {
                     block.verifyHeader();
                     block.verifyTransactions();
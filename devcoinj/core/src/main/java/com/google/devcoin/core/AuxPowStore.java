@@ -0,0 +1,155 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.core;
+
+import com.google.devcoin.store.BlockStoreException;
+import com.google.devcoin.utils.Threading;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Keeps the auxiliary proofs of work of merge mined blocks for a {@link PeerServer}, which has to send them with the
+ * headers and blocks it serves while block stores only keep the 80 byte headers, see
+ * {@link BlockMergeMined#bitcoinSerialize()}.</p>
+ *
+ * <p>The proofs are kept either in memory or in a file that they are appended to, each after the hash of its block
+ * and its length. Only where each record starts is kept in memory then, and a record left short by a crash is
+ * dropped when the file is opened again.</p>
+ */
+class AuxPowStore {
+    private static final Logger log = LoggerFactory.getLogger(AuxPowStore.class);
+
+    // A record is the block hash, the length of the proof and the proof, which is never bigger than a block.
+    private static final int RECORD_HEADER_SIZE = 32 + 4;
+
+    private final ReentrantLock lock = Threading.lock("auxpowstore");
+    @Nullable private final RandomAccessFile file;
+    // Without a file, the proofs themselves, and with one, where their records start in it.
+    @GuardedBy("lock") private final Map<Sha256Hash, byte[]> proofs = new HashMap<Sha256Hash, byte[]>();
+    @GuardedBy("lock") private final Map<Sha256Hash, Long> offsets = new HashMap<Sha256Hash, Long>();
+    @GuardedBy("lock") private long end;
+
+    /** Creates a store that keeps the proofs in memory. */
+    AuxPowStore() {
+        file = null;
+    }
+
+    /** Opens the given file, or creates it if it's missing, and reads where the proofs in it are. */
+    AuxPowStore(File file) throws BlockStoreException {
+        try {
+            if (file.exists())
+                readOffsets(file);
+            this.file = new RandomAccessFile(file, "rw");
+            if (this.file.length() > end) {
+                log.warn("Dropping {} bytes at the end of {} that aren't a whole record", this.file.length() - end, file);
+                this.file.setLength(end);
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void readOffsets(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            long fileLength = file.length();
+            byte[] hash = new byte[32];
+            while (end + RECORD_HEADER_SIZE <= fileLength) {
+                in.readFully(hash);
+                int length = in.readInt();
+                if (length <= 0 || length > Block.MAX_BLOCK_SIZE || end + RECORD_HEADER_SIZE + length > fileLength)
+                    break;
+                in.skipBytes(length);
+                offsets.put(new Sha256Hash(hash.clone()), end);
+                end += RECORD_HEADER_SIZE + length;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Keeps the proof of the block with the given hash, unless there is one already. */
+    void put(Sha256Hash hash, byte[] auxPow) throws BlockStoreException {
+        lock.lock();
+        try {
+            if (file == null) {
+                if (!proofs.containsKey(hash))
+                    proofs.put(hash, auxPow.clone());
+                return;
+            }
+            if (offsets.containsKey(hash))
+                return;
+            ByteArrayOutputStream record = new ByteArrayOutputStream(RECORD_HEADER_SIZE + auxPow.length);
+            DataOutputStream out = new DataOutputStream(record);
+            out.write(hash.getBytes());
+            out.writeInt(auxPow.length);
+            out.write(auxPow);
+            file.seek(end);
+            file.write(record.toByteArray());
+            // Only counted once written whole, so a failed write is written over by the next one.
+            offsets.put(hash, end);
+            end += record.size();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the proof of the block with the given hash, or null if there isn't one. */
+    @Nullable
+    byte[] get(Sha256Hash hash) throws BlockStoreException {
+        lock.lock();
+        try {
+            if (file == null) {
+                byte[] auxPow = proofs.get(hash);
+                return auxPow == null ? null : auxPow.clone();
+            }
+            Long offset = offsets.get(hash);
+            if (offset == null)
+                return null;
+            file.seek(offset + 32);
+            byte[] auxPow = new byte[file.readInt()];
+            file.readFully(auxPow);
+            return auxPow;
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Closes the file, if there is one. */
+    void close() throws BlockStoreException {
+        lock.lock();
+        try {
+            if (file != null)
+                file.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -24,6 +24,8 @@ import com.google.common.collect.ImmutableList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
+
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
@@ -85,11 +87,22 @@ public class Block extends Message {
     /** Stores the hash of the block. If null, getHash() will recalculate it. */
     private transient Sha256Hash hash;
     private transient BlockMergeMined mmBlock;
-    private transient boolean headerParsed;
-    private transient boolean transactionsParsed;
+    // The merkle tree of the transactions as of the last time the merkle root was calculated, only kept once
+    // transactions have been added to the block, see calculateMerkleRoot(). Guarded by this.
+    private transient MerkleTree merkleTree;
+    private transient boolean keepMerkleTree;
+    // Volatile so that the getters can check them without taking a lock, see maybeParseHeader(). They are set after
+    // everything the parse wrote, which a thread seeing them set is then guaranteed to see.
+    private transient volatile boolean headerParsed;
+    private transient volatile boolean transactionsParsed;
 
     private transient boolean headerBytesValid;
     private transient boolean transactionBytesValid;
+
+    // Set when verify() passes, so that a block checked ahead of time on another thread (see
+    // com.google.devcoin.utils.ParallelBlockFileLoader) isn't checked again when added to a chain. Any change to the
+    // block clears it.
+    private transient volatile boolean verified;
     
     // Blocks can be encoded in a way that will use more bytes than is optimal (due to VarInts having multiple encodings)
     // MAX_BLOCK_SIZE must be compared to the optimal encoding, not the actual encoding, so when parsing, we keep track
@@ -106,6 +119,9 @@ public class Block extends Message {
         prevBlockHash = Sha256Hash.ZERO_HASH;
 
         length = 80;
+        // There are no bytes to parse, so getters shouldn't take the lock looking for them.
+        headerParsed = true;
+        transactionsParsed = true;
     }
 
     /** Constructs a block object from the Bitcoin wire format. */
@@ -159,6 +175,8 @@ public class Block extends Message {
         this.nonce = nonce;
         this.transactions = new LinkedList<Transaction>();
         this.transactions.addAll(transactions);
+        headerParsed = true;
+        transactionsParsed = true;
     }
 
 
@@ -231,8 +249,8 @@ public class Block extends Message {
 
             }
         }
-        headerParsed = true;
         headerBytesValid = parseRetain;
+        headerParsed = true;
     }
 
     private void parseTransactions() throws ProtocolException {
@@ -245,8 +263,8 @@ public class Block extends Message {
         optimalEncodingMessageSize = HEADER_SIZE;
         if (bytes.length == cursor || isLastByteNull()) {
             // This message is just a header, it has no transactions.
-            transactionsParsed = true;
             transactionBytesValid = false;
+            transactionsParsed = true;
             return;
         }
         if(isMMBlock())
@@ -271,8 +289,8 @@ public class Block extends Message {
         }
         // No need to set length here. If length was not provided then it should be set at the end of parseLight().
         // If this is a genuine lazy parse then length must have been provided to the constructor.
-        transactionsParsed = true;
         transactionBytesValid = parseRetain;
+        transactionsParsed = true;
     }
 
     void parse() throws ProtocolException {
@@ -319,33 +337,42 @@ public class Block extends Message {
      * the cached header bytes.
      */
     private void maybeParseHeader() {
-        if (headerParsed || bytes == null)
+        // As in Message.maybeParse(), a parsed header costs a volatile read and only the first parse takes the lock.
+        if (headerParsed)
             return;
-        try {
-            parseHeader();
-            if (!(headerBytesValid || transactionBytesValid))
-                bytes = null;
-        } catch (ProtocolException e) {
-            throw new LazyParseException(
-                    "ProtocolException caught during lazy parse.  For safe access to fields call ensureParsed before attempting read or write access",
-                    e);
+        synchronized (this) {
+            if (headerParsed || bytes == null)
+                return;
+            try {
+                parseHeader();
+                if (!(headerBytesValid || transactionBytesValid))
+                    bytes = null;
+            } catch (ProtocolException e) {
+                throw new LazyParseException(
+                        "ProtocolException caught during lazy parse.  For safe access to fields call ensureParsed before attempting read or write access",
+                        e);
+            }
         }
     }
 
     private void maybeParseTransactions() {
-        if (transactionsParsed || bytes == null)
+        if (transactionsParsed)
             return;
-        try {
-            parseTransactions();
-            if (!parseRetain) {
-                transactionBytesValid = false;
-                if (headerParsed)
-                    bytes = null;
+        synchronized (this) {
+            if (transactionsParsed || bytes == null)
+                return;
+            try {
+                parseTransactions();
+                if (!parseRetain) {
+                    transactionBytesValid = false;
+                    if (headerParsed)
+                        bytes = null;
+                }
+            } catch (ProtocolException e) {
+                throw new LazyParseException(
+                        "ProtocolException caught during lazy parse.  For safe access to fields call ensureParsed before attempting read or write access",
+                        e);
             }
-        } catch (ProtocolException e) {
-            throw new LazyParseException(
-                    "ProtocolException caught during lazy parse.  For safe access to fields call ensureParsed before attempting read or write access",
-                    e);
         }
     }
 
@@ -436,6 +463,13 @@ public class Block extends Message {
         Utils.uint32ToByteStreamLE(nonce, stream);
     }
 
+    // Writes the auxiliary proof of work of a merge mined block, which follows the header on the wire.
+    void writeAuxPow(OutputStream stream) throws IOException {
+        byte[] auxPow = getAuxPowBytes();
+        if (auxPow != null)
+            stream.write(auxPow);
+    }
+
     private void writeTransactions(OutputStream stream) throws IOException {
         // check for no transaction conditions first
         // must be a more efficient way to do this but I'm tired atm.
@@ -482,6 +516,7 @@ public class Block extends Message {
         ByteArrayOutputStream stream = new UnsafeByteArrayOutputStream(length == UNKNOWN_LENGTH ? HEADER_SIZE + guessTransactionsLength() : length);
         try {
             writeHeader(stream);
+            writeAuxPow(stream);
             writeTransactions(stream);
         } catch (IOException e) {
             // Cannot happen, we are serializing to a memory stream.
@@ -492,6 +527,7 @@ public class Block extends Message {
     @Override
     protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
         writeHeader(stream);
+        writeAuxPow(stream);
         // We may only have enough data to write the header.
         writeTransactions(stream);
     }
@@ -530,6 +566,7 @@ public class Block extends Message {
             bytes = null;
         hash = null;
         checksum = null;
+        verified = false;
     }
 
     private void unCacheTransactions() {
@@ -612,6 +649,33 @@ public class Block extends Message {
         return block;
     }
 
+    /**
+     * Returns a copy of the block without any transactions, as {@link #cloneAsHeader()} does, but with the given
+     * auxiliary proof of work, which is lost when a merge mined block is stored. See
+     * {@link BlockMergeMined#bitcoinSerialize()}.
+     *
+     * @throws ProtocolException if the auxiliary proof of work can't be parsed.
+     */
+    public Block cloneAsHeader(byte[] auxPow) throws ProtocolException {
+        Block block = cloneAsHeader();
+        block.mmBlock = new BlockMergeMined(params, auxPow, 0, block);
+        if (!block.mmBlock.IsValid())
+            throw new ProtocolException("Not an auxiliary proof of work");
+        return block;
+    }
+
+    /**
+     * Returns the auxiliary proof of work of a merge mined block as it follows the header on the wire, or null if the
+     * block isn't merge mined or was copied without it.
+     */
+    @Nullable
+    byte[] getAuxPowBytes() {
+        maybeParseHeader();
+        if ((version & BlockMergeMined.BLOCK_VERSION_AUXPOW) == 0 || mmBlock == null)
+            return null;
+        return mmBlock.bitcoinSerialize();
+    }
+
     /**
      * Returns a multi-line string containing a description of the contents of
      * the block. Use for debugging purposes only.
@@ -761,64 +825,31 @@ public class Block extends Message {
         }
     }
 
-    private Sha256Hash calculateMerkleRoot() {
-        List<byte[]> tree = buildMerkleTree();
-        return new Sha256Hash(tree.get(tree.size() - 1));
-    }
-
-    private List<byte[]> buildMerkleTree() {
-        // The Merkle root is based on a tree of hashes calculated from the transactions:
-        //
-        //     root
-        //      / \
-        //   A      B
-        //  / \    / \
-        // t1 t2 t3 t4
-        //
-        // The tree is represented as a list: t1,t2,t3,t4,A,B,root where each
-        // entry is a hash.
-        //
-        // The hashing algorithm is double SHA-256. The leaves are a hash of the serialized contents of the transaction.
-        // The interior nodes are hashes of the concenation of the two child hashes.
-        //
-        // This structure allows the creation of proof that a transaction was included into a block without having to
-        // provide the full block contents. Instead, you can provide only a Merkle branch. For example to prove tx2 was
-        // in a block you can just provide tx2, the hash(tx1) and B. Now the other party has everything they need to
-        // derive the root, which can be checked against the block header. These proofs aren't used right now but
-        // will be helpful later when we want to download partial block contents.
-        //
-        // Note that if the number of transactions is not even the last tx is repeated to make it so (see
-        // tx3 above). A tree with 5 transactions would look like this:
-        //
-        //         root
-        //        /     \
-        //       1        5
-        //     /   \     / \
-        //    2     3    4  4
-        //  / \   / \   / \
-        // t1 t2 t3 t4 t5 t5
+    private synchronized Sha256Hash calculateMerkleRoot() {
         maybeParseTransactions();
-        ArrayList<byte[]> tree = new ArrayList<byte[]>();
-        // Start by adding all the hashes of the transactions as leaves of the tree.
-        for (Transaction t : transactions) {
-            tree.add(t.getHash().getBytes());
-        }
-        int levelOffset = 0; // Offset in the list where the currently processed level starts.
-        // Step through each level, stopping when we reach the root (levelSize == 1).
-        for (int levelSize = transactions.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
-            // For each pair of nodes on that level:
-            for (int left = 0; left < levelSize; left += 2) {
-                // The right hand node can be the same as the left hand, in the case where we don't have enough
-                // transactions.
-                int right = Math.min(left + 1, levelSize - 1);
-                byte[] leftBytes = Utils.reverseBytes(tree.get(levelOffset + left));
-                byte[] rightBytes = Utils.reverseBytes(tree.get(levelOffset + right));
-                tree.add(Utils.reverseBytes(doubleDigestTwoBuffers(leftBytes, 0, 32, rightBytes, 0, 32)));
+        if (merkleTree == null || merkleTree.size() > transactions.size()) {
+            List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(transactions.size());
+            for (Transaction t : transactions)
+                hashes.add(t.getHash());
+            MerkleTree tree = MerkleTree.build(hashes, Runtime.getRuntime().availableProcessors());
+            // A block that was received rather than built is normally checked once, so only keep the tree of a block
+            // that is having transactions added to it, which will need the root again.
+            if (!keepMerkleTree)
+                return tree.getRoot();
+            merkleTree = tree;
+        } else {
+            // Bring the tree up to date with the transactions, so that only the paths to those that were added or
+            // changed since last time are hashed again. The transactions keep their own hashes, so this is cheap.
+            int i = 0;
+            for (Transaction t : transactions) {
+                if (i < merkleTree.size())
+                    merkleTree.set(i, t.getHash());
+                else
+                    merkleTree.add(t.getHash());
+                i++;
             }
-            // Move to the next level.
-            levelOffset += levelSize;
         }
-        return tree;
+        return merkleTree.getRoot();
     }
 
     private void checkTransactions() throws VerificationException {
@@ -879,6 +910,12 @@ public class Block extends Message {
     public void verify() throws VerificationException {
         verifyHeader();
         verifyTransactions();
+        verified = true;
+    }
+
+    /** Returns true if {@link #verify()} has passed and the block hasn't been changed since. */
+    boolean isVerified() {
+        return verified;
     }
 
     @Override
@@ -937,6 +974,9 @@ public class Block extends Message {
         // Force a recalculation next time the values are needed.
         merkleRoot = null;
         hash = null;
+        synchronized (this) {
+            keepMerkleTree = true;
+        }
     }
 
     /** Returns the version of the block data structure as defined by the Bitcoin protocol. */
@@ -1018,6 +1058,12 @@ public class Block extends Message {
         this.hash = null;
     }
 
+    /** Returns whether this block has its transactions, rather than being just a header. */
+    boolean hasTransactions() {
+        maybeParseTransactions();
+        return transactions != null;
+    }
+
     /** Returns an immutable list of transactions held in this block. */
     public List<Transaction> getTransactions() {
        maybeParseTransactions();
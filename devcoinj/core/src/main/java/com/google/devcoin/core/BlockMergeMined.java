@@ -123,6 +123,16 @@ public class BlockMergeMined {
         else
             return 0;
     }
+    /**
+     * Returns the auxiliary proof of work as it follows the block header on the wire, or null if it isn't valid. This
+     * is what a block store doesn't keep, see {@link Block#cloneAsHeader(byte[])} for putting it back.
+     */
+    public byte[] bitcoinSerialize()
+    {
+        if(!IsValid())
+            return null;
+        return payload.getBytes().clone();
+    }
     public int getMessageSize()
     {
         if(payload != null)
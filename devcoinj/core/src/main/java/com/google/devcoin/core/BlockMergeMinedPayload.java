@@ -3,6 +3,8 @@ package com.google.devcoin.core;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
+
 /**
  * Created by jagdeep.sidhu on 1/5/14.
  */
@@ -22,6 +24,8 @@ public class BlockMergeMinedPayload  {
     //Parent Block Header
     public transient Block parentBlockHeader;
     private transient boolean parsed;
+    // The bytes parsed, kept so that the block can be sent on with them.
+    private transient byte[] serialized;
     public BlockMergeMinedPayload(NetworkParameters parameters, byte[] payloadBytes, int cursorStart, Block block) throws ProtocolException
     {
         parsed = false;
@@ -30,6 +34,8 @@ public class BlockMergeMinedPayload  {
         this.params = parameters;
         if(bytes != null)
             parse(cursorStart);
+        if(parsed)
+            serialized = Arrays.copyOfRange(bytes, cursorStart, cursorStart + length);
         bytes = null;
 
     }
@@ -51,6 +57,11 @@ public class BlockMergeMinedPayload  {
     {
         return parsed;
     }
+    /** Returns the bytes that were parsed, which are what follows the block header on the wire. */
+    byte[] getBytes()
+    {
+        return serialized;
+    }
     private void parseMergedMineInfo() throws ProtocolException
     {
 
@@ -119,6 +119,16 @@ public class BloomFilter extends Message {
         return Math.pow(1 - Math.pow(Math.E, -1.0 * (hashFuncs * elements) / (data.length * 8)), hashFuncs);
     }
 
+    /**
+     * Returns how a peer using this filter adds the outpoints of matching outputs to it, so that transactions spending
+     * them match too.
+     */
+    public BloomUpdate getUpdateFlag() {
+        // As in the reference client, which only looks at the bits of BLOOM_UPDATE_MASK.
+        int update = nFlags & 3;
+        return update < BloomUpdate.values().length ? BloomUpdate.values()[update] : BloomUpdate.UPDATE_NONE;
+    }
+
     @Override
     public String toString() {
         return "Bloom Filter of size " + data.length + " with " + hashFuncs + " hash functions.";
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.core;
+
+import com.google.devcoin.crypto.KeyCrypterException;
+import com.google.devcoin.utils.Threading;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import javax.annotation.Nullable;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Makes the signatures for many inputs of a transaction at once, for
+ * {@link Transaction#signInputs(Transaction.SigHash, Wallet, KeyParameter, int)}. The signature hashes are worked out
+ * beforehand by the caller, so what is left is independent elliptic curve arithmetic that can be spread over several
+ * threads.</p>
+ *
+ * <p>Encrypted keys are decrypted once each for the whole operation, however many inputs they sign, and the decrypted
+ * copies are wiped when it is done. Decrypting a key includes recalculating its public key to check the AES key, which
+ * costs about as much as making a signature, and a sweep or consolidation typically spends many outputs to the same
+ * few keys.</p>
+ *
+ * <p>The threads come from a pool shared by all calls, created the first time it is needed. Its threads exit after a
+ * few seconds without work, so nothing is left running between sends, and the calling thread works alongside them,
+ * so that a call never just waits for the pool.</p>
+ */
+final class BulkSigner {
+    // Below this many signatures per thread, starting the thread costs more than it saves.
+    private static final int MIN_SIGNATURES_PER_THREAD = 4;
+    // How long a pool thread waits for more work before it exits.
+    private static final long IDLE_THREAD_TIMEOUT_SECS = 5;
+
+    @Nullable private static ThreadPoolExecutor executor;
+
+    private BulkSigner() { }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("BulkSigner thread %d");
+            Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+            if (handler != null)
+                builder.setUncaughtExceptionHandler(handler);
+            int numThreads = Runtime.getRuntime().availableProcessors();
+            executor = new ThreadPoolExecutor(numThreads, numThreads, IDLE_THREAD_TIMEOUT_SECS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), builder.build());
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    /**
+     * Signs hashes[i] with keys[i] for every i, using up to the given number of threads, and returns the signatures in
+     * the same order. The same key may appear any number of times.
+     *
+     * @throws KeyCrypterException if a key is encrypted and could not be decrypted with the AES key, or has no private
+     * key at all.
+     */
+    static ECKey.ECDSASignature[] sign(final Sha256Hash[] hashes, final ECKey[] keys, @Nullable KeyParameter aesKey,
+                                       int numThreads) throws KeyCrypterException {
+        checkArgument(hashes.length == keys.length);
+        checkArgument(numThreads > 0);
+        // By identity, as two keys with the same public key might differ in whether they're encrypted.
+        final Map<ECKey, ECKey> signingKeys = new IdentityHashMap<ECKey, ECKey>();
+        final List<ECKey> encrypted = new ArrayList<ECKey>();
+        for (ECKey key : keys) {
+            if (signingKeys.containsKey(key))
+                continue;
+            signingKeys.put(key, key);
+            if (key.isEncrypted())
+                encrypted.add(key);
+        }
+        if (!encrypted.isEmpty() && aesKey == null)
+            throw new KeyCrypterException("This ECKey is encrypted but no decryption key has been supplied.");
+
+        final KeyParameter decryptionKey = aesKey;
+        final ECKey[] decrypted = new ECKey[encrypted.size()];
+        try {
+            run(numThreads, encrypted.size(), new Task() {
+                @Override
+                public void run(int i) {
+                    // As in ECKey.sign(Sha256Hash, KeyParameter), which this replaces.
+                    ECKey key = encrypted.get(i);
+                    if (key.getKeyCrypter() == null)
+                        throw new KeyCrypterException("There is no KeyCrypter to decrypt the private key for signing.");
+                    byte[] privateKeyBytes = key.getKeyCrypter().decrypt(key.getEncryptedPrivateKey(), decryptionKey);
+                    ECKey copy = new ECKey(new BigInteger(1, privateKeyBytes), null, key.isCompressed());
+                    Arrays.fill(privateKeyBytes, (byte) 0);
+                    // Check encryption was correct.
+                    if (!Arrays.equals(key.getPubKey(), copy.getPubKey()))
+                        throw new KeyCrypterException("Could not decrypt bytes");
+                    decrypted[i] = copy;
+                }
+            });
+            for (int i = 0; i < decrypted.length; i++)
+                signingKeys.put(encrypted.get(i), decrypted[i]);
+
+            final ECKey.ECDSASignature[] signatures = new ECKey.ECDSASignature[keys.length];
+            run(numThreads, keys.length, new Task() {
+                @Override
+                public void run(int i) {
+                    signatures[i] = signingKeys.get(keys[i]).sign(hashes[i]);
+                }
+            });
+            return signatures;
+        } finally {
+            for (ECKey copy : decrypted) {
+                if (copy != null)
+                    copy.clearPrivateKey();
+            }
+        }
+    }
+
+    private interface Task {
+        void run(int index);
+    }
+
+    /**
+     * Runs the task for every index below count, on the calling thread and up to numThreads - 1 threads of the pool,
+     * and rethrows the first failure. Each thread takes the next index until there are none left.
+     */
+    private static void run(int numThreads, final int count, final Task task) {
+        int threads = Math.min(numThreads, count / MIN_SIGNATURES_PER_THREAD);
+        if (threads < 2) {
+            for (int i = 0; i < count; i++)
+                task.run(i);
+            return;
+        }
+        final AtomicInteger next = new AtomicInteger();
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = next.getAndIncrement(); i < count; i = next.getAndIncrement())
+                        task.run(i);
+                } catch (RuntimeException e) {
+                    // Stop the other threads early.
+                    next.set(count);
+                    throw e;
+                }
+            }
+        };
+        ExecutorService executor = getExecutor();
+        List<Future<?>> futures = new ArrayList<Future<?>>(threads - 1);
+        for (int i = 1; i < threads; i++)
+            futures.add(executor.submit(worker));
+        Throwable failure = null;
+        try {
+            worker.run();
+        } catch (Throwable t) {
+            failure = t;
+        }
+        // Wait for every worker even after a failure, so that none is still writing results once this returns.
+        for (Future<?> future : futures) {
+            try {
+                Uninterruptibles.getUninterruptibly(future);
+            } catch (ExecutionException e) {
+                if (failure == null)
+                    failure = e.getCause();
+            }
+        }
+        if (failure instanceof RuntimeException)
+            throw (RuntimeException) failure;
+        if (failure instanceof Error)
+            throw (Error) failure;
+        if (failure != null)
+            throw new RuntimeException(failure);
+    }
+}
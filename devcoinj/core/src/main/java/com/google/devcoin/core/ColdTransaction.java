@@ -0,0 +1,325 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.core;
+
+import com.google.devcoin.core.TransactionConfidence.ConfidenceType;
+import com.google.devcoin.core.WalletTransaction.Pool;
+
+import javax.annotation.Nullable;
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A compact record of a transaction that a {@link Wallet} has moved to cold storage, because it is buried deep in
+ * the chain and has nothing left to spend (or was overridden by a double spend that is itself buried deep). It holds
+ * the serialized transaction plus a small summary: the hash, update time, value to the wallet and depth. Everything
+ * else, including the parsed inputs and outputs and their connections to other wallet transactions, is rebuilt when
+ * the transaction is needed again.</p>
+ *
+ * <p>Records are only created and rehydrated by the wallet, see {@link Wallet#setColdStorageDepth(int)}. Reading the
+ * summary requires no parsing at all, which is what a transaction list in a user interface usually needs.</p>
+ */
+public class ColdTransaction implements Serializable {
+    private static final long serialVersionUID = -2837601925372415306L;
+
+    private final Sha256Hash hash;
+    private final byte[] bytes;
+    private final Pool pool;
+    private final Date updateTime;
+    private final BigInteger value;
+    private final Transaction.Purpose purpose;
+
+    // Which blocks the transaction appeared in, and its position within each one.
+    @Nullable private final Sha256Hash[] blockHashes;
+    @Nullable private final int[] blockOffsets;
+
+    // Transactions spending each output, by hash and input index, or null for outputs that were not spent.
+    private final Sha256Hash[] spentByHashes;
+    private final int[] spentByIndexes;
+
+    // Confidence. Depth and work done are those when the record was made, plus what the clock has counted since.
+    private final ConfidenceType confidenceType;
+    private final int appearedAtHeight;
+    private final int depth;
+    private final BigInteger workDone;
+    private final Clock clock;
+    private final int clockBlocks;
+    private final BigInteger clockWork;
+    private final TransactionConfidence.Source source;
+    private final PeerAddress[] broadcastBy;
+    @Nullable private final Transaction overridingTransaction;
+
+    /**
+     * Counts the blocks added to the best chain, and the work in them, for the records of a wallet. The records all
+     * share the clock of their wallet, so a new block makes all of them deeper at once without touching any of them.
+     */
+    static class Clock implements Serializable {
+        private static final long serialVersionUID = 4409382461279360112L;
+
+        private int blocks;
+        private BigInteger work = BigInteger.ZERO;
+
+        synchronized void notifyWorkDone(Block block) throws VerificationException {
+            blocks++;
+            work = work.add(block.getWork());
+        }
+
+        synchronized int getBlocks() {
+            return blocks;
+        }
+
+        synchronized BigInteger getWork() {
+            return work;
+        }
+
+        /** Returns a clock that stays at the current count. */
+        synchronized Clock copy() {
+            Clock copy = new Clock();
+            copy.blocks = blocks;
+            copy.work = work;
+            return copy;
+        }
+    }
+
+    /** Records the given transaction, which must not be used again afterwards. */
+    ColdTransaction(Transaction tx, Pool pool, BigInteger value, Clock clock) {
+        this.hash = tx.getHash();
+        this.bytes = tx.bitcoinSerialize();
+        this.pool = pool;
+        this.updateTime = tx.getUpdateTime();
+        this.value = value;
+        this.purpose = tx.getPurpose();
+
+        Map<Sha256Hash, Integer> appearsIn = tx.getAppearsInHashes();
+        if (appearsIn != null) {
+            blockHashes = new Sha256Hash[appearsIn.size()];
+            blockOffsets = new int[appearsIn.size()];
+            int i = 0;
+            for (Map.Entry<Sha256Hash, Integer> entry : appearsIn.entrySet()) {
+                blockHashes[i] = entry.getKey();
+                blockOffsets[i] = entry.getValue();
+                i++;
+            }
+        } else {
+            blockHashes = null;
+            blockOffsets = null;
+        }
+
+        List<TransactionOutput> outputs = tx.getOutputs();
+        spentByHashes = new Sha256Hash[outputs.size()];
+        spentByIndexes = new int[outputs.size()];
+        for (int i = 0; i < outputs.size(); i++) {
+            TransactionInput spentBy = outputs.get(i).getSpentBy();
+            if (spentBy == null)
+                continue;
+            Transaction spendingTx = spentBy.getParentTransaction();
+            spentByHashes[i] = spendingTx.getHash();
+            spentByIndexes[i] = spendingTx.getInputs().indexOf(spentBy);
+        }
+
+        TransactionConfidence confidence = tx.getConfidence();
+        synchronized (confidence) {
+            confidenceType = confidence.getConfidenceType();
+            checkState(confidenceType == ConfidenceType.BUILDING || confidenceType == ConfidenceType.DEAD);
+            appearedAtHeight = confidenceType == ConfidenceType.BUILDING ? confidence.getAppearedAtChainHeight() : -1;
+            depth = confidence.getDepthInBlocks();
+            workDone = confidence.getWorkDone();
+            source = confidence.getSource();
+            overridingTransaction = confidenceType == ConfidenceType.DEAD ? confidence.getOverridingTransaction() : null;
+            broadcastBy = new PeerAddress[confidence.numBroadcastPeers()];
+            ListIterator<PeerAddress> it = confidence.getBroadcastBy();
+            for (int i = 0; it.hasNext() && i < broadcastBy.length; i++)
+                broadcastBy[i] = it.next();
+        }
+        this.clock = clock;
+        clockBlocks = clock.getBlocks();
+        clockWork = clock.getWork();
+    }
+
+    private ColdTransaction(ColdTransaction record, Clock clock) {
+        hash = record.hash;
+        bytes = record.bytes;
+        pool = record.pool;
+        updateTime = record.updateTime;
+        value = record.value;
+        purpose = record.purpose;
+        blockHashes = record.blockHashes;
+        blockOffsets = record.blockOffsets;
+        spentByHashes = record.spentByHashes;
+        spentByIndexes = record.spentByIndexes;
+        confidenceType = record.confidenceType;
+        appearedAtHeight = record.appearedAtHeight;
+        depth = record.depth;
+        workDone = record.workDone;
+        source = record.source;
+        broadcastBy = record.broadcastBy;
+        overridingTransaction = record.overridingTransaction;
+        this.clock = clock;
+        clockBlocks = record.clockBlocks;
+        clockWork = record.clockWork;
+    }
+
+    /**
+     * Returns a copy of this record whose depth and work done stay as they are now, so that it can be read without
+     * holding the wallet lock and still agree with what else was read under it. The copy shares the bytes.
+     */
+    ColdTransaction snapshot() {
+        return new ColdTransaction(this, clock.copy());
+    }
+
+    /**
+     * Rebuilds the transaction. Its outputs are all available for spending and its inputs are not connected, it's up
+     * to the wallet to connect them to its other transactions.
+     */
+    Transaction rehydrate(NetworkParameters params) {
+        Transaction tx;
+        try {
+            tx = new Transaction(params, bytes);
+        } catch (ProtocolException e) {
+            throw new RuntimeException(e);  // Cannot happen, we serialized it ourselves.
+        }
+        tx.setUpdateTime(updateTime);
+        tx.setPurpose(purpose);
+        if (blockHashes != null) {
+            for (int i = 0; i < blockHashes.length; i++)
+                tx.addBlockAppearance(blockHashes[i], blockOffsets[i]);
+        }
+        TransactionConfidence confidence = tx.getConfidence();
+        if (confidenceType == ConfidenceType.BUILDING) {
+            confidence.setAppearedAtChainHeight(appearedAtHeight);
+            confidence.setDepthInBlocks(getDepthInBlocks());
+            confidence.setWorkDone(getWorkDone());
+        } else {
+            confidence.setOverridingTransaction(overridingTransaction);
+        }
+        confidence.setSource(source);
+        for (PeerAddress address : broadcastBy)
+            confidence.markBroadcastBy(address);
+        return tx;
+    }
+
+    /** Returns the serialized transaction, which can be parsed without rehydrating it. */
+    public byte[] bitcoinSerialize() {
+        return bytes.clone();
+    }
+
+    /** Returns the hash of the transaction that spends the given output, or null if it wasn't spent. */
+    @Nullable
+    public Sha256Hash getSpentByHash(int index) {
+        return spentByHashes[index];
+    }
+
+    /** Returns the index of the input that spends the given output, if it was spent. */
+    public int getSpentByIndex(int index) {
+        return spentByIndexes[index];
+    }
+
+    /** Returns the number of outputs of the transaction. */
+    public int getOutputCount() {
+        return spentByHashes.length;
+    }
+
+    /** See {@link Transaction#getAppearsInHashes()}. */
+    @Nullable
+    public Map<Sha256Hash, Integer> getAppearsInHashes() {
+        if (blockHashes == null)
+            return null;
+        Map<Sha256Hash, Integer> appearsIn = new HashMap<Sha256Hash, Integer>();
+        for (int i = 0; i < blockHashes.length; i++)
+            appearsIn.put(blockHashes[i], blockOffsets[i]);
+        return appearsIn;
+    }
+
+    /** See {@link Transaction#getPurpose()}. */
+    public Transaction.Purpose getPurpose() {
+        return purpose;
+    }
+
+    public Sha256Hash getHash() {
+        return hash;
+    }
+
+    /** Returns which pool the transaction is in, either {@link Pool#SPENT} or {@link Pool#DEAD}. */
+    public Pool getPool() {
+        return pool;
+    }
+
+    /** See {@link Transaction#getUpdateTime()}. */
+    public Date getUpdateTime() {
+        return updateTime;
+    }
+
+    /** Returns the value sent to the wallet minus the value sent from it, as of when the record was made. */
+    public BigInteger getValue() {
+        return value;
+    }
+
+    /** See {@link TransactionConfidence#getConfidenceType()}. */
+    public ConfidenceType getConfidenceType() {
+        return confidenceType;
+    }
+
+    /** See {@link TransactionConfidence#getAppearedAtChainHeight()}. Only valid for building transactions. */
+    public int getAppearedAtChainHeight() {
+        checkState(confidenceType == ConfidenceType.BUILDING);
+        return appearedAtHeight;
+    }
+
+    /** See {@link TransactionConfidence#getDepthInBlocks()}. */
+    public int getDepthInBlocks() {
+        if (confidenceType != ConfidenceType.BUILDING)
+            return depth;
+        return depth + clock.getBlocks() - clockBlocks;
+    }
+
+    /** See {@link TransactionConfidence#getWorkDone()}. */
+    public BigInteger getWorkDone() {
+        if (confidenceType != ConfidenceType.BUILDING)
+            return workDone;
+        return workDone.add(clock.getWork().subtract(clockWork));
+    }
+
+    /** See {@link TransactionConfidence#getOverridingTransaction()}. */
+    @Nullable
+    public Transaction getOverridingTransaction() {
+        return overridingTransaction;
+    }
+
+    /** See {@link TransactionConfidence#getSource()}. */
+    public TransactionConfidence.Source getSource() {
+        return source;
+    }
+
+    /** Returns the peers that announced the transaction, see {@link TransactionConfidence#getBroadcastBy()}. */
+    public List<PeerAddress> getBroadcastBy() {
+        return Collections.unmodifiableList(Arrays.asList(broadcastBy));
+    }
+
+    /** Returns the size of the serialized transaction. */
+    public int getMessageSize() {
+        return bytes.length;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %s BTC, %s, depth %d", hash, Utils.bitcoinValueToFriendlyString(value),
+                confidenceType, getDepthInBlocks());
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.core;
+
+import org.spongycastle.asn1.sec.SECNamedCurves;
+import org.spongycastle.math.ec.ECCurve;
+import org.spongycastle.math.ec.ECPoint;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.devcoin.script.ScriptOpCodes.*;
+
+/**
+ * <p>A compact encoding of {@link TransactionOutputChanges}, used by block stores to keep undo data small. The outputs
+ * can be read back one at a time by iterating over {@link #getTxOutsSpent()} or {@link #getTxOutsCreated()}, so
+ * disconnecting a block never needs the whole set of changes as objects.</p>
+ *
+ * <p>Outputs are grouped into runs sharing a transaction hash, so the hash and height of the outputs created by a
+ * transaction are written once. Within a run each output is its index, its value and its script, where values drop
+ * trailing decimal zeroes and the standard pay to address, pay to script hash and pay to pubkey scripts are reduced
+ * to the hash or key they contain. All numbers are {@link VarInt}s.</p>
+ */
+public class CompactTransactionOutputChanges implements Serializable {
+    private static final long serialVersionUID = -2953211392357347210L;
+
+    // No record in the older format of TransactionOutputChanges can start with these bytes, as they would be a
+    // negative number of created outputs.
+    private static final byte[] MAGIC = { 'U', 'N', 'D', (byte) 0xC1 };
+
+    // Compressed script types. Types from RAW_SCRIPT on are a raw script of length (type - RAW_SCRIPT).
+    private static final int PAY_TO_ADDRESS = 0;
+    private static final int PAY_TO_SCRIPT_HASH = 1;
+    private static final int PAY_TO_COMPRESSED_PUBKEY = 2;      // And 3, for the two pubkey prefixes.
+    private static final int PAY_TO_UNCOMPRESSED_PUBKEY = 4;    // And 5, for the parity of y.
+    private static final int RAW_SCRIPT = 6;
+
+    private static final ECCurve.Fp CURVE = (ECCurve.Fp) SECNamedCurves.getByName("secp256k1").getCurve();
+
+    private final byte[] bytes;
+    private final int createdOffset;
+    private final int numCreated;
+    private final int spentOffset;
+    private final int numSpent;
+
+    /**
+     * Wraps an encoding produced by {@link #encode(TransactionOutputChanges)}. Only the header is read here, the
+     * outputs are decoded as they are iterated over.
+     *
+     * @throws ProtocolException if the bytes don't start with a compact record header.
+     */
+    public CompactTransactionOutputChanges(byte[] bytes) throws ProtocolException {
+        if (!isCompact(bytes))
+            throw new ProtocolException("Not a compact undo record");
+        this.bytes = bytes;
+        try {
+            int cursor = MAGIC.length;
+            VarInt created = new VarInt(bytes, cursor);
+            cursor += created.getOriginalSizeInBytes();
+            VarInt createdLength = new VarInt(bytes, cursor);
+            cursor += createdLength.getOriginalSizeInBytes();
+            numCreated = (int) created.value;
+            createdOffset = cursor;
+            cursor += (int) createdLength.value;
+            VarInt spent = new VarInt(bytes, cursor);
+            numSpent = (int) spent.value;
+            spentOffset = cursor + spent.getOriginalSizeInBytes();
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new ProtocolException(e);
+        }
+    }
+
+    /** Returns true if the given bytes were produced by {@link #encode(TransactionOutputChanges)}. */
+    public static boolean isCompact(byte[] bytes) {
+        return bytes.length >= MAGIC.length && bytes[0] == MAGIC[0] && bytes[1] == MAGIC[1] &&
+                bytes[2] == MAGIC[2] && bytes[3] == MAGIC[3];
+    }
+
+    /** Encodes the given changes. */
+    public static byte[] encode(TransactionOutputChanges changes) {
+        ByteArrayOutputStream created = new ByteArrayOutputStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            writeRuns(changes.txOutsCreated, created);
+            out.write(MAGIC);
+            out.write(new VarInt(changes.txOutsCreated.size()).encode());
+            out.write(new VarInt(created.size()).encode());
+            created.writeTo(out);
+            out.write(new VarInt(changes.txOutsSpent.size()).encode());
+            writeRuns(changes.txOutsSpent, out);
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeRuns(List<StoredTransactionOutput> list, ByteArrayOutputStream out)
+            throws IOException {
+        // The lists built while connecting blocks are linked, so copy them for indexed access.
+        List<StoredTransactionOutput> outputs = new ArrayList<StoredTransactionOutput>(list);
+        int i = 0;
+        while (i < outputs.size()) {
+            StoredTransactionOutput first = outputs.get(i);
+            int end = i + 1;
+            while (end < outputs.size() && outputs.get(end).getHash().equals(first.getHash()) &&
+                    outputs.get(end).getHeight() == first.getHeight())
+                end++;
+            out.write(first.getHash().getBytes());
+            // Outputs not created by a coinbase all have the same negative height, so only coinbases need one.
+            out.write(new VarInt(first.getHeight() >= 0 ? ((long) first.getHeight() << 1) | 1 : 0).encode());
+            out.write(new VarInt(end - i).encode());
+            for (; i < end; i++) {
+                StoredTransactionOutput output = outputs.get(i);
+                out.write(new VarInt(output.getIndex()).encode());
+                out.write(new VarInt(compressAmount(output.getValue().longValue())).encode());
+                writeScript(output.getScriptBytes(), out);
+            }
+        }
+    }
+
+    /** The outputs spent by the block, decoded as they are iterated over. */
+    public Iterable<StoredTransactionOutput> getTxOutsSpent() {
+        return new Iterable<StoredTransactionOutput>() {
+            public Iterator<StoredTransactionOutput> iterator() {
+                return new OutputIterator(spentOffset, numSpent);
+            }
+        };
+    }
+
+    /** The outputs created by the block, decoded as they are iterated over. */
+    public Iterable<StoredTransactionOutput> getTxOutsCreated() {
+        return new Iterable<StoredTransactionOutput>() {
+            public Iterator<StoredTransactionOutput> iterator() {
+                return new OutputIterator(createdOffset, numCreated);
+            }
+        };
+    }
+
+    /** Decodes all the outputs. */
+    public TransactionOutputChanges toTransactionOutputChanges() {
+        List<StoredTransactionOutput> created = new ArrayList<StoredTransactionOutput>(numCreated);
+        for (StoredTransactionOutput output : getTxOutsCreated())
+            created.add(output);
+        List<StoredTransactionOutput> spent = new ArrayList<StoredTransactionOutput>(numSpent);
+        for (StoredTransactionOutput output : getTxOutsSpent())
+            spent.add(output);
+        return new TransactionOutputChanges(created, spent);
+    }
+
+    /** The size of the encoding in bytes. */
+    public int size() {
+        return bytes.length;
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    private class OutputIterator implements Iterator<StoredTransactionOutput> {
+        private int cursor;
+        private int remaining;
+        private int remainingInRun;
+        private Sha256Hash hash;
+        private int height;
+        private boolean isCoinbase;
+
+        OutputIterator(int offset, int count) {
+            cursor = offset;
+            remaining = count;
+        }
+
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        public StoredTransactionOutput next() {
+            if (remaining == 0)
+                throw new NoSuchElementException();
+            try {
+                if (remainingInRun == 0) {
+                    byte[] hashBytes = new byte[32];
+                    System.arraycopy(bytes, cursor, hashBytes, 0, 32);
+                    cursor += 32;
+                    hash = new Sha256Hash(hashBytes);
+                    long heightCode = readVarInt();
+                    isCoinbase = (heightCode & 1) != 0;
+                    height = (int) (heightCode >>> 1);
+                    remainingInRun = (int) readVarInt();
+                }
+                long index = readVarInt();
+                BigInteger value = BigInteger.valueOf(decompressAmount(readVarInt()));
+                int type = (int) readVarInt();
+                byte[] script = readScript(type);
+                remainingInRun--;
+                remaining--;
+                return new StoredTransactionOutput(hash, index, value, height, isCoinbase, script);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new IllegalStateException("Corrupt compact undo record", e);
+            }
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private long readVarInt() {
+            VarInt varInt = new VarInt(bytes, cursor);
+            cursor += varInt.getOriginalSizeInBytes();
+            return varInt.value;
+        }
+
+        private byte[] readScript(int type) {
+            byte[] script;
+            switch (type) {
+                case PAY_TO_ADDRESS:
+                    script = new byte[25];
+                    script[0] = (byte) OP_DUP;
+                    script[1] = (byte) OP_HASH160;
+                    script[2] = 20;
+                    System.arraycopy(bytes, cursor, script, 3, 20);
+                    script[23] = (byte) OP_EQUALVERIFY;
+                    script[24] = (byte) OP_CHECKSIG;
+                    cursor += 20;
+                    return script;
+                case PAY_TO_SCRIPT_HASH:
+                    script = new byte[23];
+                    script[0] = (byte) OP_HASH160;
+                    script[1] = 20;
+                    System.arraycopy(bytes, cursor, script, 2, 20);
+                    script[22] = (byte) OP_EQUAL;
+                    cursor += 20;
+                    return script;
+                case PAY_TO_COMPRESSED_PUBKEY:
+                case PAY_TO_COMPRESSED_PUBKEY + 1:
+                    script = new byte[35];
+                    script[0] = 33;
+                    script[1] = (byte) type;
+                    System.arraycopy(bytes, cursor, script, 2, 32);
+                    script[34] = (byte) OP_CHECKSIG;
+                    cursor += 32;
+                    return script;
+                case PAY_TO_UNCOMPRESSED_PUBKEY:
+                case PAY_TO_UNCOMPRESSED_PUBKEY + 1:
+                    byte[] compressed = new byte[33];
+                    compressed[0] = (byte) (type - 2);
+                    System.arraycopy(bytes, cursor, compressed, 1, 32);
+                    cursor += 32;
+                    ECPoint point = CURVE.decodePoint(compressed);
+                    byte[] pubKey = new ECPoint.Fp(CURVE, point.getX(), point.getY(), false).getEncoded();
+                    script = new byte[67];
+                    script[0] = 65;
+                    System.arraycopy(pubKey, 0, script, 1, 65);
+                    script[66] = (byte) OP_CHECKSIG;
+                    return script;
+                default:
+                    int length = type - RAW_SCRIPT;
+                    if (length < 0 || cursor + length > bytes.length)
+                        throw new ArrayIndexOutOfBoundsException(cursor + length);
+                    script = Arrays.copyOfRange(bytes, cursor, cursor + length);
+                    cursor += length;
+                    return script;
+            }
+        }
+    }
+
+    private static void writeScript(byte[] script, ByteArrayOutputStream out) throws IOException {
+        if (script.length == 25 && (script[0] & 0xFF) == OP_DUP && (script[1] & 0xFF) == OP_HASH160 &&
+                script[2] == 20 && (script[23] & 0xFF) == OP_EQUALVERIFY && (script[24] & 0xFF) == OP_CHECKSIG) {
+            out.write(PAY_TO_ADDRESS);
+            out.write(script, 3, 20);
+        } else if (script.length == 23 && (script[0] & 0xFF) == OP_HASH160 && script[1] == 20 &&
+                (script[22] & 0xFF) == OP_EQUAL) {
+            out.write(PAY_TO_SCRIPT_HASH);
+            out.write(script, 2, 20);
+        } else if (script.length == 35 && script[0] == 33 && (script[1] == 2 || script[1] == 3) &&
+                (script[34] & 0xFF) == OP_CHECKSIG) {
+            out.write(script[1]);
+            out.write(script, 2, 32);
+        } else if (script.length == 67 && script[0] == 65 && script[1] == 4 && (script[66] & 0xFF) == OP_CHECKSIG &&
+                isOnCurve(script, 2)) {
+            // Only the x coordinate and the parity of y are kept, so the key must be a real point for y to be
+            // recovered from them.
+            out.write(PAY_TO_UNCOMPRESSED_PUBKEY + (script[65] & 1));
+            out.write(script, 2, 32);
+        } else {
+            out.write(new VarInt(script.length + RAW_SCRIPT).encode());
+            out.write(script);
+        }
+    }
+
+    /** Returns true if the 64 bytes at the given offset are the coordinates of a point on the curve. */
+    private static boolean isOnCurve(byte[] bytes, int offset) {
+        BigInteger p = CURVE.getQ();
+        BigInteger x = new BigInteger(1, Arrays.copyOfRange(bytes, offset, offset + 32));
+        BigInteger y = new BigInteger(1, Arrays.copyOfRange(bytes, offset + 32, offset + 64));
+        if (x.compareTo(p) >= 0 || y.compareTo(p) >= 0)
+            return false;
+        BigInteger a = CURVE.getA().toBigInteger();
+        BigInteger b = CURVE.getB().toBigInteger();
+        BigInteger rhs = x.multiply(x).add(a).multiply(x).add(b).mod(p);
+        return y.multiply(y).mod(p).equals(rhs);
+    }
+
+    /**
+     * Reduces values which are a whole number of some power of ten coins, as most are, to small numbers. This is the
+     * same scheme the reference client uses for its unspent output set.
+     */
+    static long compressAmount(long n) {
+        checkArgument(n >= 0, "Negative output value");
+        if (n == 0)
+            return 0;
+        int e = 0;
+        while (n % 10 == 0 && e < 9) {
+            n /= 10;
+            e++;
+        }
+        if (e < 9) {
+            int d = (int) (n % 10);
+            n /= 10;
+            return 1 + (n * 9 + d - 1) * 10 + e;
+        } else {
+            return 1 + (n - 1) * 10 + 9;
+        }
+    }
+
+    static long decompressAmount(long x) {
+        if (x == 0)
+            return 0;
+        x--;
+        int e = (int) (x % 10);
+        x /= 10;
+        long n;
+        if (e < 9) {
+            int d = (int) (x % 9) + 1;
+            x /= 9;
+            n = x * 10 + d;
+        } else {
+            n = x + 1;
+        }
+        while (e > 0) {
+            n *= 10;
+            e--;
+        }
+        return n;
+    }
+}
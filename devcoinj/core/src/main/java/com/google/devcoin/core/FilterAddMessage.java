@@ -0,0 +1,65 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.core;
+
+import com.google.devcoin.script.Script;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The "filteradd" message adds one element to the {@link BloomFilter} the sender loaded on the connection earlier,
+ * typically a key or script the sender just started watching, so that it doesn't have to send the whole filter again.
+ * As in the reference client, the element can be no bigger than the data a script can push.
+ */
+public class FilterAddMessage extends Message {
+    private byte[] data;
+
+    public FilterAddMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    @Override
+    void parse() throws ProtocolException {
+        long size = readVarInt();
+        if (size > Script.MAX_SCRIPT_ELEMENT_SIZE)
+            throw new ProtocolException("Filter element too large: " + size + " bytes");
+        data = readBytes((int) size);
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void parseLite() throws ProtocolException {
+        // Do nothing, lazy parsing isn't useful for such small messages.
+    }
+
+    @Override
+    void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(new VarInt(data.length).encode());
+        stream.write(data);
+    }
+
+    /** Returns the data to add to the filter. */
+    public byte[] getData() {
+        return data;
+    }
+
+    @Override
+    public String toString() {
+        return "filteradd of " + data.length + " bytes";
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.core;
+
+/**
+ * The "filterclear" message removes the {@link BloomFilter} the sender loaded on the connection, after which it is
+ * sent all transactions and full blocks again, as if it had never loaded one. The filterclear message has no fields.
+ */
+public class FilterClearMessage extends Message {
+    @Override
+    void parse() throws ProtocolException {}
+
+    @Override
+    protected void parseLite() throws ProtocolException {}
+}
@@ -40,9 +40,21 @@ public class FilteredBlock extends Message {
     public FilteredBlock(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
         super(params, payloadBytes, 0);
     }
+
+    /**
+     * Creates a filtered block of the given block header and the partial merkle tree of its matching transactions, as
+     * {@link FilteredBlockBuilder} does.
+     */
+    public FilteredBlock(NetworkParameters params, Block header, PartialMerkleTree merkleTree) {
+        super(params);
+        this.header = header;
+        this.merkleTree = merkleTree;
+        length = Block.HEADER_SIZE + merkleTree.getMessageSize();
+    }
     
     public void bitcoinSerializeToStream(OutputStream stream) throws IOException {
-        throw new RuntimeException("Not implemented");
+        header.writeHeader(stream);
+        merkleTree.bitcoinSerialize(stream);
     }
 
     @Override
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.core;
+
+import com.google.devcoin.script.Script;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import static com.google.devcoin.script.ScriptOpCodes.*;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Builds the {@link FilteredBlock}s that a full node serves to SPV clients: the block header and a
+ * {@link PartialMerkleTree} of the transactions that match the client's {@link BloomFilter}, followed by those
+ * transactions themselves. This is what the reference client sends in answer to a getdata for a
+ * {@link InventoryItem.Type#FilteredBlock}, and the messages returned by {@link #build(BloomFilter)} can be returned
+ * as they are from {@link PeerEventListener#getData(Peer, GetDataMessage)}, using the filter the client sent, see
+ * {@link Peer#getPeerBloomFilter()}.</p>
+ *
+ * <p>Transactions are matched as the reference client's CBloomFilter::IsRelevantAndUpdate does, including adding the
+ * outpoints of matched outputs to the filter as its {@link BloomFilter.BloomUpdate} flag says, so that transactions
+ * spending them match too, later in the same block or in later blocks.</p>
+ *
+ * <p>A builder is made once per block and can then serve any number of filters, from any number of threads at once.
+ * Everything a filter is checked against (transaction hashes, the data pushed by each script and the serialized
+ * outpoints) is worked out up front, and so is the block's {@link MerkleTree}, so building for one filter only costs
+ * the filter lookups and one walk over the cached tree. The filters themselves are changed by building and must not be
+ * shared between threads.</p>
+ */
+public class FilteredBlockBuilder {
+    private final NetworkParameters params;
+    private final Block header;
+    private final List<Transaction> transactions;
+    private final TransactionData[] transactionData;
+    // Only read after the constructor, when it is up to date, so it can be shared between threads.
+    private final MerkleTree merkleTree;
+
+    /** Prepares to build filtered blocks of the given block, which must have its transactions. */
+    public FilteredBlockBuilder(Block block) {
+        // A copy, so later changes to the block don't show through.
+        transactions = block.getTransactions();
+        checkArgument(!transactions.isEmpty(), "Block has no transactions");
+        params = block.getParams();
+        transactionData = new TransactionData[transactions.size()];
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(transactions.size());
+        for (int i = 0; i < transactions.size(); i++) {
+            transactionData[i] = new TransactionData(params, transactions.get(i));
+            hashes.add(transactions.get(i).getHash());
+        }
+        merkleTree = MerkleTree.build(hashes, Runtime.getRuntime().availableProcessors());
+        merkleTree.getRoot();
+        header = block.cloneAsHeader();
+    }
+
+    /**
+     * Returns the transactions of the block that match the given filter, in block order, and updates the filter for
+     * them according to its {@link BloomFilter.BloomUpdate} flag. The positions of the matched transactions in the
+     * block are set in the given bits.
+     */
+    public List<Transaction> match(BloomFilter filter, BitSet matched) {
+        List<Transaction> matchedTransactions = new ArrayList<Transaction>();
+        BloomFilter.BloomUpdate update = filter.getUpdateFlag();
+        for (int i = 0; i < transactionData.length; i++) {
+            if (transactionData[i].isRelevantAndUpdate(filter, update)) {
+                matched.set(i);
+                matchedTransactions.add(transactions.get(i));
+            }
+        }
+        return matchedTransactions;
+    }
+
+    /**
+     * Matches the block against the given filter, updating the filter as {@link #match(BloomFilter, BitSet)} does,
+     * and returns the messages to send to the peer: the {@link FilteredBlock} and then each matched transaction.
+     * The transactions are those of the block, not copies.
+     */
+    public List<Message> build(BloomFilter filter) {
+        BitSet matched = new BitSet(transactionData.length);
+        List<Transaction> matchedTransactions = match(filter, matched);
+        List<Message> messages = new ArrayList<Message>(matchedTransactions.size() + 1);
+        messages.add(new FilteredBlock(params, header, merkleTree.getPartialMerkleTree(params, matched)));
+        messages.addAll(matchedTransactions);
+        return messages;
+    }
+
+    // The parts of one transaction that a filter may match.
+    private static class TransactionData {
+        // The transaction hash, in the little endian order a filter holds it in.
+        final byte[] hash;
+        final byte[][][] outputPushes;
+        // For each output, whether UPDATE_P2PUBKEY_ONLY adds its outpoint to the filter when it matches.
+        final boolean[] outputsPayToPubKey;
+        final byte[][] outputOutpoints;
+        final byte[][] inputOutpoints;
+        final byte[][][] inputPushes;
+
+        TransactionData(NetworkParameters params, Transaction tx) {
+            hash = Utils.reverseBytes(tx.getHash().getBytes());
+            List<TransactionOutput> outputs = tx.getOutputs();
+            outputPushes = new byte[outputs.size()][][];
+            outputsPayToPubKey = new boolean[outputs.size()];
+            outputOutpoints = new byte[outputs.size()][];
+            for (int i = 0; i < outputs.size(); i++) {
+                byte[] program = outputs.get(i).getScriptBytes();
+                outputPushes[i] = getPushedData(program);
+                outputsPayToPubKey[i] = isPayToPubKey(program);
+                outputOutpoints[i] = new TransactionOutPoint(params, i, tx.getHash()).bitcoinSerialize();
+            }
+            List<TransactionInput> inputs = tx.getInputs();
+            inputOutpoints = new byte[inputs.size()][];
+            inputPushes = new byte[inputs.size()][][];
+            for (int i = 0; i < inputs.size(); i++) {
+                inputOutpoints[i] = inputs.get(i).getOutpoint().bitcoinSerialize();
+                inputPushes[i] = getPushedData(inputs.get(i).getScriptBytes());
+            }
+        }
+
+        boolean isRelevantAndUpdate(BloomFilter filter, BloomFilter.BloomUpdate update) {
+            boolean found = filter.contains(hash);
+            for (int i = 0; i < outputPushes.length; i++) {
+                for (byte[] data : outputPushes[i]) {
+                    if (!filter.contains(data))
+                        continue;
+                    found = true;
+                    if (update == BloomFilter.BloomUpdate.UPDATE_ALL ||
+                            (update == BloomFilter.BloomUpdate.UPDATE_P2PUBKEY_ONLY && outputsPayToPubKey[i]))
+                        filter.insert(outputOutpoints[i]);
+                    break;
+                }
+            }
+            if (found)
+                return true;
+            for (int i = 0; i < inputOutpoints.length; i++) {
+                if (filter.contains(inputOutpoints[i]))
+                    return true;
+                for (byte[] data : inputPushes[i]) {
+                    if (filter.contains(data))
+                        return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final byte[][] NO_DATA = new byte[0][];
+
+    // Returns the non-empty data pushed by the script, up to the first opcode that can't be read, as the reference
+    // client's CScript::GetOp reads it. Unlike parsing a Script, a truncated push doesn't lose the pushes before it.
+    static byte[][] getPushedData(byte[] program) {
+        List<byte[]> pushes = null;
+        int cursor = 0;
+        while (cursor < program.length) {
+            int opcode = program[cursor++] & 0xff;
+            long length;
+            if (opcode < OP_PUSHDATA1) {
+                length = opcode;
+            } else if (opcode == OP_PUSHDATA1) {
+                if (program.length - cursor < 1)
+                    break;
+                length = program[cursor] & 0xff;
+                cursor += 1;
+            } else if (opcode == OP_PUSHDATA2) {
+                if (program.length - cursor < 2)
+                    break;
+                length = (program[cursor] & 0xff) | ((program[cursor + 1] & 0xff) << 8);
+                cursor += 2;
+            } else if (opcode == OP_PUSHDATA4) {
+                if (program.length - cursor < 4)
+                    break;
+                length = Utils.readUint32(program, cursor);
+                cursor += 4;
+            } else {
+                continue;
+            }
+            if (length > program.length - cursor)
+                break;
+            if (length > 0) {
+                if (pushes == null)
+                    pushes = new ArrayList<byte[]>(2);
+                byte[] data = new byte[(int) length];
+                System.arraycopy(program, cursor, data, 0, data.length);
+                pushes.add(data);
+                cursor += data.length;
+            }
+        }
+        return pushes == null ? NO_DATA : pushes.toArray(new byte[pushes.size()][]);
+    }
+
+    private static boolean isPayToPubKey(byte[] program) {
+        try {
+            Script script = new Script(program);
+            return script.isSentToRawPubKey() || script.isSentToMultiSig();
+        } catch (ScriptException e) {
+            // Neither, as the reference client's Solver() would fail on it too.
+            return false;
+        }
+    }
+}
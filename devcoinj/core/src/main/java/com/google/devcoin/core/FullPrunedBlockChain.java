@@ -17,16 +17,14 @@
 package com.google.devcoin.core;
 
 import com.google.devcoin.script.Script;
+import com.google.devcoin.store.BatchedFullPrunedBlockStore;
 import com.google.devcoin.store.BlockStoreException;
 import com.google.devcoin.store.FullPrunedBlockStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.math.BigInteger;
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.ListIterator;
+import java.util.*;
 import java.util.concurrent.*;
 
 import static com.google.common.base.Preconditions.checkState;
@@ -121,6 +119,48 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         }
     }
     
+    /**
+     * Fetches every output spent by the given transactions from the store in one go, so that connecting a block
+     * doesn't cost a store round trip per input. Outputs the store doesn't have (because they are created earlier in
+     * the same block, or don't exist at all) are left out. While connecting, outputs created by the block are added
+     * to the returned map and spent ones removed from it, so it also catches double spends within the block.
+     */
+    private Map<TransactionOutPoint, StoredTransactionOutput> prefetchSpentOutputs(List<Transaction> transactions)
+            throws BlockStoreException {
+        List<TransactionOutPoint> outpoints = new ArrayList<TransactionOutPoint>();
+        for (Transaction tx : transactions) {
+            if (tx.isCoinBase())
+                continue;
+            for (TransactionInput in : tx.getInputs())
+                outpoints.add(in.getOutpoint());
+        }
+        Map<TransactionOutPoint, StoredTransactionOutput> unspentOutputs =
+                new HashMap<TransactionOutPoint, StoredTransactionOutput>(outpoints.size() * 2);
+        if (outpoints.isEmpty())
+            return unspentOutputs;
+        List<StoredTransactionOutput> prevOuts = BatchedFullPrunedBlockStore.Outputs.get(blockStore, outpoints);
+        for (int i = 0; i < outpoints.size(); i++)
+            if (prevOuts.get(i) != null)
+                unspentOutputs.put(outpoints.get(i), prevOuts.get(i));
+        return unspentOutputs;
+    }
+
+    /**
+     * Applies the net effect of connecting a block to the unspent output set: outputs which were both created and
+     * spent within the block never touch the store.
+     */
+    private void writeOutputChanges(List<StoredTransactionOutput> txOutsCreated,
+                                    List<StoredTransactionOutput> txOutsSpent) throws BlockStoreException {
+        Set<StoredTransactionOutput> created = new HashSet<StoredTransactionOutput>(txOutsCreated);
+        Set<StoredTransactionOutput> spent = new HashSet<StoredTransactionOutput>(txOutsSpent);
+        for (StoredTransactionOutput out : txOutsSpent)
+            if (!created.contains(out))
+                blockStore.removeUnspentTransactionOutput(out);
+        for (StoredTransactionOutput out : txOutsCreated)
+            if (!spent.contains(out))
+                blockStore.addUnspentTransactionOutput(out);
+    }
+
     @Override
     protected TransactionOutputChanges connectTransactions(int height, Block block)
             throws VerificationException, BlockStoreException {
@@ -156,6 +196,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                         sigOps += tx.getSigOpCount();
                 }
             }
+            Map<TransactionOutPoint, StoredTransactionOutput> unspentOutputs = prefetchSpentOutputs(block.transactions);
             BigInteger totalFees = BigInteger.ZERO;
             BigInteger coinbaseValue = null;
             for (final Transaction tx : block.transactions) {
@@ -168,8 +209,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     // outputs.
                     for (int index = 0; index < tx.getInputs().size(); index++) {
                         TransactionInput in = tx.getInputs().get(index);
-                        StoredTransactionOutput prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-                                                                                          in.getOutpoint().getIndex());
+                        StoredTransactionOutput prevOut = unspentOutputs.remove(in.getOutpoint());
                         if (prevOut == null)
                             throw new VerificationException("Attempted to spend a non-existent or already spent output!");
                         // Coinbases can't be spent until they mature, to avoid re-orgs destroying entire transaction
@@ -179,18 +219,18 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                             throw new VerificationException("Tried to spend coinbase at depth " + (height - prevOut.getHeight()));
                         // TODO: Check we're not spending the genesis transaction here. Satoshis code won't allow it.
                         valueIn = valueIn.add(prevOut.getValue());
+                        Script prevOutScript = new Script(prevOut.getScriptBytes());
                         if (enforcePayToScriptHash) {
-                            if (new Script(prevOut.getScriptBytes()).isPayToScriptHash())
+                            if (prevOutScript.isPayToScriptHash())
                                 sigOps += Script.getP2SHSigOpCount(in.getScriptBytes());
                             if (sigOps > Block.MAX_BLOCK_SIGOPS)
                                 throw new VerificationException("Too many P2SH SigOps in block");
                         }
                         
-                        prevOutScripts.add(new Script(prevOut.getScriptBytes()));
+                        prevOutScripts.add(prevOutScript);
                         
                         //in.getScriptSig().correctlySpends(tx, index, new Script(params, prevOut.getScriptBytes(), 0, prevOut.getScriptBytes().length));
                         
-                        blockStore.removeUnspentTransactionOutput(prevOut);
                         txOutsSpent.add(prevOut);
                     }
                 }
@@ -200,7 +240,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     // For each output, add it to the set of unspent outputs so it can be consumed in future.
                     StoredTransactionOutput newOut = new StoredTransactionOutput(hash, out.getIndex(), out.getValue(),
                             height, isCoinBase, out.getScriptBytes());
-                    blockStore.addUnspentTransactionOutput(newOut);
+                    unspentOutputs.put(new TransactionOutPoint(params, out.getIndex(), hash), newOut);
                     txOutsCreated.add(newOut);
                 }
                 // All values were already checked for being non-negative (as it is verified in Transaction.verify())
@@ -224,6 +264,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             }
             if (totalFees.compareTo(params.MAX_MONEY) > 0 || block.getBlockInflation(height).add(totalFees).compareTo(coinbaseValue) < 0)
                 throw new VerificationException("Transaction fees out of range");
+            writeOutputChanges(txOutsCreated, txOutsSpent);
             for (Future<VerificationException> future : listScriptVerificationResults) {
                 VerificationException e;
                 try {
@@ -281,6 +322,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                             throw new VerificationException("Block failed BIP30 test!");
                     }
                 }
+                Map<TransactionOutPoint, StoredTransactionOutput> unspentOutputs = prefetchSpentOutputs(transactions);
                 BigInteger totalFees = BigInteger.ZERO;
                 BigInteger coinbaseValue = null;
                 
@@ -295,24 +337,22 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     if (!isCoinBase) {
                         for (int index = 0; index < tx.getInputs().size(); index++) {
                             final TransactionInput in = tx.getInputs().get(index);
-                            final StoredTransactionOutput prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-                                                                                                    in.getOutpoint().getIndex());
+                            final StoredTransactionOutput prevOut = unspentOutputs.remove(in.getOutpoint());
                             if (prevOut == null)
                                 throw new VerificationException("Attempted spend of a non-existent or already spent output!");
                             if (newBlock.getHeight() - prevOut.getHeight() < params.getSpendableCoinbaseDepth())
                                 throw new VerificationException("Tried to spend coinbase at depth " + (newBlock.getHeight() - prevOut.getHeight()));
                             valueIn = valueIn.add(prevOut.getValue());
+                            Script prevOutScript = new Script(prevOut.getScriptBytes());
                             if (enforcePayToScriptHash) {
-                                Script script = new Script(prevOut.getScriptBytes());
-                                if (script.isPayToScriptHash())
+                                if (prevOutScript.isPayToScriptHash())
                                     sigOps += Script.getP2SHSigOpCount(in.getScriptBytes());
                                 if (sigOps > Block.MAX_BLOCK_SIGOPS)
                                     throw new VerificationException("Too many P2SH SigOps in block");
                             }
                             
-                            prevOutScripts.add(new Script(prevOut.getScriptBytes()));
+                            prevOutScripts.add(prevOutScript);
                             
-                            blockStore.removeUnspentTransactionOutput(prevOut);
                             txOutsSpent.add(prevOut);
                         }
                     }
@@ -322,7 +362,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                         StoredTransactionOutput newOut = new StoredTransactionOutput(hash, out.getIndex(), out.getValue(),
                                                                                      newBlock.getHeight(), isCoinBase,
                                                                                      out.getScriptBytes());
-                        blockStore.addUnspentTransactionOutput(newOut);
+                        unspentOutputs.put(new TransactionOutPoint(params, out.getIndex(), hash), newOut);
                         txOutsCreated.add(newOut);
                     }
                     // All values were already checked for being non-negative (as it is verified in Transaction.verify())
@@ -347,6 +387,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 if (totalFees.compareTo(params.MAX_MONEY) > 0 ||
                         newBlock.getHeader().getBlockInflation(newBlock.getHeight()).add(totalFees).compareTo(coinbaseValue) < 0)
                     throw new VerificationException("Transaction fees out of range");
+                writeOutputChanges(txOutsCreated, txOutsSpent);
                 txOutChanges = new TransactionOutputChanges(txOutsCreated, txOutsSpent);
                 for (Future<VerificationException> future : listScriptVerificationResults) {
                     VerificationException e;
@@ -397,10 +438,10 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         try {
             StoredUndoableBlock undoBlock = blockStore.getUndoBlock(oldBlock.getHeader().getHash());
             if (undoBlock == null) throw new PrunedException(oldBlock.getHeader().getHash());
-            TransactionOutputChanges txOutChanges = undoBlock.getTxOutChanges();
-            for(StoredTransactionOutput out : txOutChanges.txOutsSpent)
+            // Streams over the outputs, which stores keeping undo data in compact form decode one at a time.
+            for(StoredTransactionOutput out : undoBlock.getTxOutsSpent())
                 blockStore.addUnspentTransactionOutput(out);
-            for(StoredTransactionOutput out : txOutChanges.txOutsCreated)
+            for(StoredTransactionOutput out : undoBlock.getTxOutsCreated())
                 blockStore.removeUnspentTransactionOutput(out);
         } catch (PrunedException e) {
             blockStore.abortDatabaseBatchWrite();
@@ -38,6 +38,10 @@ public class GetBlocksMessage extends Message {
         this.stopHash = stopHash;
     }
 
+    public GetBlocksMessage(NetworkParameters params, byte[] payload) throws ProtocolException {
+        super(params, payload, 0);
+    }
+
     protected void parseLite() throws ProtocolException {
         // NOP.  This is a root level message and should always be provided with a length.
     }
@@ -53,6 +57,7 @@ public class GetBlocksMessage extends Message {
             locator.add(readHash());
         }
         stopHash = readHash();
+        length = cursor - offset;
     }
 
     public List<Sha256Hash> getLocator() {
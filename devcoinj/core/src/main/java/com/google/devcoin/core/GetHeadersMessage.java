@@ -29,6 +29,10 @@ public class GetHeadersMessage extends GetBlocksMessage {
         super(params, locator, stopHash);
     }
 
+    public GetHeadersMessage(NetworkParameters params, byte[] payload) throws ProtocolException {
+        super(params, payload);
+    }
+
     @Override
     public String toString() {
         StringBuffer b = new StringBuffer();
@@ -19,6 +19,8 @@ package com.google.devcoin.core;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -45,6 +47,18 @@ public class HeadersMessage extends Message {
         blockHeaders = Arrays.asList(headers);
     }
 
+    @Override
+    void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(new VarInt(blockHeaders.size()).encode());
+        for (Block header : blockHeaders) {
+            // Each header is followed by the auxiliary proof of work of merge mined blocks and then the transaction
+            // count, which is always zero here.
+            header.writeHeader(stream);
+            header.writeAuxPow(stream);
+            stream.write(0);
+        }
+    }
+
     @Override
     protected void parseLite() throws ProtocolException {
         length = 0;
@@ -80,7 +80,7 @@ public abstract class ListMessage extends Message {
 
     @Override
     public void parse() throws ProtocolException {
-        // An inv is vector<CInv> where CInv is int+hash. The int is either 1 or 2 for tx or block.
+        // An inv is vector<CInv> where CInv is int+hash. The int is 1, 2 or 3 for tx, block or filtered block.
         items = new ArrayList<InventoryItem>((int) arrayLen);
         for (int i = 0; i < arrayLen; i++) {
             if (cursor + InventoryItem.MESSAGE_LENGTH > bytes.length) {
@@ -99,6 +99,9 @@ public abstract class ListMessage extends Message {
                 case 2:
                     type = InventoryItem.Type.Block;
                     break;
+                case 3:
+                    type = InventoryItem.Type.FilteredBlock;
+                    break;
                 default:
                     throw new ProtocolException("Unknown CInv type: " + typeCode);
             }
@@ -17,6 +17,9 @@
 package com.google.devcoin.core;
 
 import com.google.devcoin.utils.Threading;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,12 +27,10 @@ import javax.annotation.Nullable;
 import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.util.HashSet;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
 import java.util.concurrent.locks.ReentrantLock;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
@@ -41,10 +42,23 @@ import static com.google.common.base.Preconditions.checkState;
  * announce the transaction within a reasonable time, it may be that the TX is not valid. Alternatively, an attacker
  * may control your entire internet connection: in this scenario counting broadcasting peers does not help you.</p>
  *
- * <p>It is <b>not</b> at this time directly equivalent to the Satoshi clients memory pool, which tracks
+ * <p>By default it is <b>not</b> directly equivalent to the Satoshi clients memory pool, which tracks
  * all transactions not currently included in the best chain - it's simply a cache.</p>
+ *
+ * <p>A pool made with {@link MemoryPool#MemoryPool(int, long)} instead keeps the transactions it is given, up to a
+ * budget of bytes, for apps that relay or track unconfirmed traffic. When over budget the transactions paying the
+ * lowest fee per kilobyte are let go first, along with those spending their outputs, and go back to being tracked
+ * as above. Transactions spending outputs of unknown value are taken to pay the minimum relay fee, and confirmed
+ * transactions stop being kept, see {@link #removeConfirmed(Transaction)}. It indexes the outputs they spend, so
+ * double spends are found with one lookup per input (see {@link #getConflicts(Transaction)}), and the first
+ * transaction seen spending an output is the one kept. Memory use is then bounded by the budget, the number of other
+ * transactions tracked and {@link #MAX_ORPHANS}, however many transactions peers send.</p>
+ *
+ * <p>Any pool can also hold orphans: transactions waiting for a parent that is being downloaded, keyed by the
+ * outputs of the parent they spend. {@link Peer#downloadDependencies(Transaction)} uses them when the pool is
+ * retaining, so that a parent wanted by many transactions is only asked for once.</p>
  */
-public class MemoryPool {
+public class MemoryPool implements TransactionPool {
     private static final Logger log = LoggerFactory.getLogger(MemoryPool.class);
     protected ReentrantLock lock = Threading.lock("mempool");
 
@@ -81,15 +95,46 @@ public class MemoryPool {
     // if our peers flood us with invs but the MAX_SIZE param caps this.
     private ReferenceQueue<Transaction> referenceQueue;
 
+    // The transactions kept by a retaining pool. Kept transactions are held there instead of in memoryPool, so hashes
+    // announced by peers can't push them out.
+    @Nullable private final RetainedTransactions retained;
+
+    // A parent transaction that orphans are waiting for, and the outputs of it they spend.
+    private static class AwaitedParent {
+        final SettableFuture<Transaction> future = SettableFuture.create();
+        final List<TransactionOutPoint> outpoints = new ArrayList<TransactionOutPoint>();
+    }
+    // The parents waited for, the longest waited for first.
+    private final LinkedHashMap<Sha256Hash, AwaitedParent> awaitedParents = new LinkedHashMap<Sha256Hash, AwaitedParent>();
+    // The orphans, keyed by the missing outputs they spend.
+    private final HashMap<TransactionOutPoint, Transaction> orphans = new HashMap<TransactionOutPoint, Transaction>();
+
     /** The max size of a memory pool created with the no-args constructor. */
     public static final int MAX_SIZE = 1000;
 
+    /** The most orphans held at once. Past this, the orphans of the parent waited for longest are dropped. */
+    public static final int MAX_ORPHANS = 1000;
+
     /**
      * Creates a memory pool that will track at most the given number of transactions (allowing you to bound memory
      * usage).
      * @param size Max number of transactions to track. The pool will fill up to this size then stop growing.
      */
     public MemoryPool(final int size) {
+        this(size, 0);
+    }
+
+    /**
+     * Creates a memory pool that keeps the transactions it is given, as long as they fit in the given number of bytes,
+     * and also tracks at most the given number of other transactions as the one argument constructor does. A budget
+     * of zero keeps nothing, as that constructor.
+     *
+     * @param size Max number of transactions to track without keeping them, including announced hashes.
+     * @param maxRetainedBytes Max total serialized size of the transactions kept.
+     */
+    public MemoryPool(final int size, long maxRetainedBytes) {
+        checkArgument(maxRetainedBytes >= 0);
+        retained = maxRetainedBytes > 0 ? new RetainedTransactions(maxRetainedBytes) : null;
         memoryPool = new LinkedHashMap<Sha256Hash, Entry>() {
             @Override
             protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Entry> entry) {
@@ -122,8 +167,11 @@ public class MemoryPool {
             while ((ref = referenceQueue.poll()) != null) {
                 // Find which transaction got deleted by the GC.
                 WeakTransactionReference txRef = (WeakTransactionReference) ref;
-                // And remove the associated map entry so the other bits of memory can also be reclaimed.
-                memoryPool.remove(txRef.hash);
+                // And remove the associated map entry so the other bits of memory can also be reclaimed, unless the
+                // transaction was interned again since, with a new reference.
+                Entry entry = memoryPool.get(txRef.hash);
+                if (entry != null && entry.tx == txRef)
+                    memoryPool.remove(txRef.hash);
             }
         } finally {
             lock.unlock();
@@ -137,6 +185,9 @@ public class MemoryPool {
         lock.lock();
         try {
             cleanPool();
+            Transaction retainedTx = getRetained(txHash);
+            if (retainedTx != null)
+                return retainedTx.getConfidence().numBroadcastPeers();
             Entry entry = memoryPool.get(txHash);
             if (entry == null) {
                 // No such TX known.
@@ -172,45 +223,57 @@ public class MemoryPool {
         lock.lock();
         try {
             cleanPool();
-            Entry entry = memoryPool.get(tx.getHash());
-            if (entry != null) {
-                // This TX or its hash have been previously interned.
-                if (entry.tx != null) {
-                    // We already interned it (but may have thrown it away).
-                    checkState(entry.addresses == null);
-                    // We only want one canonical object instance for a transaction no matter how many times it is
-                    // deserialized.
-                    Transaction transaction = entry.tx.get();
-                    if (transaction != null) {
-                        // We saw it before and kept it around. Hand back the canonical copy.
-                        tx = transaction;
-                    }
-                    return tx;
-                } else {
-                    // We received a transaction that we have previously seen announced but not downloaded until now.
-                    checkNotNull(entry.addresses);
-                    entry.tx = new WeakTransactionReference(tx, referenceQueue);
-                    Set<PeerAddress> addrs = entry.addresses;
-                    entry.addresses = null;
-                    TransactionConfidence confidence = tx.getConfidence();
-                    log.debug("Adding tx [{}] {} to the memory pool",
-                            new Object[]{confidence.numBroadcastPeers(), tx.getHashAsString()});
-                    for (PeerAddress a : addrs) {
-                        markBroadcast(a, tx);
-                    }
-                    return tx;
+            Transaction retainedTx = getRetained(tx.getHash());
+            if (retainedTx != null)
+                return retainedTx;
+            Transaction interned = internWeakly(tx);
+            if (retained != null)
+                retain(interned);
+            resolveOrphans(interned);
+            return interned;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Transaction internWeakly(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        Entry entry = memoryPool.get(tx.getHash());
+        if (entry != null) {
+            // This TX or its hash have been previously interned.
+            if (entry.tx != null) {
+                // We already interned it (but may have thrown it away).
+                checkState(entry.addresses == null);
+                // We only want one canonical object instance for a transaction no matter how many times it is
+                // deserialized.
+                Transaction transaction = entry.tx.get();
+                if (transaction != null) {
+                    // We saw it before and kept it around. Hand back the canonical copy.
+                    tx = transaction;
                 }
+                return tx;
             } else {
-                // This often happens when we are downloading a Bloom filtered chain, or recursively downloading
-                // dependencies of a relevant transaction (see Peer.downloadDependencies).
-                log.debug("Provided with a downloaded transaction we didn't see announced yet: {}", tx.getHashAsString());
-                entry = new Entry();
+                // We received a transaction that we have previously seen announced but not downloaded until now.
+                checkNotNull(entry.addresses);
                 entry.tx = new WeakTransactionReference(tx, referenceQueue);
-                memoryPool.put(tx.getHash(), entry);
+                Set<PeerAddress> addrs = entry.addresses;
+                entry.addresses = null;
+                TransactionConfidence confidence = tx.getConfidence();
+                log.debug("Adding tx [{}] {} to the memory pool",
+                        new Object[]{confidence.numBroadcastPeers(), tx.getHashAsString()});
+                for (PeerAddress a : addrs) {
+                    markBroadcast(a, tx);
+                }
                 return tx;
             }
-        } finally {
-            lock.unlock();
+        } else {
+            // This often happens when we are downloading a Bloom filtered chain, or recursively downloading
+            // dependencies of a relevant transaction (see Peer.downloadDependencies).
+            log.debug("Provided with a downloaded transaction we didn't see announced yet: {}", tx.getHashAsString());
+            entry = new Entry();
+            entry.tx = new WeakTransactionReference(tx, referenceQueue);
+            memoryPool.put(tx.getHash(), entry);
+            return tx;
         }
     }
 
@@ -239,6 +302,11 @@ public class MemoryPool {
         lock.lock();
         try {
             cleanPool();
+            Transaction retainedTx = getRetained(hash);
+            if (retainedTx != null) {
+                markBroadcast(byPeer, retainedTx);
+                return;
+            }
             Entry entry = memoryPool.get(hash);
             if (entry != null) {
                 // This TX or its hash have been previously announced.
@@ -289,6 +357,8 @@ public class MemoryPool {
     public Transaction get(Sha256Hash hash) {
         lock.lock();
         try {
+            Transaction retainedTx = getRetained(hash);
+            if (retainedTx != null) return retainedTx;
             Entry entry = memoryPool.get(hash);
             if (entry == null) return null;  // Unknown.
             if (entry.tx == null) return null;  // Seen but only in advertisements.
@@ -310,9 +380,240 @@ public class MemoryPool {
         lock.lock();
         try {
             Entry entry = memoryPool.get(hash);
-            return entry != null;
+            return entry != null || getRetained(hash) != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns true if this pool keeps the transactions it is given, see {@link MemoryPool#MemoryPool(int, long)}. */
+    public boolean isRetaining() {
+        return retained != null;
+    }
+
+    /** Returns the total serialized size of the transactions kept. */
+    public long getRetainedBytes() {
+        lock.lock();
+        try {
+            return retained == null ? 0 : retained.getBytes();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns true if the given transaction is kept by this pool, rather than just tracked. */
+    public boolean isRetained(Sha256Hash hash) {
+        lock.lock();
+        try {
+            return getRetained(hash) != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the kept transaction that spends the given output, or null if none does. */
+    @Nullable
+    public Transaction getSpendingTransaction(TransactionOutPoint outpoint) {
+        lock.lock();
+        try {
+            return retained == null ? null : retained.getSpendingTransaction(outpoint);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the kept transactions, other than the given one, that spend any of the outputs it spends: the double
+     * spends of it that this pool knows of.
+     */
+    public Set<Transaction> getConflicts(Transaction tx) {
+        lock.lock();
+        try {
+            return retained == null ? Collections.<Transaction>emptySet() : retained.getConflicts(tx);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable
+    private Transaction getRetained(Sha256Hash hash) {
+        return retained == null ? null : retained.get(hash);
+    }
+
+    // Keeps the transaction unless it double spends one already kept, then lets go of the lowest fee transactions
+    // until back within budget, which may be this one.
+    private void retain(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        List<Transaction> released = retained.retain(tx);
+        // The strong reference takes over from the weak one.
+        if (retained.contains(tx.getHash()))
+            memoryPool.remove(tx.getHash());
+        trackReleased(released);
+    }
+
+    // Transactions no longer kept go back to being tracked weakly.
+    private void trackReleased(List<Transaction> released) {
+        for (Transaction tx : released) {
+            Entry entry = new Entry();
+            entry.tx = new WeakTransactionReference(tx, referenceQueue);
+            memoryPool.put(tx.getHash(), entry);
+        }
+    }
+
+    /**
+     * Called when the given transaction is included in a block of the best chain, which a {@link PeerGroup} with a
+     * block chain does. If it is kept it stops being kept, as it has no need to be relayed anymore, though the kept
+     * transactions spending its outputs stay. Kept transactions double spending it can never confirm now, so they are
+     * let go of along with those spending their outputs. Either way they go back to being tracked as any other.
+     */
+    public void removeConfirmed(Transaction tx) {
+        lock.lock();
+        try {
+            if (retained != null)
+                trackReleased(retained.removeConfirmed(tx));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Holds the given transaction as an orphan waiting for the given parent, which the caller is downloading, and
+     * returns a future for the parent. The future completes once the parent is passed to {@link #intern(Transaction)}
+     * or {@link #seen(Transaction, PeerAddress)}, and is cancelled if the parent is given up on with
+     * {@link #removeOrphans(Sha256Hash)} or its orphans are dropped to stay within {@link #MAX_ORPHANS}. Futures
+     * complete on the user thread.
+     */
+    public ListenableFuture<Transaction> addOrphan(Transaction orphan, Sha256Hash parentHash) {
+        return addOrphan(orphan, parentHash, false);
+    }
+
+    /**
+     * Like {@link #addOrphan(Transaction, Sha256Hash)}, but only if orphans are waiting for the given parent already,
+     * meaning that it has been asked for. Returns null otherwise, in which case the caller should ask for the parent
+     * itself and then call addOrphan. Checking and adding under one lock means the parent can't be given up on in
+     * between, which would leave the orphan waiting for a parent nobody asked for.
+     */
+    @Nullable
+    public ListenableFuture<Transaction> addOrphanIfAwaited(Transaction orphan, Sha256Hash parentHash) {
+        return addOrphan(orphan, parentHash, true);
+    }
+
+    @Nullable
+    private ListenableFuture<Transaction> addOrphan(Transaction orphan, Sha256Hash parentHash, boolean onlyIfAwaited) {
+        List<AwaitedParent> dropped = new ArrayList<AwaitedParent>();
+        AwaitedParent parent;
+        lock.lock();
+        try {
+            Transaction tx = get(parentHash);
+            if (tx != null)
+                return Futures.immediateFuture(tx);
+            parent = awaitedParents.get(parentHash);
+            if (parent == null) {
+                if (onlyIfAwaited)
+                    return null;
+                parent = new AwaitedParent();
+                awaitedParents.put(parentHash, parent);
+            }
+            for (TransactionInput input : orphan.getInputs()) {
+                TransactionOutPoint outpoint = input.getOutpoint();
+                if (outpoint.getHash().equals(parentHash) && orphans.put(outpoint, orphan) == null)
+                    parent.outpoints.add(outpoint);
+            }
+            while (orphans.size() > MAX_ORPHANS)
+                dropped.add(removeAwaitedParent(awaitedParents.keySet().iterator().next()));
+        } finally {
+            lock.unlock();
+        }
+        for (AwaitedParent p : dropped)
+            cancel(p);
+        return parent.future;
+    }
+
+    /** Returns true if orphans are waiting for the given parent, meaning that it has been asked for already. */
+    public boolean isAwaitingParent(Sha256Hash parentHash) {
+        lock.lock();
+        try {
+            return awaitedParents.containsKey(parentHash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the orphans waiting for the given parent. */
+    public List<Transaction> getOrphans(Sha256Hash parentHash) {
+        lock.lock();
+        try {
+            List<Transaction> result = new ArrayList<Transaction>();
+            AwaitedParent parent = awaitedParents.get(parentHash);
+            if (parent != null) {
+                for (TransactionOutPoint outpoint : parent.outpoints) {
+                    Transaction orphan = orphans.get(outpoint);
+                    if (!result.contains(orphan))
+                        result.add(orphan);
+                }
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of orphans held, counting an orphan once for each missing output it spends. */
+    public int getOrphanCount() {
+        lock.lock();
+        try {
+            return orphans.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives up waiting for the given parent, for example when the peer asked for it says it doesn't have it, dropping
+     * the orphans waiting for it and cancelling their future.
+     */
+    public void removeOrphans(Sha256Hash parentHash) {
+        AwaitedParent parent;
+        lock.lock();
+        try {
+            parent = removeAwaitedParent(parentHash);
         } finally {
             lock.unlock();
         }
+        if (parent != null)
+            cancel(parent);
+    }
+
+    @Nullable
+    private AwaitedParent removeAwaitedParent(Sha256Hash parentHash) {
+        AwaitedParent parent = awaitedParents.remove(parentHash);
+        if (parent != null) {
+            for (TransactionOutPoint outpoint : parent.outpoints)
+                orphans.remove(outpoint);
+        }
+        return parent;
+    }
+
+    // Hands the transaction to the orphans waiting for it.
+    private void resolveOrphans(final Transaction tx) {
+        if (awaitedParents.isEmpty())
+            return;
+        final AwaitedParent parent = removeAwaitedParent(tx.getHash());
+        if (parent == null)
+            return;
+        // Not while holding the lock, as whoever waits may well take other locks.
+        Threading.USER_THREAD.execute(new Runnable() {
+            public void run() {
+                parent.future.set(tx);
+            }
+        });
+    }
+
+    private static void cancel(final AwaitedParent parent) {
+        Threading.USER_THREAD.execute(new Runnable() {
+            public void run() {
+                parent.future.cancel(true);
+            }
+        });
     }
 }
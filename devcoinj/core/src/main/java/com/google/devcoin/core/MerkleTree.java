@@ -0,0 +1,386 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.core;
+
+import com.google.devcoin.utils.Threading;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import javax.annotation.Nullable;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>The merkle tree of the transactions in a block, which keeps its interior nodes so that appending or replacing a
+ * transaction hash only recalculates the nodes above it, rather than the whole tree.</p>
+ *
+ * <p>The merkle root is based on a tree of hashes calculated from the transactions:</p>
+ *
+ * <pre>
+ *     root
+ *      / \
+ *   A      B
+ *  / \    / \
+ * t1 t2 t3 t4
+ * </pre>
+ *
+ * <p>The hashing algorithm is double SHA-256. The leaves are the hashes of the transactions and the interior nodes are
+ * hashes of the concatenation of their two children. If a level has an odd number of nodes the last one is paired with
+ * itself, so a tree with 5 transactions looks like this:</p>
+ *
+ * <pre>
+ *         root
+ *        /     \
+ *       1        5
+ *     /   \     / \
+ *    2     3    4  4
+ *  / \   / \   / \
+ * t1 t2 t3 t4 t5 t5
+ * </pre>
+ *
+ * <p>Each level is kept in one flat byte array, the nodes back to back in the byte order they are hashed in, which is
+ * the reverse of {@link Sha256Hash#getBytes()}. Changes only mark the changed leaves, and the paths from them up to
+ * the root are recalculated the next time the root is asked for, so appending many transactions and then asking for
+ * the root costs no more than building the tree once.</p>
+ *
+ * <p>The tree can also produce a {@link PartialMerkleTree} proving which of its transactions matched a filter, for a
+ * {@link FilteredBlock}. Instances are not thread safe.</p>
+ *
+ * <p>{@link #build(List, int)} hashes on threads from a pool shared by all calls, created the first time it is needed,
+ * whose threads exit after a few seconds without work. The calling thread takes a share of each level too.</p>
+ */
+public class MerkleTree {
+    private static final int HASH_LENGTH = 32;
+    // Below this many nodes per thread on a level, starting the threads costs more than it saves.
+    private static final int MIN_NODES_PER_THREAD = 512;
+    // How long a pool thread waits for more work before it exits.
+    private static final long IDLE_THREAD_TIMEOUT_SECS = 5;
+
+    @Nullable private static ThreadPoolExecutor executor;
+
+    // levels.get(0) holds the leaves and the last level holds the root. Arrays may have spare room at the end.
+    private final List<byte[]> levels = new ArrayList<byte[]>();
+    private int size;
+    // The leaves whose paths to the root need recalculating.
+    private final BitSet dirty = new BitSet();
+    private final MessageDigest digest = newDigest();
+
+    /** Creates an empty tree, to which transaction hashes can be added. */
+    public MerkleTree() {
+        levels.add(new byte[16 * HASH_LENGTH]);
+    }
+
+    /** Creates a tree of the given transaction hashes, in block order. */
+    public MerkleTree(List<Sha256Hash> leaves) {
+        setLeaves(leaves);
+        hashLevels(null, 1);
+    }
+
+    /**
+     * Creates a tree of the given transaction hashes, in block order, hashing the wider levels on up to the given
+     * number of threads. Worth it for the largest blocks only.
+     */
+    public static MerkleTree build(List<Sha256Hash> leaves, int numThreads) {
+        checkArgument(numThreads > 0);
+        MerkleTree tree = new MerkleTree();
+        tree.setLeaves(leaves);
+        int threads = Math.min(numThreads, leaves.size() / (2 * MIN_NODES_PER_THREAD));
+        if (threads < 2) {
+            tree.hashLevels(null, 1);
+            return tree;
+        }
+        tree.hashLevels(getExecutor(), threads);
+        return tree;
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("MerkleTree thread %d");
+            Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+            if (handler != null)
+                builder.setUncaughtExceptionHandler(handler);
+            int numThreads = Runtime.getRuntime().availableProcessors();
+            executor = new ThreadPoolExecutor(numThreads, numThreads, IDLE_THREAD_TIMEOUT_SECS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), builder.build());
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    /** Returns the number of transaction hashes in the tree. */
+    public int size() {
+        return size;
+    }
+
+    /** Returns the transaction hash at the given position. */
+    public Sha256Hash get(int index) {
+        checkElementIndex(index, size);
+        return toHash(levels.get(0), index);
+    }
+
+    /** Appends a transaction hash to the tree. */
+    public void add(Sha256Hash leaf) {
+        byte[] leaves = levels.get(0);
+        if ((size + 1) * HASH_LENGTH > leaves.length) {
+            leaves = Arrays.copyOf(leaves, Math.max(2 * leaves.length, (size + 1) * HASH_LENGTH));
+            levels.set(0, leaves);
+        }
+        putHash(leaves, size, leaf);
+        dirty.set(size);
+        size++;
+    }
+
+    /** Replaces the transaction hash at the given position. Replacing a hash with the same one does nothing. */
+    public void set(int index, Sha256Hash leaf) {
+        checkElementIndex(index, size);
+        byte[] leaves = levels.get(0);
+        byte[] bytes = leaf.getBytes();
+        int offset = index * HASH_LENGTH;
+        boolean same = true;
+        for (int i = 0; i < HASH_LENGTH && same; i++)
+            same = leaves[offset + i] == bytes[HASH_LENGTH - 1 - i];
+        if (same)
+            return;
+        putHash(leaves, index, leaf);
+        dirty.set(index);
+    }
+
+    /** Returns the merkle root in big endian form, recalculating the paths to any hashes changed since last time. */
+    public Sha256Hash getRoot() {
+        checkState(size > 0, "A merkle tree needs at least one transaction");
+        rehashDirty();
+        int level = 0;
+        for (int width = size; width > 1; width = (width + 1) / 2)
+            level++;
+        return toHash(levels.get(level), 0);
+    }
+
+    /**
+     * Returns a {@link PartialMerkleTree} proving that the transactions whose positions are set in the given bits are
+     * in the block, and nothing else about the rest.
+     */
+    public PartialMerkleTree getPartialMerkleTree(NetworkParameters params, BitSet matched) {
+        checkState(size > 0, "A merkle tree needs at least one transaction");
+        checkArgument(matched.length() <= size, "Matched transaction %s is not in the tree", matched.length() - 1);
+        rehashDirty();
+        // Which nodes on each level are the parent of at least one matched transaction.
+        List<BitSet> parentsOfMatches = new ArrayList<BitSet>();
+        parentsOfMatches.add(matched);
+        for (int width = size; width > 1; width = (width + 1) / 2) {
+            BitSet children = parentsOfMatches.get(parentsOfMatches.size() - 1);
+            BitSet parents = new BitSet();
+            for (int i = children.nextSetBit(0); i >= 0; i = children.nextSetBit(i + 1))
+                parents.set(i >> 1);
+            parentsOfMatches.add(parents);
+        }
+        BitSet bits = new BitSet();
+        int[] bitsUsed = new int[1];
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        traverseAndBuild(parentsOfMatches.size() - 1, 0, parentsOfMatches, bits, bitsUsed, hashes);
+        byte[] packedBits = new byte[(bitsUsed[0] + 7) / 8];
+        for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1))
+            Utils.setBitLE(packedBits, i);
+        return new PartialMerkleTree(params, packedBits, hashes, size);
+    }
+
+    /**
+     * Returns a {@link PartialMerkleTree} proving that the transactions with the given hashes are in the block, and
+     * nothing else about the rest. Hashes that aren't in the block are ignored.
+     */
+    public PartialMerkleTree getPartialMerkleTree(NetworkParameters params, Set<Sha256Hash> matched) {
+        BitSet matchedLeaves = new BitSet(size);
+        byte[] leaves = levels.get(0);
+        for (int i = 0; i < size; i++) {
+            if (matched.contains(toHash(leaves, i)))
+                matchedLeaves.set(i);
+        }
+        return getPartialMerkleTree(params, matchedLeaves);
+    }
+
+    // Writes out the depth first traversal described in PartialMerkleTree, as the reference client's
+    // CPartialMerkleTree::TraverseAndBuild does, but looking the node hashes up rather than calculating them.
+    private void traverseAndBuild(int height, int pos, List<BitSet> parentsOfMatches, BitSet bits, int[] bitsUsed,
+                                  List<Sha256Hash> hashes) {
+        boolean parentOfMatch = parentsOfMatches.get(height).get(pos);
+        if (parentOfMatch)
+            bits.set(bitsUsed[0]);
+        bitsUsed[0]++;
+        if (height == 0 || !parentOfMatch) {
+            hashes.add(toHash(levels.get(height), pos));
+        } else {
+            traverseAndBuild(height - 1, pos * 2, parentsOfMatches, bits, bitsUsed, hashes);
+            if (pos * 2 + 1 < getWidth(height - 1))
+                traverseAndBuild(height - 1, pos * 2 + 1, parentsOfMatches, bits, bitsUsed, hashes);
+        }
+    }
+
+    private int getWidth(int height) {
+        int width = size;
+        for (int i = 0; i < height; i++)
+            width = (width + 1) / 2;
+        return width;
+    }
+
+    private void setLeaves(List<Sha256Hash> leaves) {
+        levels.clear();
+        dirty.clear();
+        size = leaves.size();
+        byte[] bytes = new byte[Math.max(16, size) * HASH_LENGTH];
+        for (int i = 0; i < size; i++)
+            putHash(bytes, i, leaves.get(i));
+        levels.add(bytes);
+    }
+
+    // Hashes every level from the leaves up, spreading the wider levels over the executor if there is one.
+    private void hashLevels(@Nullable ExecutorService executor, int numThreads) {
+        int level = 0;
+        for (int width = size; width > 1; width = (width + 1) / 2) {
+            final byte[] nodes = levels.get(level);
+            final byte[] parents = getLevel(level + 1, (width + 1) / 2);
+            final int childWidth = width;
+            int parentWidth = (width + 1) / 2;
+            int threads = executor == null ? 1 : Math.min(numThreads, parentWidth / MIN_NODES_PER_THREAD);
+            if (threads < 2) {
+                hashRange(digest, nodes, childWidth, parents, 0, parentWidth);
+            } else {
+                List<Future<?>> futures = new ArrayList<Future<?>>(threads - 1);
+                // The first range is hashed on this thread, so a build never just waits for the pool.
+                for (int i = 1; i < threads; i++) {
+                    final int from = (int) ((long) parentWidth * i / threads);
+                    final int to = (int) ((long) parentWidth * (i + 1) / threads);
+                    futures.add(executor.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            // Each with its own digest, which are not thread safe.
+                            hashRange(newDigest(), nodes, childWidth, parents, from, to);
+                        }
+                    }));
+                }
+                try {
+                    hashRange(digest, nodes, childWidth, parents, 0, parentWidth / threads);
+                } finally {
+                    waitFor(futures);
+                }
+            }
+            level++;
+        }
+    }
+
+    private static void waitFor(List<Future<?>> futures) {
+        try {
+            for (Future<?> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new RuntimeException(cause);
+        } finally {
+            for (Future<?> future : futures)
+                future.cancel(true);
+        }
+    }
+
+    // Recalculates the nodes above the dirty leaves, each once however many of its children changed.
+    private void rehashDirty() {
+        if (dirty.isEmpty())
+            return;
+        BitSet children = dirty;
+        int level = 0;
+        for (int width = size; width > 1; width = (width + 1) / 2) {
+            byte[] nodes = levels.get(level);
+            byte[] parents = getLevel(level + 1, (width + 1) / 2);
+            BitSet dirtyParents = new BitSet();
+            for (int i = children.nextSetBit(0); i >= 0; i = children.nextSetBit(i + 1)) {
+                int parent = i >> 1;
+                if (dirtyParents.get(parent))
+                    continue;
+                dirtyParents.set(parent);
+                hashRange(digest, nodes, width, parents, parent, parent + 1);
+            }
+            children = dirtyParents;
+            level++;
+        }
+        dirty.clear();
+    }
+
+    // Returns the array for the given level, grown to hold at least the given number of nodes.
+    private byte[] getLevel(int level, int width) {
+        if (level == levels.size())
+            levels.add(new byte[Math.max(16, width) * HASH_LENGTH]);
+        byte[] nodes = levels.get(level);
+        if (width * HASH_LENGTH > nodes.length) {
+            nodes = Arrays.copyOf(nodes, Math.max(2 * nodes.length, width * HASH_LENGTH));
+            levels.set(level, nodes);
+        }
+        return nodes;
+    }
+
+    // Sets parents [from, to) to the double SHA-256 of their children, the last child paired with itself if need be.
+    private static void hashRange(MessageDigest digest, byte[] nodes, int width, byte[] parents, int from, int to) {
+        try {
+            for (int parent = from; parent < to; parent++) {
+                int left = parent * 2;
+                int right = Math.min(left + 1, width - 1);
+                digest.reset();
+                digest.update(nodes, left * HASH_LENGTH, HASH_LENGTH);
+                digest.update(nodes, right * HASH_LENGTH, HASH_LENGTH);
+                byte[] first = digest.digest();
+                digest.update(first);
+                digest.digest(parents, parent * HASH_LENGTH, HASH_LENGTH);
+            }
+        } catch (DigestException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    private static void putHash(byte[] nodes, int index, Sha256Hash hash) {
+        byte[] bytes = hash.getBytes();
+        int offset = index * HASH_LENGTH;
+        for (int i = 0; i < HASH_LENGTH; i++)
+            nodes[offset + i] = bytes[HASH_LENGTH - 1 - i];
+    }
+
+    private static Sha256Hash toHash(byte[] nodes, int index) {
+        byte[] bytes = new byte[HASH_LENGTH];
+        int offset = index * HASH_LENGTH;
+        for (int i = 0; i < HASH_LENGTH; i++)
+            bytes[i] = nodes[offset + HASH_LENGTH - 1 - i];
+        return new Sha256Hash(bytes);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+}
@@ -53,7 +53,8 @@ public abstract class Message implements Serializable {
     protected transient byte[] bytes;
     protected transient byte[] payloadBytes;
     protected transient int payloadCursor;
-    protected transient boolean parsed = false;
+    // Volatile so that maybeParse() can tell a parsed message apart without taking a lock, see there.
+    protected transient volatile boolean parsed = false;
     protected transient boolean recached = false;
     protected transient final boolean parseLazy;
     protected transient final boolean parseRetain;
@@ -211,16 +212,23 @@ public abstract class Message implements Serializable {
      * Ensure the object is parsed if needed.  This should be called in every getter before returning a value.
      * If the lazy parse flag is not set this is a method returns immediately.
      */
-    protected synchronized void maybeParse() {
-        if (parsed || bytes == null)
+    protected void maybeParse() {
+        // Once a message is parsed this only reads a volatile, which matters as getters call it on every access. The
+        // lock is taken only while the message may still need parsing, so that just one thread parses it.
+        if (parsed)
             return;
-        try {
-            parse();
-            parsed = true;
-            if (!parseRetain)
-                bytes = null;
-        } catch (ProtocolException e) {
-            throw new LazyParseException("ProtocolException caught during lazy parse.  For safe access to fields call ensureParsed before attempting read or write access", e);
+        synchronized (this) {
+            if (parsed || bytes == null)
+                return;
+            try {
+                parse();
+                if (!parseRetain)
+                    bytes = null;
+                // Set last: a thread that sees it set is guaranteed to see everything parse() wrote.
+                parsed = true;
+            } catch (ProtocolException e) {
+                throw new LazyParseException("ProtocolException caught during lazy parse.  For safe access to fields call ensureParsed before attempting read or write access", e);
+            }
         }
     }
 
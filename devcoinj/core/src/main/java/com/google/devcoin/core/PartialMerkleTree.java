@@ -63,9 +63,28 @@ public class PartialMerkleTree extends Message {
     public PartialMerkleTree(NetworkParameters params, byte[] payloadBytes, int offset) throws ProtocolException {
         super(params, payloadBytes, offset);
     }
+
+    /**
+     * Creates a partial merkle tree from the bits and hashes of its traversal, as worked out by
+     * {@link MerkleTree#getPartialMerkleTree(NetworkParameters, java.util.BitSet)}.
+     */
+    PartialMerkleTree(NetworkParameters params, byte[] matchedChildBits, List<Sha256Hash> hashes,
+                      int transactionCount) {
+        super(params);
+        this.matchedChildBits = matchedChildBits;
+        this.hashes = hashes;
+        this.transactionCount = transactionCount;
+        length = 4 + VarInt.sizeOf(hashes.size()) + hashes.size() * 32 +
+                VarInt.sizeOf(matchedChildBits.length) + matchedChildBits.length;
+    }
     
     public void bitcoinSerializeToStream(OutputStream stream) throws IOException {
-        throw new RuntimeException("Not implemented");
+        Utils.uint32ToByteStreamLE(transactionCount, stream);
+        stream.write(new VarInt(hashes.size()).encode());
+        for (Sha256Hash hash : hashes)
+            stream.write(Utils.reverseBytes(hash.getBytes()));
+        stream.write(new VarInt(matchedChildBits.length).encode());
+        stream.write(matchedChildBits);
     }
 
     @Override
@@ -98,8 +117,9 @@ public class PartialMerkleTree extends Message {
     }
     
     // recursive function that traverses tree nodes, consuming the bits and hashes produced by TraverseAndBuild.
-    // it returns the hash of the respective node.
-    private Sha256Hash recursiveExtractHashes(int height, int pos, ValuesUsed used, List<Sha256Hash> matchedHashes) throws VerificationException {
+    // it returns the hash of the respective node, in the little endian order it is hashed in, so that the hashes
+    // don't need reversing on the way up.
+    private byte[] recursiveExtractHashes(int height, int pos, ValuesUsed used, List<Sha256Hash> matchedHashes) throws VerificationException {
         if (used.bitsUsed >= matchedChildBits.length*8) {
             // overflowed the bits array - failure
             throw new VerificationException("CPartialMerkleTree overflowed its bits array");
@@ -113,18 +133,16 @@ public class PartialMerkleTree extends Message {
             }
             if (height == 0 && parentOfMatch) // in case of height 0, we have a matched txid
                 matchedHashes.add(hashes.get(used.hashesUsed));
-            return hashes.get(used.hashesUsed++);
+            return Utils.reverseBytes(hashes.get(used.hashesUsed++).getBytes());
         } else {
             // otherwise, descend into the subtrees to extract matched txids and hashes
-            byte[] left = recursiveExtractHashes(height-1, pos*2, used, matchedHashes).getBytes(), right;
+            byte[] left = recursiveExtractHashes(height-1, pos*2, used, matchedHashes), right;
             if (pos*2+1 < getTreeWidth(height-1))
-                right = recursiveExtractHashes(height-1, pos*2+1, used, matchedHashes).getBytes();
+                right = recursiveExtractHashes(height-1, pos*2+1, used, matchedHashes);
             else
                 right = left;
             // and combine them before returning
-            return new Sha256Hash(Utils.reverseBytes(Utils.doubleDigestTwoBuffers(
-                    Utils.reverseBytes(left), 0, 32,
-                    Utils.reverseBytes(right), 0, 32)));
+            return Utils.doubleDigestTwoBuffers(left, 0, 32, right, 0, 32);
         }
     }
     
@@ -161,7 +179,7 @@ public class PartialMerkleTree extends Message {
             height++;
         // traverse the partial tree
         ValuesUsed used = new ValuesUsed();
-        Sha256Hash merkleRoot = recursiveExtractHashes(height, 0, used, matchedHashes);
+        Sha256Hash merkleRoot = new Sha256Hash(Utils.reverseBytes(recursiveExtractHashes(height, 0, used, matchedHashes)));
         // verify that all bits were consumed (except for the padding caused by serializing it as a byte sequence)
         if ((used.bitsUsed+7)/8 != matchedChildBits.length ||
                 // verify that all hashes were consumed
@@ -81,7 +81,7 @@ public class Peer {
     private final AtomicInteger blocksAnnounced = new AtomicInteger();
     // A class that tracks recent transactions that have been broadcast across the network, counts how many
     // peers announced them and updates the transaction confidence data. It is passed to each Peer.
-    private final MemoryPool memoryPool;
+    private final TransactionPool memoryPool;
     // Each wallet added to the peer will be notified of downloaded transaction data.
     private final CopyOnWriteArrayList<Wallet> wallets;
     // A time before which we only download block headers, after that point we download block bodies.
@@ -94,6 +94,8 @@ public class Peer {
     @GuardedBy("lock") private boolean useFilteredBlocks = false;
     // The current Bloom filter set on the connection, used to tell the remote peer what transactions to send us.
     private volatile BloomFilter vBloomFilter;
+    // The filter the remote peer loaded, that is, the transactions it wants to hear about from us.
+    private volatile BloomFilter vPeerBloomFilter;
     // The last filtered block we received, we're waiting to fill it out with transactions.
     private FilteredBlock currentFilteredBlock = null;
     // How many filtered blocks have been received during the lifetime of this connection. Used to decide when to
@@ -147,7 +149,7 @@ public class Peer {
      * in a memory pool will have their confidence levels updated when a peer announces it, to reflect the greater
      * likelyhood that the transaction is valid.
      */
-    public Peer(NetworkParameters params, @Nullable AbstractBlockChain chain, VersionMessage ver, @Nullable MemoryPool mempool) {
+    public Peer(NetworkParameters params, @Nullable AbstractBlockChain chain, VersionMessage ver, @Nullable TransactionPool mempool) {
         this.params = Preconditions.checkNotNull(params);
         this.versionMessage = Preconditions.checkNotNull(ver);
         this.blockChain = chain;  // Allowed to be null.
@@ -223,10 +225,22 @@ public class Peer {
         }
     }
 
+    // Nothing asked for will come now, so finish whatever waits for it. Orphans in the memory pool waiting for a parent
+    // asked for here are dropped, which finishes the dependency walks of other peers waiting for it too.
+    private void cancelGetDataRequests() {
+        for (GetDataRequest req : getDataFutures) {
+            req.future.cancel(true);
+            getDataFutures.remove(req);
+            if (memoryPool != null)
+                memoryPool.removeOrphans(req.hash);
+        }
+    }
+
     class PeerHandler extends SimpleChannelHandler {
         @Override
         public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
             super.channelClosed(ctx, e);
+            cancelGetDataRequests();
             notifyDisconnect();
         }
 
@@ -237,6 +251,16 @@ public class Peer {
             super.connectRequested(ctx, e);
         }
 
+        @Override
+        public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+            // Connections accepted by a PeerServer never see a connect request, so pick up the address here.
+            if (vChannel == null) {
+                vAddress = new PeerAddress((InetSocketAddress) e.getChannel().getRemoteAddress());
+                vChannel = e.getChannel();
+            }
+            super.channelConnected(ctx, e);
+        }
+
         /** Catch any exceptions, logging them and then closing the channel. */
         @Override
         public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
@@ -303,6 +327,12 @@ public class Peer {
             processTransaction((Transaction) m);
         } else if (m instanceof GetDataMessage) {
             processGetData((GetDataMessage) m);
+        } else if (m instanceof BloomFilter) {
+            vPeerBloomFilter = (BloomFilter) m;
+        } else if (m instanceof FilterAddMessage) {
+            processFilterAdd((FilterAddMessage) m);
+        } else if (m instanceof FilterClearMessage) {
+            vPeerBloomFilter = null;
         } else if (m instanceof AddressMessage) {
             // We don't care about addresses of the network right now. But in future,
             // we should save them in the wallet so we don't put too much load on the seed nodes and can
@@ -369,6 +399,8 @@ public class Peer {
                     log.info("{}: Bottomed out dep tree at {}", this, req.hash);
                     req.future.cancel(true);
                     getDataFutures.remove(req);
+                    if (memoryPool != null)
+                        memoryPool.removeOrphans(req.hash);
                     break;
                 }
             }
@@ -479,6 +511,19 @@ public class Peer {
         }
     }
 
+    private void processFilterAdd(FilterAddMessage m) {
+        BloomFilter filter = vPeerBloomFilter;
+        if (filter == null) {
+            // The reference client counts this as misbehaviour. There is nothing to add to, so just ignore it.
+            log.warn("{}: Received filteradd without a filter loaded, ignoring", vAddress);
+            return;
+        }
+        // Filtered blocks may be built for the peer on other threads, which lock the filter as they update it.
+        synchronized (filter) {
+            filter.insert(m.getData());
+        }
+    }
+
     private void processGetData(GetDataMessage getdata) throws IOException {
         log.info("{}: Received getdata message: {}", vAddress, getdata.toString());
         ArrayList<Message> items = new ArrayList<Message>();
@@ -632,19 +677,30 @@ public class Peer {
         // the case of transactions with tons of inputs.
         Set<Transaction> dependencies = new CopyOnWriteArraySet<Transaction>();
         Set<Sha256Hash> needToRequest = new CopyOnWriteArraySet<Sha256Hash>();
-        for (TransactionInput input : tx.getInputs()) {
-            // There may be multiple inputs that connect to the same transaction.
-            Sha256Hash hash = input.getOutpoint().getHash();
-            Transaction dep = memoryPool.get(hash);
-            if (dep == null) {
-                needToRequest.add(hash);
-            } else {
-                dependencies.add(dep);
-            }
-        }
-        results.addAll(dependencies);
+        // A pool that keeps transactions also holds those waiting for a parent that was asked for already, by this
+        // walk or another, so each parent is only requested once however many transactions spend it. Walks carry on
+        // from other threads, so what to ask for is worked out under the lock, where the orphans are registered too.
+        final boolean useOrphans = memoryPool.isRetaining();
+        Map<Sha256Hash, ListenableFuture<Transaction>> alreadyRequested =
+                new HashMap<Sha256Hash, ListenableFuture<Transaction>>();
         lock.lock();
         try {
+            for (TransactionInput input : tx.getInputs()) {
+                // There may be multiple inputs that connect to the same transaction.
+                Sha256Hash hash = input.getOutpoint().getHash();
+                Transaction dep = memoryPool.get(hash);
+                if (dep != null) {
+                    dependencies.add(dep);
+                } else if (!needToRequest.contains(hash) && !alreadyRequested.containsKey(hash)) {
+                    // Asked for already if orphans are waiting for it, which is checked as they are added to.
+                    ListenableFuture<Transaction> awaited = useOrphans ? memoryPool.addOrphanIfAwaited(tx, hash) : null;
+                    if (awaited != null)
+                        alreadyRequested.put(hash, awaited);
+                    else
+                        needToRequest.add(hash);
+                }
+            }
+            results.addAll(dependencies);
             // Build the request for the missing dependencies.
             List<ListenableFuture<Transaction>> futures = Lists.newArrayList();
             GetDataMessage getdata = new GetDataMessage(params);
@@ -661,7 +717,10 @@ public class Peer {
                 }
                 futures.add(req.future);
                 getDataFutures.add(req);
+                if (useOrphans)
+                    memoryPool.addOrphan(tx, hash);
             }
+            futures.addAll(alreadyRequested.values());
             // The transactions we already grabbed out of the mempool must still be considered by the code below.
             for (Transaction dep : dependencies) {
                 futures.add(Futures.immediateFuture(dep));
@@ -702,7 +761,9 @@ public class Peer {
                     resultFuture.setException(throwable);
                 }
             });
-            // Start the operation.
+            // Start the operation, unless everything is in the pool or was asked for already.
+            if (needToRequest.isEmpty())
+                return resultFuture;
             sendMessage(getdata);
             if (!isNotFoundMessageSupported()) {
                 // If the peer isn't new enough to support the notfound message, we use a nasty hack instead and
@@ -717,6 +778,7 @@ public class Peer {
                                 log.info("{}: Bottomed out dep tree at {}", this, req.hash);
                                 req.future.cancel(true);
                                 getDataFutures.remove(req);
+                                memoryPool.removeOrphans(req.hash);
                             }
                         }
                     }
@@ -1449,4 +1511,14 @@ public class Peer {
     public BloomFilter getBloomFilter() {
         return vBloomFilter;
     }
+
+    /**
+     * Returns the last {@link BloomFilter} the remote peer sent us, which says what transactions it wants us to send
+     * it, or null if it hasn't sent one or has cleared it since. Serving filtered blocks to the peer with
+     * {@link FilteredBlockBuilder} updates this filter, as the remote peer expects, and so do the elements it adds with
+     * filteradd messages, which are added holding the filter's lock.
+     */
+    public BloomFilter getPeerBloomFilter() {
+        return vPeerBloomFilter;
+    }
 }
@@ -96,7 +96,7 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
     @GuardedBy("lock") private VersionMessage versionMessage;
     // A class that tracks recent transactions that have been broadcast across the network, counts how many
     // peers announced them and updates the transaction confidence data. It is passed to each Peer.
-    private final MemoryPool memoryPool;
+    private final TransactionPool memoryPool;
     // How many connections we want to have open at the current time. If we lose connections, we'll try opening more
     // until we reach this count.
     @GuardedBy("lock") private int maxConnections;
@@ -125,6 +125,32 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
         }
     };
 
+    // Tells a memory pool that keeps transactions which of them the best chain confirms. The chain only hands over the
+    // transactions that are kept or double spend kept ones, so other blocks cost no more than before.
+    private final AbstractBlockChainListener confirmationListener = new AbstractBlockChainListener() {
+        @Override
+        public boolean isTransactionRelevant(Transaction tx) {
+            return memoryPool.isRetaining() &&
+                    (memoryPool.isRetained(tx.getHash()) || !memoryPool.getConflicts(tx).isEmpty());
+        }
+
+        @Override
+        public void receiveFromBlock(Transaction tx, StoredBlock block, BlockChain.NewBlockType blockType,
+                                     int relativityOffset) {
+            if (blockType == BlockChain.NewBlockType.BEST_CHAIN)
+                memoryPool.removeConfirmed(tx);
+        }
+
+        @Override
+        public void notifyTransactionIsInBlock(Sha256Hash txHash, StoredBlock block,
+                                               BlockChain.NewBlockType blockType, int relativityOffset) {
+            // Filtered blocks only name the transactions that were seen already.
+            Transaction tx = memoryPool.get(txHash);
+            if (tx != null && blockType == BlockChain.NewBlockType.BEST_CHAIN && memoryPool.isRetained(txHash))
+                memoryPool.removeConfirmed(tx);
+        }
+    };
+
     private ClientBootstrap bootstrap;
     private int minBroadcastConnections = 0;
     private AbstractWalletEventListener walletEventListener = new AbstractWalletEventListener() {
@@ -200,6 +226,16 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
      * bootstrap will be modified to have one that sets up the pipelines correctly.</p>
      */
     public PeerGroup(NetworkParameters params, @Nullable AbstractBlockChain chain, @Nullable ClientBootstrap bootstrap) {
+        this(params, chain, bootstrap, new MemoryPool());
+    }
+
+    /**
+     * Creates a PeerGroup as {@link PeerGroup#PeerGroup(NetworkParameters, AbstractBlockChain, ClientBootstrap)} does,
+     * with the given memory pool shared by its peers, for example one that keeps the transactions it sees, see
+     * {@link MemoryPool#MemoryPool(int, long)}, or a {@link ShardedMemoryPool} for many peers.
+     */
+    public PeerGroup(NetworkParameters params, @Nullable AbstractBlockChain chain, @Nullable ClientBootstrap bootstrap,
+                     TransactionPool memoryPool) {
         this.params = checkNotNull(params);
         this.chain = chain;
         this.fastCatchupTimeSecs = params.getGenesisBlock().getTimeSeconds();
@@ -215,7 +251,9 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
         // We never request that the remote node wait for a bloom filter yet, as we have no wallets
         this.versionMessage = new VersionMessage(params, height, true);
 
-        memoryPool = new MemoryPool();
+        this.memoryPool = checkNotNull(memoryPool);
+        if (chain != null)
+            chain.addListener(confirmationListener, Threading.SAME_THREAD);
 
         // Configure Netty. The "ClientBootstrap" creates connections to other nodes. It can be configured in various
         // ways to control the network.
@@ -590,6 +628,8 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
     @Override
     protected void shutDown() throws Exception {
         // This is run on a separate thread by the AbstractIdleService implementation.
+        if (chain != null)
+            chain.removeListener(confirmationListener);
         vPingTimer.cancel();
         // Blocking close of all sockets. TODO: there is a race condition here, for the solution see:
         // http://biasedbit.com/netty-releaseexternalresources-hangs/
@@ -967,12 +1007,12 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
     }
 
     /**
-     * Returns the {@link MemoryPool} created by this peer group to synchronize its peers. The pool tracks advertised
-     * and downloaded transactions so their confidence can be measured as a proportion of how many peers announced it.
-     * With an un-tampered with internet connection, the more peers announce a transaction the more confidence you can
-     * have that it's really valid.
+     * Returns the {@link TransactionPool} used by this peer group to synchronize its peers, a {@link MemoryPool} unless
+     * another was given to the constructor. The pool tracks advertised and downloaded transactions so their confidence
+     * can be measured as a proportion of how many peers announced it. With an un-tampered with internet connection, the
+     * more peers announce a transaction the more confidence you can have that it's really valid.
      */
-    public MemoryPool getMemoryPool() {
+    public TransactionPool getMemoryPool() {
         return memoryPool;
     }
 
@@ -0,0 +1,822 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.core;
+
+import com.google.devcoin.store.BlockStore;
+import com.google.devcoin.store.BlockStoreException;
+import com.google.devcoin.store.FullPrunedBlockStore;
+import com.google.devcoin.utils.Threading;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import net.jcip.annotations.GuardedBy;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Accepts connections from other peers and serves them the block chain from a {@link BlockStore}, so that an app
+ * can act as a local relay for the mobile and desktop clients around it. Where {@link PeerGroup} only connects out to
+ * download the chain, a PeerServer listens for inbound connections, does the version handshake with them and then
+ * answers:</p>
+ *
+ * <ul>
+ *     <li>getheaders, with up to {@link HeadersMessage#MAX_HEADERS} headers of the best chain.</li>
+ *     <li>getblocks, with an inv of up to {@link #MAX_BLOCKS_PER_INV} block hashes of the best chain.</li>
+ *     <li>getdata for blocks and filtered blocks, for the blocks given to {@link #addBlock(Block)} and, when the store
+ *     is a {@link FullPrunedBlockStore}, those it still has the transactions of. Filtered blocks use the filter the
+ *     peer loaded, see {@link FilteredBlockBuilder}. Anything else is answered with a notfound.</li>
+ * </ul>
+ *
+ * <p>The best chain is read from the store whenever a peer asks, so the server follows the chain as it is extended
+ * and reorganized by whatever is downloading it, usually a {@link PeerGroup} and block chain sharing the same store.
+ * The peer services advertised include {@link VersionMessage#NODE_NETWORK} only while every block of the best chain
+ * can be served, which a full store stops being able to do once it connects or prunes its first block.</p>
+ *
+ * <p>So that one peer can't take all the bandwidth, what is sent to each peer is paced to at most
+ * {@link #setMaxBytesPerSecond(long)} on average, and no more than {@link #setMaxConnections(int)} peers are
+ * accepted at once. Each peer's answers are sent in the order it asked for them, and the blocks it asks for are only
+ * looked up as they fit in {@link #setMaxQueuedBytes(long)}. While its answers are backed up its requests aren't
+ * read, so a peer that asks faster than it can be sent to is slowed down rather than buffered for.</p>
+ *
+ * <p>Merge mined blocks are sent with their auxiliary proof of work, which block stores don't keep. The server keeps
+ * those of the blocks and headers given to {@link #addBlock(Block)}, in memory or in a file, see the constructors, and
+ * header and block replies stop short of the first merge mined block it has no proof for.</p>
+ */
+public class PeerServer {
+    private static final Logger log = LoggerFactory.getLogger(PeerServer.class);
+
+    /** The most block hashes sent in one inv in answer to a getblocks, as in the reference client. */
+    public static final int MAX_BLOCKS_PER_INV = 500;
+    /** The default for {@link #setMaxConnections(int)}. */
+    public static final int DEFAULT_MAX_CONNECTIONS = 125;
+    /** The default for {@link #setMaxBytesPerSecond(long)}, a megabyte a second to each peer. */
+    public static final long DEFAULT_MAX_BYTES_PER_SECOND = 1024 * 1024;
+    /** The default for {@link #setRecentBlockCount(int)}. */
+    public static final int DEFAULT_RECENT_BLOCK_COUNT = 16;
+    /** The default for {@link #setMaxQueuedBytes(long)}, the reference client's default send buffer. */
+    public static final long DEFAULT_MAX_QUEUED_BYTES = 1000 * 1000;
+
+    // The most bytes written to a connection and not on the network yet before what follows is held back, which is
+    // where Netty stops calling a channel writable by default.
+    private static final int MAX_UNFLUSHED_BYTES = 64 * 1024;
+    // Answers are looked up and sent by a few threads shared by all peers.
+    private static final int SENDER_THREADS = 4;
+
+    private final NetworkParameters params;
+    private final BlockStore blockStore;
+    @Nullable private final FullPrunedBlockStore fullStore;
+    private final ServerBootstrap bootstrap;
+    // The accepted connections, which are removed from the group again once closed.
+    private final ChannelGroup channels = new DefaultChannelGroup();
+    private final CopyOnWriteArrayList<Peer> peers = new CopyOnWriteArrayList<Peer>();
+    private final AuxPowStore auxPowStore;
+    // Runs each peer's PeerSender, now or once its bandwidth limit allows.
+    private final ScheduledExecutorService senderExecutor;
+
+    private volatile int vMaxConnections = DEFAULT_MAX_CONNECTIONS;
+    private volatile long vMaxBytesPerSecond = DEFAULT_MAX_BYTES_PER_SECOND;
+    private volatile long vMaxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES;
+
+    protected final ReentrantLock lock = Threading.lock("peerserver");
+    @GuardedBy("lock") @Nullable private Channel serverChannel;
+    // The hashes of the best chain in height order, starting at mainChainStart, which is the genesis block unless the
+    // store starts at a checkpoint.
+    @GuardedBy("lock") private final ArrayList<Sha256Hash> mainChain = new ArrayList<Sha256Hash>();
+    @GuardedBy("lock") private int mainChainStart;
+    // Full blocks peers may ask for, the least recently asked for first.
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, RecentBlock> recentBlocks =
+            new LinkedHashMap<Sha256Hash, RecentBlock>(16, 0.75f, true);
+    @GuardedBy("lock") private int recentBlockCount = DEFAULT_RECENT_BLOCK_COUNT;
+
+    /**
+     * Creates a server for the chain in the given store, which is not started until {@link #start(InetSocketAddress)}
+     * is called. The auxiliary proofs of work of merge mined blocks are kept in memory, so only the blocks given to
+     * {@link #addBlock(Block)} since it was created are served past the first merge mined one.
+     */
+    public PeerServer(NetworkParameters params, BlockStore blockStore) {
+        this(params, blockStore, new AuxPowStore());
+    }
+
+    /**
+     * Creates a server for the chain in the given store, as {@link #PeerServer(NetworkParameters, BlockStore)} does,
+     * that keeps the auxiliary proofs of work of merge mined blocks in the given file, which is created if it's
+     * missing. Like the block store, the file should be kept from run to run.
+     */
+    public PeerServer(NetworkParameters params, BlockStore blockStore, File auxPowFile) throws BlockStoreException {
+        this(params, blockStore, new AuxPowStore(checkNotNull(auxPowFile)));
+    }
+
+    private PeerServer(NetworkParameters params, BlockStore blockStore, AuxPowStore auxPowStore) {
+        this.auxPowStore = auxPowStore;
+        this.params = checkNotNull(params);
+        this.blockStore = checkNotNull(blockStore);
+        this.fullStore = blockStore instanceof FullPrunedBlockStore ? (FullPrunedBlockStore) blockStore : null;
+
+        ExecutorService bossExecutor = Executors.newCachedThreadPool(threadFactory("PeerServer boss thread %d"));
+        ExecutorService workerExecutor = Executors.newCachedThreadPool(threadFactory("PeerServer worker thread %d"));
+        bootstrap = new ServerBootstrap(new NioServerSocketChannelFactory(bossExecutor, workerExecutor));
+        bootstrap.setPipelineFactory(makePipelineFactory());
+        bootstrap.setOption("child.tcpNoDelay", true);
+        bootstrap.setOption("child.keepAlive", true);
+        senderExecutor = Executors.newScheduledThreadPool(SENDER_THREADS, threadFactory("PeerServer sender thread %d"));
+    }
+
+    private static ThreadFactory threadFactory(String nameFormat) {
+        ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat(nameFormat);
+        Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+        if (handler != null)
+            builder.setUncaughtExceptionHandler(handler);
+        return builder.build();
+    }
+
+    // Each accepted connection gets the Bitcoin serializer downstream of a Peer with no chain, which only answers.
+    private ChannelPipelineFactory makePipelineFactory() {
+        final ConnectionLimiter limiter = new ConnectionLimiter();
+        final Peer.PeerLifecycleListener lifecycleListener = new Peer.PeerLifecycleListener() {
+            public void onPeerConnected(Peer peer) {
+                peers.add(peer);
+                log.info("{}: Connected, {} peers", peer, peers.size());
+            }
+
+            public void onPeerDisconnected(Peer peer) {
+                if (peers.remove(peer))
+                    log.info("{}: Disconnected, {} peers", peer, peers.size());
+            }
+        };
+        return new ChannelPipelineFactory() {
+            public ChannelPipeline getPipeline() throws Exception {
+                VersionMessage ver = new VersionMessage(params, getBestHeight());
+                if (canServeFullChain())
+                    ver.localServices = VersionMessage.NODE_NETWORK;
+                TCPNetworkConnection codec = new TCPNetworkConnection(params, ver);
+                codec.setRequireBlockChain(false);
+                Peer peer = new Peer(params, null, ver, null);
+                peer.addLifecycleListener(lifecycleListener);
+                PeerSender sender = new PeerSender();
+                peer.addEventListener(new ServingListener(sender), Threading.SAME_THREAD);
+
+                ChannelPipeline p = Channels.pipeline();
+                p.addLast("limiter", limiter);
+                p.addLast("sender", sender);
+                p.addLast("codec", codec.getHandler());
+                p.addLast("peer", peer.getHandler());
+                return p;
+            }
+        };
+    }
+
+    /** Starts accepting connections on the given address, for example on {@link NetworkParameters#getPort()}. */
+    public void start(InetSocketAddress bindAddress) {
+        lock.lock();
+        try {
+            checkState(serverChannel == null, "Already started");
+            serverChannel = bootstrap.bind(bindAddress);
+            log.info("Accepting connections on {}", serverChannel.getLocalAddress());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the address connections are accepted on, which has the real port if started on port zero. */
+    public InetSocketAddress getLocalAddress() {
+        lock.lock();
+        try {
+            checkState(serverChannel != null, "Not started");
+            return (InetSocketAddress) serverChannel.getLocalAddress();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Stops accepting connections, closes the ones there are and releases the threads. The server can't be restarted. */
+    public void stop() {
+        Channel channel;
+        lock.lock();
+        try {
+            channel = serverChannel;
+        } finally {
+            lock.unlock();
+        }
+        if (channel != null)
+            channel.close().awaitUninterruptibly();
+        channels.close().awaitUninterruptibly();
+        senderExecutor.shutdownNow();
+        bootstrap.releaseExternalResources();
+        try {
+            auxPowStore.close();
+        } catch (BlockStoreException e) {
+            log.error("Failed to close the store of auxiliary proofs of work", e);
+        }
+    }
+
+    /** Returns the peers that are connected and done with the version handshake. */
+    public List<Peer> getConnectedPeers() {
+        return new ArrayList<Peer>(peers);
+    }
+
+    /** Sets the most connections accepted at once. Those over the limit are closed as soon as they are accepted. */
+    public void setMaxConnections(int maxConnections) {
+        checkArgument(maxConnections >= 0);
+        vMaxConnections = maxConnections;
+    }
+
+    /**
+     * Sets the most bytes a second sent to each peer, on average. A second's worth can be sent at once, and what goes
+     * over is held back until the peer is within its limit again.
+     */
+    public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        checkArgument(maxBytesPerSecond > 0);
+        vMaxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    /**
+     * Sets about the most bytes waiting to be sent to each peer. The blocks a peer asks for are looked up only as they
+     * fit, and its requests aren't read while anything is waiting, so a peer asking for many blocks gets them as fast as
+     * it is allowed without them all being loaded at once. One block always fits however big it is.
+     */
+    public void setMaxQueuedBytes(long maxQueuedBytes) {
+        checkArgument(maxQueuedBytes > 0);
+        vMaxQueuedBytes = maxQueuedBytes;
+    }
+
+    /** Sets how many full blocks are kept for peers to ask for, most recently asked for first. */
+    public void setRecentBlockCount(int recentBlockCount) {
+        checkArgument(recentBlockCount >= 0);
+        lock.lock();
+        try {
+            this.recentBlockCount = recentBlockCount;
+            trimRecentBlocks();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Keeps what peers need of the given block or header: the auxiliary proof of work of a merge mined one, which block
+     * stores don't keep, and a block with its transactions for peers to ask for as a full block or a filtered one,
+     * which an SPV store doesn't have and a full store drops once the block is connected. Pass in each block and
+     * header as it is downloaded, for example from {@link PeerEventListener#onBlocksDownloaded}.
+     */
+    public void addBlock(Block block) {
+        byte[] auxPow = block.getAuxPowBytes();
+        if (auxPow != null) {
+            try {
+                auxPowStore.put(block.getHash(), auxPow);
+            } catch (BlockStoreException e) {
+                log.error("Failed to keep the auxiliary proof of work of " + block.getHashAsString(), e);
+            }
+        }
+        if (!block.hasTransactions() || (isMergeMined(block) && auxPow == null))
+            return;
+        RecentBlock recent = new RecentBlock(block);
+        lock.lock();
+        try {
+            recentBlocks.put(block.getHash(), recent);
+            trimRecentBlocks();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void trimRecentBlocks() {
+        Iterator<RecentBlock> it = recentBlocks.values().iterator();
+        while (recentBlocks.size() > recentBlockCount) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private int getBestHeight() {
+        try {
+            return blockStore.getChainHead().getHeight();
+        } catch (BlockStoreException e) {
+            log.error("Failed to read the chain head", e);
+            return 0;
+        }
+    }
+
+    /**
+     * Returns true if every block of the best chain can be served, that is, if the store is a full one that still has
+     * the transactions of the first block after the genesis block. A full store keeps them only until it connects
+     * that block or prunes it, and the later blocks go before the first one does.
+     */
+    boolean canServeFullChain() {
+        if (fullStore == null)
+            return false;
+        try {
+            Sha256Hash first;
+            lock.lock();
+            try {
+                updateMainChain();
+                if (mainChainStart > 0 || mainChain.size() < 2)
+                    return false;
+                first = mainChain.get(1);
+            } finally {
+                lock.unlock();
+            }
+            StoredUndoableBlock undoBlock = fullStore.getUndoBlock(first);
+            return undoBlock != null && undoBlock.getTransactions() != null;
+        } catch (BlockStoreException e) {
+            log.error("Failed to read the block store", e);
+            return false;
+        }
+    }
+
+    private static boolean isMergeMined(Block header) {
+        return (header.getVersion() & BlockMergeMined.BLOCK_VERSION_AUXPOW) != 0;
+    }
+
+    // Returns the header with its auxiliary proof of work if it is merge mined, or null if there is no proof for it.
+    @Nullable
+    private Block withAuxPow(Block header) throws BlockStoreException {
+        if (!isMergeMined(header) || header.getAuxPowBytes() != null)
+            return header;
+        byte[] auxPow = auxPowStore.get(header.getHash());
+        if (auxPow == null)
+            return null;
+        try {
+            return header.cloneAsHeader(auxPow);
+        } catch (ProtocolException e) {
+            log.error("Failed to parse the auxiliary proof of work of " + header.getHashAsString(), e);
+            return null;
+        }
+    }
+
+    // Brings the index of the best chain up to date with the store, walking back from the chain head only as far as
+    // the index still agrees with it, so a reorganization replaces just the blocks that changed.
+    @GuardedBy("lock")
+    private void updateMainChain() throws BlockStoreException {
+        LinkedList<Sha256Hash> newBlocks = new LinkedList<Sha256Hash>();
+        StoredBlock head = blockStore.getChainHead();
+        StoredBlock cursor = head;
+        while (cursor != null && !isOnMainChain(cursor)) {
+            newBlocks.addFirst(cursor.getHeader().getHash());
+            cursor = cursor.getPrev(blockStore);
+        }
+        if (cursor == null) {
+            mainChain.clear();
+            mainChainStart = head.getHeight() - newBlocks.size() + 1;
+        } else {
+            int keep = cursor.getHeight() - mainChainStart + 1;
+            mainChain.subList(keep, mainChain.size()).clear();
+        }
+        mainChain.addAll(newBlocks);
+    }
+
+    @GuardedBy("lock")
+    private boolean isOnMainChain(StoredBlock block) {
+        int index = block.getHeight() - mainChainStart;
+        return index >= 0 && index < mainChain.size() && mainChain.get(index).equals(block.getHeader().getHash());
+    }
+
+    /**
+     * Returns the hashes of the best chain after the first block of the locator that is on it, or after the genesis
+     * block if none is, up to the given number of them. The stop hash is the last one returned if it comes up, and
+     * only included if asked for, as getheaders includes it and getblocks doesn't.
+     */
+    private List<Sha256Hash> getMainChainAfter(List<Sha256Hash> locator, Sha256Hash stopHash, int max,
+                                               boolean includeStop) throws BlockStoreException {
+        lock.lock();
+        try {
+            updateMainChain();
+            int start = Math.max(1, mainChainStart);
+            for (Sha256Hash hash : locator) {
+                StoredBlock block = blockStore.get(hash);
+                if (block != null && isOnMainChain(block)) {
+                    start = block.getHeight() + 1;
+                    break;
+                }
+            }
+            List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+            for (int i = start - mainChainStart; i < mainChain.size() && hashes.size() < max; i++) {
+                Sha256Hash hash = mainChain.get(i);
+                boolean stop = hash.equals(stopHash);
+                if (!stop || includeStop)
+                    hashes.add(hash);
+                if (stop)
+                    break;
+            }
+            return hashes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private HeadersMessage serveHeaders(GetHeadersMessage m) throws BlockStoreException {
+        List<Sha256Hash> hashes;
+        if (m.getLocator().isEmpty()) {
+            // As in the reference client, an empty locator asks for the header of the stop hash alone.
+            hashes = Collections.singletonList(m.getStopHash());
+        } else {
+            hashes = getMainChainAfter(m.getLocator(), m.getStopHash(), HeadersMessage.MAX_HEADERS, true);
+        }
+        List<Block> headers = new ArrayList<Block>(hashes.size());
+        for (Sha256Hash hash : hashes) {
+            StoredBlock block = blockStore.get(hash);
+            // The headers after one that can't be sent wouldn't connect, so they aren't sent either.
+            Block header = block == null ? null : withAuxPow(block.getHeader());
+            if (header == null)
+                break;
+            headers.add(header);
+        }
+        try {
+            return new HeadersMessage(params, headers.toArray(new Block[headers.size()]));
+        } catch (ProtocolException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    private InventoryMessage serveBlockInventory(GetBlocksMessage m) throws BlockStoreException {
+        InventoryMessage inv = new InventoryMessage(params);
+        for (Sha256Hash hash : getMainChainAfter(m.getLocator(), m.getStopHash(), MAX_BLOCKS_PER_INV, false))
+            inv.addItem(new InventoryItem(InventoryItem.Type.Block, hash));
+        return inv;
+    }
+
+    // Returns the answer to one item of a getdata, or null to list it in a notfound.
+    @Nullable
+    private List<Message> serveItem(Peer peer, InventoryItem item) throws BlockStoreException {
+        if (item.type == InventoryItem.Type.Block) {
+            RecentBlock recent = getBlock(item.hash);
+            return recent == null ? null : Collections.<Message>singletonList(recent.block);
+        } else if (item.type == InventoryItem.Type.FilteredBlock) {
+            // As in the reference client, filtered blocks are only sent to peers that loaded a filter.
+            BloomFilter filter = peer.getPeerBloomFilter();
+            if (filter == null)
+                return Collections.emptyList();
+            RecentBlock recent = getBlock(item.hash);
+            if (recent == null)
+                return null;
+            // Building updates the filter, which the peer's network thread does too when it adds to it.
+            synchronized (filter) {
+                return recent.getFilteredBlockBuilder().build(filter);
+            }
+        } else {
+            // There is no memory pool to serve transactions from.
+            return null;
+        }
+    }
+
+    @Nullable
+    private RecentBlock getBlock(Sha256Hash hash) throws BlockStoreException {
+        lock.lock();
+        try {
+            RecentBlock recent = recentBlocks.get(hash);
+            if (recent != null)
+                return recent;
+        } finally {
+            lock.unlock();
+        }
+        Block block = loadBlock(hash);
+        if (block == null)
+            return null;
+        RecentBlock recent = new RecentBlock(block);
+        lock.lock();
+        try {
+            recentBlocks.put(hash, recent);
+            trimRecentBlocks();
+        } finally {
+            lock.unlock();
+        }
+        return recent;
+    }
+
+    // Rebuilds a block from a full store, which only has the transactions of blocks that it hasn't connected.
+    @Nullable
+    private Block loadBlock(Sha256Hash hash) throws BlockStoreException {
+        if (fullStore == null)
+            return null;
+        StoredUndoableBlock undoBlock = fullStore.getUndoBlock(hash);
+        StoredBlock stored = fullStore.get(hash);
+        if (undoBlock == null || undoBlock.getTransactions() == null || stored == null)
+            return null;
+        Block header = withAuxPow(stored.getHeader());
+        if (header == null)
+            return null;
+        Block block = header == stored.getHeader() ? header.cloneAsHeader() : header;
+        try {
+            // Copies, as the store's own transactions would be moved into the new block.
+            for (Transaction tx : undoBlock.getTransactions())
+                block.addTransaction(new Transaction(params, tx.bitcoinSerialize()), false);
+        } catch (ProtocolException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        return block;
+    }
+
+    // Answers the requests of one peer, which it hands to the peer's PeerSender. Runs in the peer's network thread.
+    private class ServingListener extends AbstractPeerEventListener {
+        private final PeerSender sender;
+
+        ServingListener(PeerSender sender) {
+            this.sender = sender;
+        }
+
+        @Override
+        public Message onPreMessageReceived(Peer peer, Message m) {
+            try {
+                // GetHeadersMessage is a subclass of GetBlocksMessage, so it must be tested for first.
+                if (m instanceof GetHeadersMessage) {
+                    sender.send(serveHeaders((GetHeadersMessage) m));
+                    return null;
+                } else if (m instanceof GetBlocksMessage) {
+                    sender.send(serveBlockInventory((GetBlocksMessage) m));
+                    return null;
+                }
+            } catch (BlockStoreException e) {
+                log.error(peer + ": Failed to read the block store", e);
+                return null;
+            }
+            return m;
+        }
+
+        @Override
+        public List<Message> getData(Peer peer, GetDataMessage m) {
+            sender.getData(peer, m);
+            // Sent by the sender, in order and at the pace the peer is allowed.
+            return null;
+        }
+    }
+
+    // A getdata whose items are being looked up, and those that weren't found, which are sent in a notfound after the
+    // answers to the others.
+    private static class PendingGetData {
+        final Peer peer;
+        final LinkedList<InventoryItem> items;
+        final List<InventoryItem> notFound = new ArrayList<InventoryItem>();
+
+        PendingGetData(Peer peer, List<InventoryItem> items) {
+            this.peer = peer;
+            this.items = new LinkedList<InventoryItem>(items);
+        }
+    }
+
+    // A message waiting to be sent, and when the pacer allows it to be once it has been asked.
+    private static class QueuedMessage {
+        final Message message;
+        final int size;
+        boolean reserved;
+        long sendAt;
+
+        QueuedMessage(Message message) {
+            this.message = message;
+            this.size = message.bitcoinSerialize().length;
+        }
+    }
+
+    /**
+     * Sends one peer what it is sent by the server, in the order the peer asked for it and at the pace it is allowed.
+     * Only one sender thread at a time runs it, and never while holding its lock, which the future listeners of its
+     * writes take from Netty's threads. The blocks of a getdata are looked up as they fit in the peer's queue, and the
+     * peer's requests aren't read while anything waits to be looked up or sent.
+     */
+    private class PeerSender extends SimpleChannelUpstreamHandler implements Runnable {
+        private final SendPacer pacer = new SendPacer();
+        private volatile Channel channel;
+
+        // What the peer asked for and hasn't been looked up yet: each is a Message or a PendingGetData.
+        @GuardedBy("this") private final LinkedList<Object> requests = new LinkedList<Object>();
+        @GuardedBy("this") private final LinkedList<QueuedMessage> queue = new LinkedList<QueuedMessage>();
+        @GuardedBy("this") private long queuedBytes;
+        // Bytes written to the connection that aren't on the network yet.
+        @GuardedBy("this") private long unflushedBytes;
+        // Whether run() is running or scheduled to, so that it is never run twice at once.
+        @GuardedBy("this") private boolean running;
+        @GuardedBy("this") private boolean closed;
+        // Only used by run(), so channel readability is changed in order.
+        private boolean readable = true;
+
+        @Override
+        public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+            channel = e.getChannel();
+            super.channelOpen(ctx, e);
+        }
+
+        @Override
+        public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+            synchronized (this) {
+                closed = true;
+                requests.clear();
+                queue.clear();
+            }
+            super.channelClosed(ctx, e);
+        }
+
+        void send(Message m) {
+            synchronized (this) {
+                requests.add(m);
+            }
+            kick();
+        }
+
+        void getData(Peer peer, GetDataMessage m) {
+            synchronized (this) {
+                requests.add(new PendingGetData(peer, m.getItems()));
+            }
+            kick();
+        }
+
+        private synchronized void kick() {
+            if (running || closed)
+                return;
+            running = true;
+            try {
+                senderExecutor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // Stopped.
+                closed = true;
+            }
+        }
+
+        public void run() {
+            try {
+                while (step()) ;
+            } catch (RuntimeException e) {
+                log.error(channel + ": Failed to answer requests, closing", e);
+                channel.close();
+            }
+        }
+
+        // Sends, looks up or waits for one thing. Returns whether to carry on at once.
+        private boolean step() {
+            QueuedMessage toSend = null;
+            PendingGetData getData = null;
+            InventoryItem item = null;
+            Message message = null;
+            boolean backlog;
+            synchronized (this) {
+                if (closed)
+                    return false;
+                long now = System.nanoTime();
+                QueuedMessage head = queue.peek();
+                boolean canWrite = head != null && unflushedBytes < MAX_UNFLUSHED_BYTES;
+                if (canWrite && !head.reserved) {
+                    head.sendAt = now + pacer.reserve(head.size, vMaxBytesPerSecond, now);
+                    head.reserved = true;
+                }
+                if (canWrite && head.sendAt - now <= 0) {
+                    toSend = queue.poll();
+                    queuedBytes -= toSend.size;
+                    unflushedBytes += toSend.size;
+                } else if (!requests.isEmpty() && queuedBytes < vMaxQueuedBytes) {
+                    Object request = requests.peek();
+                    if (request instanceof PendingGetData) {
+                        getData = (PendingGetData) request;
+                        item = getData.items.poll();
+                        if (item == null)
+                            requests.poll();
+                    } else {
+                        message = (Message) requests.poll();
+                    }
+                } else if (canWrite) {
+                    schedule(head.sendAt - now);
+                } else {
+                    // Idle, or waiting for a write to complete, which kicks it again.
+                    running = false;
+                }
+                backlog = !requests.isEmpty() || !queue.isEmpty();
+            }
+            if (backlog == readable) {
+                readable = !backlog;
+                channel.setReadable(readable);
+            }
+            if (toSend != null) {
+                write(toSend);
+            } else if (item != null) {
+                List<Message> answer = null;
+                try {
+                    answer = serveItem(getData.peer, item);
+                } catch (BlockStoreException e) {
+                    log.error(getData.peer + ": Failed to read the block store", e);
+                }
+                if (answer == null)
+                    getData.notFound.add(item);
+                else
+                    for (Message m : answer)
+                        enqueue(m);
+            } else if (getData != null) {
+                if (!getData.notFound.isEmpty())
+                    enqueue(new NotFoundMessage(params, getData.notFound));
+            } else if (message != null) {
+                enqueue(message);
+            } else {
+                return false;
+            }
+            return true;
+        }
+
+        @GuardedBy("this")
+        private void schedule(long delayNanos) {
+            try {
+                senderExecutor.schedule(this, delayNanos, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                // Stopped.
+                closed = true;
+            }
+        }
+
+        private void enqueue(Message m) {
+            QueuedMessage queued = new QueuedMessage(m);
+            synchronized (this) {
+                queue.add(queued);
+                queuedBytes += queued.size;
+            }
+        }
+
+        private void write(final QueuedMessage queued) {
+            Channels.write(channel, queued.message).addListener(new ChannelFutureListener() {
+                public void operationComplete(ChannelFuture future) {
+                    synchronized (PeerSender.this) {
+                        unflushedBytes -= queued.size;
+                    }
+                    kick();
+                }
+            });
+        }
+    }
+
+    // Closes connections over the limit as soon as they are accepted, and tracks the others so they can be closed.
+    @ChannelHandler.Sharable
+    private class ConnectionLimiter extends SimpleChannelUpstreamHandler {
+        @Override
+        public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+            synchronized (this) {
+                if (channels.size() >= vMaxConnections) {
+                    log.info("Refusing a connection, already at {} peers", channels.size());
+                    e.getChannel().close();
+                    return;
+                }
+                channels.add(e.getChannel());
+            }
+            super.channelOpen(ctx, e);
+        }
+    }
+
+    // A block peers may ask for, and the builder of its filtered blocks once one has been asked for.
+    private static class RecentBlock {
+        final Block block;
+        private FilteredBlockBuilder filteredBlockBuilder;
+
+        RecentBlock(Block block) {
+            this.block = block;
+        }
+
+        synchronized FilteredBlockBuilder getFilteredBlockBuilder() {
+            if (filteredBlockBuilder == null)
+                filteredBlockBuilder = new FilteredBlockBuilder(block);
+            return filteredBlockBuilder;
+        }
+    }
+
+    /**
+     * Paces what is sent to one peer as a token bucket of bytes: sending is allowed at once while the peer is no more
+     * than a second's worth of bytes ahead of its limit, and held back until it is otherwise.
+     */
+    static class SendPacer {
+        private static final long BURST_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+        // When everything reserved so far would have been sent at exactly the limit.
+        private long drainedAt = Long.MIN_VALUE;
+
+        /**
+         * Reserves the time to send the given number of bytes at the given rate, and returns how many nanoseconds to
+         * wait before sending them, which is zero if they can go now.
+         */
+        synchronized long reserve(long bytes, long bytesPerSecond, long now) {
+            long start = drainedAt == Long.MIN_VALUE ? now : Math.max(drainedAt, now);
+            drainedAt = start + (long) (bytes * 1e9 / bytesPerSecond);
+            return Math.max(0, drainedAt - now - BURST_NANOS);
+        }
+    }
+}
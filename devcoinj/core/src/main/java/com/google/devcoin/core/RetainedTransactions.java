@@ -0,0 +1,221 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.math.BigInteger;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>The transactions kept by a retaining {@link MemoryPool} or {@link ShardedMemoryPool}, within a budget of bytes,
+ * along with the outputs they spend. When over budget the transactions paying the lowest fee per kilobyte are let go
+ * of first, along with those spending their outputs. The pools hand the transactions let go of back to their weak
+ * tracking.</p>
+ *
+ * <p>Not thread safe: the pool using it guards it with a lock.</p>
+ */
+class RetainedTransactions {
+    private static final Logger log = LoggerFactory.getLogger(RetainedTransactions.class);
+
+    // The fee per kilobyte taken for transactions spending outputs of unknown value, as peers relaying them will have
+    // checked they pay this much.
+    private static final long UNKNOWN_FEE_PER_KB = Transaction.REFERENCE_DEFAULT_MIN_TX_FEE.longValue();
+
+    private static class RetainedTransaction {
+        final Transaction tx;
+        final int size;
+        // Fee in nanocoins per 1000 bytes.
+        final long feePerKb;
+        // Order of arrival, to let go of the oldest first among those of the same size paying the same fee.
+        final long sequence;
+
+        RetainedTransaction(Transaction tx, int size, long feePerKb, long sequence) {
+            this.tx = tx;
+            this.size = size;
+            this.feePerKb = feePerKb;
+            this.sequence = sequence;
+        }
+    }
+
+    private final long maxBytes;
+    private final HashMap<Sha256Hash, RetainedTransaction> retained = new HashMap<Sha256Hash, RetainedTransaction>();
+    private final TreeSet<RetainedTransaction> byFeeRate = new TreeSet<RetainedTransaction>(
+            new Comparator<RetainedTransaction>() {
+                public int compare(RetainedTransaction a, RetainedTransaction b) {
+                    if (a.feePerKb != b.feePerKb)
+                        return a.feePerKb < b.feePerKb ? -1 : 1;
+                    // The biggest first, as it frees the most.
+                    if (a.size != b.size)
+                        return a.size > b.size ? -1 : 1;
+                    return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+                }
+            });
+    // The kept transaction spending each output, for finding double spends.
+    private final HashMap<TransactionOutPoint, Transaction> spentOutpoints = new HashMap<TransactionOutPoint, Transaction>();
+    private long bytes;
+    private long sequence;
+
+    RetainedTransactions(long maxBytes) {
+        checkArgument(maxBytes > 0);
+        this.maxBytes = maxBytes;
+    }
+
+    /** Returns the kept transaction with the given hash, or null if it isn't kept. */
+    @Nullable
+    Transaction get(Sha256Hash hash) {
+        RetainedTransaction retainedTx = retained.get(hash);
+        return retainedTx == null ? null : retainedTx.tx;
+    }
+
+    boolean contains(Sha256Hash hash) {
+        return retained.containsKey(hash);
+    }
+
+    /** Returns the total serialized size of the transactions kept. */
+    long getBytes() {
+        return bytes;
+    }
+
+    @Nullable
+    Transaction getSpendingTransaction(TransactionOutPoint outpoint) {
+        return spentOutpoints.get(outpoint);
+    }
+
+    /** Returns the kept transactions, other than the given one, that spend any of the outputs it spends. */
+    Set<Transaction> getConflicts(Transaction tx) {
+        Set<Transaction> conflicts = null;
+        for (TransactionInput input : tx.getInputs()) {
+            Transaction spender = spentOutpoints.get(input.getOutpoint());
+            if (spender != null && !spender.getHash().equals(tx.getHash())) {
+                if (conflicts == null)
+                    conflicts = new HashSet<Transaction>();
+                conflicts.add(spender);
+            }
+        }
+        return conflicts == null ? Collections.<Transaction>emptySet() : conflicts;
+    }
+
+    /**
+     * Keeps the transaction unless it is kept already or double spends one that is, then lets go of the lowest fee
+     * transactions until back within budget, which may include this one. Returns the transactions let go of.
+     */
+    List<Transaction> retain(Transaction tx) {
+        if (retained.containsKey(tx.getHash()))
+            return Collections.emptyList();
+        if (!getConflicts(tx).isEmpty()) {
+            // As in the reference client, the first transaction seen spending an output wins.
+            log.info("Not keeping {}, which double spends a transaction already kept", tx.getHashAsString());
+            return Collections.emptyList();
+        }
+        int size = tx.getMessageSize();
+        long fee = getFee(tx);
+        RetainedTransaction retainedTx = new RetainedTransaction(tx, size,
+                fee < 0 ? UNKNOWN_FEE_PER_KB : fee * 1000 / size, sequence++);
+        retained.put(tx.getHash(), retainedTx);
+        byFeeRate.add(retainedTx);
+        for (TransactionInput input : tx.getInputs())
+            spentOutpoints.put(input.getOutpoint(), tx);
+        bytes += size;
+        List<Transaction> released = new ArrayList<Transaction>();
+        while (bytes > maxBytes)
+            release(byFeeRate.first(), released);
+        return released;
+    }
+
+    /**
+     * Stops keeping the given transaction, which the best chain confirmed, though the kept transactions spending its
+     * outputs stay. Kept transactions double spending it can never confirm now, so they are let go of along with those
+     * spending their outputs. Returns the transactions no longer kept.
+     */
+    List<Transaction> removeConfirmed(Transaction tx) {
+        List<Transaction> released = new ArrayList<Transaction>();
+        RetainedTransaction retainedTx = retained.get(tx.getHash());
+        if (retainedTx != null) {
+            unretain(retainedTx);
+            released.add(retainedTx.tx);
+        }
+        if (tx.isCoinBase())
+            return released;
+        for (TransactionInput input : tx.getInputs()) {
+            Transaction spender = spentOutpoints.get(input.getOutpoint());
+            if (spender != null && !spender.getHash().equals(tx.getHash())) {
+                log.info("Letting go of {}, which double spends {} that was confirmed", spender.getHashAsString(),
+                        tx.getHashAsString());
+                release(retained.get(spender.getHash()), released);
+            }
+        }
+        return released;
+    }
+
+    // Returns the fee the transaction pays, or -1 if the value of one of its inputs isn't known, which it is if the
+    // input is connected or spends a kept transaction.
+    private long getFee(Transaction tx) {
+        BigInteger fee = BigInteger.ZERO;
+        for (TransactionInput input : tx.getInputs()) {
+            TransactionOutPoint outpoint = input.getOutpoint();
+            TransactionOutput output = input.getConnectedOutput();
+            RetainedTransaction parent = retained.get(outpoint.getHash());
+            if (output == null && parent != null && outpoint.getIndex() < parent.tx.getOutputs().size())
+                output = parent.tx.getOutputs().get((int) outpoint.getIndex());
+            if (output == null)
+                return -1;
+            fee = fee.add(output.getValue());
+        }
+        for (TransactionOutput output : tx.getOutputs())
+            fee = fee.subtract(output.getValue());
+        return fee.signum() < 0 ? -1 : fee.longValue();
+    }
+
+    // Stops keeping the transaction and those spending its outputs, adding them to the given list.
+    private void release(RetainedTransaction first, List<Transaction> released) {
+        LinkedList<RetainedTransaction> toRelease = new LinkedList<RetainedTransaction>();
+        toRelease.add(first);
+        while (!toRelease.isEmpty()) {
+            RetainedTransaction retainedTx = toRelease.poll();
+            Transaction tx = retainedTx.tx;
+            if (!unretain(retainedTx))
+                continue;
+            released.add(tx);
+            log.debug("Let go of {} paying {} per kB", tx.getHashAsString(), retainedTx.feePerKb);
+            // Transactions spending its outputs can't be relayed without it.
+            for (int i = 0; i < tx.getOutputs().size(); i++) {
+                Transaction child = spentOutpoints.get(new TransactionOutPoint(tx.getParams(), i, tx.getHash()));
+                if (child != null)
+                    toRelease.add(retained.get(child.getHash()));
+            }
+        }
+    }
+
+    // Stops keeping just the given transaction, returning false if it wasn't kept.
+    private boolean unretain(RetainedTransaction retainedTx) {
+        Transaction tx = retainedTx.tx;
+        if (retained.remove(tx.getHash()) == null)
+            return false;
+        byFeeRate.remove(retainedTx);
+        for (TransactionInput input : tx.getInputs()) {
+            if (spentOutpoints.get(input.getOutpoint()) == tx)
+                spentOutpoints.remove(input.getOutpoint());
+        }
+        bytes -= retainedTx.size;
+        return true;
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.core;
+
+import com.google.devcoin.utils.Threading;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import net.jcip.annotations.GuardedBy;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A {@link TransactionPool} split into a number of {@link MemoryPool} shards by transaction hash, each with its own
+ * lock and its own queue of garbage collected transactions, for a {@link PeerGroup} with many peers: every inv and tx
+ * message a peer gets goes through the pool, and with one lock the network threads of all the peers wait on each
+ * other. Here calls for different hashes mostly take different locks, and each shard clears out what the garbage
+ * collector threw away from its own queue, so that work is spread between the shards too. To use one, pass it to the
+ * {@link PeerGroup} constructor that takes a pool.</p>
+ *
+ * <p>All that is known about a hash is in one shard, so the confidence of transactions is updated exactly as by a
+ * single pool. The size limit is split evenly between the shards though, so the transactions forgotten when the pool
+ * is full are the oldest of their shard rather than the oldest overall. Orphans are kept in the shard of the parent
+ * they wait for, with up to {@link MemoryPool#MAX_ORPHANS} in each.</p>
+ *
+ * <p>A pool made with {@link #ShardedMemoryPool(int, int, long)} also keeps the transactions it is given, as
+ * {@link MemoryPool#MemoryPool(int, long)} does. Double spends and the transactions spending a kept one's outputs
+ * usually fall in other shards, so the budget and the index of spent outputs are shared by all of them, under a lock
+ * of their own. It is only taken when a full transaction arrives or confirms: kept transactions are looked up in a
+ * concurrent map, so invs still only take the lock of their shard.</p>
+ */
+public class ShardedMemoryPool implements TransactionPool {
+    /** The number of shards used by the one argument constructor. */
+    public static final int DEFAULT_SHARDS = 16;
+
+    private final MemoryPool[] shards;
+
+    // Never held while calling into a shard, so shard locks are always taken on their own.
+    private final ReentrantLock lock = Threading.lock("shardedmempool");
+    @GuardedBy("lock") @Nullable private final RetainedTransactions retained;
+    // The kept transactions, only changed under the lock along with retained.
+    private final ConcurrentHashMap<Sha256Hash, Transaction> kept;
+
+    /**
+     * Creates a pool of the given number of shards that tracks about the given number of transactions in all, as
+     * {@link MemoryPool#MemoryPool(int)} does.
+     */
+    public ShardedMemoryPool(int size, int numShards) {
+        this(size, numShards, 0);
+    }
+
+    /**
+     * Creates a pool of the given number of shards that keeps the transactions it is given, as long as they fit in the
+     * given number of bytes, and also tracks about the given number of other transactions in all, as
+     * {@link MemoryPool#MemoryPool(int, long)} does. A budget of zero keeps nothing.
+     */
+    public ShardedMemoryPool(int size, int numShards, long maxRetainedBytes) {
+        checkArgument(size > 0 && numShards > 0 && maxRetainedBytes >= 0);
+        shards = new MemoryPool[numShards];
+        int shardSize = (size + numShards - 1) / numShards;
+        for (int i = 0; i < numShards; i++)
+            shards[i] = new MemoryPool(shardSize);
+        retained = maxRetainedBytes > 0 ? new RetainedTransactions(maxRetainedBytes) : null;
+        kept = new ConcurrentHashMap<Sha256Hash, Transaction>(16, 0.75f, numShards);
+    }
+
+    /** Creates a pool of {@link #DEFAULT_SHARDS} shards that tracks about the given number of transactions. */
+    public ShardedMemoryPool(int size) {
+        this(size, DEFAULT_SHARDS);
+    }
+
+    /** Creates a pool of {@link #DEFAULT_SHARDS} shards that tracks about {@link MemoryPool#MAX_SIZE} transactions. */
+    public ShardedMemoryPool() {
+        this(MemoryPool.MAX_SIZE);
+    }
+
+    /** Returns the number of shards. */
+    public int getNumShards() {
+        return shards.length;
+    }
+
+    private MemoryPool shardFor(Sha256Hash hash) {
+        // The hash code is taken from the end of the hash, which is as random as the rest of it.
+        return shards[(hash.hashCode() & Integer.MAX_VALUE) % shards.length];
+    }
+
+    private static void markBroadcast(PeerAddress byPeer, Transaction tx) {
+        final TransactionConfidence confidence = tx.getConfidence();
+        if (confidence.markBroadcastBy(byPeer))
+            confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.SEEN_PEERS);
+    }
+
+    @Override
+    public int numBroadcastPeers(Sha256Hash txHash) {
+        Transaction keptTx = kept.get(txHash);
+        if (keptTx != null)
+            return keptTx.getConfidence().numBroadcastPeers();
+        return shardFor(txHash).numBroadcastPeers(txHash);
+    }
+
+    @Override
+    public Transaction intern(Transaction tx) {
+        Transaction keptTx = kept.get(tx.getHash());
+        if (keptTx != null)
+            return keptTx;
+        Transaction interned = shardFor(tx.getHash()).intern(tx);
+        return retained == null ? interned : retain(interned);
+    }
+
+    @Override
+    public Transaction seen(Transaction tx, PeerAddress byPeer) {
+        Transaction keptTx = kept.get(tx.getHash());
+        if (keptTx != null) {
+            markBroadcast(byPeer, keptTx);
+            return keptTx;
+        }
+        Transaction interned = shardFor(tx.getHash()).seen(tx, byPeer);
+        return retained == null ? interned : retain(interned);
+    }
+
+    @Override
+    public void seen(Sha256Hash hash, PeerAddress byPeer) {
+        Transaction keptTx = kept.get(hash);
+        if (keptTx != null)
+            markBroadcast(byPeer, keptTx);
+        else
+            shardFor(hash).seen(hash, byPeer);
+    }
+
+    @Override
+    @Nullable
+    public Transaction get(Sha256Hash hash) {
+        Transaction keptTx = kept.get(hash);
+        return keptTx != null ? keptTx : shardFor(hash).get(hash);
+    }
+
+    @Override
+    public boolean maybeWasSeen(Sha256Hash hash) {
+        return kept.containsKey(hash) || shardFor(hash).maybeWasSeen(hash);
+    }
+
+    // Keeps the transaction, just interned by its shard, if it fits. Returns the instance kept, which is another one if
+    // a copy was kept by another thread meanwhile.
+    private Transaction retain(Transaction tx) {
+        List<Transaction> released;
+        lock.lock();
+        try {
+            Transaction keptTx = kept.get(tx.getHash());
+            if (keptTx != null)
+                return keptTx;
+            released = retained.retain(tx);
+            if (retained.contains(tx.getHash()))
+                kept.put(tx.getHash(), tx);
+            for (Transaction releasedTx : released)
+                kept.remove(releasedTx.getHash());
+        } finally {
+            lock.unlock();
+        }
+        trackReleased(released);
+        return tx;
+    }
+
+    // Transactions no longer kept go back to being tracked weakly by their shard, as their entry there may have been
+    // pushed out meanwhile.
+    private void trackReleased(List<Transaction> released) {
+        for (Transaction tx : released)
+            shardFor(tx.getHash()).intern(tx);
+    }
+
+    @Override
+    public boolean isRetaining() {
+        return retained != null;
+    }
+
+    @Override
+    public long getRetainedBytes() {
+        lock.lock();
+        try {
+            return retained == null ? 0 : retained.getBytes();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isRetained(Sha256Hash hash) {
+        return kept.containsKey(hash);
+    }
+
+    @Override
+    @Nullable
+    public Transaction getSpendingTransaction(TransactionOutPoint outpoint) {
+        lock.lock();
+        try {
+            return retained == null ? null : retained.getSpendingTransaction(outpoint);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Set<Transaction> getConflicts(Transaction tx) {
+        lock.lock();
+        try {
+            return retained == null ? Collections.<Transaction>emptySet() : retained.getConflicts(tx);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void removeConfirmed(Transaction tx) {
+        if (retained == null)
+            return;
+        List<Transaction> released;
+        lock.lock();
+        try {
+            released = retained.removeConfirmed(tx);
+            for (Transaction releasedTx : released)
+                kept.remove(releasedTx.getHash());
+        } finally {
+            lock.unlock();
+        }
+        trackReleased(released);
+    }
+
+    @Override
+    public ListenableFuture<Transaction> addOrphan(Transaction orphan, Sha256Hash parentHash) {
+        Transaction keptParent = kept.get(parentHash);
+        if (keptParent != null)
+            return Futures.immediateFuture(keptParent);
+        return shardFor(parentHash).addOrphan(orphan, parentHash);
+    }
+
+    @Override
+    @Nullable
+    public ListenableFuture<Transaction> addOrphanIfAwaited(Transaction orphan, Sha256Hash parentHash) {
+        Transaction keptParent = kept.get(parentHash);
+        if (keptParent != null)
+            return Futures.immediateFuture(keptParent);
+        return shardFor(parentHash).addOrphanIfAwaited(orphan, parentHash);
+    }
+
+    @Override
+    public boolean isAwaitingParent(Sha256Hash parentHash) {
+        return shardFor(parentHash).isAwaitingParent(parentHash);
+    }
+
+    @Override
+    public List<Transaction> getOrphans(Sha256Hash parentHash) {
+        return shardFor(parentHash).getOrphans(parentHash);
+    }
+
+    @Override
+    public int getOrphanCount() {
+        int count = 0;
+        for (MemoryPool shard : shards)
+            count += shard.getOrphanCount();
+        return count;
+    }
+
+    @Override
+    public void removeOrphans(Sha256Hash parentHash) {
+        shardFor(parentHash).removeOrphans(parentHash);
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.core;
+
+import com.google.devcoin.script.Script;
+import com.google.devcoin.script.ScriptOpCodes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.devcoin.core.Utils.uint32ToByteStreamLE;
+
+/**
+ * <p>Calculates the signature hashes of one transaction for signature types that sign every input and output, that
+ * is SIGHASH_ALL without SIGHASH_ANYONECANPAY, which is what {@link Transaction#signInputs(Transaction.SigHash, Wallet)}
+ * uses and what almost every input on the network was signed with.</p>
+ *
+ * <p>Those hashes are over the transaction with every input script blanked except the one being signed, which holds
+ * the connected output script. So the transaction is serialized once with all the input scripts blanked and, for each
+ * input, the one script is spliced in. SHA-256 runs from the start of its input, so the state after hashing everything
+ * up to each input's script is kept too, and only the script and what follows it are hashed per input. Hashes are also
+ * remembered by input, script and signature type, as a script with several signature checks asks for the same one
+ * more than once.</p>
+ *
+ * <p>The result is byte for byte what {@link Transaction#hashForSignature(int, byte[], byte)} calculates by
+ * reserializing the whole transaction. A context is only valid for as long as the transaction is not changed: the
+ * transaction drops its context whenever it is, see {@link Transaction#unCache()}. Not thread safe, the transaction
+ * only uses it while holding its own lock.</p>
+ */
+final class SigHashContext {
+    // Bounds how many hashes are remembered, beyond one per input.
+    private static final int EXTRA_CACHED_HASHES = 16;
+
+    // The transaction with every input script blanked, that is, written as a zero length.
+    private final byte[] blanked;
+    // The position in blanked of each input's zero script length.
+    private final int[] scriptPositions;
+    // The hash state after hashing blanked up to each of those positions, or null if the digest can't be cloned.
+    private final MessageDigest[] midstates;
+    private final Map<CacheKey, Sha256Hash> cache;
+
+    SigHashContext(Transaction tx) {
+        List<TransactionInput> inputs = tx.getInputs();
+        List<TransactionOutput> outputs = tx.getOutputs();
+        scriptPositions = new int[inputs.size()];
+        try {
+            int size = tx.length == Message.UNKNOWN_LENGTH ? 256 : tx.length;
+            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(size);
+            uint32ToByteStreamLE(tx.getVersion(), bos);
+            bos.write(new VarInt(inputs.size()).encode());
+            for (int i = 0; i < inputs.size(); i++) {
+                TransactionInput input = inputs.get(i);
+                input.getOutpoint().bitcoinSerialize(bos);
+                scriptPositions[i] = bos.size();
+                bos.write(0);
+                uint32ToByteStreamLE(input.getSequenceNumber(), bos);
+            }
+            bos.write(new VarInt(outputs.size()).encode());
+            for (TransactionOutput output : outputs)
+                output.bitcoinSerialize(bos);
+            uint32ToByteStreamLE(tx.getLockTime(), bos);
+            blanked = bos.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+
+        MessageDigest[] states = new MessageDigest[inputs.size()];
+        MessageDigest digest = newDigest();
+        int hashed = 0;
+        try {
+            for (int i = 0; i < scriptPositions.length; i++) {
+                digest.update(blanked, hashed, scriptPositions[i] - hashed);
+                hashed = scriptPositions[i];
+                states[i] = (MessageDigest) digest.clone();
+            }
+        } catch (CloneNotSupportedException e) {
+            // No provider we know of does this, but if one does each hash starts from the beginning.
+            states = null;
+        }
+        midstates = states;
+
+        final int maxCached = inputs.size() + EXTRA_CACHED_HASHES;
+        cache = new LinkedHashMap<CacheKey, Sha256Hash>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CacheKey, Sha256Hash> eldest) {
+                return size() > maxCached;
+            }
+        };
+    }
+
+    /** Returns true if hashes of the given signature type can be calculated by a context. */
+    static boolean isSupported(byte sigHashType) {
+        int type = sigHashType & 0x1f;
+        return (sigHashType & Transaction.SIGHASH_ANYONECANPAY_VALUE) == 0 &&
+                type != Transaction.SigHash.NONE.ordinal() + 1 && type != Transaction.SigHash.SINGLE.ordinal() + 1;
+    }
+
+    /** See {@link Transaction#hashForSignature(int, byte[], byte)}, the type must be one {@link #isSupported(byte)}. */
+    Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript, byte sigHashType) {
+        if (inputIndex < 0 || inputIndex >= scriptPositions.length)
+            throw new IndexOutOfBoundsException("Input " + inputIndex + " of " + scriptPositions.length);
+        CacheKey key = new CacheKey(inputIndex, connectedScript, sigHashType);
+        Sha256Hash hash = cache.get(key);
+        if (hash != null)
+            return hash;
+
+        // As in Transaction.hashForSignature(), see the explanation there.
+        byte[] script = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
+        int position = scriptPositions[inputIndex];
+        MessageDigest digest;
+        if (midstates != null) {
+            try {
+                digest = (MessageDigest) midstates[inputIndex].clone();
+            } catch (CloneNotSupportedException e) {
+                throw new RuntimeException(e);  // Cannot happen, it was cloned before.
+            }
+        } else {
+            digest = newDigest();
+            digest.update(blanked, 0, position);
+        }
+        digest.update(new VarInt(script.length).encode());
+        digest.update(script);
+        // Skips the blanked script's zero length.
+        digest.update(blanked, position + 1, blanked.length - position - 1);
+        // The hash type is an unsigned char, written out as four bytes.
+        digest.update(new byte[] {sigHashType, 0, 0, 0});
+        byte[] first = digest.digest();
+        digest.reset();
+        hash = new Sha256Hash(digest.digest(first));
+        // Keyed on a copy, in case the caller reuses its array.
+        cache.put(new CacheKey(inputIndex, connectedScript.clone(), sigHashType), hash);
+        return hash;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    private static class CacheKey {
+        private final int inputIndex;
+        private final byte[] script;
+        private final byte sigHashType;
+
+        CacheKey(int inputIndex, byte[] script, byte sigHashType) {
+            this.inputIndex = inputIndex;
+            this.script = script;
+            this.sigHashType = sigHashType;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof CacheKey)) return false;
+            CacheKey other = (CacheKey) o;
+            return inputIndex == other.inputIndex && sigHashType == other.sigHashType &&
+                    Arrays.equals(script, other.script);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * inputIndex + sigHashType) + Arrays.hashCode(script);
+        }
+    }
+}
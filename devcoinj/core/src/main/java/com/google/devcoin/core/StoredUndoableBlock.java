@@ -32,8 +32,9 @@ public class StoredUndoableBlock implements Serializable {
     
     Sha256Hash blockHash;
     
-    // Only one of either txOutChanges or transactions will be set
+    // Only one of either txOutChanges (or its compact form) or transactions will be set
     private TransactionOutputChanges txOutChanges;
+    private CompactTransactionOutputChanges compactTxOutChanges;
     private List<Transaction> transactions;
     
     public StoredUndoableBlock(Sha256Hash hash, TransactionOutputChanges txOutChanges) {
@@ -41,6 +42,16 @@ public class StoredUndoableBlock implements Serializable {
         this.transactions = null;
         this.txOutChanges = txOutChanges;
     }
+
+    /**
+     * Creates a block whose output changes are decoded from the given compact form only when they are needed, as
+     * read back from a block store.
+     */
+    public StoredUndoableBlock(Sha256Hash hash, CompactTransactionOutputChanges compactTxOutChanges) {
+        this.blockHash = hash;
+        this.transactions = null;
+        this.compactTxOutChanges = compactTxOutChanges;
+    }
     
     public StoredUndoableBlock(Sha256Hash hash, List<Transaction> transactions) {
         this.blockHash = hash;
@@ -52,9 +63,48 @@ public class StoredUndoableBlock implements Serializable {
      * Get the transaction output changes if they have been calculated, otherwise null.
      * Only one of this and getTransactions() will return a non-null value.
      */
-    public TransactionOutputChanges getTxOutChanges() {
+    public synchronized TransactionOutputChanges getTxOutChanges() {
+        if (txOutChanges == null && compactTxOutChanges != null)
+            txOutChanges = compactTxOutChanges.toTransactionOutputChanges();
         return txOutChanges;
     }
+
+    /**
+     * Returns the output changes in the form of {@link CompactTransactionOutputChanges#encode(TransactionOutputChanges)},
+     * without decoding them if that is the form they were read back in, or null if they have not been calculated.
+     */
+    public synchronized byte[] getCompactTxOutChanges() {
+        if (compactTxOutChanges != null)
+            return compactTxOutChanges.getBytes();
+        return txOutChanges != null ? CompactTransactionOutputChanges.encode(txOutChanges) : null;
+    }
+
+    /**
+     * Returns true if this block holds output changes rather than transactions, without decoding them.
+     */
+    public boolean hasTxOutChanges() {
+        return txOutChanges != null || compactTxOutChanges != null;
+    }
+
+    /**
+     * Get the outputs spent by the block if the output changes have been calculated, otherwise null. When the block
+     * was read back in compact form the outputs are decoded one at a time as they are iterated over.
+     */
+    public Iterable<StoredTransactionOutput> getTxOutsSpent() {
+        if (compactTxOutChanges != null)
+            return compactTxOutChanges.getTxOutsSpent();
+        return txOutChanges != null ? txOutChanges.txOutsSpent : null;
+    }
+
+    /**
+     * Get the outputs created by the block if the output changes have been calculated, otherwise null. When the
+     * block was read back in compact form the outputs are decoded one at a time as they are iterated over.
+     */
+    public Iterable<StoredTransactionOutput> getTxOutsCreated() {
+        if (compactTxOutChanges != null)
+            return compactTxOutChanges.getTxOutsCreated();
+        return txOutChanges != null ? txOutChanges.txOutsCreated : null;
+    }
     
     /**
      * Get the full list of transactions if it is stored, otherwise null.
@@ -66,6 +66,8 @@ public class TCPNetworkConnection implements NetworkConnection {
     private NetworkHandler handler;
     // For ping nonces.
     private Random random = new Random();
+    // Whether the remote peer must serve the block chain, which is only needed when we connect out to download it.
+    private boolean requireBlockChain = true;
 
     /**
      * Construct a network connection with the given params and version. If you use this constructor you need to set
@@ -159,8 +161,8 @@ public class TCPNetworkConnection implements NetworkConnection {
         // mode nodes because we can't download the data from them we need to find/verify transactions. Some bogus
         // implementations claim to have a block chain in their services field but then report a height of zero, filter
         // them out here.
-        if (!versionMessage.hasBlockChain() ||
-                (!params.allowEmptyPeerChain() && versionMessage.bestHeight <= 0)) {
+        if (requireBlockChain && (!versionMessage.hasBlockChain() ||
+                (!params.allowEmptyPeerChain() && versionMessage.bestHeight <= 0))) {
             // Shut down the channel
             throw new ProtocolException("Peer does not have a copy of the block chain.");
         }
@@ -188,6 +190,8 @@ public class TCPNetworkConnection implements NetworkConnection {
         public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
             super.channelConnected(ctx, e);
             channel = e.getChannel();
+            if (remoteIp == null)
+                setRemoteAddress(channel.getRemoteAddress());
             // The version message does not use checksumming, until Feb 2012 when it magically does.
             // Announce ourselves. This has to come first to connect to clients beyond v0.30.20.2 which wait to hear
             // from us until they send their version message back.
@@ -253,6 +257,14 @@ public class TCPNetworkConnection implements NetworkConnection {
         channel.close();
     }
 
+    /**
+     * Sets whether the remote peer must have a copy of the block chain, which is the default. Connections accepted by
+     * a {@link PeerServer} are mostly from clients that don't, and are kept open whatever the peer serves.
+     */
+    public void setRequireBlockChain(boolean requireBlockChain) {
+        this.requireBlockChain = requireBlockChain;
+    }
+
     public void setRemoteAddress(SocketAddress address) {
         if (address instanceof InetSocketAddress)
             remoteIp = ((InetSocketAddress)address).getAddress();
@@ -88,6 +88,8 @@ public class Transaction extends ChildMessage implements Serializable {
 
     // This is an in memory helper only.
     private transient Sha256Hash hash;
+    // Calculates signature hashes without reserializing the transaction each time, dropped when it changes.
+    private transient SigHashContext sigHashContext;
     
     // Data about how confirmed this tx is. Serialized, may be null. 
     private TransactionConfidence confidence;
@@ -336,6 +338,8 @@ public class Transaction extends ChildMessage implements Serializable {
                 connected = input.getConnectedOutput(wallet.spent);
             if (connected == null)
                 connected = input.getConnectedOutput(wallet.pending);
+            if (connected == null)
+                connected = wallet.getColdConnectedOutput(input);
             if (connected == null)
                 continue;
             // The connected output may be the change to the sender of a previous input sent to this wallet. In this
@@ -445,6 +449,7 @@ public class Transaction extends ChildMessage implements Serializable {
     protected void unCache() {
         super.unCache();
         hash = null;
+        sigHashContext = null;
     }
 
     protected void parseLite() throws ProtocolException {
@@ -778,6 +783,26 @@ public class Transaction extends ChildMessage implements Serializable {
      * @param aesKey The AES key to use to decrypt the key before signing. Null if no decryption is required.
      */
     public synchronized void signInputs(SigHash hashType, Wallet wallet, KeyParameter aesKey) throws ScriptException {
+        signInputs(hashType, wallet, aesKey, 1);
+    }
+
+    /**
+     * <p>Once a transaction has some inputs and outputs added, the signatures in the inputs can be calculated. The
+     * signature is over the transaction itself, to prove the redeemer actually created that transaction,
+     * so we have to do this step last.</p>
+     *
+     * <p>The signatures are independent of each other, so for a transaction with many inputs, such as a sweep or
+     * consolidation, they can be calculated on several threads at once. Each encrypted key is decrypted only once,
+     * however many inputs it signs.</p>
+     *
+     * @param hashType This should always be set to SigHash.ALL currently. Other types are unused.
+     * @param wallet  A wallet is required to fetch the keys needed for signing.
+     * @param aesKey The AES key to use to decrypt the key before signing. Null if no decryption is required.
+     * @param numThreads The most threads to sign on. With 1, or too few inputs to be worth it, the calling thread
+     *                   does all the work.
+     */
+    public synchronized void signInputs(SigHash hashType, Wallet wallet, @Nullable KeyParameter aesKey,
+                                        int numThreads) throws ScriptException {
         // TODO: This should be a method of the TransactionInput that (possibly?) operates with a copy of this object.
         Preconditions.checkState(inputs.size() > 0);
         Preconditions.checkState(outputs.size() > 0);
@@ -792,8 +817,12 @@ public class Transaction extends ChildMessage implements Serializable {
         // Note that each input may be claiming an output sent to a different key. So we have to look at the outputs
         // to figure out which key to sign with.
 
+        // The anyoneCanPay feature isn't used at the moment.
+        boolean anyoneCanPay = false;
         TransactionSignature[] signatures = new TransactionSignature[inputs.size()];
         ECKey[] signingKeys = new ECKey[inputs.size()];
+        List<Integer> inputsToSign = new ArrayList<Integer>(inputs.size());
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(inputs.size());
         for (int i = 0; i < inputs.size(); i++) {
             TransactionInput input = inputs.get(i);
             // We don't have the connected output, we assume it was signed already and move on
@@ -820,12 +849,20 @@ public class Transaction extends ChildMessage implements Serializable {
                                        input.getOutpoint().getHash());
             // Keep the key around for the script creation step below.
             signingKeys[i] = key;
-            // The anyoneCanPay feature isn't used at the moment.
-            boolean anyoneCanPay = false;
+            // The hashes are cheap to calculate here, unlike the signatures, which are done all together below.
             byte[] connectedPubKeyScript = input.getOutpoint().getConnectedPubKeyScript();
-            signatures[i] = calculateSignature(i, key, aesKey, connectedPubKeyScript, hashType, anyoneCanPay);
+            inputsToSign.add(i);
+            hashes.add(hashForSignature(i, connectedPubKeyScript, hashType, anyoneCanPay));
         }
 
+        ECKey[] keys = new ECKey[inputsToSign.size()];
+        for (int j = 0; j < keys.length; j++)
+            keys[j] = signingKeys[inputsToSign.get(j)];
+        ECKey.ECDSASignature[] rawSignatures =
+                BulkSigner.sign(hashes.toArray(new Sha256Hash[keys.length]), keys, aesKey, numThreads);
+        for (int j = 0; j < keys.length; j++)
+            signatures[inputsToSign.get(j)] = new TransactionSignature(rawSignatures[j], hashType, anyoneCanPay);
+
         // Now we have calculated each signature, go through and create the scripts. Reminder: the script consists:
         // 1) For pay-to-address outputs: a signature (over a hash of the simplified transaction) and the complete
         //    public key needed to sign for the connected output. The output script checks the provided pubkey hashes
@@ -935,6 +972,14 @@ public class Transaction extends ChildMessage implements Serializable {
         //
         //   https://en.bitcoin.it/wiki/Contracts
 
+        // Signing or verifying each input of a wide transaction would otherwise reserialize all of it every time.
+        // The context gives the same answer as the code below for the types it supports.
+        if (SigHashContext.isSupported(sigHashType)) {
+            if (sigHashContext == null)
+                sigHashContext = new SigHashContext(this);
+            return sigHashContext.hashForSignature(inputIndex, connectedScript, sigHashType);
+        }
+
         try {
             // Store all the input scripts and clear them in preparation for signing. If we're signing a fresh
             // transaction that step isn't very helpful, but it doesn't add much cost relative to the actual
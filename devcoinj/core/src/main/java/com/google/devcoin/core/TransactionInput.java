@@ -123,7 +123,7 @@ public class TransactionInput extends ChildMessage implements Serializable {
     @Override
     protected void parseLite() throws ProtocolException {
         int curs = cursor;
-        int scriptLen = (int)readVarInt();
+        int scriptLen = (int)readVarInt(TransactionOutPoint.MESSAGE_LENGTH);
         length = cursor - offset + scriptLen + 4;
         cursor = curs;
     }
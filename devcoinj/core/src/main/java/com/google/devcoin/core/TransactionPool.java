@@ -0,0 +1,99 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.core;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <p>What a {@link PeerGroup} and its {@link Peer}s need of the pool of transactions they share: tracking which peers
+ * announced which transactions, keeping one instance of each, and optionally keeping the transactions themselves and
+ * the orphans waiting for their parents. {@link MemoryPool} does all of this under one lock, and
+ * {@link ShardedMemoryPool} splits it between many for groups with many peers.</p>
+ *
+ * <p>See {@link MemoryPool} for what each method does. Implementations must be thread safe.</p>
+ */
+public interface TransactionPool {
+    /** Returns the number of peers that have seen the given hash recently. */
+    int numBroadcastPeers(Sha256Hash txHash);
+
+    /**
+     * Puts the tx into the pool and returns either it, or a different Transaction object that has the same hash,
+     * without marking it as announced by a peer.
+     */
+    Transaction intern(Transaction tx);
+
+    /** Called by peers when they receive a transaction. Returns the instance kept by the pool, as intern does. */
+    Transaction seen(Transaction tx, PeerAddress byPeer);
+
+    /** Called by peers when they see a transaction announced in an inv message. */
+    void seen(Sha256Hash hash, PeerAddress byPeer);
+
+    /** Returns the transaction with the given hash if it was downloaded and is still around, or null. */
+    @Nullable
+    Transaction get(Sha256Hash hash);
+
+    /** Returns true if the given hash has been seen recently, in an inv or a transaction. */
+    boolean maybeWasSeen(Sha256Hash hash);
+
+    /** Returns true if this pool keeps the transactions it is given, rather than only tracking them. */
+    boolean isRetaining();
+
+    /** Returns the total serialized size of the transactions kept. */
+    long getRetainedBytes();
+
+    /** Returns true if the given transaction is kept by this pool. */
+    boolean isRetained(Sha256Hash hash);
+
+    /** Returns the kept transaction that spends the given output, or null if none does. */
+    @Nullable
+    Transaction getSpendingTransaction(TransactionOutPoint outpoint);
+
+    /** Returns the kept transactions, other than the given one, that double spend it. */
+    Set<Transaction> getConflicts(Transaction tx);
+
+    /** Called when the given transaction is included in a block of the best chain. */
+    void removeConfirmed(Transaction tx);
+
+    /**
+     * Holds the given transaction as an orphan waiting for the given parent, which the caller is downloading, and
+     * returns a future for the parent.
+     */
+    ListenableFuture<Transaction> addOrphan(Transaction orphan, Sha256Hash parentHash);
+
+    /**
+     * Holds the given transaction as an orphan and returns a future for the parent, as addOrphan does, but only if
+     * orphans are waiting for the parent already, checking and adding atomically. Returns null otherwise.
+     */
+    @Nullable
+    ListenableFuture<Transaction> addOrphanIfAwaited(Transaction orphan, Sha256Hash parentHash);
+
+    /** Returns true if orphans are waiting for the given parent, meaning that it has been asked for already. */
+    boolean isAwaitingParent(Sha256Hash parentHash);
+
+    /** Returns the orphans waiting for the given parent. */
+    List<Transaction> getOrphans(Sha256Hash parentHash);
+
+    /** Returns the number of orphans held, counting an orphan once for each missing output it spends. */
+    int getOrphanCount();
+
+    /** Gives up waiting for the given parent, dropping the orphans waiting for it and cancelling their future. */
+    void removeOrphans(Sha256Hash parentHash);
+}
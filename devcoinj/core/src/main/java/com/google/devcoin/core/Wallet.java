@@ -18,15 +18,18 @@ package com.google.devcoin.core;
 
 import com.google.devcoin.core.TransactionConfidence.ConfidenceType;
 import com.google.devcoin.core.WalletTransaction.Pool;
+import com.google.devcoin.crypto.BulkKeyCrypter;
 import com.google.devcoin.crypto.KeyCrypter;
 import com.google.devcoin.crypto.KeyCrypterException;
 import com.google.devcoin.crypto.KeyCrypterScrypt;
+import com.google.devcoin.crypto.KeyParameterCache;
 import com.google.devcoin.store.UnreadableWalletException;
 import com.google.devcoin.store.WalletProtobufSerializer;
 import com.google.devcoin.utils.ListenerRegistration;
 import com.google.devcoin.utils.Threading;
 import com.google.devcoin.wallet.KeyTimeCoinSelector;
 import com.google.devcoin.wallet.WalletFiles;
+import com.google.devcoin.wallet.WalletJournal;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.*;
 import com.google.common.primitives.Ints;
@@ -34,6 +37,7 @@ import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
+import org.devcoinj.wallet.Protos;
 import org.devcoinj.wallet.Protos.Wallet.EncryptionType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,6 +47,7 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 import java.io.*;
+import java.lang.ref.SoftReference;
 import java.math.BigInteger;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
@@ -126,6 +131,22 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     // All transactions together.
     final Map<Sha256Hash, Transaction> transactions;
 
+    // Cold:     Spent and dead transactions buried deep enough in the chain that they are very unlikely to change again.
+    //           They are kept as compact records holding the serialized transaction rather than in the maps above, and
+    //           are rehydrated when needed. Nothing in memory refers to them: inputs that spend their outputs are left
+    //           disconnected, and as a transaction only goes cold once everything it spends has, rehydrating one means
+    //           rehydrating everything in cold storage that spends its outputs too. See setColdStorageDepth.
+    final Map<Sha256Hash, ColdTransaction> cold;
+    // Counts the blocks since each record was made, so that records don't have to be updated as blocks arrive.
+    private final ColdTransaction.Clock coldClock;
+    // How deep a transaction must be buried to go cold, or zero if nothing does.
+    private int coldStorageDepth;
+    // Copies of the transactions in cold storage, rebuilt when first asked for after anything goes into or comes out
+    // of cold storage. Softly held, so that the memory cold storage saves is given back when it is needed.
+    @Nullable private transient SoftReference<Map<Sha256Hash, Transaction>> coldCopies;
+    // The clock count at which the depths of the copies were last brought up to date.
+    private transient int coldCopiesBlocks;
+
     // A list of public/private EC keys owned by this user. Access it using addKey[s], hasKey[s] and findPubKeyFromHash.
     private ArrayList<ECKey> keychain;
 
@@ -276,6 +297,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
     // The keyCrypter for the wallet. This specifies the algorithm used for encrypting and decrypting the private keys.
     private KeyCrypter keyCrypter;
+    // Recently derived AES keys, see setKeyCacheTimeout(). Null when the cache is off or nothing was derived yet.
+    @Nullable private transient KeyParameterCache keyParameterCache;
+    private transient long keyCacheTimeoutMillis;
     // The wallet version. This is an int that can be used to track breaking changes in the wallet format.
     // You can also use it to detect wallets that come from the future (ie they contain features you
     // do not know how to deal with).
@@ -306,6 +330,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         pending = new HashMap<Sha256Hash, Transaction>();
         dead = new HashMap<Sha256Hash, Transaction>();
         transactions = new HashMap<Sha256Hash, Transaction>();
+        cold = new HashMap<Sha256Hash, ColdTransaction>();
+        coldClock = new ColdTransaction.Clock();
         eventListeners = new CopyOnWriteArrayList<ListenerRegistration<WalletEventListener>>();
         extensions = new HashMap<String, WalletExtension>();
         confidenceChanged = new HashMap<Transaction, TransactionConfidence.Listener.ChangeReason>();
@@ -380,38 +406,36 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
-    /** Saves the wallet first to the given temp file, then renames to the dest file. */
+    /**
+     * Saves the wallet first to the given temp file, then renames to the dest file. The wallet is only locked while a
+     * snapshot of it is taken (see {@link #snapshotToProto()}), not while the snapshot is written to disk. If you save
+     * to the same file from several threads at once, the saves may complete in any order, which
+     * {@link Wallet#autosaveToFile(java.io.File, long, java.util.concurrent.TimeUnit, com.google.devcoin.wallet.WalletFiles.Listener)}
+     * takes care of for you.
+     */
     public void saveToFile(File temp, File destFile) throws IOException {
-        FileOutputStream stream = null;
+        WalletFiles.writeSnapshot(snapshotToProto(), temp, destFile);
+    }
+
+    /**
+     * Returns a snapshot of the wallet in its protocol buffer form, taken with the wallet locked. Protocol buffers are
+     * immutable, so the snapshot can then be encoded and written out on any thread without holding the wallet lock.
+     * Transactions in cold storage are only snapshotted while locked, and turned into protocol buffers afterwards.
+     */
+    public Protos.Wallet snapshotToProto() {
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        Protos.Wallet walletProto;
+        List<ColdTransaction> records;
         lock.lock();
         try {
-            stream = new FileOutputStream(temp);
-            saveToFileStream(stream);
-            // Attempt to force the bits to hit the disk. In reality the OS or hard disk itself may still decide
-            // to not write through to physical media for at least a few seconds, but this is the best we can do.
-            stream.flush();
-            stream.getFD().sync();
-            stream.close();
-            stream = null;
-            if (Utils.isWindows()) {
-                // Work around an issue on Windows whereby you can't rename over existing files.
-                File canonical = destFile.getCanonicalFile();
-                canonical.delete();
-                if (temp.renameTo(canonical))
-                    return;  // else fall through.
-                throw new IOException("Failed to rename " + temp + " to " + canonical);
-            } else if (!temp.renameTo(destFile)) {
-                throw new IOException("Failed to rename " + temp + " to " + destFile);
-            }
+            records = new ArrayList<ColdTransaction>(cold.size());
+            walletProto = serializer.walletToProto(this, false);
+            for (ColdTransaction record : cold.values())
+                records.add(record.snapshot());
         } finally {
             lock.unlock();
-            if (stream != null) {
-                stream.close();
-            }
-            if (temp.delete()) {
-                log.warn("Deleted temp file after failed save.");
-            }
         }
+        return serializer.addColdTransactions(walletProto, params, records);
     }
 
     /**
@@ -471,7 +495,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      * will not wait for the background thread.</b></p>
      *
      * <p>An event listener can be provided. If a delay >0 was specified, it will be called on a background thread
-     * with the wallet locked when an auto-save occurs. If delay is zero or you do something that always triggers
+     * when an auto-save occurs. The wallet is only locked while a snapshot of it is taken, not while the snapshot is
+     * written to disk. If delay is zero or you do something that always triggers
      * an immediate save, like adding a key, the event listener will be invoked on the calling threads.</p>
      *
      * @param f The destination file to save to.
@@ -505,7 +530,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         WalletFiles files = vFileManager;
         if (files != null) {
             try {
-                files.saveNow();  // This calls back into saveToFile().
+                files.saveNow();  // This calls back into snapshotToProto().
             } catch (IOException e) {
                 // Can't really do much at this point, just let the API user know.
                 log.error("Failed to save wallet to disk!", e);
@@ -538,6 +563,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      * Returns a wallet deserialized from the given file.
      */
     public static Wallet loadFromFile(File f) throws UnreadableWalletException {
+        if (WalletJournal.getJournalFile(f).exists())
+            return loadFromJournaledFile(f);
         try {
             FileInputStream stream = null;
             try {
@@ -551,11 +578,28 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
     
+    // Wallets saved in journaled mode (see WalletFiles#setJournaled) have their recent changes in a journal file next
+    // to the wallet file.
+    private static Wallet loadFromJournaledFile(File f) throws UnreadableWalletException {
+        Protos.Wallet walletProto;
+        try {
+            walletProto = WalletJournal.readWallet(f);
+        } catch (IOException e) {
+            throw new UnreadableWalletException("Could not open file", e);
+        }
+        Wallet wallet = new Wallet(NetworkParameters.fromID(walletProto.getNetworkIdentifier()));
+        new WalletProtobufSerializer().readWallet(walletProto, wallet);
+        if (!wallet.isConsistent()) {
+            log.error("Loaded an inconsistent wallet");
+        }
+        return wallet;
+    }
+
     public boolean isConsistent() {
         lock.lock();
         try {
             boolean success = true;
-            Set<Transaction> transactions = getTransactions(true);
+            Set<Transaction> transactions = getTransactionsInMemory(true);
 
             Set<Sha256Hash> hashes = new HashSet<Sha256Hash>();
             for (Transaction tx : transactions) {
@@ -589,6 +633,13 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 }
             }
 
+            for (Sha256Hash hash : cold.keySet()) {
+                if (hashes.contains(hash)) {
+                    success = false;
+                    log.error("Cold tx {} is also in memory", hash);
+                }
+            }
+
             if (!success) log.error(toString());
             return success;
         } finally {
@@ -635,7 +686,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                                            int relativityOffset) throws VerificationException {
         lock.lock();
         try {
-            Transaction tx = transactions.get(txHash);
+            Transaction tx = getTransaction(txHash);
             if (tx == null) {
                 log.error("TX {} not found despite being sent to wallet", txHash);
                 return;
@@ -877,6 +928,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         checkState(lock.isHeldByCurrentThread());
         BigInteger prevBalance = getBalance();
         Sha256Hash txHash = tx.getHash();
+        // If we already have this transaction it may be about to move between pools, so it can't stay cold.
+        thaw(txHash);
         boolean bestChain = blockType == BlockChain.NewBlockType.BEST_CHAIN;
         boolean sideChain = blockType == BlockChain.NewBlockType.SIDE_CHAIN;
 
@@ -1016,7 +1069,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             // TODO: Clarify the code below.
             // Notify all the BUILDING transactions of the new block.
             // This is so that they can update their work done and depth.
-            Set<Transaction> transactions = getTransactions(true);
+            Set<Transaction> transactions = getTransactionsInMemory(true);
             for (Transaction tx : transactions) {
                 if (ignoreNextNewBlock.contains(tx.getHash())) {
                     // tx was already processed in receive() due to it appearing in this block, so we don't want to
@@ -1027,6 +1080,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                     confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
                 }
             }
+            coldClock.notifyWorkDone(block.getHeader());
+            moveToColdStorage();
 
             informConfidenceListenersIfNotReorganizing();
             maybeQueueOnWalletChanged();
@@ -1109,6 +1164,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         checkState(lock.isHeldByCurrentThread());
         if (fromChain)
             checkState(!pending.containsKey(tx.getHash()));
+        // Anything this tx spends has to be in memory to be marked as spent, or to notice a double spend.
+        for (TransactionInput input : tx.getInputs())
+            thaw(input.getOutpoint().getHash());
         for (TransactionInput input : tx.getInputs()) {
             TransactionInput.ConnectionResult result = input.connect(unspent, TransactionInput.ConnectMode.ABORT_ON_CONFLICT);
             if (result == TransactionInput.ConnectionResult.NO_SUCH_TX) {
@@ -1200,6 +1258,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         // because when somebody else is double-spending away a payment they made to us, we won't have the overridden
         // tx as it's not ours to begin with. It'll only be found if we're double spending our own payments.
         log.info("Trying to connect overriding tx back");
+        thaw(overriddenOutPoint.getHash());
         TransactionInput.ConnectionResult result = overridingInput.connect(unspent, TransactionInput.ConnectMode.DISCONNECT_ON_CONFLICT);
         if (result == TransactionInput.ConnectionResult.SUCCESS) {
             maybeMovePool(overridingInput.getOutpoint().fromTx, "kill");
@@ -1329,28 +1388,53 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     }
 
     /**
-     * Returns a set of all transactions in the wallet.
+     * Returns a set of all transactions in the wallet. Transactions in cold storage (see
+     * {@link #setColdStorageDepth(int)}) are returned as copies, which stay in cold storage. The copies are rebuilt
+     * only when what is in cold storage changes, so they are shared between calls and must not be changed. Use
+     * {@link #getTransaction(Sha256Hash)} to get the wallet's own object for one of those instead, or
+     * {@link #getColdTransactions()} to list them without rebuilding anything.
      * @param includeDead     If true, transactions that were overridden by a double spend are included.
      */
     public Set<Transaction> getTransactions(boolean includeDead) {
         lock.lock();
         try {
-            Set<Transaction> all = new HashSet<Transaction>();
-            all.addAll(unspent.values());
-            all.addAll(spent.values());
-            all.addAll(pending.values());
-            if (includeDead)
-                all.addAll(dead.values());
+            Set<Transaction> all = getTransactionsInMemory(includeDead);
+            for (Map.Entry<Sha256Hash, Transaction> entry : getColdCopies().entrySet()) {
+                if (includeDead || cold.get(entry.getKey()).getPool() != Pool.DEAD)
+                    all.add(entry.getValue());
+            }
             return all;
         } finally {
             lock.unlock();
         }
     }
 
+    private Set<Transaction> getTransactionsInMemory(boolean includeDead) {
+        checkState(lock.isHeldByCurrentThread());
+        Set<Transaction> all = new HashSet<Transaction>();
+        all.addAll(unspent.values());
+        all.addAll(spent.values());
+        all.addAll(pending.values());
+        if (includeDead)
+            all.addAll(dead.values());
+        return all;
+    }
+
     /**
-     * Returns a set of all WalletTransactions in the wallet.
+     * Returns a set of all WalletTransactions, the same transactions as {@link #getTransactions(boolean)} returns with
+     * the dead ones included. Transactions in cold storage are the same shared copies, in the pool they are recorded
+     * in.
      */
     public Iterable<WalletTransaction> getWalletTransactions() {
+        return getWalletTransactions(true);
+    }
+
+    /**
+     * Returns a set of all WalletTransactions, leaving out those in cold storage (see
+     * {@link #setColdStorageDepth(int)}) unless includeColdStorage is true. {@link #getColdTransactions()} lists their
+     * records without rebuilding anything.
+     */
+    public Iterable<WalletTransaction> getWalletTransactions(boolean includeColdStorage) {
         lock.lock();
         try {
             Set<WalletTransaction> all = new HashSet<WalletTransaction>();
@@ -1358,6 +1442,10 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             addWalletTransactionsToSet(all, Pool.SPENT, spent.values());
             addWalletTransactionsToSet(all, Pool.DEAD, dead.values());
             addWalletTransactionsToSet(all, Pool.PENDING, pending.values());
+            if (includeColdStorage) {
+                for (Map.Entry<Sha256Hash, Transaction> entry : getColdCopies().entrySet())
+                    all.add(new WalletTransaction(cold.get(entry.getKey()).getPool(), entry.getValue()));
+            }
             return all;
         } finally {
             lock.unlock();
@@ -1460,13 +1548,16 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     }
 
     /**
-     * Returns a transaction object given its hash, if it exists in this wallet, or null otherwise.
+     * Returns a transaction object given its hash, if it exists in this wallet, or null otherwise. A transaction in
+     * cold storage is rehydrated, along with any others in cold storage that spend its outputs, and stays in memory
+     * until it is moved back to cold storage when the next block arrives.
      */
     @Nullable
     public Transaction getTransaction(Sha256Hash hash) {
         lock.lock();
         try {
-            return transactions.get(hash);
+            Transaction tx = transactions.get(hash);
+            return tx != null ? tx : thaw(hash);
         } finally {
             lock.unlock();
         }
@@ -1486,6 +1577,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 pending.clear();
                 dead.clear();
                 transactions.clear();
+                cold.clear();
+                coldCopies = null;
                 saveLater();
             } else {
                 throw new UnsupportedOperationException();
@@ -1512,6 +1605,10 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             if (dead.containsKey(txHash)) {
                 result.add(Pool.DEAD);
             }
+            ColdTransaction record = cold.get(txHash);
+            if (record != null) {
+                result.add(record.getPool());
+            }
             return result;
         } finally {
             lock.unlock();
@@ -1525,13 +1622,13 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 case UNSPENT:
                     return unspent.size();
                 case SPENT:
-                    return spent.size();
+                    return spent.size() + getColdPoolSize(Pool.SPENT);
                 case PENDING:
                     return pending.size();
                 case DEAD:
-                    return dead.size();
+                    return dead.size() + getColdPoolSize(Pool.DEAD);
                 case ALL:
-                    return unspent.size() + spent.size() + pending.size() + dead.size();
+                    return unspent.size() + spent.size() + pending.size() + dead.size() + cold.size();
             }
             throw new RuntimeException("Unreachable");
         } finally {
@@ -1539,6 +1636,272 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
+    private int getColdPoolSize(Pool pool) {
+        int size = 0;
+        for (ColdTransaction record : cold.values()) {
+            if (record.getPool() == pool)
+                size++;
+        }
+        return size;
+    }
+
+    /**
+     * <p>Sets how many blocks deep a transaction must be buried before the wallet moves it to cold storage, or zero
+     * (the default) to keep every transaction in memory. Transactions already deep enough are moved straight away.</p>
+     *
+     * <p>Only transactions that can't change any more short of a very deep re-org go cold: those in the spent pool,
+     * and dead transactions whose overriding transaction is buried this deep. They are kept as {@link ColdTransaction}
+     * records, which hold the serialized transaction and cost a fraction of the memory of a parsed one, so for a wallet
+     * with a long history this cuts memory use roughly in proportion to the length of the history. The records can be
+     * listed with {@link #getColdTransactions()} without rehydrating them. Everything else works as before:
+     * {@link #getTransaction(Sha256Hash)} and anything that changes a transaction in cold storage rehydrate it, and
+     * {@link #getTransactions(boolean)} returns copies.</p>
+     */
+    public void setColdStorageDepth(int depth) {
+        checkArgument(depth >= 0);
+        lock.lock();
+        try {
+            coldStorageDepth = depth;
+            if (depth == 0) {
+                while (!cold.isEmpty())
+                    thaw(cold.keySet().iterator().next());
+            } else {
+                moveToColdStorage();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the depth set by {@link #setColdStorageDepth(int)}. */
+    public int getColdStorageDepth() {
+        lock.lock();
+        try {
+            return coldStorageDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the records of the transactions in cold storage, ordered by increasing age. */
+    public List<ColdTransaction> getColdTransactions() {
+        lock.lock();
+        try {
+            List<ColdTransaction> records = new ArrayList<ColdTransaction>(cold.values());
+            Collections.sort(records, Collections.reverseOrder(new Comparator<ColdTransaction>() {
+                public int compare(ColdTransaction r1, ColdTransaction r2) {
+                    return r1.getUpdateTime().compareTo(r2.getUpdateTime());
+                }
+            }));
+            return records;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Moves every transaction that is deep enough, and that nothing else in memory depends on, to cold storage. */
+    private void moveToColdStorage() {
+        checkState(lock.isHeldByCurrentThread());
+        if (coldStorageDepth == 0 || insideReorg)
+            return;
+        List<Transaction> candidates = new ArrayList<Transaction>();
+        for (Transaction tx : spent.values()) {
+            TransactionConfidence confidence = tx.getConfidence();
+            if (confidence.getConfidenceType() == ConfidenceType.BUILDING &&
+                    confidence.getDepthInBlocks() >= coldStorageDepth)
+                candidates.add(tx);
+        }
+        for (Transaction tx : dead.values()) {
+            Transaction overridingTx = tx.getConfidence().getOverridingTransaction();
+            if (overridingTx == null)
+                continue;  // A coinbase on a chain that lost a re-org, which could win another one.
+            TransactionConfidence confidence = overridingTx.getConfidence();
+            if (confidence.getConfidenceType() == ConfidenceType.BUILDING &&
+                    confidence.getDepthInBlocks() >= coldStorageDepth)
+                candidates.add(tx);
+        }
+        if (candidates.isEmpty())
+            return;
+        // A transaction can only go cold once the ones it spends have, so do the oldest first.
+        Collections.sort(candidates, new Comparator<Transaction>() {
+            public int compare(Transaction t1, Transaction t2) {
+                return Ints.compare(getColdStorageOrder(t1), getColdStorageOrder(t2));
+            }
+        });
+        int moved = 0;
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            for (Iterator<Transaction> it = candidates.iterator(); it.hasNext(); ) {
+                Transaction tx = it.next();
+                if (!canMoveToColdStorage(tx))
+                    continue;
+                moveToColdStorage(tx);
+                it.remove();
+                moved++;
+                progress = true;
+            }
+        }
+        if (moved > 0)
+            log.info("Moved {} transactions to cold storage, {} now cold", moved, cold.size());
+    }
+
+    private static int getColdStorageOrder(Transaction tx) {
+        TransactionConfidence confidence = tx.getConfidence();
+        return confidence.getConfidenceType() == ConfidenceType.BUILDING ?
+                confidence.getAppearedAtChainHeight() : Integer.MAX_VALUE;
+    }
+
+    private boolean canMoveToColdStorage(Transaction tx) {
+        // Inputs are disconnected once what they spend goes cold, so a connected input spends something in memory
+        // which would keep referring to this tx.
+        for (TransactionInput input : tx.getInputs()) {
+            if (input.getOutpoint().fromTx != null)
+                return false;
+        }
+        // Whatever spends the outputs must be settled too, or the spent flags it set could still be undone.
+        for (TransactionOutput output : tx.getOutputs()) {
+            TransactionInput spentBy = output.getSpentBy();
+            if (spentBy != null &&
+                    spentBy.getParentTransaction().getConfidence().getConfidenceType() != ConfidenceType.BUILDING)
+                return false;
+        }
+        return true;
+    }
+
+    private void moveToColdStorage(Transaction tx) {
+        Sha256Hash hash = tx.getHash();
+        Pool pool = spent.containsKey(hash) ? Pool.SPENT : Pool.DEAD;
+        BigInteger value;
+        try {
+            value = tx.getValue(this);
+        } catch (ScriptException e) {
+            throw new RuntimeException(e);  // Cannot happen, the tx was already accepted into the wallet.
+        }
+        ColdTransaction record = new ColdTransaction(tx, pool, value, coldClock);
+        // Let go of the tx. The records of what spends its outputs are used to reconnect them when it is rehydrated.
+        for (TransactionOutput output : tx.getOutputs()) {
+            TransactionInput spentBy = output.getSpentBy();
+            if (spentBy != null)
+                spentBy.getOutpoint().fromTx = null;
+        }
+        tx.getConfidence().removeEventListener(txConfidenceListener);
+        confidenceChanged.remove(tx);
+        transactions.remove(hash);
+        spent.remove(hash);
+        dead.remove(hash);
+        cold.put(hash, record);
+        coldCopies = null;
+    }
+
+    /**
+     * Rehydrates the transaction with the given hash if it is in cold storage, along with everything in cold storage
+     * that spends its outputs, and returns it. Returns null if the transaction isn't in cold storage.
+     */
+    @Nullable
+    private Transaction thaw(Sha256Hash hash) {
+        checkState(lock.isHeldByCurrentThread());
+        if (!cold.containsKey(hash))
+            return null;
+        coldCopies = null;
+        Map<ColdTransaction, Transaction> thawed = new LinkedHashMap<ColdTransaction, Transaction>();
+        LinkedList<Sha256Hash> queue = new LinkedList<Sha256Hash>();
+        queue.add(hash);
+        while (!queue.isEmpty()) {
+            ColdTransaction record = cold.remove(queue.removeFirst());
+            if (record == null)
+                continue;
+            Transaction tx = record.rehydrate(params);
+            addWalletTransaction(record.getPool(), tx);
+            thawed.put(record, tx);
+            for (int i = 0; i < record.getOutputCount(); i++) {
+                Sha256Hash spentByHash = record.getSpentByHash(i);
+                if (spentByHash != null && cold.containsKey(spentByHash))
+                    queue.add(spentByHash);
+            }
+        }
+        // Reconnect the outputs to whatever spends them, which is all in memory now. Inputs that spend something still
+        // in cold storage stay disconnected until that is rehydrated.
+        for (Map.Entry<ColdTransaction, Transaction> entry : thawed.entrySet()) {
+            ColdTransaction record = entry.getKey();
+            Transaction tx = entry.getValue();
+            for (int i = 0; i < record.getOutputCount(); i++) {
+                Sha256Hash spentByHash = record.getSpentByHash(i);
+                if (spentByHash == null)
+                    continue;
+                Transaction spendingTx = checkNotNull(transactions.get(spentByHash));
+                spendingTx.getInputs().get(record.getSpentByIndex(i)).connect(tx.getOutput(i));
+            }
+        }
+        log.info("Rehydrated {} transactions from cold storage", thawed.size());
+        return transactions.get(hash);
+    }
+
+    /**
+     * Returns copies of every transaction in cold storage by hash, connected to each other and marked as spent by
+     * whatever spends them, without moving anything out of cold storage or changing the transactions in memory. The
+     * copies are kept until something goes into or comes out of cold storage, and only their depths are brought up to
+     * date as blocks arrive.
+     */
+    private Map<Sha256Hash, Transaction> getColdCopies() {
+        checkState(lock.isHeldByCurrentThread());
+        Map<Sha256Hash, Transaction> copies = coldCopies != null ? coldCopies.get() : null;
+        if (copies != null) {
+            if (coldCopiesBlocks != coldClock.getBlocks()) {
+                for (Map.Entry<Sha256Hash, Transaction> entry : copies.entrySet()) {
+                    ColdTransaction record = cold.get(entry.getKey());
+                    if (record.getConfidenceType() != ConfidenceType.BUILDING)
+                        continue;
+                    TransactionConfidence confidence = entry.getValue().getConfidence();
+                    confidence.setDepthInBlocks(record.getDepthInBlocks());
+                    confidence.setWorkDone(record.getWorkDone());
+                }
+                coldCopiesBlocks = coldClock.getBlocks();
+            }
+            return copies;
+        }
+        copies = new HashMap<Sha256Hash, Transaction>();
+        for (ColdTransaction record : cold.values())
+            copies.put(record.getHash(), record.rehydrate(params));
+        for (ColdTransaction record : cold.values()) {
+            Transaction copy = copies.get(record.getHash());
+            for (int i = 0; i < record.getOutputCount(); i++) {
+                Sha256Hash spentByHash = record.getSpentByHash(i);
+                if (spentByHash == null)
+                    continue;
+                int index = record.getSpentByIndex(i);
+                Transaction spendingCopy = copies.get(spentByHash);
+                if (spendingCopy != null) {
+                    spendingCopy.getInputs().get(index).connect(copy.getOutput(i));
+                } else {
+                    Transaction spendingTx = checkNotNull(transactions.get(spentByHash));
+                    // Only the copy is changed, the input in memory stays disconnected.
+                    copy.getOutput(i).markAsSpent(spendingTx.getInputs().get(index));
+                }
+            }
+        }
+        coldCopies = new SoftReference<Map<Sha256Hash, Transaction>>(copies);
+        coldCopiesBlocks = coldClock.getBlocks();
+        return copies;
+    }
+
+    /**
+     * Returns the output spent by the given input if it belongs to a transaction in cold storage, or null. The
+     * transaction stays in cold storage.
+     */
+    @Nullable
+    TransactionOutput getColdConnectedOutput(TransactionInput input) {
+        lock.lock();
+        try {
+            if (!cold.containsKey(input.getOutpoint().getHash()))
+                return null;
+            Transaction copy = getColdCopies().get(input.getOutpoint().getHash());
+            return copy.getOutput((int) input.getOutpoint().getIndex());
+        } finally {
+            lock.unlock();
+        }
+    }
+
     //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
     //
     //  SEND APIS
@@ -1964,9 +2327,10 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 log.info("  with a fee of {}", bitcoinValueToFriendlyString(calculatedFee));
             }
 
-            // Now sign the inputs, thus proving that we are entitled to redeem the connected outputs.
+            // Now sign the inputs, thus proving that we are entitled to redeem the connected outputs. Emptying the
+            // wallet can mean hundreds of inputs, so use every core.
             try {
-                req.tx.signInputs(Transaction.SigHash.ALL, this, req.aesKey);
+                req.tx.signInputs(Transaction.SigHash.ALL, this, req.aesKey, Runtime.getRuntime().availableProcessors());
             } catch (ScriptException e) {
                 // If this happens it means an output script in a wallet tx could not be understood. That should never
                 // happen, if it does it means the wallet has got into an inconsistent state.
@@ -2245,6 +2609,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             builder.append(String.format("  %d spent transactions%n", spent.size()));
             builder.append(String.format("  %d pending transactions%n", pending.size()));
             builder.append(String.format("  %d dead transactions%n", dead.size()));
+            builder.append(String.format("  %d transactions in cold storage%n", cold.size()));
             builder.append(String.format("Last seen best block: (%d) %s%n",
                     getLastBlockSeenHeight(), getLastBlockSeenHash()));
             if (this.keyCrypter != null) {
@@ -2277,6 +2642,11 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                     builder.append("\n>>> DEAD:\n");
                     toStringHelper(builder, dead, chain);
                 }
+                if (cold.size() > 0) {
+                    builder.append("\n>>> COLD:\n");
+                    for (ColdTransaction record : cold.values())
+                        builder.append(record.getPool()).append(" ").append(record).append("\n");
+                }
             }
             if (includeExtensions && extensions.size() > 0) {
                 builder.append("\n>>> EXTENSIONS:\n");
@@ -2355,6 +2725,10 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             checkState(onWalletChangedSuppressions == 0);
             onWalletChangedSuppressions++;
 
+            // Anything could move, so bring everything back into memory. It goes cold again after the re-org.
+            while (!cold.isEmpty())
+                thaw(cold.keySet().iterator().next());
+
             // Map block hash to transactions that appear in it. We ensure that the map values are sorted according
             // to their relative position within those blocks.
             ArrayListMultimap<Sha256Hash, TxOffsetPair> mapBlockTx = ArrayListMultimap.create();
@@ -2605,28 +2979,12 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         try {
             checkNotNull(keyCrypter);
             checkState(getEncryptionType() == EncryptionType.UNENCRYPTED, "Wallet is already encrypted");
-            // Create a new arraylist that will contain the encrypted keys
-            ArrayList<ECKey> encryptedKeyChain = new ArrayList<ECKey>();
-            for (ECKey key : keychain) {
-                if (key.isEncrypted()) {
-                    // Key is already encrypted - add as is.
-                    encryptedKeyChain.add(key);
-                } else {
-                    // Encrypt the key.
-                    ECKey encryptedKey = key.encrypt(keyCrypter, aesKey);
-
-                    // Check that the encrypted key can be successfully decrypted.
-                    // This is done as it is a critical failure if the private key cannot be decrypted successfully
-                    // (all bitcoin controlled by that private key is lost forever).
-                    // For a correctly constructed keyCrypter the encryption should always be reversible so it is just being as cautious as possible.
-                    if (!ECKey.encryptionIsReversible(key, encryptedKey, keyCrypter, aesKey)) {
-                        // Abort encryption
-                        throw new KeyCrypterException("The key " + key.toString() + " cannot be successfully decrypted after encryption so aborting wallet encryption.");
-                    }
-
-                    encryptedKeyChain.add(encryptedKey);
-                }
-            }
+            // Encrypt the keys that aren't already, spread over all processors as large keychains take a while.
+            // Every encrypted key is checked to decrypt successfully, as it is a critical failure if the private key
+            // cannot be decrypted (all bitcoin controlled by that private key is lost forever). For a correctly
+            // constructed keyCrypter the encryption should always be reversible so it is just being as cautious as
+            // possible. If any check fails an exception is thrown and encryption is aborted.
+            ArrayList<ECKey> encryptedKeyChain = new ArrayList<ECKey>(new BulkKeyCrypter().encrypt(keychain, keyCrypter, aesKey));
 
             // Now ready to use the encrypted keychain so go through the old keychain clearing all the unencrypted private keys.
             // (This is to avoid the possibility of key recovery from memory).
@@ -2641,6 +2999,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
             // The wallet is now encrypted.
             this.keyCrypter = keyCrypter;
+            clearKeyCache();
 
             saveNow();
         } finally {
@@ -2663,25 +3022,15 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             // This is set either at construction (if an encrypted wallet is created) or by wallet encryption.
             checkNotNull(keyCrypter);
 
-            // Create a new arraylist that will contain the decrypted keys
-            ArrayList<ECKey> decryptedKeyChain = new ArrayList<ECKey>();
-
-            for (ECKey key : keychain) {
-                // Decrypt the key.
-                if (!key.isEncrypted()) {
-                    // Not encrypted - add to chain as is.
-                    decryptedKeyChain.add(key);
-                } else {
-                    ECKey decryptedECKey = key.decrypt(keyCrypter, aesKey);
-                    decryptedKeyChain.add(decryptedECKey);
-                }
-            }
+            // Decrypt the encrypted keys, spread over all processors. Unencrypted keys are added to the chain as is.
+            ArrayList<ECKey> decryptedKeyChain = new ArrayList<ECKey>(new BulkKeyCrypter().decrypt(keychain, keyCrypter, aesKey));
 
             // Replace the old keychain with the unencrypted one.
             keychain = decryptedKeyChain;
 
             // The wallet is now unencrypted.
             keyCrypter = null;
+            clearKeyCache();
             saveNow();
         } finally {
             lock.unlock();
@@ -2707,13 +3056,16 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      * keycrypter. The wallet must have been encrypted using one of the encrypt methods previously.</p>
      *
      * <p>Note that key derivation is deliberately very slow! So if you plan to add multiple keys, it can be
-     * faster to use the other method instead and re-use the {@link KeyParameter} object instead.</p>
+     * faster to use the other method instead and re-use the {@link KeyParameter} object instead, or to turn on the
+     * key cache with {@link #setKeyCacheTimeout(long, java.util.concurrent.TimeUnit)}.</p>
      */
     public ECKey addNewEncryptedKey(CharSequence password) {
+        // Derived before locking, see deriveKey.
+        KeyParameter aesKey = deriveKey(password);
         lock.lock();
         try {
             checkNotNull(keyCrypter, "Wallet is not encrypted, you must call encrypt() first.");
-            return addNewEncryptedKey(keyCrypter, keyCrypter.deriveKey(password));
+            return addNewEncryptedKey(keyCrypter, aesKey);
         } finally {
             lock.unlock();
         }
@@ -2726,13 +3078,75 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      *  @return boolean true if password supplied can decrypt the first private key in the wallet, false otherwise.
      */
     public boolean checkPassword(CharSequence password) {
+        if (getKeyCrypter() == null) {
+            // The password cannot decrypt anything as the keyCrypter is null.
+            return false;
+        }
+        return checkAESKey(deriveKey(checkNotNull(password)));
+    }
+
+    /**
+     * <p>Derives the AES key for the given password with the wallet's keyCrypter, ready to be put in
+     * {@link SendRequest#aesKey} or passed to the other methods taking a {@link KeyParameter}.</p>
+     *
+     * <p>If the key cache is on, see {@link #setKeyCacheTimeout(long, java.util.concurrent.TimeUnit)}, a key derived
+     * from the same password within the timeout is returned without running the key derivation function again. This
+     * is also used by {@link #checkPassword(CharSequence)} and {@link #addNewEncryptedKey(CharSequence)}, so checking a
+     * password and then sending money with it only pays for the derivation once.</p>
+     *
+     * <p>The wallet is not locked while the key is derived, which takes a long time on purpose.</p>
+     */
+    public KeyParameter deriveKey(CharSequence password) {
+        KeyCrypter crypter;
+        KeyParameterCache cache;
         lock.lock();
         try {
-            if (keyCrypter == null) {
-                // The password cannot decrypt anything as the keyCrypter is null.
-                return false;
+            checkNotNull(keyCrypter, "Wallet is not encrypted, you must call encrypt() first.");
+            crypter = keyCrypter;
+            if (keyCacheTimeoutMillis > 0 && keyParameterCache == null)
+                keyParameterCache = new KeyParameterCache(keyCrypter, keyCacheTimeoutMillis, TimeUnit.MILLISECONDS);
+            cache = keyParameterCache;
+        } finally {
+            lock.unlock();
+        }
+        if (cache == null)
+            return crypter.deriveKey(password);
+        KeyParameter aesKey = cache.deriveKey(password);
+        lock.lock();
+        try {
+            // If the cache was cleared in the meantime, it must not keep the key either.
+            if (keyParameterCache != cache)
+                cache.clear();
+        } finally {
+            lock.unlock();
+        }
+        return aesKey;
+    }
+
+    /**
+     * Sets how long {@link #deriveKey(CharSequence)} remembers the AES key derived from a password. The key is wiped
+     * from memory when the time is up, or when the wallet is encrypted or decrypted. Zero, the default, turns the
+     * cache off so that every call derives the key afresh.
+     */
+    public void setKeyCacheTimeout(long timeout, TimeUnit unit) {
+        checkArgument(timeout >= 0);
+        lock.lock();
+        try {
+            keyCacheTimeoutMillis = unit.toMillis(timeout);
+            clearKeyCache();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Wipes any AES key remembered by {@link #deriveKey(CharSequence)}. */
+    public void clearKeyCache() {
+        lock.lock();
+        try {
+            if (keyParameterCache != null) {
+                keyParameterCache.clear();
+                keyParameterCache = null;
             }
-            return checkAESKey(keyCrypter.deriveKey(checkNotNull(password)));
         } finally {
             lock.unlock();
         }
@@ -3549,7 +3963,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             }
             rekeyTx.getConfidence().setSource(TransactionConfidence.Source.SELF);
             rekeyTx.setPurpose(Transaction.Purpose.KEY_ROTATION);
-            rekeyTx.signInputs(Transaction.SigHash.ALL, this);
+            rekeyTx.signInputs(Transaction.SigHash.ALL, this, null, Runtime.getRuntime().availableProcessors());
             // KeyTimeCoinSelector should never select enough inputs to push us oversize.
             checkState(rekeyTx.bitcoinSerialize().length < Transaction.MAX_STANDARD_TX_SIZE);
             commitTx(rekeyTx);
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.crypto;
+
+import com.google.devcoin.core.ECKey;
+import com.google.devcoin.utils.Threading;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Encrypts or decrypts many keys with the same {@link KeyCrypter} and AES key, spreading the work over several
+ * threads. Most of the time goes on elliptic curve arithmetic, as a decrypted key is checked against its public key
+ * and an encrypted one is checked to decrypt back to the original, so large keychains benefit from every core.</p>
+ *
+ * <p>The key derivation function is not involved: derive the AES key once, for instance with a
+ * {@link KeyParameterCache}, and pass it in. Threads are started for each call and stopped once it is done, and small
+ * lists are processed on the calling thread.</p>
+ */
+public class BulkKeyCrypter {
+    // Below this many keys per thread, starting the thread costs more than it saves.
+    private static final int MIN_KEYS_PER_THREAD = 32;
+
+    private final int numThreads;
+
+    /** Creates a crypter using one thread per available processor. */
+    public BulkKeyCrypter() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public BulkKeyCrypter(int numThreads) {
+        checkArgument(numThreads > 0);
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Encrypts the given keys, returning the encrypted keys in the same order. Keys that are already encrypted are
+     * returned as they are. Each newly encrypted key is checked to decrypt back to the original, as described in
+     * {@link ECKey#encryptionIsReversible(ECKey, ECKey, KeyCrypter, KeyParameter)}. The given keys are not changed, so
+     * it is up to the caller to clear their private keys once the encrypted ones are safely in use.
+     *
+     * @throws KeyCrypterException if any key could not be encrypted, or its encryption could not be reversed.
+     */
+    public List<ECKey> encrypt(List<ECKey> keys, final KeyCrypter keyCrypter, final KeyParameter aesKey)
+            throws KeyCrypterException {
+        checkNotNull(keyCrypter);
+        checkNotNull(aesKey);
+        return process(keys, new KeyOperation() {
+            @Override
+            public ECKey apply(ECKey key) throws KeyCrypterException {
+                if (key.isEncrypted())
+                    return key;
+                ECKey encryptedKey = key.encrypt(keyCrypter, aesKey);
+                if (!ECKey.encryptionIsReversible(key, encryptedKey, keyCrypter, aesKey))
+                    throw new KeyCrypterException("The key " + key.toString() +
+                            " cannot be successfully decrypted after encryption.");
+                return encryptedKey;
+            }
+        });
+    }
+
+    /**
+     * Decrypts the given keys, returning the decrypted keys in the same order. Keys that are not encrypted are returned
+     * as they are.
+     *
+     * @throws KeyCrypterException if any key could not be decrypted, for instance because the AES key is wrong.
+     */
+    public List<ECKey> decrypt(List<ECKey> keys, final KeyCrypter keyCrypter, final KeyParameter aesKey)
+            throws KeyCrypterException {
+        checkNotNull(keyCrypter);
+        checkNotNull(aesKey);
+        return process(keys, new KeyOperation() {
+            @Override
+            public ECKey apply(ECKey key) throws KeyCrypterException {
+                return key.isEncrypted() ? key.decrypt(keyCrypter, aesKey) : key;
+            }
+        });
+    }
+
+    private interface KeyOperation {
+        ECKey apply(ECKey key) throws KeyCrypterException;
+    }
+
+    private List<ECKey> process(List<ECKey> keys, final KeyOperation operation) throws KeyCrypterException {
+        int threads = Math.min(numThreads, keys.size() / MIN_KEYS_PER_THREAD);
+        if (threads <= 1)
+            return processSlice(keys, operation);
+
+        ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("BulkKeyCrypter thread %d");
+        Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+        if (handler != null)
+            builder.setUncaughtExceptionHandler(handler);
+        ExecutorService executor = Executors.newFixedThreadPool(threads, builder.build());
+        try {
+            // Equal slices, one per thread, as every key costs about the same.
+            List<Future<List<ECKey>>> futures = new ArrayList<Future<List<ECKey>>>(threads);
+            int sliceSize = (keys.size() + threads - 1) / threads;
+            for (final List<ECKey> slice : Lists.partition(keys, sliceSize)) {
+                futures.add(executor.submit(new Callable<List<ECKey>>() {
+                    @Override
+                    public List<ECKey> call() throws KeyCrypterException {
+                        return processSlice(slice, operation);
+                    }
+                }));
+            }
+            List<ECKey> result = new ArrayList<ECKey>(keys.size());
+            for (Future<List<ECKey>> future : futures)
+                result.addAll(future.get());
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KeyCrypterException("Interrupted while processing keys.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof KeyCrypterException)
+                throw (KeyCrypterException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new KeyCrypterException("Could not process keys.", cause);
+        } finally {
+            // Stops the remaining slices early if one of them failed.
+            executor.shutdownNow();
+        }
+    }
+
+    private static List<ECKey> processSlice(List<ECKey> keys, KeyOperation operation) throws KeyCrypterException {
+        List<ECKey> result = new ArrayList<ECKey>(keys.size());
+        for (ECKey key : keys) {
+            if (Thread.currentThread().isInterrupted())
+                throw new KeyCrypterException("Interrupted while processing keys.");
+            result.add(operation.apply(key));
+        }
+        return result;
+    }
+}
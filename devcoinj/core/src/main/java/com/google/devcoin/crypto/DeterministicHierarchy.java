@@ -72,7 +72,8 @@ public class DeterministicHierarchy implements Serializable {
      * @throws IllegalArgumentException if create is false and the path was not found.
      */
     public DeterministicKey get(List<ChildNumber> path, boolean relativePath, boolean create) {
-        ImmutableList<ChildNumber> absolutePath = relativePath
+        // Only build a new list when there is a root path to prepend, copyOf() returns immutable lists as they are.
+        ImmutableList<ChildNumber> absolutePath = relativePath && !rootPath.isEmpty()
                 ? ImmutableList.<ChildNumber>builder().addAll(rootPath).addAll(path).build()
                 : ImmutableList.copyOf(path);
         if (!keys.containsKey(absolutePath)) {
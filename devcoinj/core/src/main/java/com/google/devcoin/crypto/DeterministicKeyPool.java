@@ -0,0 +1,328 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.crypto;
+
+import com.google.devcoin.core.ScriptException;
+import com.google.devcoin.core.Transaction;
+import com.google.devcoin.core.TransactionOutput;
+import com.google.devcoin.core.Utils;
+import com.google.devcoin.script.Script;
+import com.google.devcoin.utils.Threading;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.ByteString;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Hands out the children of one key in a {@link DeterministicHierarchy} in order, deriving a window of keys ahead
+ * of the ones handed out so far on background threads. Deriving a key costs an elliptic curve multiplication, so a
+ * server generating an address per invoice would otherwise spend most of each request doing one.</p>
+ *
+ * <p>Every derived key is indexed by the hash of its public key, so {@link #findKeyFromPubHash(byte[])} can tell
+ * whether an output pays to one of the keys, including those not handed out yet. That matters because a wallet
+ * restored from the same root key, or another server sharing it, may have handed them out already. When such a
+ * key is seen in use, see {@link #markPubHashAsUsed(byte[])} and {@link #notifyTransaction(Transaction)}, the window
+ * moves along so that it always reaches the given number of keys past the highest one issued or used.</p>
+ *
+ * <p>The pool numbers the children of its parent key itself, so nothing else should derive children of that key
+ * with {@link DeterministicHierarchy#deriveNextChild(ImmutableList, boolean, boolean, boolean)}. Derived keys are not
+ * added to the hierarchy, which isn't thread safe. This class is thread safe.</p>
+ */
+public class DeterministicKeyPool {
+    /** How many keys are derived beyond the highest one issued or used, unless the constructor is told otherwise. */
+    public static final int DEFAULT_LOOKAHEAD_SIZE = 100;
+
+    // Keys derived by one background task. Small enough that a window spreads over several threads.
+    private static final int BATCH_SIZE = 16;
+    // Keys are derived for child numbers below this, so that the end of the window always fits in an int.
+    private static final int MAX_CHILD_NUMBER = Integer.MAX_VALUE;
+
+    private static final ExecutorService executor;
+    static {
+        ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("DeterministicKeyPool thread %d");
+        Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+        if (handler != null)
+            builder.setUncaughtExceptionHandler(handler);
+        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), builder.build());
+    }
+
+    private final DeterministicKey parent;
+    private final boolean privateDerivation;
+    private final int lookaheadSize;
+
+    private final ReentrantLock lock = Threading.lock("keypool");
+    private final Condition keysDerived = lock.newCondition();
+
+    // Derived keys by child number, with a null for the very rare child numbers that give an invalid key, which
+    // HDKeyDerivation.deriveChildKeys() skips. Batches finishing out of order wait in pendingBatches, by their first
+    // child number, until the ones before them are in.
+    private final List<DeterministicKey> keys = new ArrayList<DeterministicKey>();
+    private final Map<ByteString, DeterministicKey> keysByPubHash = new HashMap<ByteString, DeterministicKey>();
+    private final Map<Integer, DeterministicKey[]> pendingBatches = new HashMap<Integer, DeterministicKey[]>();
+    // Child numbers below this have been handed to background tasks.
+    private int scheduled;
+    // The next child number to issue, and the highest child number seen in use.
+    private int issued;
+    private int highestUsed = -1;
+    @Nullable private RuntimeException failure;
+
+    /**
+     * Creates a pool of the children of the key at the given absolute path, deriving the parent and any of its
+     * ancestors in the hierarchy first if need be, and starts deriving the first {@link #DEFAULT_LOOKAHEAD_SIZE} keys.
+     */
+    public DeterministicKeyPool(DeterministicHierarchy hierarchy, List<ChildNumber> parentPath,
+                                boolean privateDerivation) {
+        this(hierarchy, parentPath, privateDerivation, DEFAULT_LOOKAHEAD_SIZE);
+    }
+
+    /**
+     * Creates a pool of the children of the key at the given absolute path, deriving the parent and any of its
+     * ancestors in the hierarchy first if need be, and starts deriving the first lookaheadSize keys.
+     */
+    public DeterministicKeyPool(DeterministicHierarchy hierarchy, List<ChildNumber> parentPath,
+                                boolean privateDerivation, int lookaheadSize) {
+        checkArgument(lookaheadSize > 0);
+        this.parent = hierarchy.get(parentPath, false, true);
+        checkArgument(!privateDerivation || parent.hasPrivate(), "Private derivation needs a private parent key");
+        // Works out the parent's public key now, rather than racing to do so on every background thread.
+        parent.getPubKeyBytes();
+        this.privateDerivation = privateDerivation;
+        this.lookaheadSize = lookaheadSize;
+        lock.lock();
+        try {
+            maybeExtendLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the next key after both the last one issued and the highest one seen in use, so that a key is never
+     * handed out twice. It is normally derived already: if keys are being requested faster than the background
+     * threads derive them, waits for the next one. If deriving a key failed, the exception is rethrown here.
+     */
+    public DeterministicKey getNextKey() throws InterruptedException {
+        lock.lock();
+        try {
+            if (issued <= highestUsed)
+                issued = highestUsed + 1;
+            while (true) {
+                checkState(issued < MAX_CHILD_NUMBER, "All child keys have been issued");
+                DeterministicKey key = waitForKeyLocked(issued);
+                issued++;
+                maybeExtendLocked();
+                if (key != null)
+                    return key;
+                // An invalid child, skip to the next one as BIP 32 says.
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the key with the given child number, or null if that child number gives an invalid key. Asking for a
+     * key counts as seeing it in use, so the lookahead window moves along past it, and the call waits for it to be
+     * derived if need be. The child number must be within the current window, that is less than the lookahead size
+     * past the keys issued or used, as asking for one further ahead would derive every key up to it.
+     *
+     * @throws IllegalArgumentException if the child number is negative, which includes those for private derivation,
+     * or beyond the lookahead window.
+     */
+    @Nullable
+    public DeterministicKey getKey(int childNumber) throws InterruptedException {
+        checkArgument(childNumber >= 0, "Not a child number for public derivation: %s", childNumber);
+        lock.lock();
+        try {
+            checkArgument(childNumber < getWindowEndLocked(), "Child number %s is beyond the lookahead window",
+                    childNumber);
+            if (childNumber > highestUsed)
+                highestUsed = childNumber;
+            maybeExtendLocked();
+            return waitForKeyLocked(childNumber);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the derived key whose public key has the given hash, or null if there is none so far. */
+    @Nullable
+    public DeterministicKey findKeyFromPubHash(byte[] pubKeyHash) {
+        lock.lock();
+        try {
+            return keysByPubHash.get(ByteString.copyFrom(pubKeyHash));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records that the key with the given public key hash, if it is one of the derived keys, was seen in use, moving
+     * the lookahead window along if need be. Returns the key, or null if it isn't one of ours.
+     */
+    @Nullable
+    public DeterministicKey markPubHashAsUsed(byte[] pubKeyHash) {
+        lock.lock();
+        try {
+            DeterministicKey key = keysByPubHash.get(ByteString.copyFrom(pubKeyHash));
+            if (key == null)
+                return null;
+            int childNumber = key.getChildNumber().getChildNumber();
+            if (childNumber > highestUsed) {
+                highestUsed = childNumber;
+                maybeExtendLocked();
+            }
+            return key;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks the keys that the outputs of the given transaction pay to as used, see {@link #markPubHashAsUsed(byte[])}.
+     * Returns true if any of them pay to one of the derived keys.
+     */
+    public boolean notifyTransaction(Transaction tx) {
+        boolean relevant = false;
+        for (TransactionOutput output : tx.getOutputs()) {
+            try {
+                Script script = output.getScriptPubKey();
+                byte[] pubKeyHash;
+                if (script.isSentToAddress())
+                    pubKeyHash = script.getPubKeyHash();
+                else if (script.isSentToRawPubKey())
+                    pubKeyHash = Utils.sha256hash160(script.getPubKey());
+                else
+                    continue;
+                if (markPubHashAsUsed(pubKeyHash) != null)
+                    relevant = true;
+            } catch (ScriptException e) {
+                // Not a script we can pay to, so not ours.
+            }
+        }
+        return relevant;
+    }
+
+    /** Returns how many keys have been issued by {@link #getNextKey()} so far. */
+    public int getIssuedCount() {
+        lock.lock();
+        try {
+            return issued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many keys have been derived so far, which is at most the lookahead size past those issued or used. */
+    public int getDerivedCount() {
+        lock.lock();
+        try {
+            return keys.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Waits until the keys in the current lookahead window have all been derived. */
+    public void waitForLookahead() throws InterruptedException {
+        lock.lock();
+        try {
+            waitForKeyLocked(scheduled - 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable
+    private DeterministicKey waitForKeyLocked(int childNumber) throws InterruptedException {
+        while (childNumber >= keys.size()) {
+            if (failure != null)
+                throw failure;
+            keysDerived.await();
+        }
+        return keys.get(childNumber);
+    }
+
+    // The child number the lookahead window reaches up to, but not including. Worked out in longs so that a large
+    // lookahead size near the end of the child numbers can't overflow.
+    private int getWindowEndLocked() {
+        return (int) Math.min((long) Math.max(issued, highestUsed + 1) + lookaheadSize, MAX_CHILD_NUMBER);
+    }
+
+    private void maybeExtendLocked() {
+        int target = getWindowEndLocked();
+        while (scheduled < target) {
+            final int start = scheduled;
+            final int end = (int) Math.min(target, (long) start + BATCH_SIZE);
+            scheduled = end;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    deriveBatch(start, end);
+                }
+            });
+        }
+    }
+
+    private void deriveBatch(int start, int end) {
+        DeterministicKey[] batch = new DeterministicKey[end - start];
+        RuntimeException error = null;
+        try {
+            for (DeterministicKey key : HDKeyDerivation.deriveChildKeys(parent, start, end - start, privateDerivation)) {
+                // The public key is what's expensive to work out, so do it here rather than on a lookup.
+                key.getPubKeyBytes();
+                batch[key.getChildNumber().getChildNumber() - start] = key;
+            }
+        } catch (RuntimeException e) {
+            error = e;
+        }
+        lock.lock();
+        try {
+            if (error != null) {
+                failure = error;
+            } else {
+                pendingBatches.put(start, batch);
+                // Adds this batch, and any that finished earlier but had to wait for it, in order.
+                DeterministicKey[] next;
+                while ((next = pendingBatches.remove(keys.size())) != null) {
+                    for (DeterministicKey key : next) {
+                        keys.add(key);
+                        if (key != null)
+                            keysByPubHash.put(ByteString.copyFrom(key.getIdentifier()), key);
+                    }
+                }
+            }
+            keysDerived.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.crypto;
+
+import org.spongycastle.math.ec.ECCurve;
+import org.spongycastle.math.ec.ECPoint;
+
+import javax.annotation.Nullable;
+import java.math.BigInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Multiplies the secp256k1 generator by many scalars at once, optionally adding the same point to each result,
+ * which is what deriving sibling keys in a hierarchy comes down to.</p>
+ *
+ * <p>Spongy Castle's points use affine coordinates, so every addition inside a multiplication costs a modular
+ * inversion. Here each scalar is split into 4 bit digits and the multiple of the generator for each digit position
+ * is looked up in a table built once, so a multiplication is at most 64 additions and no doublings. The additions
+ * are done in Jacobian coordinates, which need no inversions, and the results are converted back to affine
+ * coordinates together using a single inversion for the whole batch.</p>
+ */
+final class FixedBaseMultiplier {
+    private static final int WINDOW_BITS = 4;
+    private static final int WINDOWS = 256 / WINDOW_BITS;
+    private static final int DIGITS = (1 << WINDOW_BITS) - 1;
+
+    private FixedBaseMultiplier() { }
+
+    // Built on first use, as it takes a moment and most apps never need it.
+    private static class Table {
+        static final BigInteger P = ((ECCurve.Fp) HDUtils.getCurve()).getQ();
+        // X[window][digit - 1] and Y[window][digit - 1] are the affine coordinates of digit * 16^window * G.
+        static final BigInteger[][] X = new BigInteger[WINDOWS][DIGITS];
+        static final BigInteger[][] Y = new BigInteger[WINDOWS][DIGITS];
+
+        static {
+            ECPoint base = HDUtils.getEcParams().getG();
+            for (int window = 0; window < WINDOWS; window++) {
+                ECPoint multiple = base;
+                for (int digit = 1; digit <= DIGITS; digit++) {
+                    X[window][digit - 1] = multiple.getX().toBigInteger();
+                    Y[window][digit - 1] = multiple.getY().toBigInteger();
+                    multiple = multiple.add(base);
+                }
+                base = multiple;  // 16 times the previous base.
+            }
+        }
+    }
+
+    /**
+     * Returns scalar * G + addend for each scalar, as affine points, with null for any result that is the point at
+     * infinity. The scalars must be positive and less than the curve order.
+     */
+    static ECPoint[] multiplyAndAdd(BigInteger[] scalars, @Nullable ECPoint addend) {
+        final BigInteger p = Table.P;
+        BigInteger addendX = addend == null ? null : addend.getX().toBigInteger();
+        BigInteger addendY = addend == null ? null : addend.getY().toBigInteger();
+        BigInteger[][] jacobian = new BigInteger[scalars.length][];
+        for (int i = 0; i < scalars.length; i++) {
+            BigInteger scalar = scalars[i];
+            checkArgument(scalar.signum() > 0 && scalar.bitLength() <= 256);
+            BigInteger[] sum = null;
+            for (int window = 0; window < WINDOWS; window++) {
+                int digit = 0;
+                for (int bit = 0; bit < WINDOW_BITS; bit++) {
+                    if (scalar.testBit(window * WINDOW_BITS + bit))
+                        digit |= 1 << bit;
+                }
+                if (digit != 0)
+                    sum = addAffine(sum, Table.X[window][digit - 1], Table.Y[window][digit - 1], p);
+            }
+            if (addend != null)
+                sum = addAffine(sum, addendX, addendY, p);
+            jacobian[i] = sum;
+        }
+
+        // Batch inversion: invert the product of all the Z coordinates, then peel off one inverse at a time.
+        BigInteger[] prefix = new BigInteger[scalars.length];
+        BigInteger product = BigInteger.ONE;
+        for (int i = 0; i < scalars.length; i++) {
+            if (jacobian[i] != null)
+                product = product.multiply(jacobian[i][2]).mod(p);
+            prefix[i] = product;
+        }
+        BigInteger inverse = product.modInverse(p);
+        ECCurve curve = HDUtils.getCurve();
+        ECPoint[] results = new ECPoint[scalars.length];
+        for (int i = scalars.length - 1; i >= 0; i--) {
+            if (jacobian[i] == null)
+                continue;
+            BigInteger zInverse = i == 0 ? inverse : inverse.multiply(prefix[i - 1]).mod(p);
+            inverse = inverse.multiply(jacobian[i][2]).mod(p);
+            BigInteger zInverse2 = zInverse.multiply(zInverse).mod(p);
+            BigInteger x = jacobian[i][0].multiply(zInverse2).mod(p);
+            BigInteger y = jacobian[i][1].multiply(zInverse2).multiply(zInverse).mod(p);
+            results[i] = curve.createPoint(x, y, false);
+        }
+        return results;
+    }
+
+    /**
+     * Adds the affine point (x2, y2) to the Jacobian point {X, Y, Z}, where null is the point at infinity, and returns
+     * the Jacobian result.
+     */
+    @Nullable
+    private static BigInteger[] addAffine(@Nullable BigInteger[] a, BigInteger x2, BigInteger y2, BigInteger p) {
+        if (a == null)
+            return new BigInteger[] {x2, y2, BigInteger.ONE};
+        BigInteger x1 = a[0], y1 = a[1], z1 = a[2];
+        BigInteger z1z1 = z1.multiply(z1).mod(p);
+        BigInteger u2 = x2.multiply(z1z1).mod(p);
+        BigInteger s2 = y2.multiply(z1).multiply(z1z1).mod(p);
+        BigInteger h = u2.subtract(x1).mod(p);
+        BigInteger r = s2.subtract(y1).mod(p);
+        if (h.signum() == 0)
+            return r.signum() == 0 ? twice(a, p) : null;
+        BigInteger hh = h.multiply(h).mod(p);
+        BigInteger hhh = h.multiply(hh).mod(p);
+        BigInteger v = x1.multiply(hh).mod(p);
+        BigInteger x3 = r.multiply(r).subtract(hhh).subtract(v.shiftLeft(1)).mod(p);
+        BigInteger y3 = r.multiply(v.subtract(x3)).subtract(y1.multiply(hhh)).mod(p);
+        BigInteger z3 = z1.multiply(h).mod(p);
+        return new BigInteger[] {x3, y3, z3};
+    }
+
+    /** Doubles the Jacobian point {X, Y, Z} on a curve with a = 0, as secp256k1 is. */
+    @Nullable
+    private static BigInteger[] twice(BigInteger[] a, BigInteger p) {
+        BigInteger x1 = a[0], y1 = a[1], z1 = a[2];
+        if (y1.signum() == 0)
+            return null;
+        BigInteger xx = x1.multiply(x1).mod(p);
+        BigInteger yy = y1.multiply(y1).mod(p);
+        BigInteger yyyy = yy.multiply(yy).mod(p);
+        BigInteger d = x1.add(yy).pow(2).subtract(xx).subtract(yyyy).shiftLeft(1).mod(p);
+        BigInteger e = xx.multiply(BigInteger.valueOf(3)).mod(p);
+        BigInteger x3 = e.multiply(e).subtract(d.shiftLeft(1)).mod(p);
+        BigInteger y3 = e.multiply(d.subtract(x3)).subtract(yyyy.shiftLeft(3)).mod(p);
+        BigInteger z3 = y1.multiply(z1).shiftLeft(1).mod(p);
+        return new BigInteger[] {x3, y3, z3};
+    }
+}
@@ -22,7 +22,9 @@ import org.spongycastle.math.ec.ECPoint;
 
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
@@ -95,6 +97,62 @@ public final class HDKeyDerivation {
                 parent);
     }
 
+    /**
+     * <p>Derives the children of the given parent numbered from first to first + count - 1, all with public or all with
+     * private derivation. The result is the same as calling {@link #deriveChildKey(DeterministicKey, ChildNumber)} for
+     * each, but much faster for more than a few keys, as the work that siblings have in common is only done once.
+     * The parent's public key is serialized once and the HMAC is keyed with the parent's chain code once. The elliptic
+     * curve multiplications, which dominate the cost, are all done together by {@link FixedBaseMultiplier}, using a
+     * precomputed table of multiples of the generator and one modular inversion for the whole batch. For children of
+     * a private key this works out their public keys up front too, which deriveChildKey leaves until asked.</p>
+     *
+     * <p>As BIP 32 says, a child number that gives an invalid key is skipped. That is very unlikely, but it means the
+     * result can hold fewer than count keys, so check {@link DeterministicKey#getChildNumber()} if it matters.</p>
+     */
+    public static List<DeterministicKey> deriveChildKeys(DeterministicKey parent, int first, int count,
+                                                         boolean privateDerivation) {
+        checkArgument(first >= 0 && count >= 0 && (long) first + count <= (1L << 31), "Child numbers out of range");
+        checkArgument(!privateDerivation || parent.hasPrivate(), "Can't use private derivation with public keys only.");
+        ECPoint parentPoint = parent.getPubPoint();
+        BigInteger parentPrivate = parent.getPrivAsFieldElement();
+        ByteBuffer data = ByteBuffer.allocate(37);
+        data.put(privateDerivation ? parent.getPrivKeyBytes33() : parentPoint.getEncoded());
+        HMac hmac = HDUtils.createHmacSha256Digest(parent.getChainCode());
+        BigInteger n = HDUtils.getEcParams().getN();
+
+        // First the HMACs, leaving out invalid children, then all the point multiplications in one go.
+        List<ChildNumber> numbers = new ArrayList<ChildNumber>(count);
+        List<byte[]> chainCodes = new ArrayList<byte[]>(count);
+        List<BigInteger> scalars = new ArrayList<BigInteger>(count);
+        for (int childNumber = first; childNumber < first + count; childNumber++) {
+            ChildNumber number = new ChildNumber(childNumber, privateDerivation);
+            data.putInt(33, number.getI());
+            byte[] i = HDUtils.hmacSha256(hmac, data.array());
+            BigInteger ilInt = HDUtils.toBigInteger(Arrays.copyOfRange(i, 0, 32));
+            byte[] chainCode = Arrays.copyOfRange(i, 32, 64);
+            Arrays.fill(i, (byte) 0);
+            // For a private parent the scalar is the child's private key, otherwise it's added to the parent point.
+            BigInteger scalar = parentPrivate != null ? parentPrivate.add(ilInt).mod(n) : ilInt;
+            if (ilInt.compareTo(n) >= 0 || scalar.signum() == 0)
+                continue;
+            numbers.add(number);
+            chainCodes.add(chainCode);
+            scalars.add(scalar);
+        }
+        ECPoint[] points = FixedBaseMultiplier.multiplyAndAdd(scalars.toArray(new BigInteger[scalars.size()]),
+                parentPrivate != null ? null : parentPoint);
+
+        ImmutableList<ChildNumber> parentPath = parent.getChildNumberPath();
+        List<DeterministicKey> children = new ArrayList<DeterministicKey>(numbers.size());
+        for (int i = 0; i < numbers.size(); i++) {
+            if (points[i] == null)
+                continue;  // Public derivation gave the point at infinity.
+            children.add(new DeterministicKey(HDUtils.append(parentPath, numbers.get(i)), chainCodes.get(i), points[i],
+                    parentPrivate != null ? scalars.get(i) : null, parent));
+        }
+        return children;
+    }
+
     private static RawKeyBytes deriveChildKeyBytes(DeterministicKey parent, ChildNumber childNumber)
             throws HDDerivationException {
 
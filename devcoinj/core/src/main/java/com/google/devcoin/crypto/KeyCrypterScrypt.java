@@ -30,8 +30,11 @@ import org.spongycastle.crypto.params.KeyParameter;
 import org.spongycastle.crypto.params.ParametersWithIV;
 
 import java.io.Serializable;
+import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
@@ -68,6 +71,17 @@ public class KeyCrypterScrypt implements KeyCrypter, Serializable {
      */
     public static final int SALT_LENGTH = 8;
 
+    /**
+     * The smallest and largest CPU/ memory cost (N) that {@link #calibrate(long, TimeUnit)} picks. Below the minimum
+     * the derived key is too easily brute forced whatever the device, and at the maximum with the default block size
+     * scrypt needs a gigabyte of memory.
+     */
+    public static final int MIN_CALIBRATED_N = 1 << 12;
+    public static final int MAX_CALIBRATED_N = 1 << 20;
+
+    /** The largest parallelisation parameter (p) that {@link #calibrate(long, TimeUnit)} picks. */
+    public static final int MAX_CALIBRATED_P = 16;
+
     private static final transient SecureRandom secureRandom = new SecureRandom();
 
     // Scrypt parameters.
@@ -100,6 +114,64 @@ public class KeyCrypterScrypt implements KeyCrypter, Serializable {
         }
     }
 
+    /**
+     * <p>Times scrypt on this device and returns parameters, with a new random salt, for which deriving a key takes
+     * between half of and about the given time. Pass them to {@link #KeyCrypterScrypt(ScryptParameters)} and encrypt
+     * the wallet with the result; the parameters are saved with the wallet, so it keeps the same cost when moved to
+     * other hardware. A target of a second or so is typical: the defaults take several seconds on older phones, but
+     * only a fraction of that on a desktop.</p>
+     *
+     * <p>The block size (r) is left at its default. The cost (N) is doubled from {@link #MIN_CALIBRATED_N} until
+     * another doubling would overshoot the target, timing each step, which takes up to about twice the target time
+     * in all. If N reaches the most this device's memory allows, the parallelisation parameter (p), which multiplies
+     * the time without using more memory, makes up the rest.</p>
+     */
+    public static ScryptParameters calibrate(long targetTime, TimeUnit unit) {
+        long targetNanos = unit.toNanos(targetTime);
+        checkArgument(targetNanos > 0);
+        int r = ScryptParameters.getDefaultInstance().getR();
+        // Scrypt needs 128 * r * N bytes. Leave plenty of the heap for everything else.
+        long maxN = MIN_CALIBRATED_N;
+        while (maxN < MAX_CALIBRATED_N && 128L * r * (maxN << 1) <= Runtime.getRuntime().maxMemory() / 4)
+            maxN <<= 1;
+
+        // Warm up first, so that the first timing isn't thrown off by the JIT compiler.
+        timeScrypt(MIN_CALIBRATED_N, r, 1);
+        int n = MIN_CALIBRATED_N;
+        long nanos = timeScrypt(n, r, 1);
+        while (n < maxN && nanos * 2 <= targetNanos) {
+            n <<= 1;
+            nanos = timeScrypt(n, r, 1);
+        }
+        int p = 1;
+        if (n == maxN && nanos > 0)
+            p = (int) Math.max(1, Math.min(MAX_CALIBRATED_P, targetNanos / nanos));
+        log.info("Calibrated scrypt to N = {}, r = {}, p = {} from {}ms at p = 1", new Object[] {n, r, p, nanos / 1000000});
+
+        byte[] salt = new byte[SALT_LENGTH];
+        secureRandom.nextBytes(salt);
+        return Protos.ScryptParameters.newBuilder()
+                .setSalt(ByteString.copyFrom(salt))
+                .setN(n)
+                .setR(r)
+                .setP(p)
+                .build();
+    }
+
+    private static long timeScrypt(int n, int r, int p) {
+        byte[] password = new byte[16];
+        byte[] salt = new byte[SALT_LENGTH];
+        secureRandom.nextBytes(password);
+        secureRandom.nextBytes(salt);
+        long start = System.nanoTime();
+        try {
+            SCrypt.scrypt(password, salt, n, r, p, KEY_LENGTH);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);  // Cannot happen, the parameters are valid.
+        }
+        return System.nanoTime() - start;
+    }
+
     /**
      * Generate AES key.
      *
@@ -151,6 +223,7 @@ public class KeyCrypterScrypt implements KeyCrypter, Serializable {
             ParametersWithIV keyWithIv = new ParametersWithIV(aesKey, iv);
 
             // Encrypt using AES.
+            // A new cipher each time, so that the AES key schedule isn't left behind in one after the key is wiped.
             BufferedBlockCipher cipher = new PaddedBufferedBlockCipher(new CBCBlockCipher(new AESFastEngine()));
             cipher.init(true, keyWithIv);
             byte[] encryptedBytes = new byte[cipher.getOutputSize(plainBytes.length)];
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.crypto;
+
+import com.google.devcoin.utils.Threading;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import javax.annotation.Nullable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Remembers the AES key derived from a password for a limited time, so that a password used several times in
+ * quick succession, for instance to check it and then to sign a transaction with
+ * {@link com.google.devcoin.core.Wallet#completeTx(com.google.devcoin.core.Wallet.SendRequest)}, only goes through the
+ * deliberately slow key derivation function once.</p>
+ *
+ * <p>Only the most recently derived key is kept. The password itself is not: it is recognised by a SHA-256 digest of
+ * the key followed by the password, which can't be used to try out passwords without the key itself. The key and the
+ * digest are overwritten with zeros when the time is up, when a different password is used, or when {@link #clear()}
+ * is called. Callers get copies of the key, which they may wipe as they wish.</p>
+ */
+public class KeyParameterCache {
+    private static final ScheduledExecutorService expiryExecutor;
+    static {
+        ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("KeyParameterCache expiry thread");
+        Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+        if (handler != null)
+            builder.setUncaughtExceptionHandler(handler);
+        expiryExecutor = Executors.newSingleThreadScheduledExecutor(builder.build());
+    }
+
+    private final ReentrantLock lock = Threading.lock("keyparametercache");
+    private final KeyCrypter keyCrypter;
+    private final long timeoutMillis;
+
+    // The cached key and the digest of the password it was derived from, or null if nothing is cached.
+    @Nullable private byte[] passwordDigest;
+    @Nullable private KeyParameter key;
+    @Nullable private ScheduledFuture<?> expiry;
+
+    /** Creates a cache deriving keys with the given crypter and keeping each one for the given time. */
+    public KeyParameterCache(KeyCrypter keyCrypter, long timeout, TimeUnit unit) {
+        checkArgument(timeout > 0);
+        this.keyCrypter = checkNotNull(keyCrypter);
+        this.timeoutMillis = unit.toMillis(timeout);
+    }
+
+    public KeyCrypter getKeyCrypter() {
+        return keyCrypter;
+    }
+
+    /**
+     * Returns a copy of the key derived from the given password, deriving it first unless it was derived within the
+     * timeout. The timeout runs from when the key was derived, using it again does not extend it.
+     */
+    public KeyParameter deriveKey(CharSequence password) throws KeyCrypterException {
+        checkNotNull(password);
+        lock.lock();
+        try {
+            if (key != null && Arrays.equals(digest(key, password), passwordDigest))
+                return new KeyParameter(key.getKey());
+        } finally {
+            lock.unlock();
+        }
+        // Derive without holding the lock, as this takes a long time.
+        KeyParameter derived = keyCrypter.deriveKey(password);
+        lock.lock();
+        try {
+            clearLocked();
+            key = new KeyParameter(derived.getKey());
+            passwordDigest = digest(key, password);
+            final KeyParameter cached = key;
+            expiry = expiryExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    lock.lock();
+                    try {
+                        if (key == cached)
+                            clearLocked();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+            return derived;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns true if a key is currently cached. */
+    public boolean isCached() {
+        lock.lock();
+        try {
+            return key != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Wipes and forgets the cached key, if any. */
+    public void clear() {
+        lock.lock();
+        try {
+            clearLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void clearLocked() {
+        if (key != null) {
+            // KeyParameter hands out its own array, so this wipes the only copy the cache holds.
+            Arrays.fill(key.getKey(), (byte) 0);
+            key = null;
+        }
+        if (passwordDigest != null) {
+            Arrays.fill(passwordDigest, (byte) 0);
+            passwordDigest = null;
+        }
+        if (expiry != null) {
+            expiry.cancel(false);
+            expiry = null;
+        }
+    }
+
+    private static byte[] digest(KeyParameter key, CharSequence password) {
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        sha256.update(key.getKey());
+        // Fed in a character at a time, so that no String or byte array copy of the password is left behind.
+        for (int i = 0; i < password.length(); i++) {
+            char c = password.charAt(i);
+            sha256.update((byte) (c >> 8));
+            sha256.update((byte) c);
+        }
+        return sha256.digest();
+    }
+}
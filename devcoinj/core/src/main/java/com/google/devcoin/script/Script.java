@@ -522,23 +522,120 @@ public class Script {
         }
         return false;
     }
-    
-    private static BigInteger castToBigInteger(byte[] chunk) throws ScriptException {
+
+    /**
+     * Decodes a little endian, sign and magnitude encoded number of up to 4 bytes. This gives the same result as
+     * going through {@link Utils#decodeMPI(byte[], boolean)} but without allocating.
+     */
+    private static long castToLong(byte[] chunk) throws ScriptException {
         if (chunk.length > 4)
             throw new ScriptException("Script attempted to use an integer larger than 4 bytes");
-        return Utils.decodeMPI(Utils.reverseBytes(chunk), false);
+        if (chunk.length == 0)
+            return 0;
+        long result = 0;
+        for (int i = 0; i < chunk.length - 1; i++)
+            result |= (long) (chunk[i] & 0xFF) << (8 * i);
+        int last = chunk[chunk.length - 1] & 0xFF;
+        result |= (long) (last & 0x7F) << (8 * (chunk.length - 1));
+        return (last & 0x80) != 0 ? -result : result;
     }
-    
+
+    // The encodings of -1 to 16, which are by far the most common numbers. Stack elements are never modified once
+    // pushed so these can be shared.
+    private static final byte[][] SMALL_NUMBERS = new byte[18][];
+    static {
+        for (int i = -1; i <= 16; i++)
+            SMALL_NUMBERS[i + 1] = Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(i), false));
+    }
+
+    /**
+     * Encodes a number in the minimal little endian, sign and magnitude format used on the stack. This gives the
+     * same result as reversing {@link Utils#encodeMPI(BigInteger, boolean)} without going through a BigInteger.
+     */
+    private static byte[] encodeNumber(long value) {
+        if (value >= -1 && value <= 16)
+            return SMALL_NUMBERS[(int) value + 1];
+        boolean isNegative = value < 0;
+        long magnitude = isNegative ? -value : value;
+        byte[] buf = new byte[9];
+        int length = 0;
+        while (magnitude != 0) {
+            buf[length++] = (byte) magnitude;
+            magnitude >>>= 8;
+        }
+        // The top bit of the last byte is the sign, so add a byte if the magnitude needs it.
+        if ((buf[length - 1] & 0x80) != 0)
+            buf[length++] = (byte) (isNegative ? 0x80 : 0);
+        else if (isNegative)
+            buf[length - 1] |= 0x80;
+        return Arrays.copyOf(buf, length);
+    }
+
+    // The results pushed by OP_EQUAL and the signature checking ops. Note that false is not the same as the number 0.
+    private static final byte[] TRUE = new byte[] {1};
+    private static final byte[] FALSE = new byte[] {0};
+
+    private static byte[] encodeBool(boolean value) {
+        return value ? TRUE : FALSE;
+    }
+
+    /**
+     * The stacks used while running scripts. There is one per verification thread, which is reused for every script
+     * it runs so that verifying a block doesn't allocate new stacks for each input.
+     */
+    private static class ExecutionContext {
+        final ScriptStack stack = new ScriptStack();
+        final ScriptStack altstack = new ScriptStack();
+        final ScriptStack p2shStack = new ScriptStack();
+        // The OP_IF/OP_NOTIF nesting, with a count of the branches not being executed so we don't have to scan it.
+        boolean[] ifStack = new boolean[8];
+        int ifStackSize;
+        int ifStackFalseCount;
+
+        void pushIf(boolean value) {
+            if (ifStackSize == ifStack.length)
+                ifStack = Arrays.copyOf(ifStack, ifStackSize * 2);
+            ifStack[ifStackSize++] = value;
+            if (!value)
+                ifStackFalseCount++;
+        }
+
+        boolean popIf() {
+            boolean value = ifStack[--ifStackSize];
+            if (!value)
+                ifStackFalseCount--;
+            return value;
+        }
+
+        void clear() {
+            stack.clear();
+            altstack.clear();
+            p2shStack.clear();
+            ifStackSize = 0;
+            ifStackFalseCount = 0;
+        }
+    }
+
+    private static final ThreadLocal<ExecutionContext> executionContext = new ThreadLocal<ExecutionContext>() {
+        @Override
+        protected ExecutionContext initialValue() {
+            return new ExecutionContext();
+        }
+    };
+
     private static void executeScript(Transaction txContainingThis, long index,
-                                      Script script, LinkedList<byte[]> stack) throws ScriptException {
+                                      Script script, ScriptStack stack) throws ScriptException {
         int opCount = 0;
         int lastCodeSepLocation = 0;
         
-        LinkedList<byte[]> altstack = new LinkedList<byte[]>();
-        LinkedList<Boolean> ifStack = new LinkedList<Boolean>();
+        ExecutionContext context = executionContext.get();
+        ScriptStack altstack = context.altstack;
+        altstack.clear();
+        context.ifStackSize = 0;
+        context.ifStackFalseCount = 0;
         
         for (ScriptChunk chunk : script.chunks) {
-            boolean shouldExecute = !ifStack.contains(false);
+            boolean shouldExecute = context.ifStackFalseCount == 0;
             
             if (!chunk.isOpCode()) {
                 if (chunk.data.length > MAX_SCRIPT_ELEMENT_SIZE)
@@ -547,7 +644,7 @@ public class Script {
                 if (!shouldExecute)
                     continue;
                 
-                stack.add(chunk.data);
+                stack.push(chunk.data);
             } else {
                 int opcode = 0xFF & chunk.data[0];
                 if (opcode > OP_16) {
@@ -568,31 +665,31 @@ public class Script {
                 switch (opcode) {
                 case OP_IF:
                     if (!shouldExecute) {
-                        ifStack.add(false);
+                        context.pushIf(false);
                         continue;
                     }
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_IF on an empty stack");
-                    ifStack.add(castToBool(stack.pollLast()));
+                    context.pushIf(castToBool(stack.pop()));
                     continue;
                 case OP_NOTIF:
                     if (!shouldExecute) {
-                        ifStack.add(false);
+                        context.pushIf(false);
                         continue;
                     }
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_NOTIF on an empty stack");
-                    ifStack.add(!castToBool(stack.pollLast()));
+                    context.pushIf(!castToBool(stack.pop()));
                     continue;
                 case OP_ELSE:
-                    if (ifStack.isEmpty())
+                    if (context.ifStackSize == 0)
                         throw new ScriptException("Attempted OP_ELSE without OP_IF/NOTIF");
-                    ifStack.add(!ifStack.pollLast());
+                    context.pushIf(!context.popIf());
                     continue;
                 case OP_ENDIF:
-                    if (ifStack.isEmpty())
+                    if (context.ifStackSize == 0)
                         throw new ScriptException("Attempted OP_ENDIF without OP_IF/NOTIF");
-                    ifStack.pollLast();
+                    context.popIf();
                     continue;
                 }
                 
@@ -602,10 +699,10 @@ public class Script {
                 switch(opcode) {
                 case OP_0:
                     // This is also OP_FALSE (they are both zero).
-                    stack.add(new byte[]{0});
+                    stack.push(new byte[]{0});
                     break;
                 case OP_1NEGATE:
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ONE.negate(), false)));
+                    stack.push(encodeNumber(-1));
                     break;
                 case OP_1:
                 case OP_2:
@@ -623,14 +720,14 @@ public class Script {
                 case OP_14:
                 case OP_15:
                 case OP_16:
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(decodeFromOpN(opcode)), false)));
+                    stack.push(encodeNumber(decodeFromOpN(opcode)));
                     break;
                 case OP_NOP:
                     break;
                 case OP_VERIFY:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_VERIFY on an empty stack");
-                    if (!castToBool(stack.pollLast()))
+                    if (!castToBool(stack.pop()))
                         throw new ScriptException("OP_VERIFY failed");
                     break;
                 case OP_RETURN:
@@ -638,143 +735,106 @@ public class Script {
                 case OP_TOALTSTACK:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_TOALTSTACK on an empty stack");
-                    altstack.add(stack.pollLast());
+                    altstack.push(stack.pop());
                     break;
                 case OP_FROMALTSTACK:
                     if (altstack.size() < 1)
                         throw new ScriptException("Attempted OP_TOALTSTACK on an empty altstack");
-                    stack.add(altstack.pollLast());
+                    stack.push(altstack.pop());
                     break;
                 case OP_2DROP:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_2DROP on a stack with size < 2");
-                    stack.pollLast();
-                    stack.pollLast();
+                    stack.pop();
+                    stack.pop();
                     break;
                 case OP_2DUP:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_2DUP on a stack with size < 2");
-                    Iterator<byte[]> it2DUP = stack.descendingIterator();
-                    byte[] OP2DUPtmpChunk2 = it2DUP.next();
-                    stack.add(it2DUP.next());
-                    stack.add(OP2DUPtmpChunk2);
+                    stack.push(stack.peek(1));
+                    stack.push(stack.peek(1));
                     break;
                 case OP_3DUP:
                     if (stack.size() < 3)
                         throw new ScriptException("Attempted OP_3DUP on a stack with size < 3");
-                    Iterator<byte[]> it3DUP = stack.descendingIterator();
-                    byte[] OP3DUPtmpChunk3 = it3DUP.next();
-                    byte[] OP3DUPtmpChunk2 = it3DUP.next();
-                    stack.add(it3DUP.next());
-                    stack.add(OP3DUPtmpChunk2);
-                    stack.add(OP3DUPtmpChunk3);
+                    stack.push(stack.peek(2));
+                    stack.push(stack.peek(2));
+                    stack.push(stack.peek(2));
                     break;
                 case OP_2OVER:
                     if (stack.size() < 4)
                         throw new ScriptException("Attempted OP_2OVER on a stack with size < 4");
-                    Iterator<byte[]> it2OVER = stack.descendingIterator();
-                    it2OVER.next();
-                    it2OVER.next();
-                    byte[] OP2OVERtmpChunk2 = it2OVER.next();
-                    stack.add(it2OVER.next());
-                    stack.add(OP2OVERtmpChunk2);
+                    stack.push(stack.peek(3));
+                    stack.push(stack.peek(3));
                     break;
                 case OP_2ROT:
                     if (stack.size() < 6)
                         throw new ScriptException("Attempted OP_2ROT on a stack with size < 6");
-                    byte[] OP2ROTtmpChunk6 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk5 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk4 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk3 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk2 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk1 = stack.pollLast();
-                    stack.add(OP2ROTtmpChunk3);
-                    stack.add(OP2ROTtmpChunk4);
-                    stack.add(OP2ROTtmpChunk5);
-                    stack.add(OP2ROTtmpChunk6);
-                    stack.add(OP2ROTtmpChunk1);
-                    stack.add(OP2ROTtmpChunk2);
+                    // x1 x2 x3 x4 x5 x6 -> x3 x4 x5 x6 x1 x2
+                    stack.push(stack.remove(5));
+                    stack.push(stack.remove(5));
                     break;
                 case OP_2SWAP:
                     if (stack.size() < 4)
                         throw new ScriptException("Attempted OP_2SWAP on a stack with size < 4");
-                    byte[] OP2SWAPtmpChunk4 = stack.pollLast();
-                    byte[] OP2SWAPtmpChunk3 = stack.pollLast();
-                    byte[] OP2SWAPtmpChunk2 = stack.pollLast();
-                    byte[] OP2SWAPtmpChunk1 = stack.pollLast();
-                    stack.add(OP2SWAPtmpChunk3);
-                    stack.add(OP2SWAPtmpChunk4);
-                    stack.add(OP2SWAPtmpChunk1);
-                    stack.add(OP2SWAPtmpChunk2);
+                    // x1 x2 x3 x4 -> x3 x4 x1 x2
+                    stack.push(stack.remove(3));
+                    stack.push(stack.remove(3));
                     break;
                 case OP_IFDUP:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_IFDUP on an empty stack");
-                    if (castToBool(stack.getLast()))
-                        stack.add(stack.getLast());
+                    if (castToBool(stack.peek()))
+                        stack.push(stack.peek());
                     break;
                 case OP_DEPTH:
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(stack.size()), false)));
+                    stack.push(encodeNumber(stack.size()));
                     break;
                 case OP_DROP:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_DROP on an empty stack");
-                    stack.pollLast();
+                    stack.pop();
                     break;
                 case OP_DUP:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_DUP on an empty stack");
-                    stack.add(stack.getLast());
+                    stack.push(stack.peek());
                     break;
                 case OP_NIP:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_NIP on a stack with size < 2");
-                    byte[] OPNIPtmpChunk = stack.pollLast();
-                    stack.pollLast();
-                    stack.add(OPNIPtmpChunk);
+                    stack.remove(1);
                     break;
                 case OP_OVER:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_OVER on a stack with size < 2");
-                    Iterator<byte[]> itOVER = stack.descendingIterator();
-                    itOVER.next();
-                    stack.add(itOVER.next());
+                    stack.push(stack.peek(1));
                     break;
                 case OP_PICK:
                 case OP_ROLL:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_PICK/OP_ROLL on an empty stack");
-                    long val = castToBigInteger(stack.pollLast()).longValue();
+                    long val = castToLong(stack.pop());
                     if (val < 0 || val >= stack.size())
                         throw new ScriptException("OP_PICK/OP_ROLL attempted to get data deeper than stack size");
-                    Iterator<byte[]> itPICK = stack.descendingIterator();
-                    for (long i = 0; i < val; i++)
-                        itPICK.next();
-                    byte[] OPROLLtmpChunk = itPICK.next();
                     if (opcode == OP_ROLL)
-                        itPICK.remove();
-                    stack.add(OPROLLtmpChunk);
+                        stack.push(stack.remove((int) val));
+                    else
+                        stack.push(stack.peek((int) val));
                     break;
                 case OP_ROT:
                     if (stack.size() < 3)
                         throw new ScriptException("Attempted OP_ROT on a stack with size < 3");
-                    byte[] OPROTtmpChunk3 = stack.pollLast();
-                    byte[] OPROTtmpChunk2 = stack.pollLast();
-                    byte[] OPROTtmpChunk1 = stack.pollLast();
-                    stack.add(OPROTtmpChunk2);
-                    stack.add(OPROTtmpChunk3);
-                    stack.add(OPROTtmpChunk1);
+                    // x1 x2 x3 -> x2 x3 x1
+                    stack.push(stack.remove(2));
                     break;
                 case OP_SWAP:
                 case OP_TUCK:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_SWAP on a stack with size < 2");
-                    byte[] OPSWAPtmpChunk2 = stack.pollLast();
-                    byte[] OPSWAPtmpChunk1 = stack.pollLast();
-                    stack.add(OPSWAPtmpChunk2);
-                    stack.add(OPSWAPtmpChunk1);
+                    stack.push(stack.remove(1));
                     if (opcode == OP_TUCK)
-                        stack.add(OPSWAPtmpChunk2);
+                        stack.push(stack.peek(1));
                     break;
                 case OP_CAT:
                 case OP_SUBSTR:
@@ -784,7 +844,7 @@ public class Script {
                 case OP_SIZE:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_SIZE on an empty stack");
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(stack.getLast().length), false)));
+                    stack.push(encodeNumber(stack.peek().length));
                     break;
                 case OP_INVERT:
                 case OP_AND:
@@ -794,12 +854,12 @@ public class Script {
                 case OP_EQUAL:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_EQUALVERIFY on a stack with size < 2");
-                    stack.add(Arrays.equals(stack.pollLast(), stack.pollLast()) ? new byte[] {1} : new byte[] {0});
+                    stack.push(encodeBool(Arrays.equals(stack.pop(), stack.pop())));
                     break;
                 case OP_EQUALVERIFY:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_EQUALVERIFY on a stack with size < 2");
-                    if (!Arrays.equals(stack.pollLast(), stack.pollLast()))
+                    if (!Arrays.equals(stack.pop(), stack.pop()))
                         throw new ScriptException("OP_EQUALVERIFY: non-equal data");
                     break;
                 case OP_1ADD:
@@ -810,39 +870,34 @@ public class Script {
                 case OP_0NOTEQUAL:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted a numeric op on an empty stack");
-                    BigInteger numericOPnum = castToBigInteger(stack.pollLast());
+                    // Operands are at most 4 bytes, so neither they nor the results can overflow a long.
+                    long numericOPnum = castToLong(stack.pop());
                                         
                     switch (opcode) {
                     case OP_1ADD:
-                        numericOPnum = numericOPnum.add(BigInteger.ONE);
+                        numericOPnum = numericOPnum + 1;
                         break;
                     case OP_1SUB:
-                        numericOPnum = numericOPnum.subtract(BigInteger.ONE);
+                        numericOPnum = numericOPnum - 1;
                         break;
                     case OP_NEGATE:
-                        numericOPnum = numericOPnum.negate();
+                        numericOPnum = -numericOPnum;
                         break;
                     case OP_ABS:
-                        if (numericOPnum.compareTo(BigInteger.ZERO) < 0)
-                            numericOPnum = numericOPnum.negate();
+                        if (numericOPnum < 0)
+                            numericOPnum = -numericOPnum;
                         break;
                     case OP_NOT:
-                        if (numericOPnum.equals(BigInteger.ZERO))
-                            numericOPnum = BigInteger.ONE;
-                        else
-                            numericOPnum = BigInteger.ZERO;
+                        numericOPnum = numericOPnum == 0 ? 1 : 0;
                         break;
                     case OP_0NOTEQUAL:
-                        if (numericOPnum.equals(BigInteger.ZERO))
-                            numericOPnum = BigInteger.ZERO;
-                        else
-                            numericOPnum = BigInteger.ONE;
+                        numericOPnum = numericOPnum == 0 ? 0 : 1;
                         break;
                     default:
                         throw new AssertionError("Unreachable");
                     }
                     
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(numericOPnum, false)));
+                    stack.push(encodeNumber(numericOPnum));
                     break;
                 case OP_2MUL:
                 case OP_2DIV:
@@ -861,82 +916,52 @@ public class Script {
                 case OP_MAX:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted a numeric op on a stack with size < 2");
-                    BigInteger numericOPnum2 = castToBigInteger(stack.pollLast());
-                    BigInteger numericOPnum1 = castToBigInteger(stack.pollLast());
+                    long numericOPnum2 = castToLong(stack.pop());
+                    long numericOPnum1 = castToLong(stack.pop());
 
-                    BigInteger numericOPresult;
+                    long numericOPresult;
                     switch (opcode) {
                     case OP_ADD:
-                        numericOPresult = numericOPnum1.add(numericOPnum2);
+                        numericOPresult = numericOPnum1 + numericOPnum2;
                         break;
                     case OP_SUB:
-                        numericOPresult = numericOPnum1.subtract(numericOPnum2);
+                        numericOPresult = numericOPnum1 - numericOPnum2;
                         break;
                     case OP_BOOLAND:
-                        if (!numericOPnum1.equals(BigInteger.ZERO) && !numericOPnum2.equals(BigInteger.ZERO))
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 != 0 && numericOPnum2 != 0 ? 1 : 0;
                         break;
                     case OP_BOOLOR:
-                        if (!numericOPnum1.equals(BigInteger.ZERO) || !numericOPnum2.equals(BigInteger.ZERO))
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 != 0 || numericOPnum2 != 0 ? 1 : 0;
                         break;
                     case OP_NUMEQUAL:
-                        if (numericOPnum1.equals(numericOPnum2))
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 == numericOPnum2 ? 1 : 0;
                         break;
                     case OP_NUMNOTEQUAL:
-                        if (!numericOPnum1.equals(numericOPnum2))
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 != numericOPnum2 ? 1 : 0;
                         break;
                     case OP_LESSTHAN:
-                        if (numericOPnum1.compareTo(numericOPnum2) < 0)
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 < numericOPnum2 ? 1 : 0;
                         break;
                     case OP_GREATERTHAN:
-                        if (numericOPnum1.compareTo(numericOPnum2) > 0)
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 > numericOPnum2 ? 1 : 0;
                         break;
                     case OP_LESSTHANOREQUAL:
-                        if (numericOPnum1.compareTo(numericOPnum2) <= 0)
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 <= numericOPnum2 ? 1 : 0;
                         break;
                     case OP_GREATERTHANOREQUAL:
-                        if (numericOPnum1.compareTo(numericOPnum2) >= 0)
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 >= numericOPnum2 ? 1 : 0;
                         break;
                     case OP_MIN:
-                        if (numericOPnum1.compareTo(numericOPnum2) < 0)
-                            numericOPresult = numericOPnum1;
-                        else
-                            numericOPresult = numericOPnum2;
+                        numericOPresult = Math.min(numericOPnum1, numericOPnum2);
                         break;
                     case OP_MAX:
-                        if (numericOPnum1.compareTo(numericOPnum2) > 0)
-                            numericOPresult = numericOPnum1;
-                        else
-                            numericOPresult = numericOPnum2;
+                        numericOPresult = Math.max(numericOPnum1, numericOPnum2);
                         break;
                     default:
                         throw new RuntimeException("Opcode switched at runtime?");
                     }
                     
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(numericOPresult, false)));
+                    stack.push(encodeNumber(numericOPresult));
                     break;
                 case OP_MUL:
                 case OP_DIV:
@@ -947,38 +972,35 @@ public class Script {
                 case OP_NUMEQUALVERIFY:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_NUMEQUALVERIFY on a stack with size < 2");
-                    BigInteger OPNUMEQUALVERIFYnum2 = castToBigInteger(stack.pollLast());
-                    BigInteger OPNUMEQUALVERIFYnum1 = castToBigInteger(stack.pollLast());
+                    long OPNUMEQUALVERIFYnum2 = castToLong(stack.pop());
+                    long OPNUMEQUALVERIFYnum1 = castToLong(stack.pop());
                     
-                    if (!OPNUMEQUALVERIFYnum1.equals(OPNUMEQUALVERIFYnum2))
+                    if (OPNUMEQUALVERIFYnum1 != OPNUMEQUALVERIFYnum2)
                         throw new ScriptException("OP_NUMEQUALVERIFY failed");
                     break;
                 case OP_WITHIN:
                     if (stack.size() < 3)
                         throw new ScriptException("Attempted OP_WITHIN on a stack with size < 3");
-                    BigInteger OPWITHINnum3 = castToBigInteger(stack.pollLast());
-                    BigInteger OPWITHINnum2 = castToBigInteger(stack.pollLast());
-                    BigInteger OPWITHINnum1 = castToBigInteger(stack.pollLast());
-                    if (OPWITHINnum2.compareTo(OPWITHINnum1) <= 0 && OPWITHINnum1.compareTo(OPWITHINnum3) < 0)
-                        stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ONE, false)));
-                    else
-                        stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ZERO, false)));
+                    long OPWITHINnum3 = castToLong(stack.pop());
+                    long OPWITHINnum2 = castToLong(stack.pop());
+                    long OPWITHINnum1 = castToLong(stack.pop());
+                    stack.push(encodeNumber(OPWITHINnum2 <= OPWITHINnum1 && OPWITHINnum1 < OPWITHINnum3 ? 1 : 0));
                     break;
                 case OP_RIPEMD160:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_RIPEMD160 on an empty stack");
                     RIPEMD160Digest digest = new RIPEMD160Digest();
-                    byte[] dataToHash = stack.pollLast();
+                    byte[] dataToHash = stack.pop();
                     digest.update(dataToHash, 0, dataToHash.length);
                     byte[] ripmemdHash = new byte[20];
                     digest.doFinal(ripmemdHash, 0);
-                    stack.add(ripmemdHash);
+                    stack.push(ripmemdHash);
                     break;
                 case OP_SHA1:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_SHA1 on an empty stack");
                     try {
-                        stack.add(MessageDigest.getInstance("SHA-1").digest(stack.pollLast()));
+                        stack.push(MessageDigest.getInstance("SHA-1").digest(stack.pop()));
                     } catch (NoSuchAlgorithmException e) {
                         throw new RuntimeException(e);  // Cannot happen.
                     }
@@ -987,7 +1009,7 @@ public class Script {
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_SHA256 on an empty stack");
                     try {
-                        stack.add(MessageDigest.getInstance("SHA-256").digest(stack.pollLast()));
+                        stack.push(MessageDigest.getInstance("SHA-256").digest(stack.pop()));
                     } catch (NoSuchAlgorithmException e) {
                         throw new RuntimeException(e);  // Cannot happen.
                     }
@@ -995,12 +1017,12 @@ public class Script {
                 case OP_HASH160:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_HASH160 on an empty stack");
-                    stack.add(Utils.sha256hash160(stack.pollLast()));
+                    stack.push(Utils.sha256hash160(stack.pop()));
                     break;
                 case OP_HASH256:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_SHA256 on an empty stack");
-                    stack.add(Utils.doubleDigest(stack.pollLast()));
+                    stack.push(Utils.doubleDigest(stack.pop()));
                     break;
                 case OP_CODESEPARATOR:
                     lastCodeSepLocation = chunk.getStartLocationInProgram() + 1;
@@ -1034,16 +1056,31 @@ public class Script {
                 throw new ScriptException("Stack size exceeded range");
         }
         
-        if (!ifStack.isEmpty())
+        if (context.ifStackSize != 0)
             throw new ScriptException("OP_IF/OP_NOTIF without OP_ENDIF");
     }
 
-    private static void executeCheckSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
+    private static void executeCheckSig(Transaction txContainingThis, int index, Script script, ScriptStack stack,
                                         int lastCodeSepLocation, int opcode) throws ScriptException {
         if (stack.size() < 2)
             throw new ScriptException("Attempted OP_CHECKSIG(VERIFY) on a stack with size < 2");
-        byte[] pubKey = stack.pollLast();
-        byte[] sigBytes = stack.pollLast();
+        byte[] pubKey = stack.pop();
+        byte[] sigBytes = stack.pop();
+        boolean sigValid = checkSig(txContainingThis, index, script, lastCodeSepLocation, sigBytes, pubKey);
+
+        if (opcode == OP_CHECKSIG)
+            stack.push(encodeBool(sigValid));
+        else if (opcode == OP_CHECKSIGVERIFY)
+            if (!sigValid)
+                throw new ScriptException("Script failed OP_CHECKSIGVERIFY");
+    }
+
+    /**
+     * Checks a single signature against the given public key, as done by OP_CHECKSIG. The signature is removed from
+     * the connected part of the script before hashing the transaction.
+     */
+    private static boolean checkSig(Transaction txContainingThis, int index, Script script, int lastCodeSepLocation,
+                                    byte[] sigBytes, byte[] pubKey) throws ScriptException {
         if (sigBytes.length == 0 || pubKey.length == 0)
             throw new ScriptException("Attempted OP_CHECKSIG(VERIFY) with a sig or pubkey of length 0");
 
@@ -1069,19 +1106,14 @@ public class Script {
             // Because I can't verify there aren't more, we use a very generic Exception catch
             log.warn(e1.toString());
         }
-
-        if (opcode == OP_CHECKSIG)
-            stack.add(sigValid ? new byte[] {1} : new byte[] {0});
-        else if (opcode == OP_CHECKSIGVERIFY)
-            if (!sigValid)
-                throw new ScriptException("Script failed OP_CHECKSIGVERIFY");
+        return sigValid;
     }
 
-    private static int executeMultiSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
+    private static int executeMultiSig(Transaction txContainingThis, int index, Script script, ScriptStack stack,
                                        int opCount, int lastCodeSepLocation, int opcode) throws ScriptException {
         if (stack.size() < 2)
             throw new ScriptException("Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < 2");
-        int pubKeyCount = castToBigInteger(stack.pollLast()).intValue();
+        int pubKeyCount = (int) castToLong(stack.pop());
         if (pubKeyCount < 0 || pubKeyCount > 20)
             throw new ScriptException("OP_CHECKMULTISIG(VERIFY) with pubkey count out of range");
         opCount += pubKeyCount;
@@ -1092,13 +1124,13 @@ public class Script {
 
         LinkedList<byte[]> pubkeys = new LinkedList<byte[]>();
         for (int i = 0; i < pubKeyCount; i++) {
-            byte[] pubKey = stack.pollLast();
+            byte[] pubKey = stack.pop();
             if (pubKey.length == 0)
                 throw new ScriptException("Attempted OP_CHECKMULTISIG(VERIFY) with a pubkey of length 0");
             pubkeys.add(pubKey);
         }
 
-        int sigCount = castToBigInteger(stack.pollLast()).intValue();
+        int sigCount = (int) castToLong(stack.pop());
         if (sigCount < 0 || sigCount > pubKeyCount)
             throw new ScriptException("OP_CHECKMULTISIG(VERIFY) with sig count out of range");
         if (stack.size() < sigCount + 1)
@@ -1106,12 +1138,32 @@ public class Script {
 
         LinkedList<byte[]> sigs = new LinkedList<byte[]>();
         for (int i = 0; i < sigCount; i++) {
-            byte[] sig = stack.pollLast();
+            byte[] sig = stack.pop();
             if (sig.length == 0)
                 throw new ScriptException("Attempted OP_CHECKMULTISIG(VERIFY) with a sig of length 0");
             sigs.add(sig);
         }
 
+        boolean valid = checkMultiSig(txContainingThis, index, script, lastCodeSepLocation, sigs, pubkeys);
+
+        // We uselessly remove a stack object to emulate a reference client bug.
+        stack.pop();
+
+        if (opcode == OP_CHECKMULTISIG) {
+            stack.push(encodeBool(valid));
+        } else if (opcode == OP_CHECKMULTISIGVERIFY) {
+            if (!valid)
+                throw new ScriptException("Script failed OP_CHECKMULTISIGVERIFY");
+        }
+        return opCount;
+    }
+
+    /**
+     * Checks the signatures of an OP_CHECKMULTISIG against the public keys. Both lists are ordered as they come off
+     * the stack (top first) and are consumed by the check.
+     */
+    private static boolean checkMultiSig(Transaction txContainingThis, int index, Script script, int lastCodeSepLocation,
+                                         LinkedList<byte[]> sigs, LinkedList<byte[]> pubkeys) {
         byte[] prog = script.getProgram();
         byte[] connectedScript = Arrays.copyOfRange(prog, lastCodeSepLocation, prog.length);
 
@@ -1145,17 +1197,109 @@ public class Script {
                 break;
             }
         }
+        return valid;
+    }
 
-        // We uselessly remove a stack object to emulate a reference client bug.
-        stack.pollLast();
+    /**
+     * Returns the data elements of this script if it consists only of data pushes which the interpreter would accept,
+     * otherwise null.
+     */
+    private List<byte[]> getDataPushes() {
+        List<byte[]> pushes = new ArrayList<byte[]>(chunks.size());
+        for (ScriptChunk chunk : chunks) {
+            if (chunk.isOpCode() || chunk.data.length > MAX_SCRIPT_ELEMENT_SIZE)
+                return null;
+            pushes.add(chunk.data);
+        }
+        return pushes;
+    }
 
-        if (opcode == OP_CHECKMULTISIG) {
-            stack.add(valid ? new byte[] {1} : new byte[] {0});
-        } else if (opcode == OP_CHECKMULTISIGVERIFY) {
-            if (!valid)
-                throw new ScriptException("Script failed OP_CHECKMULTISIGVERIFY");
+    /**
+     * <p>Verifies a spend of one of the standard output templates (pay-to-address, pay-to-pubkey, pay-to-script-hash
+     * and bare multisig) by comparing bytes directly instead of running the generic interpreter. The result is the
+     * same as running {@link #executeScript(Transaction, long, Script, ScriptStack)} over both scripts.</p>
+     *
+     * <p>Returns false without doing any expensive work if the scripts are not in the exact form expected, in which
+     * case the caller must fall back to the interpreter. Throws if the spend was recognized and is invalid.</p>
+     *
+     * @param pushes The data elements pushed by the scriptSig, bottom of the stack first.
+     */
+    private static boolean correctlySpendsStandard(Transaction txContainingThis, int index, List<byte[]> pushes,
+                                                   Script scriptPubKey, boolean enforceP2SH) throws ScriptException {
+        List<ScriptChunk> chunks = scriptPubKey.chunks;
+        boolean valid;
+        if (scriptPubKey.isSentToAddress()) {
+            // <sig> <pubkey> | DUP HASH160 <pubkey hash> EQUALVERIFY CHECKSIG
+            if (pushes.size() != 2)
+                return false;
+            if (!Arrays.equals(Utils.sha256hash160(pushes.get(1)), chunks.get(2).data))
+                throw new ScriptException("OP_EQUALVERIFY: non-equal data");
+            valid = checkSig(txContainingThis, index, scriptPubKey, 0, pushes.get(0), pushes.get(1));
+        } else if (scriptPubKey.isSentToRawPubKey()) {
+            // <sig> | <pubkey> CHECKSIG
+            byte[] pubKey = chunks.get(0).data;
+            if (pushes.size() != 1 || pubKey.length > MAX_SCRIPT_ELEMENT_SIZE)
+                return false;
+            valid = checkSig(txContainingThis, index, scriptPubKey, 0, pushes.get(0), pubKey);
+        } else if (scriptPubKey.isPayToScriptHash()) {
+            // <data...> <redeem script> | HASH160 <script hash> EQUAL
+            if (pushes.size() < 1)
+                return false;
+            byte[] redeemScriptBytes = pushes.get(pushes.size() - 1);
+            byte[] scriptHash = Arrays.copyOfRange(scriptPubKey.getProgram(), 2, 22);
+            valid = Arrays.equals(Utils.sha256hash160(redeemScriptBytes), scriptHash);
+            if (valid && enforceP2SH) {
+                Script redeemScript = new Script(redeemScriptBytes);
+                List<byte[]> redeemPushes = pushes.subList(0, pushes.size() - 1);
+                // The redeem script is evaluated without P2SH rules, just like the reference client does.
+                if (!correctlySpendsStandard(txContainingThis, index, redeemPushes, redeemScript, false)) {
+                    ScriptStack p2shStack = executionContext.get().p2shStack;
+                    p2shStack.copyFrom(redeemPushes);
+                    executeScript(txContainingThis, index, redeemScript, p2shStack);
+                    if (p2shStack.size() == 0)
+                        throw new ScriptException("P2SH stack empty at end of script execution.");
+                    if (!castToBool(p2shStack.pop()))
+                        throw new ScriptException("P2SH script execution resulted in a non-true stack");
+                }
+            }
+        } else if (chunks.size() >= 4 && chunks.get(chunks.size() - 1).equalsOpCode(OP_CHECKMULTISIG)) {
+            // OP_0 <sigs...> | OP_m <pubkeys...> OP_n CHECKMULTISIG
+            ScriptChunk mChunk = chunks.get(0);
+            ScriptChunk nChunk = chunks.get(chunks.size() - 2);
+            if (!isOpN(mChunk) || !isOpN(nChunk))
+                return false;
+            int sigCount = decodeFromOpN(0xFF & mChunk.data[0]);
+            int pubKeyCount = decodeFromOpN(0xFF & nChunk.data[0]);
+            if (chunks.size() != pubKeyCount + 3 || sigCount > pubKeyCount || pushes.size() != sigCount + 1)
+                return false;
+            LinkedList<byte[]> pubkeys = new LinkedList<byte[]>();
+            for (int i = pubKeyCount; i >= 1; i--) {
+                ScriptChunk chunk = chunks.get(i);
+                if (chunk.isOpCode() || chunk.data.length == 0 || chunk.data.length > MAX_SCRIPT_ELEMENT_SIZE)
+                    return false;
+                pubkeys.add(chunk.data);
+            }
+            LinkedList<byte[]> sigs = new LinkedList<byte[]>();
+            for (int i = sigCount; i >= 1; i--) {
+                if (pushes.get(i).length == 0)
+                    return false;
+                sigs.add(pushes.get(i));
+            }
+            // The first push is the dummy element consumed by the reference client CHECKMULTISIG bug.
+            valid = checkMultiSig(txContainingThis, index, scriptPubKey, 0, sigs, pubkeys);
+        } else {
+            return false;
         }
-        return opCount;
+        if (!valid)
+            throw new ScriptException("Script resulted in a non-true stack");
+        return true;
+    }
+
+    private static boolean isOpN(ScriptChunk chunk) {
+        if (!chunk.isOpCode())
+            return false;
+        int opcode = 0xFF & chunk.data[0];
+        return opcode >= OP_1 && opcode <= OP_16;
     }
 
     /**
@@ -1177,49 +1321,61 @@ public class Script {
         }
         if (getProgram().length > 10000 || scriptPubKey.getProgram().length > 10000)
             throw new ScriptException("Script larger than 10,000 bytes");
-        
-        LinkedList<byte[]> stack = new LinkedList<byte[]>();
-        LinkedList<byte[]> p2shStack = null;
-        
-        executeScript(txContainingThis, scriptSigIndex, this, stack);
-        if (enforceP2SH)
-            p2shStack = new LinkedList<byte[]>(stack);
-        executeScript(txContainingThis, scriptSigIndex, scriptPubKey, stack);
-        
-        if (stack.size() == 0)
-            throw new ScriptException("Stack empty at end of script execution.");
-        
-        if (!castToBool(stack.pollLast()))
-            throw new ScriptException("Script resulted in a non-true stack: " + stack);
-
-        // P2SH is pay to script hash. It means that the scriptPubKey has a special form which is a valid
-        // program but it has "useless" form that if evaluated as a normal program always returns true.
-        // Instead, miners recognize it as special based on its template - it provides a hash of the real scriptPubKey
-        // and that must be provided by the input. The goal of this bizarre arrangement is twofold:
-        //
-        // (1) You can sum up a large, complex script (like a CHECKMULTISIG script) with an address that's the same
-        //     size as a regular address. This means it doesn't overload scannable QR codes/NFC tags or become
-        //     un-wieldy to copy/paste.
-        // (2) It allows the working set to be smaller: nodes perform best when they can store as many unspent outputs
-        //     in RAM as possible, so if the outputs are made smaller and the inputs get bigger, then it's better for
-        //     overall scalability and performance.
-
-        // TODO: Check if we can take out enforceP2SH if there's a checkpoint at the enforcement block.
-        if (enforceP2SH && scriptPubKey.isPayToScriptHash()) {
-            for (ScriptChunk chunk : chunks)
-                if (chunk.isOpCode() && (chunk.data[0] & 0xff) > OP_16)
-                    throw new ScriptException("Attempted to spend a P2SH scriptPubKey with a script that contained script ops");
-            
-            byte[] scriptPubKeyBytes = p2shStack.pollLast();
-            Script scriptPubKeyP2SH = new Script(scriptPubKeyBytes);
+
+        ExecutionContext context = executionContext.get();
+        try {
+            // Nearly all spends are of one of the standard templates, which we can check without running the
+            // interpreter.
+            List<byte[]> pushes = getDataPushes();
+            if (pushes != null && correctlySpendsStandard(txContainingThis, (int) scriptSigIndex, pushes, scriptPubKey, enforceP2SH))
+                return;
+
+            ScriptStack stack = context.stack;
+            ScriptStack p2shStack = context.p2shStack;
             
-            executeScript(txContainingThis, scriptSigIndex, scriptPubKeyP2SH, p2shStack);
+            executeScript(txContainingThis, scriptSigIndex, this, stack);
+            if (enforceP2SH)
+                p2shStack.copyFrom(stack);
+            executeScript(txContainingThis, scriptSigIndex, scriptPubKey, stack);
             
-            if (p2shStack.size() == 0)
-                throw new ScriptException("P2SH stack empty at end of script execution.");
+            if (stack.size() == 0)
+                throw new ScriptException("Stack empty at end of script execution.");
             
-            if (!castToBool(p2shStack.pollLast()))
-                throw new ScriptException("P2SH script execution resulted in a non-true stack");
+            if (!castToBool(stack.pop()))
+                throw new ScriptException("Script resulted in a non-true stack: " + stack);
+
+            // P2SH is pay to script hash. It means that the scriptPubKey has a special form which is a valid
+            // program but it has "useless" form that if evaluated as a normal program always returns true.
+            // Instead, miners recognize it as special based on its template - it provides a hash of the real scriptPubKey
+            // and that must be provided by the input. The goal of this bizarre arrangement is twofold:
+            //
+            // (1) You can sum up a large, complex script (like a CHECKMULTISIG script) with an address that's the same
+            //     size as a regular address. This means it doesn't overload scannable QR codes/NFC tags or become
+            //     un-wieldy to copy/paste.
+            // (2) It allows the working set to be smaller: nodes perform best when they can store as many unspent outputs
+            //     in RAM as possible, so if the outputs are made smaller and the inputs get bigger, then it's better for
+            //     overall scalability and performance.
+
+            // TODO: Check if we can take out enforceP2SH if there's a checkpoint at the enforcement block.
+            if (enforceP2SH && scriptPubKey.isPayToScriptHash()) {
+                for (ScriptChunk chunk : chunks)
+                    if (chunk.isOpCode() && (chunk.data[0] & 0xff) > OP_16)
+                        throw new ScriptException("Attempted to spend a P2SH scriptPubKey with a script that contained script ops");
+                
+                byte[] scriptPubKeyBytes = p2shStack.pop();
+                Script scriptPubKeyP2SH = new Script(scriptPubKeyBytes);
+                
+                executeScript(txContainingThis, scriptSigIndex, scriptPubKeyP2SH, p2shStack);
+                
+                if (p2shStack.size() == 0)
+                    throw new ScriptException("P2SH stack empty at end of script execution.");
+                
+                if (!castToBool(p2shStack.pop()))
+                    throw new ScriptException("P2SH script execution resulted in a non-true stack");
+            }
+        } finally {
+            // Don't keep the elements of this script reachable until the thread next verifies something.
+            context.clear();
         }
     }
 }
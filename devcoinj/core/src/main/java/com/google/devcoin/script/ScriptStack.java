@@ -0,0 +1,110 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.script;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.devcoin.core.Utils.bytesToHexString;
+
+/**
+ * <p>An array backed stack of script elements, used by the interpreter instead of a LinkedList so that pushing and
+ * popping doesn't allocate. Elements are never modified once they are on the stack, so data pushes share the byte
+ * arrays of the parsed script chunks rather than copying them.</p>
+ *
+ * <p>Positions are counted from the top of the stack, so peek(0) is the last element pushed.</p>
+ */
+class ScriptStack {
+    private byte[][] elements;
+    private int size;
+
+    ScriptStack() {
+        this(16);
+    }
+
+    ScriptStack(int initialCapacity) {
+        elements = new byte[initialCapacity][];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void push(byte[] element) {
+        if (size == elements.length)
+            elements = Arrays.copyOf(elements, size * 2);
+        elements[size++] = element;
+    }
+
+    byte[] pop() {
+        byte[] element = elements[--size];
+        elements[size] = null;
+        return element;
+    }
+
+    byte[] peek() {
+        return elements[size - 1];
+    }
+
+    byte[] peek(int depth) {
+        return elements[size - 1 - depth];
+    }
+
+    /** Removes and returns the element at the given depth, moving everything above it down by one. */
+    byte[] remove(int depth) {
+        int position = size - 1 - depth;
+        byte[] element = elements[position];
+        System.arraycopy(elements, position + 1, elements, position, depth);
+        elements[--size] = null;
+        return element;
+    }
+
+    /** Replaces the contents of this stack with the contents of the given one. */
+    void copyFrom(ScriptStack other) {
+        clear();
+        for (int i = 0; i < other.size; i++)
+            push(other.elements[i]);
+    }
+
+    /** Replaces the contents of this stack with the given elements, the last of which ends up on top. */
+    void copyFrom(List<byte[]> other) {
+        clear();
+        for (byte[] element : other)
+            push(element);
+    }
+
+    /** Empties the stack, dropping references to the elements so they can be garbage collected. */
+    void clear() {
+        Arrays.fill(elements, 0, size, null);
+        size = 0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0)
+                buf.append(", ");
+            buf.append(bytesToHexString(elements[i]));
+        }
+        return buf.append("]").toString();
+    }
+}
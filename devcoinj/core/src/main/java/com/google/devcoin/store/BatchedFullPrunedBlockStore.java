@@ -0,0 +1,57 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.store;
+
+import com.google.devcoin.core.Sha256Hash;
+import com.google.devcoin.core.StoredTransactionOutput;
+import com.google.devcoin.core.TransactionOutPoint;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>A {@link FullPrunedBlockStore} that can look up many unspent outputs in one call, which the
+ * {@link com.google.devcoin.core.FullPrunedBlockChain} uses to fetch everything a block spends at once. Stores that
+ * don't implement it are asked for each output in turn, see {@link Outputs#get(FullPrunedBlockStore, List)}.</p>
+ */
+public interface BatchedFullPrunedBlockStore extends FullPrunedBlockStore {
+    /**
+     * Gets the {@link StoredTransactionOutput}s referred to by each of the given outpoints, as if by calling
+     * {@link #getTransactionOutput(Sha256Hash, long)} for each one but allowing the store to find them all at once.
+     * The returned list is in the same order as outpoints and contains null for any output which is not found.
+     */
+    List<StoredTransactionOutput> getTransactionOutputs(List<TransactionOutPoint> outpoints) throws BlockStoreException;
+
+    /** Looks up outputs in any {@link FullPrunedBlockStore}, all at once if it can. */
+    public static class Outputs {
+        private Outputs() {}
+
+        /**
+         * Returns the outputs referred to by the given outpoints, as
+         * {@link BatchedFullPrunedBlockStore#getTransactionOutputs(List)} does, from a store that may not be batched.
+         */
+        public static List<StoredTransactionOutput> get(FullPrunedBlockStore store, List<TransactionOutPoint> outpoints)
+                throws BlockStoreException {
+            if (store instanceof BatchedFullPrunedBlockStore)
+                return ((BatchedFullPrunedBlockStore) store).getTransactionOutputs(outpoints);
+            List<StoredTransactionOutput> outputs = new ArrayList<StoredTransactionOutput>(outpoints.size());
+            for (TransactionOutPoint outpoint : outpoints)
+                outputs.add(store.getTransactionOutput(outpoint.getHash(), outpoint.getIndex()));
+            return outputs;
+        }
+    }
+}
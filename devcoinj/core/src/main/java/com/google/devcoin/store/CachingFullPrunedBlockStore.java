@@ -0,0 +1,370 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.store;
+
+import com.google.devcoin.core.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A write-back cache of unspent transaction outputs that sits in front of another {@link FullPrunedBlockStore}.</p>
+ *
+ * <p>Outputs that are read are kept in memory, and outputs that are created or spent are only recorded in memory
+ * until enough of them have built up, at which point they are written to the underlying store in a single batch
+ * when {@link #commitDatabaseBatchWrite()} is called. Outputs which are created and then spent before that happens,
+ * which is the case for a large fraction of outputs, never reach the underlying store at all. The verified chain
+ * head is held back along with the outputs, so the underlying store is always left in a consistent state and after
+ * a crash the chain simply resumes from the last flush. Block headers and undo blocks are passed straight through.</p>
+ *
+ * <p>The number of outputs held in memory is bounded: once the cache grows past its limit the least recently used
+ * outputs that have already been written out are dropped.</p>
+ *
+ * <p>Make sure to call {@link #close()} (or {@link #flush()}) before exiting, otherwise the work done since the last
+ * flush will have to be redone on the next start.</p>
+ */
+public class CachingFullPrunedBlockStore implements BatchedFullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(CachingFullPrunedBlockStore.class);
+
+    /** The default number of outputs kept in memory, which takes a few hundred megabytes of heap. */
+    public static final int DEFAULT_MAX_CACHED_OUTPUTS = 1000000;
+
+    /** Changes made by a thread between beginDatabaseBatchWrite and commit/abortDatabaseBatchWrite. */
+    private static class PendingChanges {
+        final Map<StoredTransactionOutPoint, StoredTransactionOutput> added = new HashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        final Map<StoredTransactionOutPoint, StoredTransactionOutput> removed = new HashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        final List<StoredBlock> verifiedChainHeads = new ArrayList<StoredBlock>();
+    }
+
+    private final FullPrunedBlockStore store;
+    private final int maxCachedOutputs;
+    private final ThreadLocal<PendingChanges> pending = new ThreadLocal<PendingChanges>();
+
+    // Committed outputs, in least recently used order. Those in dirtyAdded have not been written to the store yet.
+    private final LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput> cache;
+    private final Set<StoredTransactionOutPoint> dirtyAdded = new HashSet<StoredTransactionOutPoint>();
+    // Committed spends of outputs that are still in the store.
+    private final Map<StoredTransactionOutPoint, StoredTransactionOutput> dirtyRemoved = new HashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+    // Verified chain heads which have been committed but not yet written to the store, oldest first.
+    private final List<StoredBlock> unflushedVerifiedChainHeads = new ArrayList<StoredBlock>();
+
+    private long hits, misses, absorbed, flushes, flushedOutputs;
+
+    /**
+     * Creates a cache in front of the given store which holds up to {@link #DEFAULT_MAX_CACHED_OUTPUTS} outputs.
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store) {
+        this(store, DEFAULT_MAX_CACHED_OUTPUTS);
+    }
+
+    /**
+     * Creates a cache in front of the given store.
+     * @param store The store to write outputs back to, which should not be used directly once this cache is created.
+     * @param maxCachedOutputs The number of outputs to keep in memory. Changes are flushed to the underlying store
+     *                         once half of this many are waiting to be written.
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store, int maxCachedOutputs) {
+        checkArgument(maxCachedOutputs > 1, "maxCachedOutputs must be greater than one");
+        this.store = checkNotNull(store);
+        this.maxCachedOutputs = maxCachedOutputs;
+        this.cache = new LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput>(16, 0.75f, true);
+    }
+
+    public void put(StoredBlock block) throws BlockStoreException {
+        store.put(block);
+    }
+
+    public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        store.put(storedBlock, undoableBlock);
+    }
+
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return store.get(hash);
+    }
+
+    public StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return store.getOnceUndoableStoredBlock(hash);
+    }
+
+    public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        return store.getUndoBlock(hash);
+    }
+
+    public StoredBlock getChainHead() throws BlockStoreException {
+        return store.getChainHead();
+    }
+
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        store.setChainHead(chainHead);
+    }
+
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        PendingChanges changes = pending.get();
+        if (changes != null && !changes.verifiedChainHeads.isEmpty())
+            return changes.verifiedChainHeads.get(changes.verifiedChainHeads.size() - 1);
+        if (!unflushedVerifiedChainHeads.isEmpty())
+            return unflushedVerifiedChainHeads.get(unflushedVerifiedChainHeads.size() - 1);
+        return store.getVerifiedChainHead();
+    }
+
+    public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        PendingChanges changes = pending.get();
+        if (changes != null)
+            changes.verifiedChainHeads.add(chainHead);
+        else
+            unflushedVerifiedChainHeads.add(chainHead);
+        // The unverified chain head carries no output state, so it can be moved forward straight away.
+        if (store.getChainHead().getHeight() < chainHead.getHeight())
+            store.setChainHead(chainHead);
+    }
+
+    /**
+     * Returns the output if its fate is known without asking the underlying store, or null if it is known to be
+     * spent. Must be followed by a call to {@link #isKnown(StoredTransactionOutPoint)} to tell the two apart.
+     */
+    private StoredTransactionOutput getCached(StoredTransactionOutPoint key) {
+        PendingChanges changes = pending.get();
+        if (changes != null) {
+            StoredTransactionOutput out = changes.added.get(key);
+            if (out != null || changes.removed.containsKey(key))
+                return out;
+        }
+        return cache.get(key);
+    }
+
+    private boolean isKnown(StoredTransactionOutPoint key) {
+        PendingChanges changes = pending.get();
+        if (changes != null && (changes.added.containsKey(key) || changes.removed.containsKey(key)))
+            return true;
+        return cache.containsKey(key) || dirtyRemoved.containsKey(key);
+    }
+
+    public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, index);
+        StoredTransactionOutput out = getCached(key);
+        if (out != null || isKnown(key)) {
+            hits++;
+            return out;
+        }
+        misses++;
+        out = store.getTransactionOutput(hash, index);
+        if (out != null)
+            cache.put(key, out);
+        return out;
+    }
+
+    public synchronized List<StoredTransactionOutput> getTransactionOutputs(List<TransactionOutPoint> outpoints) throws BlockStoreException {
+        List<StoredTransactionOutput> outputs = new ArrayList<StoredTransactionOutput>(outpoints.size());
+        List<TransactionOutPoint> missing = new ArrayList<TransactionOutPoint>();
+        List<Integer> missingPositions = new ArrayList<Integer>();
+        for (TransactionOutPoint outpoint : outpoints) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(outpoint.getHash(), outpoint.getIndex());
+            StoredTransactionOutput out = getCached(key);
+            if (out == null && !isKnown(key)) {
+                missing.add(outpoint);
+                missingPositions.add(outputs.size());
+            }
+            outputs.add(out);
+        }
+        hits += outpoints.size() - missing.size();
+        misses += missing.size();
+        if (!missing.isEmpty()) {
+            List<StoredTransactionOutput> found = BatchedFullPrunedBlockStore.Outputs.get(store, missing);
+            for (int i = 0; i < found.size(); i++) {
+                StoredTransactionOutput out = found.get(i);
+                if (out == null)
+                    continue;
+                cache.put(new StoredTransactionOutPoint(out), out);
+                outputs.set(missingPositions.get(i), out);
+            }
+        }
+        return outputs;
+    }
+
+    public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+        PendingChanges changes = pending.get();
+        if (changes != null)
+            changes.added.put(key, out);
+        else
+            addCommitted(key, out);
+    }
+
+    public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+        if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from CachingFullPrunedBlockStore that it didn't have!");
+        PendingChanges changes = pending.get();
+        if (changes == null) {
+            removeCommitted(key, out);
+        } else if (changes.added.remove(key) != null) {
+            // Created and spent within the same batch.
+            absorbed++;
+        } else {
+            changes.removed.put(key, out);
+        }
+    }
+
+    private void addCommitted(StoredTransactionOutPoint key, StoredTransactionOutput out) {
+        cache.put(key, out);
+        dirtyAdded.add(key);
+    }
+
+    private void removeCommitted(StoredTransactionOutPoint key, StoredTransactionOutput out) {
+        cache.remove(key);
+        if (dirtyAdded.remove(key))
+            absorbed++;  // Never made it to the store, so there is nothing to delete.
+        else
+            dirtyRemoved.put(key, out);
+    }
+
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        boolean mayBeInStore = false;
+        for (int i = 0; i < numOutputs; i++) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, i);
+            if (getCached(key) != null)
+                return true;
+            if (!isKnown(key))
+                mayBeInStore = true;
+        }
+        if (!mayBeInStore || !store.hasUnspentOutputs(hash, numOutputs))
+            return false;
+        // The store has some, but they may have been spent since the last flush.
+        for (int i = 0; i < numOutputs; i++)
+            if (getTransactionOutput(hash, i) != null)
+                return true;
+        return false;
+    }
+
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        if (pending.get() == null)
+            pending.set(new PendingChanges());
+        store.beginDatabaseBatchWrite();
+    }
+
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        PendingChanges changes = pending.get();
+        pending.remove();
+        if (changes != null) {
+            // Spends go first, so that an output which is spent and then recreated ends up unspent.
+            for (Map.Entry<StoredTransactionOutPoint, StoredTransactionOutput> entry : changes.removed.entrySet())
+                removeCommitted(entry.getKey(), entry.getValue());
+            for (Map.Entry<StoredTransactionOutPoint, StoredTransactionOutput> entry : changes.added.entrySet())
+                addCommitted(entry.getKey(), entry.getValue());
+            unflushedVerifiedChainHeads.addAll(changes.verifiedChainHeads);
+        }
+        if (dirtyAdded.size() + dirtyRemoved.size() >= maxCachedOutputs / 2)
+            writeDirtyOutputs();
+        store.commitDatabaseBatchWrite();
+        evictCleanOutputs();
+    }
+
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        pending.remove();
+        store.abortDatabaseBatchWrite();
+    }
+
+    /**
+     * Writes all created and spent outputs, along with the verified chain head, to the underlying store.
+     */
+    public synchronized void flush() throws BlockStoreException {
+        store.beginDatabaseBatchWrite();
+        try {
+            writeDirtyOutputs();
+        } catch (BlockStoreException e) {
+            store.abortDatabaseBatchWrite();
+            throw e;
+        }
+        store.commitDatabaseBatchWrite();
+        evictCleanOutputs();
+    }
+
+    /** Writes out the dirty outputs and chain heads as part of the store's current batch. */
+    private void writeDirtyOutputs() throws BlockStoreException {
+        if (dirtyAdded.isEmpty() && dirtyRemoved.isEmpty() && unflushedVerifiedChainHeads.isEmpty())
+            return;
+        long start = System.currentTimeMillis();
+        int created = dirtyAdded.size(), spent = dirtyRemoved.size();
+        for (StoredTransactionOutput out : dirtyRemoved.values())
+            store.removeUnspentTransactionOutput(out);
+        for (StoredTransactionOutPoint key : dirtyAdded)
+            store.addUnspentTransactionOutput(cache.get(key));
+        // Every head is passed on in order, so stores that prune undo blocks at each height still do so.
+        for (StoredBlock chainHead : unflushedVerifiedChainHeads)
+            store.setVerifiedChainHead(chainHead);
+        dirtyRemoved.clear();
+        dirtyAdded.clear();
+        unflushedVerifiedChainHeads.clear();
+        flushes++;
+        flushedOutputs += created + spent;
+        log.info("Flushed {} created and {} spent outputs in {} ms, {} outputs absorbed and {}% cache hits so far",
+                new Object[] { created, spent, System.currentTimeMillis() - start, absorbed,
+                        hits + misses == 0 ? 0 : hits * 100 / (hits + misses) });
+    }
+
+    /** Drops the least recently used outputs which are already in the store until the cache is within its bound. */
+    private void evictCleanOutputs() {
+        if (cache.size() <= maxCachedOutputs)
+            return;
+        // Leave some room so this doesn't happen on every commit.
+        int target = maxCachedOutputs - maxCachedOutputs / 10;
+        Iterator<StoredTransactionOutPoint> it = cache.keySet().iterator();
+        while (cache.size() > target && it.hasNext()) {
+            if (!dirtyAdded.contains(it.next()))
+                it.remove();
+        }
+    }
+
+    public synchronized void close() throws BlockStoreException {
+        flush();
+        store.close();
+    }
+
+    /** Returns the number of output lookups that were answered without going to the underlying store. */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /** Returns the number of output lookups that had to go to the underlying store. */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /** Returns the number of outputs which were spent before they were ever written to the underlying store. */
+    public synchronized long getAbsorbedOutputCount() {
+        return absorbed;
+    }
+
+    /** Returns the number of times changes have been written to the underlying store. */
+    public synchronized long getFlushCount() {
+        return flushes;
+    }
+
+    /** Returns the total number of output creations and spends written to the underlying store. */
+    public synchronized long getFlushedOutputCount() {
+        return flushedOutputs;
+    }
+
+    /** Returns the number of outputs currently held in memory. */
+    public synchronized int getCachedOutputCount() {
+        return cache.size();
+    }
+}
@@ -17,7 +17,10 @@
 package com.google.devcoin.store;
 
 import com.google.devcoin.core.*;
+import com.google.devcoin.utils.Threading;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import javax.annotation.concurrent.GuardedBy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -26,8 +29,14 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.sql.*;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
 
 // Originally written for Apache Derby, but its DELETE (and general) performance was awful
 /**
@@ -37,8 +46,14 @@ import java.util.List;
  * you may see the database files grow quite large (around 1.5G).
  * H2 automatically frees some space at shutdown, so close()ing the database
  * decreases the space usage somewhat (to only around 1.3G).
+ *
+ * Undoable blocks more than fullStoreDepth blocks behind the verified chain
+ * head are deleted by a background thread, a limited number at a time (see
+ * {@link #setPruningRate(long, TimeUnit, int)}), so that connecting a block
+ * never waits for a large delete. How far behind it is can be read from
+ * {@link #getPruningLag()}.
  */
-public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
+public class H2FullPrunedBlockStore implements BatchedFullPrunedBlockStore {
     private static final Logger log = LoggerFactory.getLogger(H2FullPrunedBlockStore.class);
 
     private Sha256Hash chainHeadHash;
@@ -47,10 +62,39 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     private StoredBlock verifiedChainHeadBlock;
     private NetworkParameters params;
     private ThreadLocal<Connection> conn;
+    // Prepared statements are cached per connection (and so per thread), keyed by their SQL, as preparing them again
+    // for every call costs about as much as running the simple queries this store does.
+    private ThreadLocal<Map<String, PreparedStatement>> preparedStatements;
+    // Output inserts queued up within a batch write, to be run as one JDBC batch. Deletes are run straight away, so
+    // that removing a missing output fails at the call.
+    private ThreadLocal<QueuedOutputWrites> queuedOutputWrites;
     private List<Connection> allConnections;
     private String connectionURL;
     private int fullStoreDepth;
 
+    // Undoable blocks at or below pruneHeight are deleted in the background by pruneExecutor, which has deleted
+    // everything at or below prunedHeight. The pending height is set by setVerifiedChainHead within a batch write
+    // and only takes effect when it is committed. Pruning holds pruneLock rather than the store's lock, which threads
+    // take to make their first connection, as the delete can wait up to LOCK_TIMEOUT for the undoable blocks table.
+    // close() takes pruneLock too, so it knows no pruning is running once it has it.
+    private final Object pruneLock = new Object();
+    private final ScheduledExecutorService pruneExecutor;
+    @GuardedBy("pruneLock") private ScheduledFuture<?> pruneTask;
+    @GuardedBy("pruneLock") private boolean closed;
+    private volatile int pruneBatchSize = DEFAULT_PRUNE_BATCH_SIZE;
+    private volatile int pruneHeight;
+    private volatile int prunedHeight;
+    private volatile long prunedUndoableBlockCount;
+    private ThreadLocal<Integer> pendingPruneHeight;
+
+    /** How often undoable blocks are pruned, in milliseconds, unless changed with setPruningRate. */
+    public static final long DEFAULT_PRUNE_PERIOD_MILLIS = 1000;
+    /** The most undoable blocks deleted each time, unless changed with setPruningRate. */
+    public static final int DEFAULT_PRUNE_BATCH_SIZE = 100;
+
+    // The number of distinct transaction hashes looked up by each query in getTransactionOutputs
+    static final int MAX_HASHES_PER_QUERY = 100;
+
     static final String driver = "org.h2.Driver";
     static final String CREATE_SETTINGS_TABLE = "CREATE TABLE settings ( "
         + "name VARCHAR(32) NOT NULL CONSTRAINT settings_pk PRIMARY KEY,"
@@ -76,6 +120,38 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         + ")";
     static final String CREATE_UNDOABLE_TABLE_INDEX = "CREATE INDEX heightIndex ON undoableBlocks (height)";
     
+    static final String SELECT_HEADER_SQL = "SELECT chainWork, height, header, wasUndoable FROM headers WHERE hash = ?";
+    static final String INSERT_HEADER_SQL = "INSERT INTO headers(hash, chainWork, height, header, wasUndoable)"
+        + " VALUES(?, ?, ?, ?, ?)";
+    static final String UPDATE_HEADER_UNDOABLE_SQL = "UPDATE headers SET wasUndoable=? WHERE hash=?";
+    static final String SELECT_UNDOABLE_BLOCK_SQL = "SELECT txOutChanges, transactions FROM undoableBlocks WHERE hash = ?";
+    static final String INSERT_UNDOABLE_BLOCK_SQL = "INSERT INTO undoableBlocks(hash, height, txOutChanges, transactions)"
+        + " VALUES(?, ?, ?, ?)";
+    static final String UPDATE_UNDOABLE_BLOCK_SQL = "UPDATE undoableBlocks SET txOutChanges=?, transactions=?"
+        + " WHERE hash = ?";
+    static final String DELETE_UNDOABLE_BLOCKS_SQL = "DELETE FROM undoableBlocks WHERE height <= ? LIMIT ?";
+    static final String SELECT_LOWEST_UNDOABLE_HEIGHT_SQL = "SELECT MIN(height) FROM undoableBlocks";
+    static final String UPDATE_SETTING_SQL = "UPDATE settings SET value = ? WHERE name = ?";
+    static final String SELECT_OPEN_OUTPUT_SQL = "SELECT height, value, scriptBytes FROM openOutputs "
+        + "WHERE hash = ? AND index = ?";
+    static final String COUNT_OPEN_OUTPUTS_SQL = "SELECT COUNT(*) FROM openOutputs WHERE hash = ?";
+    static final String INSERT_OPEN_OUTPUT_SQL = "INSERT INTO openOutputs (hash, index, height, value, scriptBytes) "
+        + "VALUES (?, ?, ?, ?, ?)";
+    static final String DELETE_OPEN_OUTPUT_SQL = "DELETE FROM openOutputs WHERE hash = ? AND index = ?";
+
+    // H2's error code for a duplicate primary key.
+    private static final int DUPLICATE_KEY_ERROR_CODE = 23505;
+
+    /** The statement and number of rows of the output inserts queued in a batch write. */
+    private static class QueuedOutputWrites {
+        final String sql;
+        int count;
+
+        QueuedOutputWrites(String sql) {
+            this.sql = sql;
+        }
+    }
+
     static final String CREATE_OPEN_OUTPUT_TABLE = "CREATE TABLE openOutputs ("
         + "hash BINARY(32) NOT NULL,"
         + "index INT NOT NULL,"
@@ -100,6 +176,9 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         connectionURL = "jdbc:h2:" + dbName + ";create=true;LOCK_TIMEOUT=60000";
         
         conn = new ThreadLocal<Connection>();
+        preparedStatements = new ThreadLocal<Map<String, PreparedStatement>>();
+        queuedOutputWrites = new ThreadLocal<QueuedOutputWrites>();
+        pendingPruneHeight = new ThreadLocal<Integer>();
         allConnections = new LinkedList<Connection>();
 
         try {
@@ -119,6 +198,16 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
+
+        ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("H2FullPrunedBlockStore pruning thread")
+                .setPriority(Thread.MIN_PRIORITY);
+        Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+        if (handler != null)
+            builder.setUncaughtExceptionHandler(handler);
+        pruneExecutor = Executors.newSingleThreadScheduledExecutor(builder.build());
+        setPruningRate(DEFAULT_PRUNE_PERIOD_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_PRUNE_BATCH_SIZE);
     }
     
     /**
@@ -149,6 +238,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
                 return;
             
             conn.set(DriverManager.getConnection(connectionURL));
+            preparedStatements.set(new HashMap<String, PreparedStatement>());
             allConnections.add(conn.get());
             log.info("Made a new connection to database " + connectionURL);
         } catch (SQLException ex) {
@@ -156,20 +246,128 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
     
-    public synchronized void close() {
-        for (Connection conn : allConnections) {
-            try {
-                conn.rollback();
-            } catch (SQLException ex) {
-                throw new RuntimeException(ex);
+    public void close() {
+        synchronized (pruneLock) {
+            // Any pruning run has finished, as it holds pruneLock, and any still to come sees that the store is closed.
+            closed = true;
+            if (pruneTask != null)
+                pruneTask.cancel(false);
+            pruneExecutor.shutdown();
+            synchronized (this) {
+                for (Connection conn : allConnections) {
+                    try {
+                        conn.rollback();
+                    } catch (SQLException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+                allConnections.clear();
+            }
+        }
+    }
+
+    /**
+     * Sets how often the background thread deletes old undoable blocks, and how many it deletes at most each time.
+     * Smaller batches hold the lock on the undoable blocks table for less time, so they delay connecting blocks
+     * less, but the pruning falls behind if blocks are connected faster than batchSize per period.
+     */
+    public void setPruningRate(long period, TimeUnit unit, int batchSize) {
+        checkArgument(period > 0 && batchSize > 0);
+        synchronized (pruneLock) {
+            checkState(!closed, "Store is closed");
+            pruneBatchSize = batchSize;
+            if (pruneTask != null)
+                pruneTask.cancel(false);
+            pruneTask = pruneExecutor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        pruneUndoableBlocks();
+                    } catch (BlockStoreException e) {
+                        log.warn("Failed to prune undoable blocks", e);
+                    }
+                }
+            }, period, period, unit);
+        }
+    }
+
+    /**
+     * Returns how many blocks of undo data that should already have been deleted may still be in the store, which
+     * is zero when the pruning thread is keeping up.
+     */
+    public int getPruningLag() {
+        return Math.max(0, pruneHeight - prunedHeight);
+    }
+
+    /** Returns the number of undoable blocks the pruning thread has deleted since the store was opened. */
+    public long getPrunedUndoableBlockCount() {
+        return prunedUndoableBlockCount;
+    }
+
+    /**
+     * Deletes up to the batch size of the undoable blocks more than fullStoreDepth blocks behind the verified chain
+     * head, returning how many were deleted. This is what the pruning thread runs. It holds only pruneLock while
+     * deleting, so other threads can still make their first connection while it waits on the undoable blocks table.
+     */
+    int pruneUndoableBlocks() throws BlockStoreException {
+        synchronized (pruneLock) {
+            int height = pruneHeight;
+            if (closed || prunedHeight >= height)
+                return 0;
+            maybeConnect();
+            return deleteUndoableBlocks(height);
+        }
+    }
+
+    @GuardedBy("pruneLock")
+    private int deleteUndoableBlocks(int height) throws BlockStoreException {
+        try {
+            int batchSize = pruneBatchSize;
+            PreparedStatement s = prepare(DELETE_UNDOABLE_BLOCKS_SQL);
+            s.setInt(1, height);
+            s.setInt(2, batchSize);
+            int deleted = s.executeUpdate();
+            prunedUndoableBlockCount += deleted;
+            if (deleted < batchSize) {
+                prunedHeight = height;
+            } else {
+                ResultSet results = prepare(SELECT_LOWEST_UNDOABLE_HEIGHT_SQL).executeQuery();
+                if (results.next())
+                    prunedHeight = results.getInt(1) - 1;
+                results.close();
             }
+            if (deleted > 0)
+                log.debug("Pruned {} undoable blocks, {} blocks behind", deleted, getPruningLag());
+            return deleted;
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
+        }
+    }
+
+    /** Returns this connection's prepared statement for the given SQL, preparing it the first time it is used. */
+    private PreparedStatement prepare(String sql) throws SQLException {
+        Map<String, PreparedStatement> statements = preparedStatements.get();
+        PreparedStatement s = statements.get(sql);
+        if (s == null) {
+            s = conn.get().prepareStatement(sql);
+            statements.put(sql, s);
+        } else {
+            s.clearParameters();
         }
-        allConnections.clear();
+        return s;
+    }
+
+    private void closePreparedStatements() throws SQLException {
+        Map<String, PreparedStatement> statements = preparedStatements.get();
+        for (PreparedStatement s : statements.values())
+            s.close();
+        statements.clear();
     }
 
     public void resetStore() throws BlockStoreException {
         maybeConnect();
         try {
+            closePreparedStatements();
+            queuedOutputWrites.remove();
             Statement s = conn.get().createStatement();
             s.executeUpdate("DROP TABLE settings");
             s.executeUpdate("DROP TABLE headers");
@@ -240,6 +438,13 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         {
             throw new BlockStoreException("corrupt H2 block store - verified head block not found");
         }
+
+        pruneHeight = verifiedChainHeadBlock.getHeight() - fullStoreDepth;
+        ResultSet results = prepare(SELECT_LOWEST_UNDOABLE_HEIGHT_SQL).executeQuery();
+        results.next();
+        int lowestHeight = results.getInt(1);
+        prunedHeight = results.wasNull() ? pruneHeight : lowestHeight - 1;
+        results.close();
     }
 
     private void createNewStore(NetworkParameters params) throws BlockStoreException {
@@ -346,9 +551,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     
     private void putUpdateStoredBlock(StoredBlock storedBlock, boolean wasUndoable) throws SQLException {
         try {
-            PreparedStatement s =
-                    conn.get().prepareStatement("INSERT INTO headers(hash, chainWork, height, header, wasUndoable)"
-                            + " VALUES(?, ?, ?, ?, ?)");
+            PreparedStatement s = prepare(INSERT_HEADER_SQL);
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 3, hashBytes, 0, 28);
@@ -358,21 +561,19 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             s.setBytes(4, storedBlock.getHeader().unsafeBitcoinSerialize());
             s.setBoolean(5, wasUndoable);
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             // It is possible we try to add a duplicate StoredBlock if we upgraded
             // In that case, we just update the entry to mark it wasUndoable
-            if (e.getErrorCode() != 23505 || !wasUndoable)
+            if (e.getErrorCode() != DUPLICATE_KEY_ERROR_CODE || !wasUndoable)
                 throw e;
             
-            PreparedStatement s = conn.get().prepareStatement("UPDATE headers SET wasUndoable=? WHERE hash=?");
+            PreparedStatement s = prepare(UPDATE_HEADER_UNDOABLE_SQL);
             s.setBoolean(1, true);
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 3, hashBytes, 0, 28);
             s.setBytes(2, hashBytes);
             s.executeUpdate();
-            s.close();
         }
     }
 
@@ -395,9 +596,8 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         byte[] txOutChanges = null;
         try {
             ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            if (undoableBlock.getTxOutChanges() != null) {
-                undoableBlock.getTxOutChanges().serializeToStream(bos);
-                txOutChanges = bos.toByteArray();
+            if (undoableBlock.hasTxOutChanges()) {
+                txOutChanges = undoableBlock.getCompactTxOutChanges();
             } else {
                 int numTxn = undoableBlock.getTransactions().size();
                 bos.write((int) (0xFF & (numTxn >> 0)));
@@ -415,9 +615,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         
         try {
             try {
-                PreparedStatement s =
-                        conn.get().prepareStatement("INSERT INTO undoableBlocks(hash, height, txOutChanges, transactions)"
-                                + " VALUES(?, ?, ?, ?)");
+                PreparedStatement s = prepare(INSERT_UNDOABLE_BLOCK_SQL);
                 s.setBytes(1, hashBytes);
                 s.setInt(2, height);
                 if (transactions == null) {
@@ -428,20 +626,17 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
                     s.setBytes(4, transactions);
                 }
                 s.executeUpdate();
-                s.close();
                 try {
                     putUpdateStoredBlock(storedBlock, true);
                 } catch (SQLException e) {
                     throw new BlockStoreException(e);
                 }
             } catch (SQLException e) {
-                if (e.getErrorCode() != 23505)
+                if (e.getErrorCode() != DUPLICATE_KEY_ERROR_CODE)
                     throw new BlockStoreException(e);
                 
                 // There is probably an update-or-insert statement, but it wasn't obvious from the docs
-                PreparedStatement s =
-                        conn.get().prepareStatement("UPDATE undoableBlocks SET txOutChanges=?, transactions=?"
-                                + " WHERE hash = ?");
+                PreparedStatement s = prepare(UPDATE_UNDOABLE_BLOCK_SQL);
                 s.setBytes(3, hashBytes);
                 if (transactions == null) {
                     s.setBytes(1, txOutChanges);
@@ -451,7 +646,6 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
                     s.setBytes(2, transactions);
                 }
                 s.executeUpdate();
-                s.close();
             }
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
@@ -465,10 +659,8 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         if (verifiedChainHeadHash != null && verifiedChainHeadHash.equals(hash))
             return verifiedChainHeadBlock;
         maybeConnect();
-        PreparedStatement s = null;
         try {
-            s = conn.get()
-                .prepareStatement("SELECT chainWork, height, header, wasUndoable FROM headers WHERE hash = ?");
+            PreparedStatement s = prepare(SELECT_HEADER_SQL);
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(hash.getBytes(), 3, hashBytes, 0, 28);
@@ -497,11 +689,6 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             // Should not be able to happen unless the database contains bad
             // blocks.
             throw new BlockStoreException(e);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
         }
     }
     
@@ -515,10 +702,8 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     
     public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
         try {
-            s = conn.get()
-                .prepareStatement("SELECT txOutChanges, transactions FROM undoableBlocks WHERE hash = ?");
+            PreparedStatement s = prepare(SELECT_UNDOABLE_BLOCK_SQL);
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(hash.getBytes(), 3, hashBytes, 0, 28);
@@ -544,7 +729,11 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
                     offset += tx.getMessageSize();
                 }
                 block = new StoredUndoableBlock(hash, transactionList);
+            } else if (CompactTransactionOutputChanges.isCompact(txOutChanges)) {
+                // Left encoded until the outputs are iterated over.
+                block = new StoredUndoableBlock(hash, new CompactTransactionOutputChanges(txOutChanges));
             } else {
+                // Written before undo data was kept in compact form.
                 TransactionOutputChanges outChangesObject =
                         new TransactionOutputChanges(new ByteArrayInputStream(txOutChanges));
                 block = new StoredUndoableBlock(hash, outChangesObject);
@@ -564,11 +753,6 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         } catch (IOException e) {
             // Corrupted database.
             throw new BlockStoreException(e);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
         }
     }
 
@@ -582,12 +766,10 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         this.chainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("UPDATE settings SET value = ? WHERE name = ?");
+            PreparedStatement s = prepare(UPDATE_SETTING_SQL);
             s.setString(2, CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -603,27 +785,22 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         this.verifiedChainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("UPDATE settings SET value = ? WHERE name = ?");
+            PreparedStatement s = prepare(UPDATE_SETTING_SQL);
             s.setString(2, VERIFIED_CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
         if (this.chainHeadBlock.getHeight() < chainHead.getHeight())
             setChainHead(chainHead);
-        removeUndoableBlocksWhereHeightIsLessThan(chainHead.getHeight() - fullStoreDepth);
-    }
-
-    private void removeUndoableBlocksWhereHeightIsLessThan(int height) throws BlockStoreException {
+        // Old undo data is deleted by the pruning thread, once the new head is committed.
+        int height = chainHead.getHeight() - fullStoreDepth;
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("DELETE FROM undoableBlocks WHERE height <= ?");
-            s.setInt(1, height);
-            s.executeUpdate();
-            s.close();
+            if (conn.get().getAutoCommit())
+                pruneHeight = height;
+            else
+                pendingPruneHeight.set(height);
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -631,11 +808,9 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
 
     public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
         try {
-            s = conn.get()
-                .prepareStatement("SELECT height, value, scriptBytes FROM openOutputs " +
-                		"WHERE hash = ? AND index = ?");
+            executeQueuedOutputWrites();
+            PreparedStatement s = prepare(SELECT_OPEN_OUTPUT_SQL);
             s.setBytes(1, hash.getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int)index);
@@ -651,57 +826,145 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             return txout;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
         }
     }
 
+    public List<StoredTransactionOutput> getTransactionOutputs(List<TransactionOutPoint> outpoints) throws BlockStoreException {
+        maybeConnect();
+        executeQueuedOutputWrites();
+        // Rather than doing a round trip per outpoint, fetch every open output of up to MAX_HASHES_PER_QUERY
+        // transactions at a time (which the primary key index can answer) and pick out the ones we were asked for.
+        Map<StoredTransactionOutPoint, StoredTransactionOutput> found = new HashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        Set<StoredTransactionOutPoint> wanted = new HashSet<StoredTransactionOutPoint>();
+        Set<Sha256Hash> hashes = new LinkedHashSet<Sha256Hash>();
+        for (TransactionOutPoint outpoint : outpoints) {
+            wanted.add(new StoredTransactionOutPoint(outpoint.getHash(), outpoint.getIndex()));
+            hashes.add(outpoint.getHash());
+        }
+        Iterator<Sha256Hash> it = hashes.iterator();
+        while (it.hasNext()) {
+            List<Sha256Hash> batch = new ArrayList<Sha256Hash>(MAX_HASHES_PER_QUERY);
+            while (it.hasNext() && batch.size() < MAX_HASHES_PER_QUERY)
+                batch.add(it.next());
+            StringBuilder sql = new StringBuilder("SELECT hash, index, height, value, scriptBytes FROM openOutputs WHERE hash IN (");
+            for (int i = 0; i < batch.size(); i++)
+                sql.append(i == 0 ? "?" : ", ?");
+            sql.append(")");
+            // Only full sized queries are cached, so each connection keeps at most one of them. The rest, which there
+            // is one of per call at most, are prepared and closed each time.
+            boolean cached = batch.size() == MAX_HASHES_PER_QUERY;
+            PreparedStatement s = null;
+            try {
+                s = cached ? prepare(sql.toString()) : conn.get().prepareStatement(sql.toString());
+                for (int i = 0; i < batch.size(); i++)
+                    s.setBytes(i + 1, batch.get(i).getBytes());
+                ResultSet results = s.executeQuery();
+                while (results.next()) {
+                    Sha256Hash hash = new Sha256Hash(results.getBytes(1));
+                    // index is actually an unsigned int
+                    long index = results.getInt(2) & 0xFFFFFFFFL;
+                    StoredTransactionOutPoint outpoint = new StoredTransactionOutPoint(hash, index);
+                    if (!wanted.contains(outpoint))
+                        continue;
+                    int height = results.getInt(3);
+                    BigInteger value = new BigInteger(results.getBytes(4));
+                    // Tell the StoredTransactionOutput that we are a coinbase, as that is encoded in height
+                    found.put(outpoint, new StoredTransactionOutput(hash, index, value, height, true, results.getBytes(5)));
+                }
+            } catch (SQLException ex) {
+                throw new BlockStoreException(ex);
+            } finally {
+                if (s != null && !cached) {
+                    try {
+                        s.close();
+                    } catch (SQLException e) {
+                        log.warn("Failed to close statement", e);
+                    }
+                }
+            }
+        }
+        List<StoredTransactionOutput> outputs = new ArrayList<StoredTransactionOutput>(outpoints.size());
+        for (TransactionOutPoint outpoint : outpoints)
+            outputs.add(found.get(new StoredTransactionOutPoint(outpoint.getHash(), outpoint.getIndex())));
+        return outputs;
+    }
+
     public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
         try {
-            s = conn.get().prepareStatement("INSERT INTO openOutputs (hash, index, height, value, scriptBytes) " +
-            		"VALUES (?, ?, ?, ?, ?)");
+            PreparedStatement s = prepare(INSERT_OPEN_OUTPUT_SQL);
             s.setBytes(1, out.getHash().getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int)out.getIndex());
             s.setInt(3, out.getHeight());
             s.setBytes(4, out.getValue().toByteArray());
             s.setBytes(5, out.getScriptBytes());
+            if (queueOutputWrite(INSERT_OPEN_OUTPUT_SQL, s))
+                return;
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
-            if (e.getErrorCode() != 23505)
+            if (e.getErrorCode() != DUPLICATE_KEY_ERROR_CODE)
                 throw new BlockStoreException(e);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException(e); }
         }
     }
 
     public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
         maybeConnect();
-        // TODO: This should only need one query (maybe a stored procedure)
-        if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
-            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from H2FullPrunedBlockStore that it didn't have!");
+        // The output may be one of the queued inserts.
+        executeQueuedOutputWrites();
+        int deleted;
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("DELETE FROM openOutputs WHERE hash = ? AND index = ?");
+            PreparedStatement s = prepare(DELETE_OPEN_OUTPUT_SQL);
             s.setBytes(1, out.getHash().getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int)out.getIndex());
-            s.executeUpdate();
-            s.close();
+            deleted = s.executeUpdate();
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        }
+        // The update count tells us whether the output was there, so there is no need to look it up first
+        if (deleted == 0)
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from H2FullPrunedBlockStore that it didn't have!");
+    }
+
+    /** Adds the statement to the queued output writes if a batch write is in progress, returning whether it did. */
+    private boolean queueOutputWrite(String sql, PreparedStatement s) throws SQLException {
+        if (conn.get().getAutoCommit())
+            return false;
+        QueuedOutputWrites queued = queuedOutputWrites.get();
+        if (queued == null) {
+            queued = new QueuedOutputWrites(sql);
+            queuedOutputWrites.set(queued);
+        }
+        s.addBatch();
+        queued.count++;
+        return true;
+    }
+
+    /** Runs any output writes queued in this thread's batch write. */
+    private void executeQueuedOutputWrites() throws BlockStoreException {
+        QueuedOutputWrites queued = queuedOutputWrites.get();
+        if (queued == null)
+            return;
+        queuedOutputWrites.remove();
+        try {
+            prepare(queued.sql).executeBatch();
+        } catch (BatchUpdateException e) {
+            // As with single inserts, an output which is already there is not an error.
+            if (!onlyDuplicateKeyErrors(e))
+                throw new BlockStoreException(e);
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
     }
 
+    private static boolean onlyDuplicateKeyErrors(BatchUpdateException e) {
+        for (SQLException next = e.getNextException(); next != null; next = next.getNextException())
+            if (next.getErrorCode() != DUPLICATE_KEY_ERROR_CODE)
+                return false;
+        return e.getNextException() != null || e.getErrorCode() == DUPLICATE_KEY_ERROR_CODE;
+    }
+
     public void beginDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
         try {
@@ -713,17 +976,29 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
 
     public void commitDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
+        executeQueuedOutputWrites();
         try {
             conn.get().commit();
             conn.get().setAutoCommit(true);
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
+        Integer height = pendingPruneHeight.get();
+        if (height != null) {
+            pendingPruneHeight.remove();
+            pruneHeight = height;
+        }
     }
 
     public void abortDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
         try {
+            QueuedOutputWrites queued = queuedOutputWrites.get();
+            if (queued != null) {
+                queuedOutputWrites.remove();
+                prepare(queued.sql).clearBatch();
+            }
+            pendingPruneHeight.remove();
             conn.get().rollback();
             conn.get().setAutoCommit(true);
         } catch (SQLException e) {
@@ -733,10 +1008,9 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
 
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
         try {
-            s = conn.get()
-                .prepareStatement("SELECT COUNT(*) FROM openOutputs WHERE hash = ?");
+            executeQueuedOutputWrites();
+            PreparedStatement s = prepare(COUNT_OPEN_OUTPUTS_SQL);
             s.setBytes(1, hash.getBytes());
             ResultSet results = s.executeQuery();
             if (!results.next()) {
@@ -746,11 +1020,6 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             return count != 0;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
         }
     }
 }
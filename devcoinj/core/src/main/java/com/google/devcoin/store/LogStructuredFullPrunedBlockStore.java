@@ -0,0 +1,1330 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.store;
+
+import com.google.devcoin.core.*;
+import com.google.devcoin.utils.Threading;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.*;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A full pruned block store which keeps the unspent output set in append only log files, designed for the
+ * write heavy load of verifying the chain. Creating an output appends a record holding it, spending one appends a
+ * short record naming it, and an {@link UnspentOutputIndex} (a hash table in a memory mapped file) maps each
+ * unspent output to the location of its record. Numbers in records are written as {@link VarInt}s, so most outputs
+ * take little more than their transaction hash and script.</p>
+ *
+ * <p>Block headers and undo data are appended to log files of their own and indexed in memory, as there are few
+ * enough of them to keep the index small: a block hash and its place in the log per header, and only the most
+ * recently used headers themselves. Undo data more than fullStoreDepth blocks behind the verified chain head is
+ * dropped, and its log files deleted once nothing in them is needed.</p>
+ *
+ * <p>The store is crash safe. Each committed batch (usually one block, ending with
+ * {@link #setVerifiedChainHead(StoredBlock)}) forces the logs to disk and then atomically replaces a small
+ * checkpoint file recording how far into them the store has got. Writes made outside a batch, such as the headers
+ * of side chain blocks, are checkpointed by a background thread up to a second later, so that a run of them doesn't
+ * force the logs to disk each time; a crash in between loses them. On opening, anything written after the last
+ * checkpoint is thrown away. The output index is only trusted if it was written out by {@link #close()} at the
+ * same point; otherwise it is rebuilt by reading through the output log.</p>
+ *
+ * <p>The output log is split into segments of a configurable size. Once enough of the oldest segment is taken up by
+ * spent outputs, a background thread copies its remaining unspent outputs to the end of the log and deletes it.
+ * Only the oldest segment is ever compacted, so that a spend record is never dropped while the output it spends
+ * might still be read back from an earlier segment.</p>
+ */
+public class LogStructuredFullPrunedBlockStore implements BatchedFullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(LogStructuredFullPrunedBlockStore.class);
+
+    /** The default size at which output and undo log segments are rotated. */
+    public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    // Compaction starts once this share of the oldest output segment is spent.
+    private static final double COMPACTION_THRESHOLD = 0.5;
+    // The number of records compaction moves each time it takes the lock, so block verification isn't held up.
+    private static final int COMPACTION_BATCH_SIZE = 1000;
+    // How long writes made outside a batch may wait for a checkpoint.
+    private static final long CHECKPOINT_DELAY_MS = 1000;
+    // The number of headers kept in memory, enough for the reorgs and lookups around the chain head.
+    private static final int CACHED_BLOCKS = 5000;
+
+    private static final byte OUTPUT_RECORD = 1;
+    private static final byte SPENT_RECORD = 2;
+    private static final byte COINBASE_OUTPUT_RECORD = 3;
+    // Type, hash, then at most four varints: index, height, value and script length.
+    private static final int MAX_RECORD_HEADER_SIZE = 1 + 32 + 4 * 9;
+    // A flag for whether the block was undoable, followed by the compact form of the stored block.
+    private static final int BLOCK_RECORD_SIZE = 1 + StoredBlock.COMPACT_SERIALIZED_SIZE;
+    // Block hash, height and payload length.
+    private static final int UNDO_RECORD_HEADER_SIZE = 32 + 4 + 4;
+
+    private static final int CHECKPOINT_MAGIC = 0x4c534350;  // "LSCP"
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final String LOCK_FILE = "lock";
+    private static final String INDEX_FILE = "outputs.index";
+    private static final String BLOCKS_FILE = "blocks.log";
+    private static final String OUTPUTS_PREFIX = "outputs-";
+    private static final String UNDO_PREFIX = "undo-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final NetworkParameters params;
+    private final File directory;
+    private final int fullStoreDepth;
+    private final long segmentSize;
+
+    private RandomAccessFile lockFile;
+    private FileLock fileLock;
+
+    // The output log, its unflushed tail and the index into it.
+    private final TreeMap<Integer, Segment> outputSegments = new TreeMap<Integer, Segment>();
+    private Segment activeOutputSegment;
+    private byte[] writeBuffer = new byte[64 * 1024];
+    private int writeBufferLength;
+    private UnspentOutputIndex index;
+    private boolean indexDirty;
+
+    // Block headers. Every header has its latest record indexed, which is around a hundred bytes of memory each, but
+    // only the most recently used are kept decoded; the rest are read back from the log.
+    private RandomAccessFile blocksFile;
+    private long blocksLength;
+    private final Map<Sha256Hash, Integer> blockRecords = new HashMap<Sha256Hash, Integer>();
+    private final Map<Sha256Hash, StoredBlockAndWasUndoableFlag> cachedBlocks =
+            new LinkedHashMap<Sha256Hash, StoredBlockAndWasUndoableFlag>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<Sha256Hash, StoredBlockAndWasUndoableFlag> eldest) {
+                    return size() > CACHED_BLOCKS;
+                }
+            };
+
+    // Undo data.
+    private final TreeMap<Integer, Segment> undoSegments = new TreeMap<Integer, Segment>();
+    private Segment activeUndoSegment;
+    private final Map<Sha256Hash, UndoLocation> undoLocations = new HashMap<Sha256Hash, UndoLocation>();
+    private final TreeMap<Integer, Set<Sha256Hash>> undoHeights = new TreeMap<Integer, Set<Sha256Hash>>();
+    private int prunedHeight = -1;
+
+    private StoredBlock chainHead;
+    private StoredBlock verifiedChainHead;
+
+    private final ThreadLocal<PendingChanges> pendingChanges = new ThreadLocal<PendingChanges>();
+    // Runs compaction and the checkpoints of writes made outside a batch.
+    private final ScheduledThreadPoolExecutor backgroundExecutor;
+    private boolean compactionScheduled;
+    private boolean checkpointScheduled;
+    // Held while compacting, so that only one thread compacts at a time.
+    private final Object compactionLock = new Object();
+    private boolean closed;
+
+    // Set by findSlot to the record it found, to save reading it twice.
+    private OutputRecord foundRecord;
+
+    private static class Segment {
+        final int id;
+        final File file;
+        final RandomAccessFile randomAccessFile;
+        long length;
+        // Bytes taken up by spent outputs and spend records, for output segments.
+        long deadBytes;
+        // Undo records still needed, for undo segments.
+        int liveRecords;
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.randomAccessFile = new RandomAccessFile(file, "rw");
+            this.length = randomAccessFile.length();
+        }
+    }
+
+    private static class UndoLocation {
+        final int segment;
+        final long position;
+        final int length;
+        final int height;
+
+        UndoLocation(int segment, long position, int length, int height) {
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+            this.height = height;
+        }
+    }
+
+    private static class OutputRecord {
+        byte type;
+        Sha256Hash hash;
+        long index;
+        int height;
+        long value;
+        byte[] scriptBytes;
+        int size;
+
+        boolean isFor(Sha256Hash hash, long index) {
+            return this.index == index && this.hash.equals(hash);
+        }
+
+        StoredTransactionOutput toOutput() {
+            boolean isCoinbase = type == COINBASE_OUTPUT_RECORD;
+            return new StoredTransactionOutput(hash, index, BigInteger.valueOf(value), height, isCoinbase, scriptBytes);
+        }
+    }
+
+    // Changes made within a batch by one thread, which nothing else sees until they are committed.
+    private static class PendingChanges {
+        final Map<StoredTransactionOutPoint, StoredTransactionOutput> addedOutputs =
+                new HashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        final Set<StoredTransactionOutPoint> removedOutputs = new HashSet<StoredTransactionOutPoint>();
+        final Map<Sha256Hash, StoredBlockAndWasUndoableFlag> blocks =
+                new LinkedHashMap<Sha256Hash, StoredBlockAndWasUndoableFlag>();
+        final Map<Sha256Hash, StoredUndoableBlock> undoBlocks = new LinkedHashMap<Sha256Hash, StoredUndoableBlock>();
+        final Map<Sha256Hash, Integer> undoBlockHeights = new HashMap<Sha256Hash, Integer>();
+        StoredBlock chainHead;
+        StoredBlock verifiedChainHead;
+    }
+
+    /**
+     * Opens the store in the given directory, creating it if necessary, with log segments of
+     * {@link #DEFAULT_SEGMENT_SIZE}.
+     *
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param directory The directory holding the store's files
+     * @param fullStoreDepth The number of blocks of history stored in full (something like 1000 is pretty safe)
+     */
+    public LogStructuredFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth)
+            throws BlockStoreException {
+        this(params, directory, fullStoreDepth, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens the store in the given directory, creating it if necessary.
+     *
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param directory The directory holding the store's files
+     * @param fullStoreDepth The number of blocks of history stored in full (something like 1000 is pretty safe)
+     * @param segmentSize The size in bytes at which log segments are rotated
+     */
+    public LogStructuredFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth,
+                                             long segmentSize) throws BlockStoreException {
+        checkArgument(fullStoreDepth > 0, "fullStoreDepth must be positive");
+        checkArgument(segmentSize > 0 && segmentSize <= Integer.MAX_VALUE, "segmentSize out of range");
+        this.params = params;
+        this.directory = directory;
+        this.fullStoreDepth = fullStoreDepth;
+        this.segmentSize = segmentSize;
+        ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Log store background thread")
+                .setPriority(Thread.MIN_PRIORITY);
+        Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+        if (handler != null)
+            builder.setUncaughtExceptionHandler(handler);
+        this.backgroundExecutor = new ScheduledThreadPoolExecutor(1, builder.build());
+        // A checkpoint still waiting when the store is closed is written by close() itself.
+        backgroundExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        try {
+            if (!directory.exists() && !directory.mkdirs())
+                throw new BlockStoreException("Could not create directory " + directory);
+            lockFile = new RandomAccessFile(new File(directory, LOCK_FILE), "rw");
+            fileLock = lockFile.getChannel().tryLock();
+            if (fileLock == null)
+                throw new BlockStoreException("Store directory is in use by another process: " + directory);
+            File checkpoint = new File(directory, CHECKPOINT_FILE);
+            if (checkpoint.exists())
+                load(checkpoint);
+            else
+                createNewStore();
+        } catch (IOException e) {
+            closeFiles();
+            backgroundExecutor.shutdown();
+            throw new BlockStoreException(e);
+        } catch (BlockStoreException e) {
+            closeFiles();
+            backgroundExecutor.shutdown();
+            throw e;
+        }
+    }
+
+    private void createNewStore() throws IOException, BlockStoreException {
+        for (File file : listFiles(OUTPUTS_PREFIX).values())
+            deleteFile(file);
+        for (File file : listFiles(UNDO_PREFIX).values())
+            deleteFile(file);
+        File blocksLog = new File(directory, BLOCKS_FILE);
+        if (blocksLog.exists())
+            deleteFile(blocksLog);
+        activeOutputSegment = new Segment(1, segmentFile(OUTPUTS_PREFIX, 1));
+        outputSegments.put(1, activeOutputSegment);
+        activeUndoSegment = new Segment(1, segmentFile(UNDO_PREFIX, 1));
+        undoSegments.put(1, activeUndoSegment);
+        blocksFile = new RandomAccessFile(blocksLog, "rw");
+        index = UnspentOutputIndex.open(new File(directory, INDEX_FILE));
+        index.clear();
+        try {
+            // Set up the genesis block. When we start out fresh, it is by definition the top of the chain.
+            StoredBlock storedGenesisHeader =
+                    new StoredBlock(params.getGenesisBlock().cloneAsHeader(), params.getGenesisBlock().getWork(), 0);
+            // The coinbase in the genesis block is not spendable. This is because of how the reference client inits
+            // its database - the genesis transaction isn't actually in the db so its spent flags can never be updated.
+            List<Transaction> genesisTransactions = Lists.newLinkedList();
+            StoredUndoableBlock storedGenesis =
+                    new StoredUndoableBlock(params.getGenesisBlock().getHash(), genesisTransactions);
+            beginDatabaseBatchWrite();
+            put(storedGenesisHeader, storedGenesis);
+            setChainHead(storedGenesisHeader);
+            setVerifiedChainHead(storedGenesisHeader);
+            commitDatabaseBatchWrite();
+        } catch (VerificationException e) {
+            throw new RuntimeException(e); // Cannot happen.
+        }
+    }
+
+    private void load(File checkpoint) throws IOException, BlockStoreException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpoint)));
+        Sha256Hash chainHeadHash, verifiedChainHeadHash;
+        int oldestOutputSegment, outputSegment, undoSegment;
+        long outputPosition, undoPosition;
+        Map<Integer, Long> deadBytes = new HashMap<Integer, Long>();
+        try {
+            if (in.readInt() != CHECKPOINT_MAGIC)
+                throw new BlockStoreException("Checkpoint file is corrupt: " + checkpoint);
+            chainHeadHash = readHash(in);
+            verifiedChainHeadHash = readHash(in);
+            oldestOutputSegment = in.readInt();
+            outputSegment = in.readInt();
+            outputPosition = in.readLong();
+            blocksLength = in.readLong();
+            undoSegment = in.readInt();
+            undoPosition = in.readLong();
+            prunedHeight = in.readInt();
+            int numSegments = in.readInt();
+            for (int i = 0; i < numSegments; i++)
+                deadBytes.put(in.readInt(), in.readLong());
+        } finally {
+            in.close();
+        }
+
+        // Throw away anything written after the checkpoint, or left behind by an interrupted compaction.
+        for (Map.Entry<Integer, File> entry : listFiles(OUTPUTS_PREFIX).entrySet()) {
+            int id = entry.getKey();
+            if (id < oldestOutputSegment || id > outputSegment) {
+                deleteFile(entry.getValue());
+                continue;
+            }
+            Segment segment = new Segment(id, entry.getValue());
+            if (id == outputSegment)
+                truncate(segment, outputPosition);
+            Long dead = deadBytes.get(id);
+            segment.deadBytes = dead == null ? 0 : dead;
+            outputSegments.put(id, segment);
+        }
+        for (int id = oldestOutputSegment; id <= outputSegment; id++)
+            if (!outputSegments.containsKey(id))
+                throw new BlockStoreException("Output log segment " + id + " is missing from " + directory);
+        activeOutputSegment = outputSegments.get(outputSegment);
+
+        blocksFile = new RandomAccessFile(new File(directory, BLOCKS_FILE), "rw");
+        if (blocksFile.length() < blocksLength)
+            throw new BlockStoreException("Block log is shorter than its checkpoint");
+        blocksFile.setLength(blocksLength);
+        loadBlocks();
+
+        for (Map.Entry<Integer, File> entry : listFiles(UNDO_PREFIX).entrySet()) {
+            int id = entry.getKey();
+            if (id > undoSegment) {
+                deleteFile(entry.getValue());
+                continue;
+            }
+            Segment segment = new Segment(id, entry.getValue());
+            if (id == undoSegment)
+                truncate(segment, undoPosition);
+            undoSegments.put(id, segment);
+            loadUndoSegment(segment);
+        }
+        if (!undoSegments.containsKey(undoSegment))
+            throw new BlockStoreException("Undo log segment " + undoSegment + " is missing from " + directory);
+        activeUndoSegment = undoSegments.get(undoSegment);
+        pruneUndoBlocks(prunedHeight);
+
+        chainHead = get(chainHeadHash);
+        verifiedChainHead = get(verifiedChainHeadHash);
+        if (chainHead == null || verifiedChainHead == null)
+            throw new BlockStoreException("Chain head is missing from the block log");
+
+        index = UnspentOutputIndex.open(new File(directory, INDEX_FILE));
+        if (!index.isCleanAt(activeOutputSegment.id, activeOutputSegment.length))
+            rebuildIndex();
+        log.info("Opened store in {} with {} unspent outputs", directory, index.getCount());
+    }
+
+    private void truncate(Segment segment, long length) throws IOException, BlockStoreException {
+        if (segment.length < length)
+            throw new BlockStoreException("Log segment " + segment.file + " is shorter than its checkpoint");
+        segment.randomAccessFile.setLength(length);
+        segment.length = length;
+    }
+
+    private void loadBlocks() throws IOException, BlockStoreException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+                new File(directory, BLOCKS_FILE)), 64 * 1024));
+        try {
+            byte[] record = new byte[BLOCK_RECORD_SIZE];
+            int numRecords = (int) (blocksLength / BLOCK_RECORD_SIZE);
+            for (int i = 0; i < numRecords; i++) {
+                in.readFully(record);
+                StoredBlockAndWasUndoableFlag entry = decodeBlockRecord(record);
+                Sha256Hash hash = entry.block.getHeader().getHash();
+                blockRecords.put(hash, i);
+                cachedBlocks.put(hash, entry);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private StoredBlockAndWasUndoableFlag decodeBlockRecord(byte[] record)
+            throws BlockStoreException {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        boolean wasUndoable = buffer.get() != 0;
+        try {
+            return new StoredBlockAndWasUndoableFlag(
+                    StoredBlock.deserializeCompact(params, buffer), wasUndoable);
+        } catch (ProtocolException e) {
+            // Corrupted log.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private StoredBlockAndWasUndoableFlag readBlock(Sha256Hash hash)
+            throws BlockStoreException {
+        StoredBlockAndWasUndoableFlag entry = cachedBlocks.get(hash);
+        if (entry != null)
+            return entry;
+        Integer record = blockRecords.get(hash);
+        if (record == null)
+            return null;
+        checkState(!closed, "Store is closed");
+        ByteBuffer buffer = ByteBuffer.allocate(BLOCK_RECORD_SIZE);
+        try {
+            FileChannel channel = blocksFile.getChannel();
+            long position = (long) record * BLOCK_RECORD_SIZE;
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0)
+                    throw new BlockStoreException("Block log ends inside a record");
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        entry = decodeBlockRecord(buffer.array());
+        cachedBlocks.put(hash, entry);
+        return entry;
+    }
+
+    private void loadUndoSegment(Segment segment) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file), 64 * 1024));
+        try {
+            long position = 0;
+            while (position < segment.length) {
+                Sha256Hash hash = readHash(in);
+                int height = in.readInt();
+                int length = in.readInt();
+                in.readFully(new byte[length]);
+                addUndoLocation(hash, new UndoLocation(segment.id, position, length, height));
+                position += UNDO_RECORD_HEADER_SIZE + length;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Rebuilds the output index by replaying the output log from the oldest segment. */
+    private void rebuildIndex() throws IOException, BlockStoreException {
+        log.info("Rebuilding the unspent output index from the log in {}", directory);
+        long startTime = System.currentTimeMillis();
+        index.clear();
+        indexDirty = false;
+        markIndexDirty();
+        for (Segment segment : outputSegments.values()) {
+            segment.deadBytes = 0;
+            SegmentReader reader = new SegmentReader(segment);
+            OutputRecord record;
+            while ((record = reader.next()) != null) {
+                long slot = findSlot(record.hash, record.index);
+                if (slot >= 0)
+                    addDeadBytes(index.getLocation(slot), foundRecord.size);
+                if (record.type == SPENT_RECORD) {
+                    segment.deadBytes += record.size;
+                    if (slot >= 0)
+                        index.remove(slot);
+                } else if (slot >= 0) {
+                    index.setLocation(slot, reader.location);
+                } else {
+                    index.insert(UnspentOutputIndex.keyHash(record.hash, record.index), reader.location);
+                }
+            }
+        }
+        log.info("Rebuilt the index of {} unspent outputs in {}ms", index.getCount(),
+                System.currentTimeMillis() - startTime);
+    }
+
+    /** Reads the records of an output log segment in order. */
+    private class SegmentReader {
+        private final Segment segment;
+        private byte[] buffer = new byte[1024 * 1024];
+        private int bufferStart, bufferEnd;
+        private long bufferPosition;
+        /** The location of the record most recently returned by {@link #next()}. */
+        long location;
+
+        SegmentReader(Segment segment) {
+            this.segment = segment;
+        }
+
+        OutputRecord next() throws IOException, BlockStoreException {
+            long position = bufferPosition + bufferStart;
+            if (position >= segment.length)
+                return null;
+            OutputRecord record = decodeRecord(buffer, bufferStart, bufferEnd - bufferStart);
+            while (record == null) {
+                if (bufferPosition + bufferEnd >= segment.length)
+                    throw new BlockStoreException("Corrupt record at " + position + " in " + segment.file);
+                // Move what is left to the front of the buffer and fill up the rest, making room for long records.
+                System.arraycopy(buffer, bufferStart, buffer, 0, bufferEnd - bufferStart);
+                bufferEnd -= bufferStart;
+                bufferPosition += bufferStart;
+                bufferStart = 0;
+                if (bufferEnd == buffer.length)
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                int toRead = (int) Math.min(buffer.length - bufferEnd, segment.length - bufferPosition - bufferEnd);
+                readFully(segment, ByteBuffer.wrap(buffer, bufferEnd, toRead), bufferPosition + bufferEnd);
+                bufferEnd += toRead;
+                record = decodeRecord(buffer, bufferStart, bufferEnd - bufferStart);
+            }
+            location = location(segment.id, position);
+            bufferStart += record.size;
+            return record;
+        }
+
+        /** Returns a copy of the bytes of the record most recently returned by {@link #next()}. */
+        byte[] recordBytes(OutputRecord record) {
+            return Arrays.copyOfRange(buffer, bufferStart - record.size, bufferStart);
+        }
+    }
+
+    private static long location(int segment, long position) {
+        return ((long) segment << 32) | position;
+    }
+
+    private static void readFully(Segment segment, ByteBuffer buffer, long position) throws IOException {
+        FileChannel channel = segment.randomAccessFile.getChannel();
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                throw new EOFException("Unexpected end of " + segment.file);
+            position += read;
+        }
+    }
+
+    private static Sha256Hash readHash(DataInputStream in) throws IOException {
+        byte[] hash = new byte[32];
+        in.readFully(hash);
+        return new Sha256Hash(hash);
+    }
+
+    private File segmentFile(String prefix, int id) {
+        return new File(directory, String.format("%s%08d%s", prefix, id, SEGMENT_SUFFIX));
+    }
+
+    private TreeMap<Integer, File> listFiles(String prefix) {
+        TreeMap<Integer, File> files = new TreeMap<Integer, File>();
+        File[] all = directory.listFiles();
+        if (all == null)
+            return files;
+        for (File file : all) {
+            String name = file.getName();
+            if (!name.startsWith(prefix) || !name.endsWith(SEGMENT_SUFFIX))
+                continue;
+            try {
+                files.put(Integer.parseInt(name.substring(prefix.length(), name.length() - SEGMENT_SUFFIX.length())),
+                        file);
+            } catch (NumberFormatException e) {
+                log.warn("Ignoring unexpected file {}", file);
+            }
+        }
+        return files;
+    }
+
+    private static void deleteFile(File file) throws IOException {
+        if (!file.delete())
+            throw new IOException("Could not delete " + file);
+    }
+
+    //
+    // Output records
+    //
+
+    private static byte[] encodeRecord(StoredTransactionOutput out) {
+        boolean isCoinbase = out.getHeight() >= 0;
+        byte[] index = new VarInt(out.getIndex()).encode();
+        byte[] height = isCoinbase ? new VarInt(out.getHeight()).encode() : new byte[0];
+        byte[] value = new VarInt(out.getValue().longValue()).encode();
+        byte[] scriptBytes = out.getScriptBytes();
+        byte[] scriptLength = new VarInt(scriptBytes.length).encode();
+        byte[] record = new byte[1 + 32 + index.length + height.length + value.length + scriptLength.length +
+                scriptBytes.length];
+        int offset = 0;
+        record[offset++] = isCoinbase ? COINBASE_OUTPUT_RECORD : OUTPUT_RECORD;
+        offset = append(out.getHash().getBytes(), record, offset);
+        offset = append(index, record, offset);
+        offset = append(height, record, offset);
+        offset = append(value, record, offset);
+        offset = append(scriptLength, record, offset);
+        append(scriptBytes, record, offset);
+        return record;
+    }
+
+    private static byte[] encodeSpentRecord(Sha256Hash hash, long index) {
+        byte[] indexBytes = new VarInt(index).encode();
+        byte[] record = new byte[1 + 32 + indexBytes.length];
+        record[0] = SPENT_RECORD;
+        append(indexBytes, record, append(hash.getBytes(), record, 1));
+        return record;
+    }
+
+    private static int append(byte[] from, byte[] to, int offset) {
+        System.arraycopy(from, 0, to, offset, from.length);
+        return offset + from.length;
+    }
+
+    /** Decodes the record at the given offset, or returns null if not all of it is within the available bytes. */
+    private static OutputRecord decodeRecord(byte[] bytes, int offset, int available) {
+        int end = offset + available;
+        if (available < 1 + 32 + 1)
+            return null;
+        OutputRecord record = new OutputRecord();
+        int cursor = offset;
+        record.type = bytes[cursor++];
+        record.hash = new Sha256Hash(Arrays.copyOfRange(bytes, cursor, cursor + 32));
+        cursor += 32;
+        if (cursor + varIntSize(bytes[cursor]) > end)
+            return null;
+        VarInt index = new VarInt(bytes, cursor);
+        record.index = index.value;
+        cursor += index.getOriginalSizeInBytes();
+        if (record.type != SPENT_RECORD) {
+            if (record.type == COINBASE_OUTPUT_RECORD) {
+                if (cursor >= end || cursor + varIntSize(bytes[cursor]) > end)
+                    return null;
+                VarInt height = new VarInt(bytes, cursor);
+                record.height = (int) height.value;
+                cursor += height.getOriginalSizeInBytes();
+            }
+            if (cursor >= end || cursor + varIntSize(bytes[cursor]) > end)
+                return null;
+            VarInt value = new VarInt(bytes, cursor);
+            record.value = value.value;
+            cursor += value.getOriginalSizeInBytes();
+            if (cursor >= end || cursor + varIntSize(bytes[cursor]) > end)
+                return null;
+            VarInt scriptLength = new VarInt(bytes, cursor);
+            cursor += scriptLength.getOriginalSizeInBytes();
+            if (cursor + scriptLength.value > end)
+                return null;
+            record.scriptBytes = Arrays.copyOfRange(bytes, cursor, cursor + (int) scriptLength.value);
+            cursor += record.scriptBytes.length;
+        }
+        record.size = cursor - offset;
+        return record;
+    }
+
+    private static int varIntSize(byte first) {
+        int b = first & 0xFF;
+        return b < 253 ? 1 : b == 253 ? 3 : b == 254 ? 5 : 9;
+    }
+
+    private OutputRecord readRecord(long location) throws IOException, BlockStoreException {
+        int segmentId = (int) (location >>> 32);
+        long position = location & 0xFFFFFFFFL;
+        if (segmentId == activeOutputSegment.id && position >= activeOutputSegment.length) {
+            int offset = (int) (position - activeOutputSegment.length);
+            OutputRecord record = decodeRecord(writeBuffer, offset, writeBufferLength - offset);
+            if (record == null)
+                throw new BlockStoreException("Corrupt record at " + position + " in " + activeOutputSegment.file);
+            return record;
+        }
+        Segment segment = outputSegments.get(segmentId);
+        if (segment == null)
+            throw new BlockStoreException("Index refers to missing output log segment " + segmentId);
+        int available = (int) Math.min(MAX_RECORD_HEADER_SIZE + 128, segment.length - position);
+        byte[] bytes = new byte[available];
+        readFully(segment, ByteBuffer.wrap(bytes), position);
+        OutputRecord record = decodeRecord(bytes, 0, available);
+        if (record == null) {
+            // A long script, read the rest of it.
+            VarInt scriptLength = null;
+            int cursor = 1 + 32;
+            for (int i = 0; i < (bytes[0] == COINBASE_OUTPUT_RECORD ? 4 : 3); i++) {
+                scriptLength = new VarInt(bytes, cursor);
+                cursor += scriptLength.getOriginalSizeInBytes();
+            }
+            if (scriptLength == null || cursor + scriptLength.value > segment.length - position)
+                throw new BlockStoreException("Corrupt record at " + position + " in " + segment.file);
+            bytes = new byte[cursor + (int) scriptLength.value];
+            readFully(segment, ByteBuffer.wrap(bytes), position);
+            record = decodeRecord(bytes, 0, bytes.length);
+        }
+        return record;
+    }
+
+    /**
+     * Returns the index slot of the given output, or -1 if it is not unspent. When found, the output's record is
+     * left in {@link #foundRecord}.
+     */
+    private long findSlot(Sha256Hash hash, long outputIndex) throws IOException, BlockStoreException {
+        long keyHash = UnspentOutputIndex.keyHash(hash, outputIndex);
+        for (long slot = index.home(keyHash); ; slot = index.next(slot)) {
+            long location = index.getLocation(slot);
+            if (location == 0)
+                return -1;
+            if (index.getKeyHash(slot) != keyHash)
+                continue;
+            OutputRecord record = readRecord(location);
+            if (record.isFor(hash, outputIndex)) {
+                foundRecord = record;
+                return slot;
+            }
+        }
+    }
+
+    private void addDeadBytes(long location, int size) {
+        Segment segment = outputSegments.get((int) (location >>> 32));
+        if (segment != null)
+            segment.deadBytes += size;
+    }
+
+    /** Appends a record to the output log, returning its location. */
+    private long appendRecord(byte[] record) throws IOException {
+        long position = activeOutputSegment.length + writeBufferLength;
+        if (position + record.length > segmentSize && position > 0) {
+            flushWriteBuffer();
+            activeOutputSegment.randomAccessFile.getFD().sync();
+            int id = activeOutputSegment.id + 1;
+            activeOutputSegment = new Segment(id, segmentFile(OUTPUTS_PREFIX, id));
+            outputSegments.put(id, activeOutputSegment);
+            position = 0;
+        }
+        if (writeBufferLength + record.length > writeBuffer.length)
+            writeBuffer = Arrays.copyOf(writeBuffer, Math.max(writeBuffer.length * 2, writeBufferLength + record.length));
+        System.arraycopy(record, 0, writeBuffer, writeBufferLength, record.length);
+        writeBufferLength += record.length;
+        return location(activeOutputSegment.id, position);
+    }
+
+    private void flushWriteBuffer() throws IOException {
+        if (writeBufferLength == 0)
+            return;
+        ByteBuffer buffer = ByteBuffer.wrap(writeBuffer, 0, writeBufferLength);
+        FileChannel channel = activeOutputSegment.randomAccessFile.getChannel();
+        long position = activeOutputSegment.length;
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+        activeOutputSegment.length = position;
+        writeBufferLength = 0;
+    }
+
+    private void markIndexDirty() {
+        if (!indexDirty) {
+            index.markDirty();
+            indexDirty = true;
+        }
+    }
+
+    //
+    // Committing changes
+    //
+
+    private PendingChanges changesForWrite() {
+        PendingChanges changes = pendingChanges.get();
+        return changes != null ? changes : new PendingChanges();
+    }
+
+    /** Commits the given changes unless they belong to a batch, which is committed as a whole later. */
+    private void maybeApply(PendingChanges changes) throws BlockStoreException {
+        if (changes != pendingChanges.get())
+            apply(changes, false);
+    }
+
+    /**
+     * Writes out the given changes, then checkpoints them straight away if they are a committed batch, or within
+     * {@link #CHECKPOINT_DELAY_MS} if not.
+     */
+    private synchronized void apply(PendingChanges changes, boolean committedBatch) throws BlockStoreException {
+        checkState(!closed, "Store is closed");
+        try {
+            markIndexDirty();
+            // Removals go first, in case an output is spent and then created again within the batch.
+            for (StoredTransactionOutPoint outPoint : changes.removedOutputs) {
+                long slot = findSlot(outPoint.hash, outPoint.index);
+                if (slot < 0)
+                    throw new BlockStoreException("Tried to remove a StoredTransactionOutput that doesn't exist");
+                addDeadBytes(index.getLocation(slot), foundRecord.size);
+                byte[] record = encodeSpentRecord(outPoint.hash, outPoint.index);
+                addDeadBytes(appendRecord(record), record.length);
+                index.remove(slot);
+            }
+            for (StoredTransactionOutput out : changes.addedOutputs.values()) {
+                long location = appendRecord(encodeRecord(out));
+                long slot = findSlot(out.getHash(), out.getIndex());
+                if (slot >= 0) {
+                    addDeadBytes(index.getLocation(slot), foundRecord.size);
+                    index.setLocation(slot, location);
+                } else {
+                    index.insert(UnspentOutputIndex.keyHash(out.getHash(), out.getIndex()), location);
+                }
+            }
+            flushWriteBuffer();
+
+            if (!changes.blocks.isEmpty()) {
+                ByteBuffer buffer = ByteBuffer.allocate(changes.blocks.size() * BLOCK_RECORD_SIZE);
+                for (StoredBlockAndWasUndoableFlag entry : changes.blocks.values()) {
+                    buffer.put((byte) (entry.wasUndoable ? 1 : 0));
+                    entry.block.serializeCompact(buffer);
+                }
+                buffer.flip();
+                FileChannel channel = blocksFile.getChannel();
+                int record = (int) (blocksLength / BLOCK_RECORD_SIZE);
+                while (buffer.hasRemaining())
+                    blocksLength += channel.write(buffer, blocksLength);
+                for (Map.Entry<Sha256Hash, StoredBlockAndWasUndoableFlag> entry :
+                        changes.blocks.entrySet()) {
+                    blockRecords.put(entry.getKey(), record++);
+                    cachedBlocks.put(entry.getKey(), entry.getValue());
+                }
+            }
+
+            for (StoredUndoableBlock undoBlock : changes.undoBlocks.values())
+                appendUndoBlock(undoBlock, changes.undoBlockHeights.get(undoBlock.getHash()));
+
+            if (changes.chainHead != null)
+                chainHead = changes.chainHead;
+            if (changes.verifiedChainHead != null) {
+                verifiedChainHead = changes.verifiedChainHead;
+                if (chainHead.getHeight() < verifiedChainHead.getHeight())
+                    chainHead = verifiedChainHead;
+                prunedHeight = Math.max(prunedHeight, verifiedChainHead.getHeight() - fullStoreDepth);
+            }
+            if (committedBatch) {
+                writeCheckpoint();
+                // Undo data is dropped after the checkpoint which records how far it has been pruned.
+                pruneUndoBlocks(prunedHeight);
+            } else {
+                scheduleCheckpoint();
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        maybeScheduleCompaction();
+    }
+
+    private void scheduleCheckpoint() {
+        if (checkpointScheduled)
+            return;
+        checkpointScheduled = true;
+        backgroundExecutor.schedule(new Runnable() {
+            public void run() {
+                synchronized (LogStructuredFullPrunedBlockStore.this) {
+                    // Compaction or a committed batch may have checkpointed in the meantime, which does no harm.
+                    checkpointScheduled = false;
+                    if (closed)
+                        return;
+                    try {
+                        writeCheckpoint();
+                        pruneUndoBlocks(prunedHeight);
+                    } catch (IOException e) {
+                        log.error("Failed to write a checkpoint", e);
+                    }
+                }
+            }
+        }, CHECKPOINT_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void appendUndoBlock(StoredUndoableBlock undoBlock, int height) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.write(undoBlock.getHash().getBytes());
+        out.writeInt(height);
+        out.writeInt(0);  // Length, filled in below.
+        // The same encodings as H2FullPrunedBlockStore, with a leading byte saying which form it takes: 2 for the
+        // compact output changes or 1 for full transactions.
+        if (undoBlock.hasTxOutChanges()) {
+            out.write(2);
+            out.write(undoBlock.getCompactTxOutChanges());
+        } else {
+            out.write(1);
+            int numTxn = undoBlock.getTransactions().size();
+            out.write(0xFF & (numTxn >> 0));
+            out.write(0xFF & (numTxn >> 8));
+            out.write(0xFF & (numTxn >> 16));
+            out.write(0xFF & (numTxn >> 24));
+            for (Transaction tx : undoBlock.getTransactions())
+                tx.bitcoinSerialize(out);
+        }
+        out.flush();
+        byte[] record = bos.toByteArray();
+        int length = record.length - UNDO_RECORD_HEADER_SIZE;
+        ByteBuffer.wrap(record).putInt(32 + 4, length);
+
+        if (activeUndoSegment.length > 0 && activeUndoSegment.length + record.length > segmentSize) {
+            activeUndoSegment.randomAccessFile.getFD().sync();
+            int id = activeUndoSegment.id + 1;
+            activeUndoSegment = new Segment(id, segmentFile(UNDO_PREFIX, id));
+            undoSegments.put(id, activeUndoSegment);
+        }
+        long position = activeUndoSegment.length;
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        FileChannel channel = activeUndoSegment.randomAccessFile.getChannel();
+        while (buffer.hasRemaining())
+            activeUndoSegment.length += channel.write(buffer, activeUndoSegment.length);
+        addUndoLocation(undoBlock.getHash(), new UndoLocation(activeUndoSegment.id, position, length, height));
+    }
+
+    private void addUndoLocation(Sha256Hash hash, UndoLocation location) {
+        removeUndoLocation(hash);
+        undoLocations.put(hash, location);
+        undoSegments.get(location.segment).liveRecords++;
+        Set<Sha256Hash> atHeight = undoHeights.get(location.height);
+        if (atHeight == null) {
+            atHeight = new HashSet<Sha256Hash>();
+            undoHeights.put(location.height, atHeight);
+        }
+        atHeight.add(hash);
+    }
+
+    private UndoLocation removeUndoLocation(Sha256Hash hash) {
+        UndoLocation location = undoLocations.remove(hash);
+        if (location != null) {
+            undoSegments.get(location.segment).liveRecords--;
+            Set<Sha256Hash> atHeight = undoHeights.get(location.height);
+            atHeight.remove(hash);
+            if (atHeight.isEmpty())
+                undoHeights.remove(location.height);
+        }
+        return location;
+    }
+
+    /** Drops the undo data of blocks at or below the given height, deleting segments which no longer hold any. */
+    private void pruneUndoBlocks(int height) throws IOException {
+        SortedMap<Integer, Set<Sha256Hash>> prunable = undoHeights.headMap(height + 1);
+        while (!prunable.isEmpty()) {
+            Set<Sha256Hash> hashes = prunable.get(prunable.firstKey());
+            removeUndoLocation(hashes.iterator().next());
+        }
+        Iterator<Segment> it = undoSegments.values().iterator();
+        while (it.hasNext()) {
+            Segment segment = it.next();
+            if (segment.liveRecords == 0 && segment != activeUndoSegment) {
+                segment.randomAccessFile.close();
+                deleteFile(segment.file);
+                it.remove();
+            }
+        }
+    }
+
+    /** Forces all logs to disk, then records how far they have got in the checkpoint file. */
+    private void writeCheckpoint() throws IOException {
+        activeOutputSegment.randomAccessFile.getFD().sync();
+        blocksFile.getFD().sync();
+        activeUndoSegment.randomAccessFile.getFD().sync();
+        File tmp = new File(directory, CHECKPOINT_FILE + ".tmp");
+        FileOutputStream stream = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.write(chainHead.getHeader().getHash().getBytes());
+            out.write(verifiedChainHead.getHeader().getHash().getBytes());
+            out.writeInt(outputSegments.firstKey());
+            out.writeInt(activeOutputSegment.id);
+            out.writeLong(activeOutputSegment.length);
+            out.writeLong(blocksLength);
+            out.writeInt(activeUndoSegment.id);
+            out.writeLong(activeUndoSegment.length);
+            out.writeInt(prunedHeight);
+            out.writeInt(outputSegments.size());
+            for (Segment segment : outputSegments.values()) {
+                out.writeInt(segment.id);
+                out.writeLong(segment.deadBytes);
+            }
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        File checkpoint = new File(directory, CHECKPOINT_FILE);
+        // On Windows rename doesn't replace an existing file, so the checkpoint has to be deleted first.
+        if (!tmp.renameTo(checkpoint) && !(checkpoint.delete() && tmp.renameTo(checkpoint)))
+            throw new IOException("Could not rename " + tmp + " to " + checkpoint);
+    }
+
+    //
+    // Compaction
+    //
+
+    private synchronized boolean needsCompaction() {
+        if (closed || outputSegments.size() < 2)
+            return false;
+        Segment oldest = outputSegments.firstEntry().getValue();
+        return oldest.deadBytes >= oldest.length * COMPACTION_THRESHOLD;
+    }
+
+    private synchronized void maybeScheduleCompaction() {
+        if (compactionScheduled || !needsCompaction())
+            return;
+        compactionScheduled = true;
+        backgroundExecutor.submit(new Runnable() {
+            public void run() {
+                try {
+                    compact();
+                } catch (Exception e) {
+                    log.error("Failed to compact the output log", e);
+                } finally {
+                    synchronized (LogStructuredFullPrunedBlockStore.this) {
+                        compactionScheduled = false;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Compacts the output log until the oldest segment is no longer mostly spent outputs. This happens
+     * automatically on a background thread as blocks are added, so there is normally no need to call it.
+     */
+    public void compact() throws BlockStoreException {
+        synchronized (compactionLock) {
+            try {
+                while (needsCompaction())
+                    compactOldestSegment();
+            } catch (IOException e) {
+                throw new BlockStoreException(e);
+            }
+        }
+    }
+
+    private void compactOldestSegment() throws IOException, BlockStoreException {
+        Segment segment;
+        synchronized (this) {
+            segment = outputSegments.firstEntry().getValue();
+        }
+        long startTime = System.currentTimeMillis();
+        long liveBytes = 0;
+        // The oldest segment is never written to, so it can be read without holding the lock.
+        SegmentReader reader = new SegmentReader(segment);
+        List<OutputRecord> records = new ArrayList<OutputRecord>(COMPACTION_BATCH_SIZE);
+        List<Long> locations = new ArrayList<Long>(COMPACTION_BATCH_SIZE);
+        List<byte[]> recordBytes = new ArrayList<byte[]>(COMPACTION_BATCH_SIZE);
+        boolean done = false;
+        while (!done) {
+            OutputRecord record = reader.next();
+            done = record == null;
+            if (record != null && record.type != SPENT_RECORD) {
+                records.add(record);
+                locations.add(reader.location);
+                recordBytes.add(reader.recordBytes(record));
+            }
+            if (records.size() < COMPACTION_BATCH_SIZE && !done)
+                continue;
+            synchronized (this) {
+                if (closed)
+                    return;
+                markIndexDirty();
+                for (int i = 0; i < records.size(); i++) {
+                    // Only move the record if the index still points at it.
+                    long keyHash = UnspentOutputIndex.keyHash(records.get(i).hash, records.get(i).index);
+                    long location = locations.get(i);
+                    for (long slot = index.home(keyHash); index.getLocation(slot) != 0; slot = index.next(slot)) {
+                        if (index.getLocation(slot) == location) {
+                            index.setLocation(slot, appendRecord(recordBytes.get(i)));
+                            segment.deadBytes += records.get(i).size;
+                            liveBytes += records.get(i).size;
+                            break;
+                        }
+                    }
+                }
+                flushWriteBuffer();
+            }
+            records.clear();
+            locations.clear();
+            recordBytes.clear();
+        }
+        synchronized (this) {
+            if (closed)
+                return;
+            // The index now refers to nothing in the segment, so once a checkpoint says it is gone it can be deleted.
+            outputSegments.remove(segment.id);
+            writeCheckpoint();
+            segment.randomAccessFile.close();
+            deleteFile(segment.file);
+        }
+        log.info("Compacted output log segment {}, moving {} of {} bytes in {}ms", new Object[] { segment.id,
+                liveBytes, segment.length, System.currentTimeMillis() - startTime });
+    }
+
+    //
+    // FullPrunedBlockStore
+    //
+
+    public void put(StoredBlock block) throws BlockStoreException {
+        PendingChanges changes = changesForWrite();
+        Sha256Hash hash = block.getHeader().getHash();
+        // Don't lose the fact that a block was undoable if its header is put again.
+        StoredBlock existing = getOnceUndoableStoredBlock(hash);
+        changes.blocks.put(hash, new StoredBlockAndWasUndoableFlag(block, existing != null));
+        maybeApply(changes);
+    }
+
+    public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        PendingChanges changes = changesForWrite();
+        Sha256Hash hash = storedBlock.getHeader().getHash();
+        changes.blocks.put(hash, new StoredBlockAndWasUndoableFlag(storedBlock, true));
+        changes.undoBlocks.put(hash, undoableBlock);
+        changes.undoBlockHeights.put(hash, storedBlock.getHeight());
+        maybeApply(changes);
+    }
+
+    private synchronized StoredBlockAndWasUndoableFlag getBlock(Sha256Hash hash)
+            throws BlockStoreException {
+        PendingChanges changes = pendingChanges.get();
+        if (changes != null && changes.blocks.containsKey(hash))
+            return changes.blocks.get(hash);
+        return readBlock(hash);
+    }
+
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        StoredBlockAndWasUndoableFlag entry = getBlock(hash);
+        return entry == null ? null : entry.block;
+    }
+
+    public StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        StoredBlockAndWasUndoableFlag entry = getBlock(hash);
+        return entry != null && entry.wasUndoable ? entry.block : null;
+    }
+
+    public synchronized StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        PendingChanges changes = pendingChanges.get();
+        if (changes != null && changes.undoBlocks.containsKey(hash))
+            return changes.undoBlocks.get(hash);
+        UndoLocation location = undoLocations.get(hash);
+        if (location == null)
+            return null;
+        try {
+            byte[] payload = new byte[location.length];
+            readFully(undoSegments.get(location.segment), ByteBuffer.wrap(payload),
+                    location.position + UNDO_RECORD_HEADER_SIZE);
+            if (payload[0] == 2) {
+                byte[] compact = Arrays.copyOfRange(payload, 1, payload.length);
+                return new StoredUndoableBlock(hash, new CompactTransactionOutputChanges(compact));
+            }
+            int offset = 1;
+            int numTxn = ((payload[offset++] & 0xFF) << 0) |
+                         ((payload[offset++] & 0xFF) << 8) |
+                         ((payload[offset++] & 0xFF) << 16) |
+                         ((payload[offset++] & 0xFF) << 24);
+            List<Transaction> transactionList = new LinkedList<Transaction>();
+            for (int i = 0; i < numTxn; i++) {
+                Transaction tx = new Transaction(params, payload, offset);
+                transactionList.add(tx);
+                offset += tx.getMessageSize();
+            }
+            return new StoredUndoableBlock(hash, transactionList);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } catch (ProtocolException e) {
+            // Corrupted log.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index)
+            throws BlockStoreException {
+        PendingChanges changes = pendingChanges.get();
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, index);
+        if (changes != null) {
+            StoredTransactionOutput out = changes.addedOutputs.get(outPoint);
+            if (out != null)
+                return out;
+            if (changes.removedOutputs.contains(outPoint))
+                return null;
+        }
+        checkState(!closed, "Store is closed");
+        try {
+            return findSlot(hash, index) >= 0 ? foundRecord.toOutput() : null;
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    public synchronized List<StoredTransactionOutput> getTransactionOutputs(List<TransactionOutPoint> outpoints)
+            throws BlockStoreException {
+        List<StoredTransactionOutput> result = new ArrayList<StoredTransactionOutput>(outpoints.size());
+        for (TransactionOutPoint outpoint : outpoints)
+            result.add(getTransactionOutput(outpoint.getHash(), outpoint.getIndex()));
+        return result;
+    }
+
+    public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        PendingChanges changes = changesForWrite();
+        changes.addedOutputs.put(new StoredTransactionOutPoint(out), out);
+        maybeApply(changes);
+    }
+
+    public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        PendingChanges changes = changesForWrite();
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+        if (changes.addedOutputs.remove(outPoint) == null) {
+            if (changes.removedOutputs.contains(outPoint) || getTransactionOutput(out.getHash(), out.getIndex()) == null)
+                throw new BlockStoreException("Tried to remove a StoredTransactionOutput that doesn't exist");
+            changes.removedOutputs.add(outPoint);
+        }
+        maybeApply(changes);
+    }
+
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        for (int i = 0; i < numOutputs; i++)
+            if (getTransactionOutput(hash, i) != null)
+                return true;
+        return false;
+    }
+
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        PendingChanges changes = pendingChanges.get();
+        if (changes != null && changes.chainHead != null)
+            return changes.chainHead;
+        return chainHead;
+    }
+
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        PendingChanges changes = changesForWrite();
+        changes.chainHead = chainHead;
+        maybeApply(changes);
+    }
+
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        PendingChanges changes = pendingChanges.get();
+        if (changes != null && changes.verifiedChainHead != null)
+            return changes.verifiedChainHead;
+        return verifiedChainHead;
+    }
+
+    public void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        PendingChanges changes = changesForWrite();
+        changes.verifiedChainHead = chainHead;
+        if (getChainHead().getHeight() < chainHead.getHeight())
+            changes.chainHead = chainHead;
+        maybeApply(changes);
+    }
+
+    public void beginDatabaseBatchWrite() throws BlockStoreException {
+        // A reorg disconnects several blocks before committing, each of which begins the batch again.
+        if (pendingChanges.get() == null)
+            pendingChanges.set(new PendingChanges());
+    }
+
+    public void commitDatabaseBatchWrite() throws BlockStoreException {
+        PendingChanges changes = pendingChanges.get();
+        pendingChanges.remove();
+        if (changes != null)
+            apply(changes, true);
+    }
+
+    public void abortDatabaseBatchWrite() throws BlockStoreException {
+        pendingChanges.remove();
+    }
+
+    /** Returns the number of unspent outputs in the store, not counting any batch in progress. */
+    public synchronized long getUnspentOutputCount() {
+        return index.getCount();
+    }
+
+    /** Returns the total size in bytes of the output log, including spent outputs not yet compacted away. */
+    public synchronized long getOutputLogSize() {
+        long size = 0;
+        for (Segment segment : outputSegments.values())
+            size += segment.length;
+        return size + writeBufferLength;
+    }
+
+    /** Returns the number of output log segments, which drops as compaction deletes old ones. */
+    public synchronized int getOutputSegmentCount() {
+        return outputSegments.size();
+    }
+
+    public void close() throws BlockStoreException {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+        }
+        backgroundExecutor.shutdown();
+        try {
+            backgroundExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            try {
+                flushWriteBuffer();
+                writeCheckpoint();
+                index.markClean(activeOutputSegment.id, activeOutputSegment.length);
+            } catch (IOException e) {
+                throw new BlockStoreException(e);
+            } finally {
+                closeFiles();
+            }
+        }
+    }
+
+    private void closeFiles() {
+        try {
+            if (index != null)
+                index.close();
+            for (Segment segment : outputSegments.values())
+                segment.randomAccessFile.close();
+            for (Segment segment : undoSegments.values())
+                segment.randomAccessFile.close();
+            if (blocksFile != null)
+                blocksFile.close();
+            if (fileLock != null)
+                fileLock.release();
+            if (lockFile != null)
+                lockFile.close();
+        } catch (IOException e) {
+            log.error("Failed to close store files", e);
+        }
+    }
+}
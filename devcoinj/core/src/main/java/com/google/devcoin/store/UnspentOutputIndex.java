@@ -0,0 +1,309 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.store;
+
+import com.google.devcoin.core.Sha256Hash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>An open addressing hash table in a memory mapped file which maps an output (transaction hash and index) to
+ * the location of its record in the log of a {@link LogStructuredFullPrunedBlockStore}.</p>
+ *
+ * <p>Each slot holds a 64 bit hash of the key and the 64 bit location of the record, with a location of zero
+ * meaning the slot is empty. As only hashes of keys are stored, callers must check the key in the record a slot
+ * points to before trusting it. Linear probing is used, with entries shifted back on removal so that no tombstones
+ * are needed.</p>
+ *
+ * <p>The header records whether the table was closed cleanly and which point in the log it reflects, so that the
+ * store knows whether it can be used as is or must be rebuilt from the log. This class is not thread safe.</p>
+ */
+class UnspentOutputIndex {
+    private static final int MAGIC = 0x4c534f49;  // "LSOI"
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 16;
+    // Each mapping covers 2^26 slots (1GB), as a single MappedByteBuffer can't exceed 2GB.
+    private static final int SLOTS_PER_BUFFER_BITS = 26;
+    private static final long MIN_CAPACITY = 1 << 16;
+
+    // Header layout.
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CAPACITY_OFFSET = 4;
+    private static final int COUNT_OFFSET = 12;
+    private static final int CLEAN_OFFSET = 20;
+    private static final int SEGMENT_OFFSET = 24;
+    private static final int POSITION_OFFSET = 28;
+
+    private final File file;
+    private RandomAccessFile randomAccessFile;
+    private MappedByteBuffer header;
+    private MappedByteBuffer[] buffers;
+    private long capacity;
+    private long mask;
+    private long count;
+
+    private UnspentOutputIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens the index in the given file, creating an empty one if the file doesn't exist or isn't a valid index.
+     */
+    static UnspentOutputIndex open(File file) throws IOException {
+        UnspentOutputIndex index = new UnspentOutputIndex(file);
+        if (file.exists() && file.length() >= HEADER_SIZE) {
+            index.map(file, -1);
+            if (index.header.getInt(MAGIC_OFFSET) == MAGIC)
+                return index;
+            index.close();
+        }
+        index.create(MIN_CAPACITY);
+        return index;
+    }
+
+    private void create(long capacity) throws IOException {
+        File tmp = new File(file.getPath() + ".new");
+        if (tmp.exists() && !tmp.delete())
+            throw new IOException("Could not delete " + tmp);
+        map(tmp, capacity);
+        header.putInt(MAGIC_OFFSET, MAGIC);
+        header.putLong(CAPACITY_OFFSET, capacity);
+        header.putLong(COUNT_OFFSET, 0);
+        header.putInt(CLEAN_OFFSET, 0);
+        close();
+        replaceWith(tmp);
+        map(file, -1);
+    }
+
+    // Only called with nothing mapped, as Windows won't rename or delete a file that is.
+    private void replaceWith(File tmp) throws IOException {
+        // On Windows rename doesn't replace an existing file, so it has to be deleted first.
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file)))
+            throw new IOException("Could not replace " + file + " with " + tmp);
+    }
+
+    /**
+     * Releases the given mapping now rather than whenever the buffer is garbage collected, where the VM allows it.
+     * The buffer must not be touched again.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null)
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+        } catch (Exception e) {
+            // Not this VM's kind of buffer, so the mapping goes when the buffer is collected.
+        }
+    }
+
+    /** Maps the given file, which is first sized for the given capacity unless that is negative. */
+    private void map(File from, long newCapacity) throws IOException {
+        randomAccessFile = new RandomAccessFile(from, "rw");
+        if (newCapacity >= 0)
+            randomAccessFile.setLength(HEADER_SIZE + newCapacity * SLOT_SIZE);
+        FileChannel channel = randomAccessFile.getChannel();
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        capacity = newCapacity >= 0 ? newCapacity : header.getLong(CAPACITY_OFFSET);
+        checkArgument(capacity > 0 && Long.bitCount(capacity) == 1, "Corrupt index capacity " + capacity);
+        mask = capacity - 1;
+        count = newCapacity >= 0 ? 0 : header.getLong(COUNT_OFFSET);
+        long slotsPerBuffer = 1L << SLOTS_PER_BUFFER_BITS;
+        int numBuffers = (int) ((capacity + slotsPerBuffer - 1) / slotsPerBuffer);
+        buffers = new MappedByteBuffer[numBuffers];
+        for (int i = 0; i < numBuffers; i++) {
+            long slots = Math.min(slotsPerBuffer, capacity - i * slotsPerBuffer);
+            buffers[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                    HEADER_SIZE + i * slotsPerBuffer * SLOT_SIZE, slots * SLOT_SIZE);
+        }
+    }
+
+    /** Returns a well mixed 64 bit hash of the given output. */
+    static long keyHash(Sha256Hash hash, long index) {
+        byte[] bytes = hash.getBytes();
+        long h = 0;
+        for (int i = 0; i < 8; i++)
+            h = (h << 8) | (bytes[i] & 0xFF);
+        h ^= index * 0x9E3779B97F4A7C15L;
+        // The finalizer from MurmurHash3.
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    /** The first slot to look in for the given key hash. */
+    long home(long keyHash) {
+        return keyHash & mask;
+    }
+
+    long next(long slot) {
+        return (slot + 1) & mask;
+    }
+
+    long getKeyHash(long slot) {
+        return buffers[(int) (slot >>> SLOTS_PER_BUFFER_BITS)].getLong(slotOffset(slot));
+    }
+
+    /** Returns the location stored in the given slot, or zero if it is empty. */
+    long getLocation(long slot) {
+        return buffers[(int) (slot >>> SLOTS_PER_BUFFER_BITS)].getLong(slotOffset(slot) + 8);
+    }
+
+    void setLocation(long slot, long location) {
+        buffers[(int) (slot >>> SLOTS_PER_BUFFER_BITS)].putLong(slotOffset(slot) + 8, location);
+    }
+
+    private void setSlot(long slot, long keyHash, long location) {
+        MappedByteBuffer buffer = buffers[(int) (slot >>> SLOTS_PER_BUFFER_BITS)];
+        int offset = slotOffset(slot);
+        buffer.putLong(offset, keyHash);
+        buffer.putLong(offset + 8, location);
+    }
+
+    private static int slotOffset(long slot) {
+        return (int) (slot & ((1L << SLOTS_PER_BUFFER_BITS) - 1)) * SLOT_SIZE;
+    }
+
+    /**
+     * Adds an entry, which the caller must already have checked is not present. The table is grown first if it is
+     * half full.
+     */
+    void insert(long keyHash, long location) throws IOException {
+        checkArgument(location != 0);
+        if ((count + 1) * 2 > capacity)
+            grow();
+        long slot = home(keyHash);
+        while (getLocation(slot) != 0)
+            slot = next(slot);
+        setSlot(slot, keyHash, location);
+        count++;
+    }
+
+    /** Removes the entry in the given slot, moving back any entries that were displaced past it. */
+    void remove(long slot) {
+        long hole = slot;
+        long j = slot;
+        while (true) {
+            j = next(j);
+            long location = getLocation(j);
+            if (location == 0)
+                break;
+            long keyHash = getKeyHash(j);
+            long home = home(keyHash);
+            // The entry at j can fill the hole unless its home lies cyclically within (hole, j].
+            boolean stays = hole <= j ? (hole < home && home <= j) : (hole < home || home <= j);
+            if (!stays) {
+                setSlot(hole, keyHash, location);
+                hole = j;
+            }
+        }
+        setSlot(hole, 0, 0);
+        count--;
+    }
+
+    private void grow() throws IOException {
+        long oldCapacity = capacity;
+        MappedByteBuffer oldHeader = header;
+        MappedByteBuffer[] oldBuffers = buffers;
+        RandomAccessFile oldFile = randomAccessFile;
+        File tmp = new File(file.getPath() + ".new");
+        if (tmp.exists() && !tmp.delete())
+            throw new IOException("Could not delete " + tmp);
+        map(tmp, oldCapacity * 2);
+        header.putInt(MAGIC_OFFSET, MAGIC);
+        header.putLong(CAPACITY_OFFSET, capacity);
+        for (long slot = 0; slot < oldCapacity; slot++) {
+            MappedByteBuffer buffer = oldBuffers[(int) (slot >>> SLOTS_PER_BUFFER_BITS)];
+            long location = buffer.getLong(slotOffset(slot) + 8);
+            if (location == 0)
+                continue;
+            long keyHash = buffer.getLong(slotOffset(slot));
+            long newSlot = home(keyHash);
+            while (getLocation(newSlot) != 0)
+                newSlot = next(newSlot);
+            setSlot(newSlot, keyHash, location);
+            count++;
+        }
+        unmap(oldHeader);
+        for (MappedByteBuffer buffer : oldBuffers)
+            unmap(buffer);
+        oldFile.close();
+        close();
+        replaceWith(tmp);
+        map(file, -1);
+    }
+
+    /** Empties the table, shrinking it back to its initial size. */
+    void clear() throws IOException {
+        close();
+        create(MIN_CAPACITY);
+    }
+
+    /** True if the table was closed cleanly after reflecting the log up to the given point. */
+    boolean isCleanAt(int segment, long position) {
+        return header.getInt(CLEAN_OFFSET) == 1 && header.getInt(SEGMENT_OFFSET) == segment &&
+                header.getLong(POSITION_OFFSET) == position;
+    }
+
+    /** Records that the table is about to be modified, so a crash from here on forces a rebuild. */
+    void markDirty() {
+        header.putInt(CLEAN_OFFSET, 0);
+        header.force();
+    }
+
+    /** Writes the table out and records that it reflects the log up to the given point. */
+    void markClean(int segment, long position) {
+        header.putLong(COUNT_OFFSET, count);
+        for (MappedByteBuffer buffer : buffers)
+            buffer.force();
+        header.putInt(SEGMENT_OFFSET, segment);
+        header.putLong(POSITION_OFFSET, position);
+        header.putInt(CLEAN_OFFSET, 1);
+        header.force();
+    }
+
+    void close() throws IOException {
+        if (header != null) {
+            header.putLong(COUNT_OFFSET, count);
+            unmap(header);
+        }
+        if (buffers != null) {
+            for (MappedByteBuffer buffer : buffers)
+                unmap(buffer);
+        }
+        header = null;
+        buffers = null;
+        if (randomAccessFile != null)
+            randomAccessFile.close();
+        randomAccessFile = null;
+    }
+}
@@ -22,22 +22,24 @@ import com.google.devcoin.crypto.EncryptedPrivateKey;
 import com.google.devcoin.crypto.KeyCrypter;
 import com.google.devcoin.crypto.KeyCrypterScrypt;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.ExtensionRegistryLite;
 import com.google.protobuf.TextFormat;
+import com.google.protobuf.UninitializedMessageException;
+import com.google.protobuf.WireFormat;
 import org.devcoinj.wallet.Protos;
 import org.devcoinj.wallet.Protos.Wallet.EncryptionType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.ListIterator;
-import java.util.Map;
+import java.util.*;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -66,6 +68,18 @@ public class WalletProtobufSerializer {
     // Used for de-serialization
     protected Map<ByteString, Transaction> txMap;
 
+    // How many transactions are read between calls to a ProgressListener.
+    private static final int PROGRESS_INTERVAL = 100;
+
+    /** Receives progress updates while a wallet is read by {@link #readWallet(InputStream, ProgressListener)}. */
+    public interface ProgressListener {
+        /**
+         * Called on the loading thread every so often while reading, and once at the end, with how many bytes and
+         * transactions of the wallet have been read so far.
+         */
+        void onProgress(long bytesRead, int transactionsRead);
+    }
+
     public WalletProtobufSerializer() {
         txMap = new HashMap<ByteString, Transaction>();
     }
@@ -97,17 +111,32 @@ public class WalletProtobufSerializer {
      * additional data fields set, before serialization takes place.
      */
     public Protos.Wallet walletToProto(Wallet wallet) {
+        return walletToProto(wallet, true);
+    }
+
+    /**
+     * Like {@link #walletToProto(Wallet)}, but if includeColdStorage is false the transactions in cold storage (see
+     * {@link Wallet#setColdStorageDepth(int)}) are left out, to be added with
+     * {@link #addColdTransactions(Protos.Wallet, NetworkParameters, Iterable)}.
+     */
+    public Protos.Wallet walletToProto(Wallet wallet, boolean includeColdStorage) {
         Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
         walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
         if (wallet.getDescription() != null) {
             walletBuilder.setDescription(wallet.getDescription());
         }
 
-        for (WalletTransaction wtx : wallet.getWalletTransactions()) {
+        // Those in cold storage are written straight from their records below, rather than rebuilt.
+        for (WalletTransaction wtx : wallet.getWalletTransactions(false)) {
             Protos.Transaction txProto = makeTxProto(wtx);
             walletBuilder.addTransaction(txProto);
         }
 
+        if (includeColdStorage) {
+            for (ColdTransaction record : wallet.getColdTransactions())
+                walletBuilder.addTransaction(makeTxProto(wallet.getNetworkParameters(), record));
+        }
+
         for (ECKey key : wallet.getKeys()) {
             Protos.Key.Builder keyBuilder = Protos.Key.newBuilder().setCreationTimestamp(key.getCreationTimeSeconds() * 1000)
                                                          // .setLabel() TODO
@@ -180,6 +209,18 @@ public class WalletProtobufSerializer {
         return walletBuilder.build();
     }
 
+    /**
+     * Returns the given wallet proto with transactions made from the given records of transactions in cold storage
+     * added. The records are serialized as they are, so this doesn't need the wallet or its lock.
+     */
+    public Protos.Wallet addColdTransactions(Protos.Wallet walletProto, NetworkParameters params,
+                                             Iterable<ColdTransaction> records) {
+        Protos.Wallet.Builder walletBuilder = walletProto.toBuilder();
+        for (ColdTransaction record : records)
+            walletBuilder.addTransaction(makeTxProto(params, record));
+        return walletBuilder.build();
+    }
+
     private static void populateExtensions(Wallet wallet, Protos.Wallet.Builder walletBuilder) {
         for (WalletExtension extension : wallet.getExtensions().values()) {
             Protos.Extension.Builder proto = Protos.Extension.newBuilder();
@@ -193,13 +234,93 @@ public class WalletProtobufSerializer {
     private static Protos.Transaction makeTxProto(WalletTransaction wtx) {
         Transaction tx = wtx.getTransaction();
         Protos.Transaction.Builder txBuilder = Protos.Transaction.newBuilder();
+        writeTx(txBuilder, wtx.getPool(), tx, tx.getUpdateTime());
         
-        txBuilder.setPool(Protos.Transaction.Pool.valueOf(wtx.getPool().getValue()))
+        // Handle outputs.
+        for (TransactionOutput output : tx.getOutputs()) {
+            Protos.TransactionOutput.Builder outputBuilder = Protos.TransactionOutput.newBuilder()
+                .setScriptBytes(ByteString.copyFrom(output.getScriptBytes()))
+                .setValue(output.getValue().longValue());
+            final TransactionInput spentBy = output.getSpentBy();
+            if (spentBy != null) {
+                Sha256Hash spendingHash = spentBy.getParentTransaction().getHash();
+                int spentByTransactionIndex = spentBy.getParentTransaction().getInputs().indexOf(spentBy);
+                outputBuilder.setSpentByTransactionHash(hashToByteString(spendingHash))
+                             .setSpentByTransactionIndex(spentByTransactionIndex);
+            }
+            txBuilder.addTransactionOutput(outputBuilder);
+        }
+        
+        writeAppearsIn(txBuilder, tx.getAppearsInHashes());
+        
+        if (tx.hasConfidence()) {
+            TransactionConfidence confidence = tx.getConfidence();
+            Protos.TransactionConfidence.Builder confidenceBuilder = Protos.TransactionConfidence.newBuilder();
+            writeConfidence(txBuilder, confidence, confidenceBuilder);
+        }
+
+        txBuilder.setPurpose(purposeToProto(tx.getPurpose()));
+        
+        return txBuilder.build();
+    }
+
+    /**
+     * Makes the same proto as for the rehydrated transaction, but straight from the record: the transaction is only
+     * parsed for its inputs and outputs, and everything else comes from the record.
+     */
+    private static Protos.Transaction makeTxProto(NetworkParameters params, ColdTransaction record) {
+        Transaction tx;
+        try {
+            tx = new Transaction(params, record.bitcoinSerialize());
+        } catch (ProtocolException e) {
+            throw new RuntimeException(e);  // Cannot happen, the wallet serialized it.
+        }
+        Protos.Transaction.Builder txBuilder = Protos.Transaction.newBuilder();
+        writeTx(txBuilder, record.getPool(), tx, record.getUpdateTime());
+
+        for (int i = 0; i < record.getOutputCount(); i++) {
+            TransactionOutput output = tx.getOutput(i);
+            Protos.TransactionOutput.Builder outputBuilder = Protos.TransactionOutput.newBuilder()
+                .setScriptBytes(ByteString.copyFrom(output.getScriptBytes()))
+                .setValue(output.getValue().longValue());
+            Sha256Hash spendingHash = record.getSpentByHash(i);
+            if (spendingHash != null) {
+                outputBuilder.setSpentByTransactionHash(hashToByteString(spendingHash))
+                             .setSpentByTransactionIndex(record.getSpentByIndex(i));
+            }
+            txBuilder.addTransactionOutput(outputBuilder);
+        }
+
+        writeAppearsIn(txBuilder, record.getAppearsInHashes());
+
+        Protos.TransactionConfidence.Builder confidenceBuilder = Protos.TransactionConfidence.newBuilder();
+        confidenceBuilder.setType(Protos.TransactionConfidence.Type.valueOf(record.getConfidenceType().getValue()));
+        if (record.getConfidenceType() == ConfidenceType.BUILDING) {
+            confidenceBuilder.setAppearedAtHeight(record.getAppearedAtChainHeight());
+            confidenceBuilder.setDepth(record.getDepthInBlocks());
+            if (record.getWorkDone() != null) {
+                confidenceBuilder.setWorkDone(record.getWorkDone().longValue());
+            }
+        }
+        if (record.getConfidenceType() == ConfidenceType.DEAD && record.getOverridingTransaction() != null) {
+            confidenceBuilder.setOverridingTransaction(hashToByteString(record.getOverridingTransaction().getHash()));
+        }
+        writeSourceAndBroadcastBy(txBuilder, confidenceBuilder, record.getSource(),
+                record.getBroadcastBy().listIterator());
+
+        txBuilder.setPurpose(purposeToProto(record.getPurpose()));
+        return txBuilder.build();
+    }
+
+    /** Writes the pool, hash, version, update time, lock time and inputs. */
+    private static void writeTx(Protos.Transaction.Builder txBuilder, WalletTransaction.Pool pool, Transaction tx,
+                                @Nullable Date updateTime) {
+        txBuilder.setPool(Protos.Transaction.Pool.valueOf(pool.getValue()))
                  .setHash(hashToByteString(tx.getHash()))
                  .setVersion((int) tx.getVersion());
 
-        if (tx.getUpdateTime() != null) {
-            txBuilder.setUpdatedAt(tx.getUpdateTime().getTime());
+        if (updateTime != null) {
+            txBuilder.setUpdatedAt(updateTime.getTime());
         }
         
         if (tx.getLockTime() > 0) {
@@ -217,53 +338,35 @@ public class WalletProtobufSerializer {
             }
             txBuilder.addTransactionInput(inputBuilder);
         }
-        
-        // Handle outputs.
-        for (TransactionOutput output : tx.getOutputs()) {
-            Protos.TransactionOutput.Builder outputBuilder = Protos.TransactionOutput.newBuilder()
-                .setScriptBytes(ByteString.copyFrom(output.getScriptBytes()))
-                .setValue(output.getValue().longValue());
-            final TransactionInput spentBy = output.getSpentBy();
-            if (spentBy != null) {
-                Sha256Hash spendingHash = spentBy.getParentTransaction().getHash();
-                int spentByTransactionIndex = spentBy.getParentTransaction().getInputs().indexOf(spentBy);
-                outputBuilder.setSpentByTransactionHash(hashToByteString(spendingHash))
-                             .setSpentByTransactionIndex(spentByTransactionIndex);
-            }
-            txBuilder.addTransactionOutput(outputBuilder);
-        }
-        
-        // Handle which blocks tx was seen in.
-        final Map<Sha256Hash, Integer> appearsInHashes = tx.getAppearsInHashes();
+    }
+
+    /** Writes which blocks the tx was seen in. */
+    private static void writeAppearsIn(Protos.Transaction.Builder txBuilder,
+                                       @Nullable Map<Sha256Hash, Integer> appearsInHashes) {
         if (appearsInHashes != null) {
             for (Map.Entry<Sha256Hash, Integer> entry : appearsInHashes.entrySet()) {
                 txBuilder.addBlockHash(hashToByteString(entry.getKey()));
                 txBuilder.addBlockRelativityOffsets(entry.getValue());
             }
         }
-        
-        if (tx.hasConfidence()) {
-            TransactionConfidence confidence = tx.getConfidence();
-            Protos.TransactionConfidence.Builder confidenceBuilder = Protos.TransactionConfidence.newBuilder();
-            writeConfidence(txBuilder, confidence, confidenceBuilder);
-        }
+    }
 
+    private static Protos.Transaction.Purpose purposeToProto(Transaction.Purpose txPurpose) {
         Protos.Transaction.Purpose purpose;
-        switch (tx.getPurpose()) {
+        switch (txPurpose) {
             case UNKNOWN: purpose = Protos.Transaction.Purpose.UNKNOWN; break;
             case USER_PAYMENT: purpose = Protos.Transaction.Purpose.USER_PAYMENT; break;
             case KEY_ROTATION: purpose = Protos.Transaction.Purpose.KEY_ROTATION; break;
             default:
                 throw new RuntimeException("New tx purpose serialization not implemented.");
         }
-        txBuilder.setPurpose(purpose);
-        
-        return txBuilder.build();
+        return purpose;
     }
 
     private static void writeConfidence(Protos.Transaction.Builder txBuilder,
                                         TransactionConfidence confidence,
                                         Protos.TransactionConfidence.Builder confidenceBuilder) {
+        TransactionConfidence.Source source;
         synchronized (confidence) {
             confidenceBuilder.setType(Protos.TransactionConfidence.Type.valueOf(confidence.getConfidenceType().getValue()));
             if (confidence.getConfidenceType() == ConfidenceType.BUILDING) {
@@ -281,18 +384,25 @@ public class WalletProtobufSerializer {
                     confidenceBuilder.setOverridingTransaction(hashToByteString(overridingHash));
                 }
             }
-            TransactionConfidence.Source source = confidence.getSource();
-            switch (source) {
-                case SELF: confidenceBuilder.setSource(Protos.TransactionConfidence.Source.SOURCE_SELF); break;
-                case NETWORK: confidenceBuilder.setSource(Protos.TransactionConfidence.Source.SOURCE_NETWORK); break;
-                case UNKNOWN:
-                    // Fall through.
-                default:
-                    confidenceBuilder.setSource(Protos.TransactionConfidence.Source.SOURCE_UNKNOWN); break;
-            }
+            source = confidence.getSource();
         }
+        writeSourceAndBroadcastBy(txBuilder, confidenceBuilder, source, confidence.getBroadcastBy());
+    }
 
-        for (ListIterator<PeerAddress> it = confidence.getBroadcastBy(); it.hasNext();) {
+    private static void writeSourceAndBroadcastBy(Protos.Transaction.Builder txBuilder,
+                                                  Protos.TransactionConfidence.Builder confidenceBuilder,
+                                                  TransactionConfidence.Source source,
+                                                  ListIterator<PeerAddress> broadcastBy) {
+        switch (source) {
+            case SELF: confidenceBuilder.setSource(Protos.TransactionConfidence.Source.SOURCE_SELF); break;
+            case NETWORK: confidenceBuilder.setSource(Protos.TransactionConfidence.Source.SOURCE_NETWORK); break;
+            case UNKNOWN:
+                // Fall through.
+            default:
+                confidenceBuilder.setSource(Protos.TransactionConfidence.Source.SOURCE_UNKNOWN); break;
+        }
+
+        for (ListIterator<PeerAddress> it = broadcastBy; it.hasNext();) {
             PeerAddress address = it.next();
             Protos.PeerAddress proto = Protos.PeerAddress.newBuilder()
                     .setIpAddress(ByteString.copyFrom(address.getAddr().getAddress()))
@@ -324,19 +434,7 @@ public class WalletProtobufSerializer {
      * @throws UnreadableWalletException thrown in various error conditions (see description).
      */
     public Wallet readWallet(InputStream input) throws UnreadableWalletException {
-        Protos.Wallet walletProto = null;
-        try {
-            walletProto = parseToProto(input);
-        } catch (IOException e) {
-            throw new UnreadableWalletException("Could not load wallet file", e);
-        }
-
-        // System.out.println(TextFormat.printToString(walletProto));
-
-        NetworkParameters params = NetworkParameters.fromID(walletProto.getNetworkIdentifier());
-        Wallet wallet = new Wallet(params);
-        readWallet(walletProto, wallet);
-        return wallet;
+        return readWallet(input, null);
     }
 
     /**
@@ -351,6 +449,145 @@ public class WalletProtobufSerializer {
      * @throws UnreadableWalletException thrown in various error conditions (see description).
      */
     public void readWallet(Protos.Wallet walletProto, Wallet wallet) throws UnreadableWalletException {
+        readKeys(walletProto, wallet);
+
+        // Read all transactions and insert into the txMap.
+        for (Protos.Transaction txProto : walletProto.getTransactionList()) {
+            readTransaction(txProto, wallet.getParams());
+        }
+
+        // Update transaction outputs to point to inputs that spend them
+        for (Protos.Transaction txProto : walletProto.getTransactionList()) {
+            WalletTransaction wtx = connectTransactionOutputs(txProto);
+            wallet.addWalletTransaction(wtx);
+        }
+
+        readWalletState(walletProto, wallet);
+
+        // Make sure the object can be re-used to read another wallet without corruption.
+        txMap.clear();
+    }
+
+    /**
+     * <p>Like {@link #readWallet(java.io.InputStream)}, but reports progress to the given listener as it goes.</p>
+     *
+     * <p>The wallet is read straight from the stream a field at a time, rather than being parsed into a
+     * {@link Protos.Wallet} first, so only one transaction's protocol buffer is held in memory at once alongside the
+     * wallet being built. The outputs of each transaction are connected to the inputs that spend them as soon as both
+     * have been read, using the index of transactions by hash, instead of in a second pass.</p>
+     *
+     * @throws UnreadableWalletException thrown in various error conditions (see {@link #readWallet(java.io.InputStream)}).
+     */
+    public Wallet readWallet(InputStream input, @Nullable ProgressListener listener) throws UnreadableWalletException {
+        try {
+            CodedInputStream stream = CodedInputStream.newInstance(input);
+            // Large wallets can be bigger than the default limit, which is meant to protect against malicious data.
+            stream.setSizeLimit(Integer.MAX_VALUE);
+            // Everything except the transactions is small, so it's gathered up and read at the end, in the same way
+            // as by readWallet(Protos.Wallet, Wallet).
+            Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
+            Wallet wallet = null;
+            List<WalletTransaction> transactions = new ArrayList<WalletTransaction>();
+            List<Protos.TransactionConfidence> confidences = new ArrayList<Protos.TransactionConfidence>();
+            // Outputs whose spending transaction hasn't been read yet, by the hash of that transaction.
+            Map<ByteString, List<UnconnectedOutput>> unconnectedOutputs = new HashMap<ByteString, List<UnconnectedOutput>>();
+            while (true) {
+                int tag = stream.readTag();
+                if (tag == 0)
+                    break;
+                switch (WireFormat.getTagFieldNumber(tag)) {
+                    case Protos.Wallet.NETWORK_IDENTIFIER_FIELD_NUMBER:
+                        String id = stream.readString();
+                        NetworkParameters params = NetworkParameters.fromID(id);
+                        if (params == null)
+                            throw new UnreadableWalletException("Unknown network parameters ID " + id);
+                        walletBuilder.setNetworkIdentifier(id);
+                        wallet = new Wallet(params);
+                        break;
+                    case Protos.Wallet.LAST_SEEN_BLOCK_HASH_FIELD_NUMBER:
+                        walletBuilder.setLastSeenBlockHash(stream.readBytes());
+                        break;
+                    case Protos.Wallet.LAST_SEEN_BLOCK_HEIGHT_FIELD_NUMBER:
+                        walletBuilder.setLastSeenBlockHeight(stream.readUInt32());
+                        break;
+                    case Protos.Wallet.KEY_FIELD_NUMBER:
+                        Protos.Key.Builder key = Protos.Key.newBuilder();
+                        stream.readMessage(key, ExtensionRegistryLite.getEmptyRegistry());
+                        walletBuilder.addKey(key.build());
+                        break;
+                    case Protos.Wallet.TRANSACTION_FIELD_NUMBER:
+                        // The network identifier is field 1, so it comes first.
+                        if (wallet == null)
+                            throw new UnreadableWalletException("Transactions found before the network identifier");
+                        Protos.Transaction.Builder tx = Protos.Transaction.newBuilder();
+                        stream.readMessage(tx, ExtensionRegistryLite.getEmptyRegistry());
+                        Protos.Transaction txProto = tx.build();
+                        transactions.add(readAndConnectTransaction(txProto, wallet.getParams(), unconnectedOutputs));
+                        confidences.add(txProto.hasConfidence() ? txProto.getConfidence() : null);
+                        if (listener != null && transactions.size() % PROGRESS_INTERVAL == 0)
+                            listener.onProgress(stream.getTotalBytesRead(), transactions.size());
+                        break;
+                    case Protos.Wallet.ENCRYPTION_TYPE_FIELD_NUMBER:
+                        EncryptionType encryptionType = EncryptionType.valueOf(stream.readEnum());
+                        if (encryptionType != null)
+                            walletBuilder.setEncryptionType(encryptionType);
+                        break;
+                    case Protos.Wallet.ENCRYPTION_PARAMETERS_FIELD_NUMBER:
+                        Protos.ScryptParameters.Builder encryptionParameters = Protos.ScryptParameters.newBuilder();
+                        stream.readMessage(encryptionParameters, ExtensionRegistryLite.getEmptyRegistry());
+                        walletBuilder.setEncryptionParameters(encryptionParameters.build());
+                        break;
+                    case Protos.Wallet.VERSION_FIELD_NUMBER:
+                        walletBuilder.setVersion(stream.readInt32());
+                        break;
+                    case Protos.Wallet.EXTENSION_FIELD_NUMBER:
+                        Protos.Extension.Builder extension = Protos.Extension.newBuilder();
+                        stream.readMessage(extension, ExtensionRegistryLite.getEmptyRegistry());
+                        walletBuilder.addExtension(extension.build());
+                        break;
+                    case Protos.Wallet.DESCRIPTION_FIELD_NUMBER:
+                        walletBuilder.setDescription(stream.readString());
+                        break;
+                    case Protos.Wallet.KEY_ROTATION_TIME_FIELD_NUMBER:
+                        walletBuilder.setKeyRotationTime(stream.readUInt64());
+                        break;
+                    default:
+                        stream.skipField(tag);
+                }
+            }
+            if (wallet == null)
+                throw new UnreadableWalletException("Wallet has no network identifier");
+            if (!unconnectedOutputs.isEmpty()) {
+                Map.Entry<ByteString, List<UnconnectedOutput>> entry = unconnectedOutputs.entrySet().iterator().next();
+                throw new UnreadableWalletException(String.format("Could not connect %s to %s",
+                        entry.getValue().get(0).output.getParentTransaction().getHashAsString(),
+                        byteStringToHash(entry.getKey())));
+            }
+
+            Protos.Wallet walletProto = walletBuilder.build();
+            readKeys(walletProto, wallet);
+            // Confidences can refer to any other transaction, so they're read once all are known.
+            for (int i = 0; i < transactions.size(); i++) {
+                WalletTransaction wtx = transactions.get(i);
+                if (confidences.get(i) != null)
+                    readConfidence(wtx.getTransaction(), confidences.get(i), wtx.getTransaction().getConfidence());
+                wallet.addWalletTransaction(wtx);
+            }
+            readWalletState(walletProto, wallet);
+            if (listener != null)
+                listener.onProgress(stream.getTotalBytesRead(), transactions.size());
+            return wallet;
+        } catch (IOException e) {
+            throw new UnreadableWalletException("Could not load wallet file", e);
+        } catch (UninitializedMessageException e) {
+            throw new UnreadableWalletException("Could not load wallet file", e);
+        } finally {
+            // Make sure the object can be re-used to read another wallet without corruption.
+            txMap.clear();
+        }
+    }
+
+    private void readKeys(Protos.Wallet walletProto, Wallet wallet) throws UnreadableWalletException {
         // Read the scrypt parameters that specify how encryption and decryption is performed.
         if (walletProto.hasEncryptionParameters()) {
             Protos.ScryptParameters encryptionParameters = walletProto.getEncryptionParameters();
@@ -389,18 +626,9 @@ public class WalletProtobufSerializer {
             ecKey.setCreationTimeSeconds((keyProto.getCreationTimestamp() + 500) / 1000);
             wallet.addKey(ecKey);
         }
+    }
 
-        // Read all transactions and insert into the txMap.
-        for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-            readTransaction(txProto, wallet.getParams());
-        }
-
-        // Update transaction outputs to point to inputs that spend them
-        for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-            WalletTransaction wtx = connectTransactionOutputs(txProto);
-            wallet.addWalletTransaction(wtx);
-        }
-
+    private void readWalletState(Protos.Wallet walletProto, Wallet wallet) throws UnreadableWalletException {
         // Update the lastBlockSeenHash.
         if (!walletProto.hasLastSeenBlockHash()) {
             wallet.setLastBlockSeenHash(null);
@@ -422,9 +650,6 @@ public class WalletProtobufSerializer {
         if (walletProto.hasVersion()) {
             wallet.setVersion(walletProto.getVersion());
         }
-
-        // Make sure the object can be re-used to read another wallet without corruption.
-        txMap.clear();
     }
 
     private static void loadExtensions(Wallet wallet, Protos.Wallet walletProto) throws UnreadableWalletException {
@@ -516,8 +741,7 @@ public class WalletProtobufSerializer {
         txMap.put(txProto.getHash(), tx);
     }
 
-    private WalletTransaction connectTransactionOutputs(org.devcoinj.wallet.Protos.Transaction txProto) throws UnreadableWalletException {
-        Transaction tx = txMap.get(txProto.getHash());
+    private static WalletTransaction.Pool readPool(Protos.Transaction txProto) {
         WalletTransaction.Pool pool = WalletTransaction.Pool.valueOf(txProto.getPool().getNumber());
         if (pool == WalletTransaction.Pool.INACTIVE || pool == WalletTransaction.Pool.PENDING_INACTIVE) {
             // Upgrade old wallets: inactive pool has been merged with the pending pool.
@@ -526,6 +750,60 @@ public class WalletProtobufSerializer {
             // in this state.
             pool = WalletTransaction.Pool.PENDING;
         }
+        return pool;
+    }
+
+    private static class UnconnectedOutput {
+        final TransactionOutput output;
+        final int spendingIndex;
+
+        UnconnectedOutput(TransactionOutput output, int spendingIndex) {
+            this.output = output;
+            this.spendingIndex = spendingIndex;
+        }
+    }
+
+    // Reads the transaction, then connects its outputs to the inputs spending them and its inputs to the outputs they
+    // spend, where the other transaction has already been read. The rest are left in unconnectedOutputs.
+    private WalletTransaction readAndConnectTransaction(Protos.Transaction txProto, NetworkParameters params,
+            Map<ByteString, List<UnconnectedOutput>> unconnectedOutputs) throws UnreadableWalletException {
+        readTransaction(txProto, params);
+        Transaction tx = txMap.get(txProto.getHash());
+        for (int i = 0 ; i < tx.getOutputs().size() ; i++) {
+            final Protos.TransactionOutput transactionOutput = txProto.getTransactionOutput(i);
+            if (!transactionOutput.hasSpentByTransactionHash())
+                continue;
+            final ByteString spentByTransactionHash = transactionOutput.getSpentByTransactionHash();
+            UnconnectedOutput unconnected = new UnconnectedOutput(tx.getOutputs().get(i),
+                    transactionOutput.getSpentByTransactionIndex());
+            Transaction spendingTx = txMap.get(spentByTransactionHash);
+            if (spendingTx != null) {
+                connect(spendingTx, unconnected);
+            } else {
+                List<UnconnectedOutput> outputs = unconnectedOutputs.get(spentByTransactionHash);
+                if (outputs == null) {
+                    outputs = new LinkedList<UnconnectedOutput>();
+                    unconnectedOutputs.put(spentByTransactionHash, outputs);
+                }
+                outputs.add(unconnected);
+            }
+        }
+        List<UnconnectedOutput> spentByThis = unconnectedOutputs.remove(txProto.getHash());
+        if (spentByThis != null) {
+            for (UnconnectedOutput unconnected : spentByThis)
+                connect(tx, unconnected);
+        }
+        return new WalletTransaction(readPool(txProto), tx);
+    }
+
+    private static void connect(Transaction spendingTx, UnconnectedOutput unconnected) {
+        TransactionInput input = checkNotNull(spendingTx.getInput(unconnected.spendingIndex));
+        input.connect(unconnected.output);
+    }
+
+    private WalletTransaction connectTransactionOutputs(org.devcoinj.wallet.Protos.Transaction txProto) throws UnreadableWalletException {
+        Transaction tx = txMap.get(txProto.getHash());
+        WalletTransaction.Pool pool = readPool(txProto);
         for (int i = 0 ; i < tx.getOutputs().size() ; i++) {
             TransactionOutput output = tx.getOutputs().get(i);
             final Protos.TransactionOutput transactionOutput = txProto.getTransactionOutput(i);
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.utils;
+
+import com.google.devcoin.core.Block;
+import com.google.devcoin.core.NetworkParameters;
+import com.google.devcoin.core.ProtocolException;
+import com.google.devcoin.core.VerificationException;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Reads block files stored in the reference/Satoshi client format like {@link BlockFileLoader}, but much faster,
+ * for bulk imports. Each file is memory mapped and scanned for block boundaries on the calling thread, while a pool
+ * of worker threads parses the blocks, calculates their hashes and runs the checks that need no chain context
+ * ({@link Block#verify()}). Blocks are still returned in the order they appear in the files, so they can be passed
+ * straight to {@link com.google.devcoin.core.AbstractBlockChain#add(Block)}, which skips the checks already done.</p>
+ *
+ * <p>A block that fails verification is returned anyway, so that the chain rejects it as it would have otherwise.
+ * Blocks which can't be parsed are skipped, as {@link BlockFileLoader} does.</p>
+ *
+ * <p>The worker threads are daemon threads, and are stopped once the last block has been returned or
+ * {@link #shutdown()} is called. They also exit once they have been idle for a few seconds, so a loader which is
+ * dropped part way through without being shut down doesn't keep them; a new one is started if it is used again.</p>
+ */
+public class ParallelBlockFileLoader implements Iterable<Block>, Iterator<Block> {
+    private static final Logger log = LoggerFactory.getLogger(ParallelBlockFileLoader.class);
+
+    // How many blocks each worker thread may have parsed or be parsing ahead of the one being returned.
+    private static final int BLOCKS_AHEAD_PER_THREAD = 4;
+    // How long a worker thread waits for another block before it exits.
+    private static final long IDLE_THREAD_TIMEOUT_SECS = 5;
+
+    private final NetworkParameters params;
+    private final Iterator<File> fileIt;
+    private final ThreadPoolExecutor executor;
+    private final int maxBlocksAhead;
+    private final LinkedList<Future<Block>> pending = new LinkedList<Future<Block>>();
+    // The unread part of the current file.
+    private ByteBuffer buffer;
+    private Block nextBlock;
+    private int skippedBlocks;
+
+    /** Creates a loader with a worker thread per processor. */
+    public ParallelBlockFileLoader(NetworkParameters params, List<File> files) {
+        this(params, files, Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelBlockFileLoader(NetworkParameters params, List<File> files, int numThreads) {
+        checkArgument(numThreads > 0);
+        this.params = params;
+        this.fileIt = files.iterator();
+        this.maxBlocksAhead = numThreads * BLOCKS_AHEAD_PER_THREAD;
+        ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Block file loader thread %d");
+        Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+        if (handler != null)
+            builder.setUncaughtExceptionHandler(handler);
+        this.executor = new ThreadPoolExecutor(numThreads, numThreads, IDLE_THREAD_TIMEOUT_SECS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), builder.build());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (nextBlock == null) {
+            queueBlocks();
+            if (pending.isEmpty()) {
+                executor.shutdown();
+                return false;
+            }
+            try {
+                nextBlock = pending.removeFirst().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                if (!(e.getCause() instanceof ProtocolException))
+                    throw new RuntimeException(e.getCause());
+                log.warn("Skipping block which could not be parsed", e.getCause());
+                skippedBlocks++;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Block next() throws NoSuchElementException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        Block next = nextBlock;
+        nextBlock = null;
+        return next;
+    }
+
+    /** Returns how many blocks have been skipped because they could not be parsed. */
+    public int getSkippedBlockCount() {
+        return skippedBlocks;
+    }
+
+    /** Stops the worker threads, after which no more blocks are returned. */
+    public void shutdown() {
+        executor.shutdownNow();
+        pending.clear();
+        nextBlock = null;
+        buffer = null;
+        while (fileIt.hasNext())
+            fileIt.next();
+    }
+
+    /** Hands blocks to the worker threads until enough are queued up or the files run out. */
+    private void queueBlocks() {
+        while (pending.size() < maxBlocksAhead) {
+            final ByteBuffer blockBuffer = findNextBlock();
+            if (blockBuffer == null)
+                return;
+            pending.add(executor.submit(new Callable<Block>() {
+                public Block call() throws ProtocolException {
+                    byte[] bytes = new byte[blockBuffer.remaining()];
+                    blockBuffer.get(bytes);
+                    Block block = new Block(params, bytes);
+                    try {
+                        block.verify();
+                    } catch (VerificationException e) {
+                        // Left for the chain to reject.
+                        log.debug("Block {} failed verification: {}", block.getHashAsString(), e.getMessage());
+                    }
+                    return block;
+                }
+            }));
+        }
+    }
+
+    /**
+     * Returns a buffer holding the bytes of the next block in the files, or null if there are none left. Like
+     * {@link BlockFileLoader} this scans for the packet magic, skipping anything else including the zeroes the
+     * reference client pads its files with, and ignores blocks whose length is out of range.
+     */
+    private ByteBuffer findNextBlock() {
+        int magic = (int) params.getPacketMagic();
+        while (true) {
+            if (buffer == null || buffer.remaining() < 8) {
+                if (!fileIt.hasNext())
+                    return null;
+                buffer = map(fileIt.next());
+                continue;
+            }
+            int position = buffer.position();
+            int limit = buffer.limit() - 8;
+            // The magic is written big endian, as ByteBuffer reads it by default.
+            while (position <= limit && buffer.getInt(position) != magic)
+                position++;
+            if (position > limit) {
+                buffer = null;
+                continue;
+            }
+            // The length is little endian.
+            long size = Integer.reverseBytes(buffer.getInt(position + 4)) & 0xFFFFFFFFL;
+            position += 8;
+            buffer.position(position);
+            // We allow larger than MAX_BLOCK_SIZE because test code uses this as well.
+            if (size > Block.MAX_BLOCK_SIZE * 2 || size <= 0)
+                continue;
+            if (size > buffer.remaining()) {
+                log.warn("Block file ends part way through a block");
+                buffer = null;
+                continue;
+            }
+            ByteBuffer blockBuffer = buffer.duplicate();
+            blockBuffer.limit(position + (int) size);
+            buffer.position(position + (int) size);
+            return blockBuffer;
+        }
+    }
+
+    private static ByteBuffer map(File file) {
+        try {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            try {
+                // The mapping stays valid after the file is closed, and is released once no longer referenced.
+                FileChannel channel = randomAccessFile.getChannel();
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                randomAccessFile.close();
+            }
+        } catch (IOException e) {
+            log.warn("Could not read block file " + file, e);
+            return null;
+        }
+    }
+
+    @Override
+    public void remove() throws UnsupportedOperationException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Iterator<Block> iterator() {
+        return this;
+    }
+}
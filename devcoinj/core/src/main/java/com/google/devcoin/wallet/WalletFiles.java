@@ -16,17 +16,23 @@
 
 package com.google.devcoin.wallet;
 
+import com.google.devcoin.core.Utils;
 import com.google.devcoin.core.Wallet;
 import com.google.devcoin.utils.Threading;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.devcoinj.wallet.Protos;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -35,6 +41,14 @@ import static com.google.common.base.Preconditions.checkNotNull;
  * It can be useful to delay writing of a wallet file to disk on slow devices where disk and serialization overhead
  * can come to dominate the chain processing speed, i.e. on Android phones. By coalescing writes and doing serialization
  * and disk IO on a background thread performance can be improved.
+ *
+ * <p>The wallet is only locked while an immutable snapshot of it is taken, see {@link Wallet#snapshotToProto()}.
+ * Encoding the snapshot and syncing it to disk, which on slow flash storage can take hundreds of milliseconds, happen
+ * with no lock held so the wallet can carry on receiving blocks and transactions meanwhile.</p>
+ *
+ * <p>Large wallets can be saved in journaled mode, see {@link #setJournaled(boolean)}, in which only what changed is
+ * appended to a journal next to the wallet file, and the whole wallet is only rewritten now and then in the
+ * background.</p>
  */
 public class WalletFiles {
     private static final Logger log = LoggerFactory.getLogger(WalletFiles.class);
@@ -46,6 +60,17 @@ public class WalletFiles {
     private final long delay;
     private final TimeUnit delayTimeUnit;
     private final Callable<Void> saver;
+    private final AtomicBoolean compactionPending;
+    private final Callable<Void> compactor;
+
+    // Saves are numbered before they snapshot the wallet, and a save is only renamed into place or journaled if no
+    // later numbered save got there first. That save's snapshot was taken after ours was requested, so nothing is lost
+    // by dropping ours, and the file never goes back to an older state when saves overlap.
+    private final AtomicLong saveSequence = new AtomicLong();
+    private final ReentrantLock saveLock = Threading.lock("walletfiles");
+    @GuardedBy("saveLock") private long lastSavedSequence;
+    @GuardedBy("saveLock") private WalletJournal journal;
+    private volatile boolean vJournaled;
 
     private volatile Listener vListener;
 
@@ -55,7 +80,8 @@ public class WalletFiles {
     public interface Listener {
         /**
          * Called on the auto-save thread when a new temporary file is created but before the wallet data is saved
-         * to it. If you want to do something here like adjust permissions, go ahead and do so.
+         * to it. If you want to do something here like adjust permissions, go ahead and do so. In journaled mode this
+         * is only called when the whole wallet is written out, not when changes are appended to the journal.
          */
         public void onBeforeAutoSave(File tempFile);
 
@@ -65,6 +91,18 @@ public class WalletFiles {
         public void onAfterAutoSave(File newlySavedFile);
     }
 
+    /**
+     * A {@link Listener} which is also told how long each save took. Pass one to {@link #setListener(Listener)} like
+     * any other listener.
+     */
+    public interface SaveTimingListener extends Listener {
+        /**
+         * Called on the saving thread once a save is over, with how long it took in total and how much of that was
+         * spent taking the snapshot of the wallet, during which the wallet is locked.
+         */
+        public void onSaveCompleted(long saveMillis, long lockHeldMillis);
+    }
+
     public WalletFiles(final Wallet wallet, File file, long delay, TimeUnit delayTimeUnit) {
         final ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
                 .setDaemon(true)
@@ -92,7 +130,16 @@ public class WalletFiles {
                     return null;
                 }
                 log.info("Background saving wallet, last seen block is {}/{}", wallet.getLastBlockSeenHeight(), wallet.getLastBlockSeenHash());
-                saveNowInternal();
+                saveNowInternal(false);
+                return null;
+            }
+        };
+        this.compactionPending = new AtomicBoolean();
+        this.compactor = new Callable<Void>() {
+            @Override public Void call() throws Exception {
+                compactionPending.set(false);
+                log.info("Compacting wallet journal");
+                saveNowInternal(true);
                 return null;
             }
         };
@@ -107,23 +154,153 @@ public class WalletFiles {
 
     /** Actually write the wallet file to disk, using an atomic rename when possible. Runs on the current thread. */
     public void saveNow() throws IOException {
-        // Can be called by any thread. However the wallet is locked whilst saving, so we can have two saves in flight
-        // but they will serialize (using different temp files).
+        // Can be called by any thread. Two saves can be in flight at once, using different temp files, in which case
+        // the one that snapshotted the wallet last ends up in the file.
         log.info("Saving wallet, last seen block is {}/{}", wallet.getLastBlockSeenHeight(), wallet.getLastBlockSeenHash());
-        saveNowInternal();
+        saveNowInternal(false);
+    }
+
+    /**
+     * <p>Turns journaled mode on or off. In journaled mode the wallet file is a base snapshot and each save appends
+     * only what changed since the last one to a journal next to it, which is much cheaper than rewriting the whole
+     * wallet once it holds many transactions. When the journal grows large it is folded into a new base snapshot on
+     * the auto-save thread. See {@link WalletJournal} for details.</p>
+     *
+     * <p>{@link Wallet#loadFromFile(java.io.File)} replays the journal when loading, so nothing else needs to
+     * change. The first save after turning journaled mode on or off writes the whole wallet.</p>
+     */
+    public void setJournaled(boolean journaled) {
+        saveLock.lock();
+        try {
+            vJournaled = journaled;
+            if (journaled && journal == null)
+                journal = new WalletJournal(file);
+        } finally {
+            saveLock.unlock();
+        }
     }
 
-    private void saveNowInternal() throws IOException {
-        long now = System.currentTimeMillis();
+    /** Returns true if journaled mode is on, see {@link #setJournaled(boolean)}. */
+    public boolean isJournaled() {
+        return vJournaled;
+    }
+
+    private void saveNowInternal(boolean compact) throws IOException {
+        long start = System.currentTimeMillis();
+        long sequence = saveSequence.incrementAndGet();
+        Protos.Wallet snapshot = wallet.snapshotToProto();
+        long lockHeld = System.currentTimeMillis() - start;
+        final Listener listener = vListener;
+        boolean saved = vJournaled ? saveToJournal(snapshot, sequence, compact, listener)
+                                   : saveToFile(snapshot, sequence, listener);
+        if (!saved) {
+            log.info("Dropped save as a more recent one has already completed");
+            return;
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        if (listener != null) {
+            listener.onAfterAutoSave(file);
+            if (listener instanceof SaveTimingListener)
+                ((SaveTimingListener) listener).onSaveCompleted(elapsed, lockHeld);
+        }
+        log.info("Save completed in {}msec, wallet locked for {}msec", elapsed, lockHeld);
+    }
+
+    private boolean saveToFile(Protos.Wallet snapshot, long sequence, Listener listener) throws IOException {
         File directory = file.getAbsoluteFile().getParentFile();
         File temp = File.createTempFile("wallet", null, directory);
-        final Listener listener = vListener;
         if (listener != null)
             listener.onBeforeAutoSave(temp);
-        wallet.saveToFile(temp, file);
-        if (listener != null)
-            listener.onAfterAutoSave(file);
-        log.info("Save completed in {}msec", System.currentTimeMillis() - now);
+        boolean dropped = false;
+        try {
+            writeToFile(snapshot, temp);
+            saveLock.lock();
+            try {
+                if (sequence > lastSavedSequence) {
+                    lastSavedSequence = sequence;
+                    rename(temp, file);
+                    if (journal != null) {
+                        // Journaled mode was turned off, so the journal is out of date now.
+                        WalletJournal.getJournalFile(file).delete();
+                        journal = null;
+                    }
+                } else {
+                    dropped = true;
+                }
+            } finally {
+                saveLock.unlock();
+            }
+        } finally {
+            if (temp.delete() && !dropped)
+                log.warn("Deleted temp file after failed save.");
+        }
+        return !dropped;
+    }
+
+    private boolean saveToJournal(Protos.Wallet snapshot, long sequence, boolean compact, Listener listener)
+            throws IOException {
+        // Appends must happen in order, so unlike whole file saves these are written with the lock held. Appending
+        // only what changed is quick, and compaction normally happens on the auto-save thread.
+        saveLock.lock();
+        try {
+            if (sequence < lastSavedSequence)
+                return false;
+            lastSavedSequence = sequence;
+            if (journal == null)
+                journal = new WalletJournal(file);
+            if (!compact && journal.append(snapshot)) {
+                if (journal.isCompactionDue() && !compactionPending.getAndSet(true))
+                    executor.submit(compactor);
+                return true;
+            }
+            File temp = File.createTempFile("wallet", null, file.getAbsoluteFile().getParentFile());
+            if (listener != null)
+                listener.onBeforeAutoSave(temp);
+            journal.compact(snapshot, temp);
+            return true;
+        } finally {
+            saveLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the given wallet snapshot first to the given temp file, then renames it to the dest file. No locks are
+     * held, see {@link Wallet#snapshotToProto()}.
+     */
+    public static void writeSnapshot(Protos.Wallet snapshot, File temp, File destFile) throws IOException {
+        try {
+            writeToFile(snapshot, temp);
+            rename(temp, destFile);
+        } finally {
+            if (temp.delete())
+                log.warn("Deleted temp file after failed save.");
+        }
+    }
+
+    private static void writeToFile(Protos.Wallet snapshot, File temp) throws IOException {
+        FileOutputStream stream = new FileOutputStream(temp);
+        try {
+            snapshot.writeTo(stream);
+            // Attempt to force the bits to hit the disk. In reality the OS or hard disk itself may still decide
+            // to not write through to physical media for at least a few seconds, but this is the best we can do.
+            stream.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+    }
+
+    static void rename(File temp, File destFile) throws IOException {
+        if (Utils.isWindows()) {
+            // Work around an issue on Windows whereby you can't rename over existing files.
+            File canonical = destFile.getCanonicalFile();
+            canonical.delete();
+            if (temp.renameTo(canonical))
+                return;  // else fall through.
+            throw new IOException("Failed to rename " + temp + " to " + canonical);
+        } else if (!temp.renameTo(destFile)) {
+            throw new IOException("Failed to rename " + temp + " to " + destFile);
+        }
     }
 
     /** Queues up a save in the background. Useful for not very important wallet changes. */
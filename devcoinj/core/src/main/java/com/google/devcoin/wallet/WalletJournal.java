@@ -0,0 +1,343 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.wallet;
+
+import com.google.devcoin.core.Sha256Hash;
+import com.google.common.io.ByteStreams;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
+import org.devcoinj.wallet.Protos;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * <p>Stores a wallet as a base snapshot, which is an ordinary wallet file, plus an append-only journal of what changed
+ * since. Each journal entry is a length delimited {@link Protos.Wallet} holding only the keys, transactions and
+ * extensions that were added or changed, so moving a transaction between pools or updating its confidence just
+ * rewrites that transaction. The rest of the wallet (last seen block, encryption parameters and so on) is small and
+ * is repeated in every entry. Saving a small change therefore costs I/O in proportion to the change rather than to
+ * the whole wallet.</p>
+ *
+ * <p>The journal lives next to the wallet file, with ".journal" appended to the name, and starts with the SHA-256
+ * hash of the base snapshot it applies to. Compacting writes a new base snapshot and then a new empty journal, each
+ * to a temp file that is renamed into place, so a crash at any point leaves either the old base and journal, or the
+ * new base and a journal that no longer matches it and is ignored. An entry cut short by a crash part way through an
+ * append is also ignored when the journal is read back.</p>
+ *
+ * <p>Entries are worked out by comparing each snapshot to digests of what was last written. Changes that can't be
+ * expressed as additions or replacements, like a transaction being removed, are written as a new base snapshot
+ * instead. The depth and work done of confirmed transactions change with every block, so they are left out of the
+ * digests and the entries, and worked out again from the height of the last block seen when the journal is read
+ * back.</p>
+ *
+ * <p>This class is not thread safe. {@link WalletFiles} uses it when journaling is turned on with
+ * {@link WalletFiles#setJournaled(boolean)}, and {@link com.google.devcoin.core.Wallet#loadFromFile(java.io.File)}
+ * reads journals back automatically.</p>
+ */
+public class WalletJournal {
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    /** Journals smaller than this are never compacted, as doing so would save very little. */
+    public static final long MIN_COMPACTION_SIZE = 64 * 1024;
+
+    private final File file;
+    private final File journalFile;
+
+    // Digests of everything as last written, or null if there is no base snapshot that this object wrote yet.
+    private Sha256Hash headerDigest;
+    private Map<ByteString, Sha256Hash> keyDigests;
+    private Map<ByteString, Sha256Hash> transactionDigests;
+    private Map<String, Sha256Hash> extensionDigests;
+    private long baseSize;
+    private long journalSize;
+
+    public WalletJournal(File file) {
+        this.file = file;
+        this.journalFile = getJournalFile(file);
+    }
+
+    /** Returns the journal file that goes with the given wallet file. */
+    public static File getJournalFile(File file) {
+        return new File(file.getPath() + ".journal");
+    }
+
+    /**
+     * Appends whatever changed in the given snapshot since the last one written to the journal. Returns false if that
+     * can't be done, because no base snapshot was written by this object yet or something was removed from the wallet,
+     * in which case {@link #compact(Protos.Wallet, File)} should be called instead.
+     */
+    public boolean append(Protos.Wallet snapshot) throws IOException {
+        if (headerDigest == null)
+            return false;
+        Protos.Wallet header = withoutRepeatedFields(snapshot);
+        Sha256Hash newHeaderDigest = digest(header);
+        Protos.Wallet.Builder entry = header.toBuilder();
+        Map<ByteString, Sha256Hash> newKeyDigests = new HashMap<ByteString, Sha256Hash>();
+        for (Protos.Key key : snapshot.getKeyList()) {
+            Sha256Hash digest = digest(key);
+            newKeyDigests.put(key.getPublicKey(), digest);
+            if (!digest.equals(keyDigests.get(key.getPublicKey())))
+                entry.addKey(key);
+        }
+        Map<ByteString, Sha256Hash> newTransactionDigests = new HashMap<ByteString, Sha256Hash>();
+        for (Protos.Transaction tx : snapshot.getTransactionList()) {
+            tx = withoutDepth(tx);
+            Sha256Hash digest = digest(tx);
+            newTransactionDigests.put(tx.getHash(), digest);
+            if (!digest.equals(transactionDigests.get(tx.getHash())))
+                entry.addTransaction(tx);
+        }
+        Map<String, Sha256Hash> newExtensionDigests = new HashMap<String, Sha256Hash>();
+        for (Protos.Extension extension : snapshot.getExtensionList()) {
+            Sha256Hash digest = digest(extension);
+            newExtensionDigests.put(extension.getId(), digest);
+            if (!digest.equals(extensionDigests.get(extension.getId())))
+                entry.addExtension(extension);
+        }
+        if (!newKeyDigests.keySet().containsAll(keyDigests.keySet()) ||
+                !newTransactionDigests.keySet().containsAll(transactionDigests.keySet()) ||
+                !newExtensionDigests.keySet().containsAll(extensionDigests.keySet()))
+            return false;
+        if (newHeaderDigest.equals(headerDigest) && entry.getKeyCount() == 0 && entry.getTransactionCount() == 0 &&
+                entry.getExtensionCount() == 0)
+            return true;  // Nothing changed.
+
+        FileOutputStream stream = new FileOutputStream(journalFile, true);
+        try {
+            entry.build().writeDelimitedTo(stream);
+            stream.flush();
+            stream.getFD().sync();
+        } catch (IOException e) {
+            // Part of the entry may have been written, which would hide anything appended after it. Start afresh.
+            headerDigest = null;
+            throw e;
+        } finally {
+            stream.close();
+        }
+        journalSize = journalFile.length();
+        headerDigest = newHeaderDigest;
+        keyDigests = newKeyDigests;
+        transactionDigests = newTransactionDigests;
+        extensionDigests = newExtensionDigests;
+        return true;
+    }
+
+    /**
+     * Writes the given snapshot as the new base, first to the given temp file which is then renamed to the wallet
+     * file, and starts a new empty journal.
+     */
+    public void compact(Protos.Wallet snapshot, File temp) throws IOException {
+        headerDigest = null;
+        Sha256Hash baseHash;
+        try {
+            FileOutputStream fileStream = new FileOutputStream(temp);
+            DigestOutputStream stream = new DigestOutputStream(fileStream, sha256());
+            try {
+                snapshot.writeTo(stream);
+                stream.flush();
+                fileStream.getFD().sync();
+            } finally {
+                stream.close();
+            }
+            baseHash = new Sha256Hash(stream.getMessageDigest().digest());
+            WalletFiles.rename(temp, file);
+        } finally {
+            if (temp.delete())
+                log.warn("Deleted temp file after failed save.");
+        }
+        baseSize = file.length();
+
+        File journalTemp = File.createTempFile("journal", null, file.getAbsoluteFile().getParentFile());
+        try {
+            FileOutputStream stream = new FileOutputStream(journalTemp);
+            try {
+                stream.write(baseHash.getBytes());
+                stream.flush();
+                stream.getFD().sync();
+            } finally {
+                stream.close();
+            }
+            WalletFiles.rename(journalTemp, journalFile);
+        } finally {
+            if (journalTemp.delete())
+                log.warn("Deleted temp file after failed save.");
+        }
+        journalSize = journalFile.length();
+
+        headerDigest = digest(withoutRepeatedFields(snapshot));
+        keyDigests = new HashMap<ByteString, Sha256Hash>();
+        for (Protos.Key key : snapshot.getKeyList())
+            keyDigests.put(key.getPublicKey(), digest(key));
+        transactionDigests = new HashMap<ByteString, Sha256Hash>();
+        for (Protos.Transaction tx : snapshot.getTransactionList())
+            transactionDigests.put(tx.getHash(), digest(withoutDepth(tx)));
+        extensionDigests = new HashMap<String, Sha256Hash>();
+        for (Protos.Extension extension : snapshot.getExtensionList())
+            extensionDigests.put(extension.getId(), digest(extension));
+    }
+
+    /** Returns true once the journal has grown large enough, relative to the base snapshot, to be worth compacting. */
+    public boolean isCompactionDue() {
+        return headerDigest != null && journalSize > Math.max(baseSize / 2, MIN_COMPACTION_SIZE);
+    }
+
+    /** Returns the size of the journal in bytes, as of the last append or compaction. */
+    public long getJournalSize() {
+        return journalSize;
+    }
+
+    /**
+     * Reads the wallet in the given file, replaying the entries in its journal if it has one that applies to it. You
+     * normally want {@link com.google.devcoin.core.Wallet#loadFromFile(java.io.File)} instead.
+     */
+    public static Protos.Wallet readWallet(File file) throws IOException {
+        Protos.Wallet base;
+        DigestInputStream baseStream = new DigestInputStream(new BufferedInputStream(new FileInputStream(file)),
+                sha256());
+        try {
+            base = Protos.Wallet.parseFrom(baseStream);
+            // Make sure all of the file went into the hash.
+            byte[] buffer = new byte[4096];
+            while (baseStream.read(buffer) != -1) {
+                // Nothing to do.
+            }
+        } finally {
+            baseStream.close();
+        }
+        Sha256Hash baseHash = new Sha256Hash(baseStream.getMessageDigest().digest());
+
+        File journalFile = getJournalFile(file);
+        if (!journalFile.exists())
+            return base;
+        InputStream stream = new BufferedInputStream(new FileInputStream(journalFile));
+        try {
+            byte[] hash = new byte[32];
+            if (ByteStreams.read(stream, hash, 0, hash.length) != hash.length ||
+                    !Arrays.equals(hash, baseHash.getBytes())) {
+                log.info("Ignoring journal {} as it was written for a different wallet file", journalFile);
+                return base;
+            }
+            Protos.Wallet header = withoutRepeatedFields(base);
+            Map<ByteString, Protos.Key> keys = new LinkedHashMap<ByteString, Protos.Key>();
+            for (Protos.Key key : base.getKeyList())
+                keys.put(key.getPublicKey(), key);
+            Map<ByteString, Protos.Transaction> transactions = new LinkedHashMap<ByteString, Protos.Transaction>();
+            for (Protos.Transaction tx : base.getTransactionList())
+                transactions.put(tx.getHash(), tx);
+            Map<String, Protos.Extension> extensions = new LinkedHashMap<String, Protos.Extension>();
+            for (Protos.Extension extension : base.getExtensionList())
+                extensions.put(extension.getId(), extension);
+            int entries = 0;
+            while (true) {
+                Protos.Wallet entry;
+                try {
+                    entry = Protos.Wallet.parseDelimitedFrom(stream);
+                } catch (InvalidProtocolBufferException e) {
+                    log.warn("Ignoring incomplete entry at the end of journal {}", journalFile);
+                    break;
+                }
+                if (entry == null)
+                    break;
+                header = withoutRepeatedFields(entry);
+                for (Protos.Key key : entry.getKeyList())
+                    keys.put(key.getPublicKey(), key);
+                for (Protos.Transaction tx : entry.getTransactionList())
+                    transactions.put(tx.getHash(), tx);
+                for (Protos.Extension extension : entry.getExtensionList())
+                    extensions.put(extension.getId(), extension);
+                entries++;
+            }
+            log.info("Replayed {} journal entries from {}", entries, journalFile);
+            if (entries > 0 && header.hasLastSeenBlockHeight())
+                deriveDepths(base, transactions, header.getLastSeenBlockHeight());
+            return header.toBuilder()
+                    .addAllKey(keys.values())
+                    .addAllTransaction(transactions.values())
+                    .addAllExtension(extensions.values())
+                    .build();
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Sets the depth of each confirmed transaction from the given height of the last block seen, and its work done
+     * from that depth and the work per block recorded in the base snapshot, for the transaction itself if it was
+     * confirmed in the same block then, or else for the most recently confirmed transaction there.
+     */
+    private static void deriveDepths(Protos.Wallet base, Map<ByteString, Protos.Transaction> transactions,
+                                     int lastSeenBlockHeight) {
+        Map<ByteString, Protos.TransactionConfidence> recorded = new HashMap<ByteString, Protos.TransactionConfidence>();
+        Protos.TransactionConfidence latest = null;
+        for (Protos.Transaction tx : base.getTransactionList()) {
+            Protos.TransactionConfidence confidence = tx.getConfidence();
+            if (!confidence.hasAppearedAtHeight() || confidence.getDepth() <= 0 || !confidence.hasWorkDone())
+                continue;
+            recorded.put(tx.getHash(), confidence);
+            if (latest == null || confidence.getAppearedAtHeight() > latest.getAppearedAtHeight())
+                latest = confidence;
+        }
+        for (Map.Entry<ByteString, Protos.Transaction> entry : transactions.entrySet()) {
+            Protos.TransactionConfidence confidence = entry.getValue().getConfidence();
+            if (confidence.getType() != Protos.TransactionConfidence.Type.BUILDING || !confidence.hasAppearedAtHeight())
+                continue;
+            int depth = lastSeenBlockHeight - confidence.getAppearedAtHeight() + 1;
+            if (depth <= 0)
+                continue;
+            Protos.TransactionConfidence.Builder derived = confidence.toBuilder().setDepth(depth);
+            Protos.TransactionConfidence known = recorded.get(entry.getKey());
+            if (known != null && known.getAppearedAtHeight() == confidence.getAppearedAtHeight()) {
+                long workPerBlock = known.getWorkDone() / known.getDepth();
+                derived.setWorkDone(known.getWorkDone() + (depth - known.getDepth()) * workPerBlock);
+            } else if (latest != null) {
+                derived.setWorkDone(depth * (latest.getWorkDone() / latest.getDepth()));
+            }
+            entry.setValue(entry.getValue().toBuilder().setConfidence(derived).build());
+        }
+    }
+
+    // Leaves out the parts of a transaction's confidence that change with every block.
+    private static Protos.Transaction withoutDepth(Protos.Transaction tx) {
+        if (!tx.getConfidence().hasDepth() && !tx.getConfidence().hasWorkDone())
+            return tx;
+        return tx.toBuilder().setConfidence(tx.getConfidence().toBuilder().clearDepth().clearWorkDone()).build();
+    }
+
+    private static Protos.Wallet withoutRepeatedFields(Protos.Wallet wallet) {
+        return wallet.toBuilder().clearKey().clearTransaction().clearExtension().build();
+    }
+
+    private static Sha256Hash digest(MessageLite message) {
+        return Sha256Hash.create(message.toByteArray());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+}
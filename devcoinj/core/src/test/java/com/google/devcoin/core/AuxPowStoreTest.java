@@ -0,0 +1,75 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.core;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class AuxPowStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Sha256Hash hash(int n) {
+        return Sha256Hash.create(new byte[] { (byte) n });
+    }
+
+    @Test
+    public void memory() throws Exception {
+        AuxPowStore store = new AuxPowStore();
+        assertNull(store.get(hash(1)));
+        store.put(hash(1), new byte[] {1, 2, 3});
+        // The first proof of a block is kept.
+        store.put(hash(1), new byte[] {4});
+        assertArrayEquals(new byte[] {1, 2, 3}, store.get(hash(1)));
+    }
+
+    @Test
+    public void file() throws Exception {
+        File file = new File(folder.getRoot(), "auxpow");
+        AuxPowStore store = new AuxPowStore(file);
+        store.put(hash(1), new byte[] {1, 2, 3});
+        store.put(hash(2), new byte[] {4, 5});
+        store.put(hash(1), new byte[] {6});
+        assertArrayEquals(new byte[] {4, 5}, store.get(hash(2)));
+        store.close();
+        long length = file.length();
+
+        // A record cut short, as by a crash while appending it, is dropped when opened again.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(length);
+        raf.write(hash(3).getBytes());
+        raf.writeInt(10);
+        raf.write(new byte[] {7});
+        raf.close();
+        store = new AuxPowStore(file);
+        assertEquals(length, file.length());
+        assertArrayEquals(new byte[] {1, 2, 3}, store.get(hash(1)));
+        assertArrayEquals(new byte[] {4, 5}, store.get(hash(2)));
+        assertNull(store.get(hash(3)));
+        store.put(hash(3), new byte[] {8, 9});
+        store.close();
+        store = new AuxPowStore(file);
+        assertArrayEquals(new byte[] {8, 9}, store.get(hash(3)));
+        store.close();
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.core;
+
+import com.google.devcoin.params.UnitTestParams;
+import com.google.devcoin.script.ScriptBuilder;
+import org.junit.Test;
+import org.spongycastle.util.encoders.Hex;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CompactTransactionOutputChangesTest {
+    private final NetworkParameters params = UnitTestParams.get();
+
+    private static void assertOutputsEqual(List<StoredTransactionOutput> expected,
+                                           Iterable<StoredTransactionOutput> actual) {
+        Iterator<StoredTransactionOutput> it = actual.iterator();
+        for (StoredTransactionOutput e : expected) {
+            assertTrue(it.hasNext());
+            StoredTransactionOutput a = it.next();
+            assertEquals(e, a);
+            assertEquals(e.getValue(), a.getValue());
+            assertEquals(e.getHeight(), a.getHeight());
+            assertArrayEquals(e.getScriptBytes(), a.getScriptBytes());
+        }
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        ECKey key = new ECKey();
+        ECKey uncompressedKey = new ECKey(new BigInteger(1, key.getPrivKeyBytes()));
+        assertEquals(65, uncompressedKey.getPubKey().length);
+        byte[] notOnCurve = ScriptBuilder.createOutputScript(uncompressedKey).getProgram();
+        notOnCurve[40] ^= 1;
+        byte[][] scripts = {
+                ScriptBuilder.createOutputScript(key.toAddress(params)).getProgram(),
+                ScriptBuilder.createOutputScript(key).getProgram(),
+                ScriptBuilder.createOutputScript(uncompressedKey).getProgram(),
+                notOnCurve,
+                ScriptBuilder.createMultiSigOutputScript(1, Arrays.asList(key, uncompressedKey)).getProgram(),
+                Hex.decode("a914" + "00112233445566778899aabbccddeeff00112233" + "87"),
+                new byte[0],
+                new byte[300],
+        };
+        long[] values = { 0, 1, 5000000000L, 123456789, 1000000000000000L, 999 };
+
+        Sha256Hash createdHash = Sha256Hash.create(new byte[] { 1 });
+        List<StoredTransactionOutput> created = new LinkedList<StoredTransactionOutput>();
+        List<StoredTransactionOutput> spent = new LinkedList<StoredTransactionOutput>();
+        for (int i = 0; i < scripts.length; i++) {
+            BigInteger value = BigInteger.valueOf(values[i % values.length]);
+            created.add(new StoredTransactionOutput(createdHash, i, value, 1000, i == 0, scripts[i]));
+            // Spent outputs come from all over, some in runs sharing a transaction.
+            Sha256Hash spentHash = Sha256Hash.create(new byte[] { (byte) (i / 2 + 2) });
+            spent.add(new StoredTransactionOutput(spentHash, 70000 + i, value, i * 50, i % 4 == 0, scripts[i]));
+        }
+        TransactionOutputChanges changes = new TransactionOutputChanges(created, spent);
+        byte[] encoded = CompactTransactionOutputChanges.encode(changes);
+        assertTrue(CompactTransactionOutputChanges.isCompact(encoded));
+
+        CompactTransactionOutputChanges compact = new CompactTransactionOutputChanges(encoded);
+        assertOutputsEqual(created, compact.getTxOutsCreated());
+        assertOutputsEqual(spent, compact.getTxOutsSpent());
+        // Each iteration starts from the beginning.
+        assertOutputsEqual(spent, compact.getTxOutsSpent());
+        TransactionOutputChanges decoded = compact.toTransactionOutputChanges();
+        assertOutputsEqual(created, decoded.txOutsCreated);
+        assertOutputsEqual(spent, decoded.txOutsSpent);
+
+        ByteArrayOutputStream old = new ByteArrayOutputStream();
+        changes.serializeToStream(old);
+        assertFalse(CompactTransactionOutputChanges.isCompact(old.toByteArray()));
+        assertTrue(encoded.length < old.size());
+
+        StoredUndoableBlock block = new StoredUndoableBlock(createdHash, compact);
+        assertTrue(block.hasTxOutChanges());
+        assertNull(block.getTransactions());
+        // Stores write the compact form back out as it is.
+        assertSame(encoded, block.getCompactTxOutChanges());
+        assertArrayEquals(encoded, new StoredUndoableBlock(createdHash, changes).getCompactTxOutChanges());
+        assertOutputsEqual(spent, block.getTxOutsSpent());
+        assertOutputsEqual(created, block.getTxOutChanges().txOutsCreated);
+    }
+
+    @Test
+    public void javaSerialization() throws Exception {
+        List<StoredTransactionOutput> created = new ArrayList<StoredTransactionOutput>();
+        created.add(new StoredTransactionOutput(Sha256Hash.create(new byte[] { 1 }), 0, Utils.toNanoCoins(1, 0), 10,
+                true, ScriptBuilder.createOutputScript(new ECKey().toAddress(params)).getProgram()));
+        byte[] encoded = CompactTransactionOutputChanges.encode(
+                new TransactionOutputChanges(created, new ArrayList<StoredTransactionOutput>()));
+        StoredUndoableBlock block = new StoredUndoableBlock(Sha256Hash.create(new byte[] { 2 }),
+                new CompactTransactionOutputChanges(encoded));
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(block);
+        oos.close();
+        StoredUndoableBlock read = (StoredUndoableBlock)
+                new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray())).readObject();
+        assertEquals(block, read);
+        assertArrayEquals(encoded, read.getCompactTxOutChanges());
+        assertOutputsEqual(created, read.getTxOutsCreated());
+    }
+
+    @Test
+    public void standardOutputsAreSmall() throws Exception {
+        ECKey key = new ECKey();
+        List<StoredTransactionOutput> spent = new ArrayList<StoredTransactionOutput>();
+        byte[] script = ScriptBuilder.createOutputScript(key.toAddress(params)).getProgram();
+        spent.add(new StoredTransactionOutput(Sha256Hash.create(new byte[] { 1 }), 1,
+                Utils.toNanoCoins(50, 0), 100, false, script));
+        byte[] encoded = CompactTransactionOutputChanges.encode(
+                new TransactionOutputChanges(new ArrayList<StoredTransactionOutput>(), spent));
+        // Header, then hash, height, count, index, value, script type and hash.
+        assertEquals(4 + 1 + 1 + 1 + 32 + 1 + 1 + 1 + 1 + 1 + 20, encoded.length);
+    }
+
+    @Test
+    public void amounts() throws Exception {
+        long[] values = { 0, 1, 9, 10, 100000000, 2100000000000000L, 1234567890123L, 10000000000000000L };
+        for (long value : values) {
+            long compressed = CompactTransactionOutputChanges.compressAmount(value);
+            assertEquals(value, CompactTransactionOutputChanges.decompressAmount(compressed));
+        }
+        assertTrue(CompactTransactionOutputChanges.compressAmount(5000000000L) < 253);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void notCompact() throws Exception {
+        new CompactTransactionOutputChanges(new byte[] { 1, 0, 0, 0 });
+    }
+}
@@ -7,11 +7,15 @@ import org.junit.Test;
 import org.spongycastle.util.encoders.Hex;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Set;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class FilteredBlockAndPartialMerkleTreeTests extends TestWithPeerGroup {
@@ -77,6 +81,14 @@ public class FilteredBlockAndPartialMerkleTreeTests extends TestWithPeerGroup {
         // Compare the serialized bloom filter to a known-good value
         assertTrue(Arrays.equals(filter.bitcoinSerialize(), Hex.decode("0e1b091ca195e45a9164889b6bc46a09000000efbeadde02")));
 
+        // Building the filtered block from the full block gives what the reference client sent for this filter.
+        List<Message> served = new FilteredBlockBuilder(block).build(filter);
+        assertArrayEquals(filteredBlock.bitcoinSerialize(), served.get(0).bitcoinSerialize());
+        assertEquals(txHashList, ((FilteredBlock) served.get(0)).getTransactionHashes());
+        assertEquals(5, served.size());
+        for (int i = 0; i < txHashList.size(); i++)
+            assertEquals(txHashList.get(i), ((Transaction) served.get(i + 1)).getHash());
+
         // Cheat and place the previous block (block 100000) at the head of the block store without supporting blocks
         blockStore = new MemoryBlockStore(UnitTestParams.get());
         blockStore.put(new StoredBlock(new Block(unitTestParams, Hex.decode("0100000050120119172a610421a6c3011dd330d9df07b63616c2cc1f1cd00200000000006657a9252aacd5c0b2940996ecff952228c3067cc38d4885efb5a4ac4247e9f337221b4d4c86041b0f2b5710")),
@@ -129,4 +141,55 @@ public class FilteredBlockAndPartialMerkleTreeTests extends TestWithPeerGroup {
         closePeer(peerOf(p1));
         peerGroup.stop();
     }
+
+    @Test
+    public void buildFilteredBlockFollowsSpends() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        ECKey key = new ECKey();
+        Block block = params.getGenesisBlock().createNextBlock(new ECKey().toAddress(params));
+        // Pays the key, then spends that output, then something unrelated.
+        Transaction pay = new Transaction(params);
+        pay.addInput(new TransactionInput(params, pay, new byte[] {1},
+                new TransactionOutPoint(params, 0, block.getTransactions().get(0).getHash())));
+        pay.addOutput(new TransactionOutput(params, pay, Utils.CENT, new ECKey()));
+        pay.addOutput(new TransactionOutput(params, pay, Utils.CENT, key.toAddress(params)));
+        block.addTransaction(pay);
+        Transaction spend = new Transaction(params);
+        spend.addInput(new TransactionInput(params, spend, new byte[] {2}, new TransactionOutPoint(params, 1, pay.getHash())));
+        spend.addOutput(new TransactionOutput(params, spend, Utils.CENT, new ECKey()));
+        block.addTransaction(spend);
+        Transaction other = new Transaction(params);
+        other.addInput(new TransactionInput(params, other, new byte[] {3},
+                new TransactionOutPoint(params, 0, spend.getHash())));
+        other.addOutput(new TransactionOutput(params, other, Utils.CENT, new ECKey()));
+        block.addTransaction(other);
+        FilteredBlockBuilder builder = new FilteredBlockBuilder(block);
+
+        // With UPDATE_ALL the output to the key's address is added, so the spend of it matches.
+        BloomFilter filter = new BloomFilter(10, 0.000001, 1234, BloomFilter.BloomUpdate.UPDATE_ALL);
+        filter.insert(key.getPubKeyHash());
+        List<Message> messages = builder.build(filter);
+        FilteredBlock filteredBlock = new FilteredBlock(params, messages.get(0).bitcoinSerialize());
+        assertEquals(block.getHash(), filteredBlock.getHash());
+        assertEquals(Arrays.asList(pay.getHash(), spend.getHash()), filteredBlock.getTransactionHashes());
+        assertEquals(Arrays.<Message>asList(pay, spend), messages.subList(1, messages.size()));
+        assertTrue(filter.contains(new TransactionOutPoint(params, 1, pay.getHash()).bitcoinSerialize()));
+
+        // Pay to address outputs are not added with UPDATE_P2PUBKEY_ONLY.
+        filter = new BloomFilter(10, 0.000001, 1234, BloomFilter.BloomUpdate.UPDATE_P2PUBKEY_ONLY);
+        filter.insert(key.getPubKeyHash());
+        BitSet matched = new BitSet();
+        assertEquals(Arrays.asList(pay), builder.match(filter, matched));
+        assertEquals(1, matched.cardinality());
+        assertTrue(matched.get(2));
+
+        // Nothing matching still gives a proof of the header.
+        filter = new BloomFilter(10, 0.000001, 1234, BloomFilter.BloomUpdate.UPDATE_NONE);
+        filter.insert(new ECKey().getPubKey());
+        messages = builder.build(filter);
+        assertEquals(1, messages.size());
+        filteredBlock = new FilteredBlock(params, messages.get(0).bitcoinSerialize());
+        assertEquals(new ArrayList<Sha256Hash>(), filteredBlock.getTransactionHashes());
+        assertFalse(filteredBlock.getTransactionHashes().contains(pay.getHash()));
+    }
 }
@@ -21,7 +21,10 @@ import com.google.devcoin.core.Transaction.SigHash;
 import com.google.devcoin.params.MainNetParams;
 import com.google.devcoin.params.UnitTestParams;
 import com.google.devcoin.script.Script;
+import com.google.devcoin.script.ScriptBuilder;
+import com.google.devcoin.store.BatchedFullPrunedBlockStore;
 import com.google.devcoin.store.BlockStoreException;
+import com.google.devcoin.store.CachingFullPrunedBlockStore;
 import com.google.devcoin.store.FullPrunedBlockStore;
 import com.google.devcoin.store.MemoryFullPrunedBlockStore;
 import com.google.devcoin.utils.BlockFileLoader;
@@ -35,6 +38,10 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.util.Arrays;
 
 import static org.junit.Assert.*;
@@ -60,13 +67,18 @@ public class FullPrunedBlockChainTest {
         };
     }
 
+    /** Creates the store the chain is tested against, so the tests can be run against each implementation. */
+    protected FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException {
+        return new MemoryFullPrunedBlockStore(params, blockCount);
+    }
+
     @Test
     public void testGeneratedChain() throws Exception {
         // Tests various test cases from FullBlockTestGenerator
         FullBlockTestGenerator generator = new FullBlockTestGenerator(params);
         RuleList blockList = generator.getBlocksToTest(false, false, null);
         
-        store = new MemoryFullPrunedBlockStore(params, blockList.maximumReorgBlockCount);
+        store = createStore(params, blockList.maximumReorgBlockCount);
         chain = new FullPrunedBlockChain(params, store);
         
         for (Rule rule : blockList.list) {
@@ -108,7 +120,7 @@ public class FullPrunedBlockChainTest {
     @Test
     public void testFinalizedBlocks() throws Exception {
         final int UNDOABLE_BLOCKS_STORED = 10;
-        store = new MemoryFullPrunedBlockStore(params, UNDOABLE_BLOCKS_STORED);
+        store = createStore(params, UNDOABLE_BLOCKS_STORED);
         chain = new FullPrunedBlockChain(params, store);
         
         // Check that we aren't accidentally leaving any references
@@ -159,6 +171,96 @@ public class FullPrunedBlockChainTest {
         assertNull(out.get());
     }
     
+    @Test
+    public void testSpendsWithinBlock() throws Exception {
+        store = createStore(params, 10);
+        spendWithinBlock();
+    }
+
+    @Test
+    public void testSpendsWithinBlockWithCache() throws Exception {
+        // A tiny cache, so outputs get flushed and evicted along the way.
+        FullPrunedBlockStore underlying = createStore(params, 10);
+        CachingFullPrunedBlockStore cache = new CachingFullPrunedBlockStore(underlying, 4);
+        store = cache;
+        Transaction spend = spendWithinBlock();
+        assertTrue(cache.getFlushCount() > 0);
+        cache.flush();
+        assertEquals(chain.getChainHead(), underlying.getVerifiedChainHead());
+        assertNotNull(underlying.getTransactionOutput(spend.getHash(), 0));
+    }
+
+    @Test
+    public void testSpendsWithinBlockUnbatched() throws Exception {
+        // A store that can only look up one output at a time works the same.
+        final FullPrunedBlockStore batched = createStore(params, 10);
+        store = (FullPrunedBlockStore) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { FullPrunedBlockStore.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        try {
+                            return method.invoke(batched, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+        assertFalse(store instanceof BatchedFullPrunedBlockStore);
+        spendWithinBlock();
+    }
+
+    private Transaction spendWithinBlock() throws Exception {
+        chain = new FullPrunedBlockChain(params, store);
+
+        ECKey outKey = new ECKey();
+        Block rollingBlock = params.getGenesisBlock().createNextBlockWithCoinbase(outKey.getPubKey());
+        chain.add(rollingBlock);
+        TransactionOutPoint spendableOutput = new TransactionOutPoint(params, 0, rollingBlock.getTransactions().get(0).getHash());
+        byte[] spendableOutputScriptPubKey = rollingBlock.getTransactions().get(0).getOutputs().get(0).getScriptBytes();
+        for (int i = 1; i < params.getSpendableCoinbaseDepth(); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(outKey.getPubKey());
+            chain.add(rollingBlock);
+        }
+        byte[] outScriptPubKey = ScriptBuilder.createOutputScript(outKey).getProgram();
+
+        // A transaction spending an output created earlier in the same block is fine, and the intermediate output
+        // never needs to reach the store.
+        Block block = rollingBlock.createNextBlock(null);
+        Transaction t1 = new Transaction(params);
+        t1.addOutput(new TransactionOutput(params, t1, Utils.toNanoCoins(50, 0), outScriptPubKey));
+        addInputToTransaction(t1, spendableOutput, spendableOutputScriptPubKey, outKey);
+        block.addTransaction(t1);
+        Transaction t2 = new Transaction(params);
+        t2.addOutput(new TransactionOutput(params, t2, Utils.toNanoCoins(50, 0), outScriptPubKey));
+        addInputToTransaction(t2, new TransactionOutPoint(params, 0, t1.getHash()), outScriptPubKey, outKey);
+        block.addTransaction(t2);
+        block.solve();
+        assertTrue(chain.add(block));
+        assertNull(store.getTransactionOutput(spendableOutput.getHash(), spendableOutput.getIndex()));
+        assertNull(store.getTransactionOutput(t1.getHash(), 0));
+        assertNotNull(store.getTransactionOutput(t2.getHash(), 0));
+
+        // Spending the same output twice within a block is not.
+        Block doubleSpend = block.createNextBlock(null);
+        TransactionOutPoint t2Output = new TransactionOutPoint(params, 0, t2.getHash());
+        for (int i = 0; i < 2; i++) {
+            Transaction t = new Transaction(params);
+            t.addOutput(new TransactionOutput(params, t, Utils.toNanoCoins(i + 1, 0), outScriptPubKey));
+            addInputToTransaction(t, t2Output, outScriptPubKey, outKey);
+            doubleSpend.addTransaction(t);
+        }
+        doubleSpend.solve();
+        try {
+            chain.add(doubleSpend);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(block.getHash(), chain.getChainHead().getHeader().getHash());
+        assertNotNull(store.getTransactionOutput(t2.getHash(), 0));
+        return t2;
+    }
+
     private void addInputToTransaction(Transaction t, TransactionOutPoint prevOut, byte[] prevOutScriptPubKey, ECKey sigKey) throws ScriptException {
         TransactionInput input = new TransactionInput(params, t, new byte[]{}, prevOut);
         t.addInput(input);
@@ -184,7 +286,7 @@ public class FullPrunedBlockChainTest {
         File blockFile = new File(getClass().getResource("first-100k-blocks.dat").getFile());
         BlockFileLoader loader = new BlockFileLoader(params, Arrays.asList(new File[] {blockFile}));
         
-        store = new MemoryFullPrunedBlockStore(params, 10);
+        store = createStore(params, 10);
         chain = new FullPrunedBlockChain(params, store);
         for (Block block : loader)
             chain.add(block);
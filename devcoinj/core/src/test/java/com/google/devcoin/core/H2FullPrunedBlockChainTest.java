@@ -0,0 +1,52 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.core;
+
+import com.google.devcoin.store.BlockStoreException;
+import com.google.devcoin.store.FullPrunedBlockStore;
+import com.google.devcoin.store.H2FullPrunedBlockStore;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the {@link FullPrunedBlockChainTest} tests against an {@link H2FullPrunedBlockStore}.
+ */
+public class H2FullPrunedBlockChainTest extends FullPrunedBlockChainTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<H2FullPrunedBlockStore> stores = new ArrayList<H2FullPrunedBlockStore>();
+
+    @Override
+    protected FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException {
+        H2FullPrunedBlockStore store = new H2FullPrunedBlockStore(params,
+                new File(folder.newFolder("store" + stores.size()), "h2").getAbsolutePath(), blockCount);
+        stores.add(store);
+        return store;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (H2FullPrunedBlockStore store : stores)
+            store.close();
+    }
+}
@@ -133,6 +133,21 @@ public class LazyParseByteCacheTest {
     	assertFalse(arrayContains(tx1BytesWithHeader, b1Bytes));
     }
     
+    @Test
+    public void lazyInputLength() throws Exception {
+        // The script length follows the outpoint, whose hash here starts with what reads as a small varint.
+        byte[] hash = new byte[32];
+        hash[0] = 5;
+        Transaction tx = new Transaction(unitTestParams);
+        TransactionOutPoint outpoint = new TransactionOutPoint(unitTestParams, 1, new Sha256Hash(hash));
+        tx.addInput(new TransactionInput(unitTestParams, tx, new byte[100], outpoint));
+        byte[] inputBytes = tx.getInput(0).bitcoinSerialize();
+        TransactionInput input = new TransactionInput(unitTestParams, null, inputBytes, 0, true, false);
+        assertEquals(inputBytes.length, input.getMessageSize());
+        assertEquals(outpoint, input.getOutpoint());
+        assertEquals(100, input.getScriptBytes().length);
+    }
+
     @Test
     public void testTransactionsLazyRetain() throws Exception {
     	testTransaction(MainNetParams.get(), txMessage, false, true, true);
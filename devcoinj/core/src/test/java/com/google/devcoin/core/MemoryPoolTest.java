@@ -22,10 +22,16 @@ import com.google.devcoin.utils.TestUtils;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.math.BigInteger;
 import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
 
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.*;
 
 public class MemoryPoolTest {
     private NetworkParameters params = UnitTestParams.get();
@@ -75,4 +81,174 @@ public class MemoryPoolTest {
         assertEquals(3, t.getConfidence().numBroadcastPeers());
         assertEquals(3, pool.numBroadcastPeers(tx1.getHash()));
     }
+
+    // Spends the given output, paying the rest of its value less the fee to a new key.
+    private Transaction spend(TransactionOutput output, BigInteger fee) {
+        Transaction tx = new Transaction(params);
+        tx.addInput(output);
+        tx.addOutput(new TransactionOutput(params, tx, output.getValue().subtract(fee), new ECKey().toAddress(params)));
+        return tx;
+    }
+
+    // A transaction that isn't in the pool, with three outputs of a coin.
+    private Transaction fundingTx() {
+        Transaction tx = new Transaction(params);
+        tx.addInput(new TransactionInput(params, tx, new byte[] {1}));
+        for (int i = 0; i < 3; i++)
+            tx.addOutput(new TransactionOutput(params, tx, Utils.COIN, new ECKey().toAddress(params)));
+        return tx;
+    }
+
+    @Test
+    public void retainsHighestFeeRates() throws Exception {
+        Transaction funding = fundingTx();
+        Transaction a = spend(funding.getOutput(0), Utils.toNanoCoins(0, 1));
+        Transaction b = spend(funding.getOutput(1), Utils.toNanoCoins(0, 10));
+        Transaction c = spend(funding.getOutput(2), BigInteger.valueOf(1000));
+        long budget = a.getMessageSize() + b.getMessageSize() + c.getMessageSize() - 1;
+        MemoryPool pool = new MemoryPool(MemoryPool.MAX_SIZE, budget);
+        assertTrue(pool.isRetaining());
+        pool.seen(c, address1);
+        pool.seen(a, address1);
+        pool.seen(b, address2);
+        // The lowest fee rate goes, though it came first, and is still tracked as any other transaction.
+        assertTrue(pool.isRetained(a.getHash()));
+        assertTrue(pool.isRetained(b.getHash()));
+        assertFalse(pool.isRetained(c.getHash()));
+        assertEquals(a.getMessageSize() + b.getMessageSize(), pool.getRetainedBytes());
+        assertEquals(c, pool.get(c.getHash()));
+        pool.seen(b.getHash(), address3);
+        assertEquals(2, pool.numBroadcastPeers(b.getHash()));
+        assertEquals(b, pool.intern(new Transaction(params, b.bitcoinSerialize())));
+    }
+
+    @Test
+    public void detectsDoubleSpends() throws Exception {
+        Transaction funding = fundingTx();
+        Transaction a = spend(funding.getOutput(0), Utils.toNanoCoins(0, 1));
+        Transaction doubleSpend = spend(funding.getOutput(0), Utils.toNanoCoins(0, 5));
+        MemoryPool pool = new MemoryPool(MemoryPool.MAX_SIZE, 100000);
+        pool.seen(a, address1);
+        assertEquals(a, pool.getSpendingTransaction(new TransactionOutPoint(params, 0, funding.getHash())));
+        assertNull(pool.getSpendingTransaction(new TransactionOutPoint(params, 1, funding.getHash())));
+        // The first seen stays, even though the double spend pays more.
+        assertEquals(Collections.singleton(a), pool.getConflicts(doubleSpend));
+        pool.seen(doubleSpend, address2);
+        assertFalse(pool.isRetained(doubleSpend.getHash()));
+        assertEquals(a, pool.getSpendingTransaction(new TransactionOutPoint(params, 0, funding.getHash())));
+        // Only kept transactions are indexed.
+        assertTrue(pool.getConflicts(a).isEmpty());
+    }
+
+    @Test
+    public void releasesDescendants() throws Exception {
+        Transaction funding = fundingTx();
+        Transaction parent = spend(funding.getOutput(0), Utils.toNanoCoins(0, 1));
+        // The fee of the child is known from its parent in the pool.
+        Transaction child = spend(parent.getOutput(0), Utils.toNanoCoins(0, 40));
+        Transaction other = spend(funding.getOutput(1), Utils.toNanoCoins(0, 50));
+        long budget = parent.getMessageSize() + child.getMessageSize() + other.getMessageSize() - 1;
+        MemoryPool pool = new MemoryPool(MemoryPool.MAX_SIZE, budget);
+        pool.seen(parent, address1);
+        pool.seen(child, address1);
+        pool.seen(other, address1);
+        // Letting go of the parent lets go of the child, which pays well but can't be relayed without it.
+        assertFalse(pool.isRetained(parent.getHash()));
+        assertFalse(pool.isRetained(child.getHash()));
+        assertTrue(pool.isRetained(other.getHash()));
+        assertEquals(other.getMessageSize(), pool.getRetainedBytes());
+        assertNull(pool.getSpendingTransaction(new TransactionOutPoint(params, 0, parent.getHash())));
+    }
+
+    @Test
+    public void unknownFeesRankAsMinimumRelayFee() throws Exception {
+        // Spends an output the pool doesn't know the value of.
+        Transaction unknown = new Transaction(params);
+        unknown.addInput(new TransactionInput(params, unknown, new byte[] {1},
+                new TransactionOutPoint(params, 0, fundingTx().getHash())));
+        unknown.addOutput(new TransactionOutput(params, unknown, Utils.COIN, new ECKey().toAddress(params)));
+        Transaction low = spend(fundingTx().getOutput(0), BigInteger.valueOf(1000));
+        Transaction bigFunding = new Transaction(params);
+        bigFunding.addInput(new TransactionInput(params, bigFunding, new byte[] {1}));
+        bigFunding.addOutput(new TransactionOutput(params, bigFunding, Utils.toNanoCoins(100, 0),
+                new ECKey().toAddress(params)));
+        Transaction high = spend(bigFunding.getOutput(0), Transaction.REFERENCE_DEFAULT_MIN_TX_FEE);
+        long budget = unknown.getMessageSize() + low.getMessageSize() + high.getMessageSize() - 1;
+        MemoryPool pool = new MemoryPool(MemoryPool.MAX_SIZE, budget);
+        pool.seen(unknown, address1);
+        pool.seen(high, address1);
+        pool.seen(low, address1);
+        // Only a transaction known to pay less than the minimum goes before it.
+        assertTrue(pool.isRetained(unknown.getHash()));
+        assertTrue(pool.isRetained(high.getHash()));
+        assertFalse(pool.isRetained(low.getHash()));
+    }
+
+    @Test
+    public void removesConfirmed() throws Exception {
+        Transaction funding = fundingTx();
+        Transaction parent = spend(funding.getOutput(0), Utils.toNanoCoins(0, 1));
+        Transaction child = spend(parent.getOutput(0), Utils.toNanoCoins(0, 1));
+        Transaction other = spend(funding.getOutput(1), Utils.toNanoCoins(0, 1));
+        Transaction otherChild = spend(other.getOutput(0), Utils.toNanoCoins(0, 1));
+        MemoryPool pool = new MemoryPool(MemoryPool.MAX_SIZE, 100000);
+        pool.seen(parent, address1);
+        pool.seen(child, address1);
+        pool.seen(other, address1);
+        pool.seen(otherChild, address1);
+
+        // Once the parent confirms it isn't kept, though its child still is.
+        pool.removeConfirmed(new Transaction(params, parent.bitcoinSerialize()));
+        assertFalse(pool.isRetained(parent.getHash()));
+        assertEquals(parent, pool.get(parent.getHash()));
+        assertTrue(pool.isRetained(child.getHash()));
+        assertNull(pool.getSpendingTransaction(new TransactionOutPoint(params, 0, funding.getHash())));
+        assertEquals(child, pool.getSpendingTransaction(new TransactionOutPoint(params, 0, parent.getHash())));
+
+        // A double spend confirms, so the transaction it double spends and the child of that never will.
+        pool.removeConfirmed(spend(funding.getOutput(1), Utils.toNanoCoins(0, 2)));
+        assertFalse(pool.isRetained(other.getHash()));
+        assertFalse(pool.isRetained(otherChild.getHash()));
+        assertNull(pool.getSpendingTransaction(new TransactionOutPoint(params, 1, funding.getHash())));
+        assertEquals(child.getMessageSize(), pool.getRetainedBytes());
+    }
+
+    @Test
+    public void orphans() throws Exception {
+        MemoryPool pool = new MemoryPool();
+        Transaction parent = fundingTx();
+        Transaction orphan = spend(parent.getOutput(1), Utils.toNanoCoins(0, 1));
+        // Only added to a parent that was asked for already.
+        assertNull(pool.addOrphanIfAwaited(orphan, parent.getHash()));
+        assertEquals(0, pool.getOrphanCount());
+        ListenableFuture<Transaction> future = pool.addOrphan(orphan, parent.getHash());
+        assertTrue(pool.isAwaitingParent(parent.getHash()));
+        assertEquals(Arrays.asList(orphan), pool.getOrphans(parent.getHash()));
+        assertEquals(1, pool.getOrphanCount());
+        // A second orphan waits for the same download.
+        Transaction orphan2 = spend(parent.getOutput(2), Utils.toNanoCoins(0, 1));
+        assertSame(future, pool.addOrphanIfAwaited(orphan2, parent.getHash()));
+        assertEquals(2, pool.getOrphanCount());
+
+        pool.seen(new Transaction(params, parent.bitcoinSerialize()), address1);
+        assertEquals(parent.getHash(), future.get(5, TimeUnit.SECONDS).getHash());
+        assertFalse(pool.isAwaitingParent(parent.getHash()));
+        assertEquals(0, pool.getOrphanCount());
+
+        // And given up on.
+        Transaction missing = fundingTx();
+        Transaction missingChild = spend(missing.getOutput(0), Utils.toNanoCoins(0, 1));
+        future = pool.addOrphan(missingChild, missing.getHash());
+        pool.removeOrphans(missing.getHash());
+        // Nobody is asking for it anymore, so it isn't waited for again.
+        assertNull(pool.addOrphanIfAwaited(spend(missing.getOutput(1), Utils.toNanoCoins(0, 1)), missing.getHash()));
+        assertFalse(pool.isAwaitingParent(missing.getHash()));
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (CancellationException e) {
+            // Expected.
+        }
+        assertEquals(0, pool.getOrphanCount());
+    }
 }
@@ -0,0 +1,149 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.core;
+
+import com.google.devcoin.params.UnitTestParams;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class MerkleTreeTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void matchesFullRebuild() throws Exception {
+        MerkleTree tree = new MerkleTree();
+        List<Sha256Hash> leaves = new ArrayList<Sha256Hash>();
+        for (int i = 0; i < 70; i++) {
+            Sha256Hash leaf = randomHash();
+            leaves.add(leaf);
+            tree.add(leaf);
+            assertEquals(i + 1, tree.size());
+            assertEquals(expectedRoot(leaves), tree.getRoot());
+            assertEquals(expectedRoot(leaves), new MerkleTree(leaves).getRoot());
+        }
+        // Replacing leaves anywhere, one at a time and several at once.
+        for (int i = 0; i < 20; i++) {
+            int changes = 1 + random.nextInt(3);
+            for (int j = 0; j < changes; j++) {
+                int index = random.nextInt(leaves.size());
+                leaves.set(index, randomHash());
+                tree.set(index, leaves.get(index));
+            }
+            assertEquals(expectedRoot(leaves), tree.getRoot());
+        }
+        // Appending several before asking for the root.
+        for (int i = 0; i < 5; i++) {
+            leaves.add(randomHash());
+            tree.add(leaves.get(leaves.size() - 1));
+        }
+        assertEquals(expectedRoot(leaves), tree.getRoot());
+        assertEquals(leaves.get(3), tree.get(3));
+    }
+
+    @Test
+    public void parallelBuild() throws Exception {
+        List<Sha256Hash> leaves = new ArrayList<Sha256Hash>();
+        for (int i = 0; i < 5001; i++)
+            leaves.add(randomHash());
+        MerkleTree tree = MerkleTree.build(leaves, 4);
+        assertEquals(expectedRoot(leaves), tree.getRoot());
+        assertEquals(new MerkleTree(leaves).getRoot(), tree.getRoot());
+        // And carries on incrementally from there.
+        leaves.set(2500, randomHash());
+        tree.set(2500, leaves.get(2500));
+        assertEquals(expectedRoot(leaves), tree.getRoot());
+    }
+
+    @Test
+    public void blockMerkleRoot() throws Exception {
+        Block block = params.getGenesisBlock().createNextBlock(new ECKey().toAddress(params));
+        Sha256Hash root = block.getMerkleRoot();
+        Transaction tx = new Transaction(params);
+        tx.addInput(new TransactionInput(params, tx, new byte[] {1},
+                new TransactionOutPoint(params, 0, block.getTransactions().get(0).getHash())));
+        tx.addOutput(new TransactionOutput(params, tx, Utils.CENT, new ECKey()));
+        block.addTransaction(tx);
+        List<Sha256Hash> leaves = new ArrayList<Sha256Hash>();
+        for (Transaction t : block.getTransactions())
+            leaves.add(t.getHash());
+        assertFalse(root.equals(block.getMerkleRoot()));
+        assertEquals(expectedRoot(leaves), block.getMerkleRoot());
+
+        // Changing a transaction already in the block changes the root too.
+        tx.addOutput(new TransactionOutput(params, tx, Utils.CENT, new ECKey()));
+        leaves.set(leaves.size() - 1, tx.getHash());
+        assertEquals(expectedRoot(leaves), block.getMerkleRoot());
+        block.solve();
+        block.verify();
+    }
+
+    @Test
+    public void partialMerkleTrees() throws Exception {
+        for (int size : new int[] {1, 2, 3, 7, 16, 33, 100}) {
+            List<Sha256Hash> leaves = new ArrayList<Sha256Hash>();
+            for (int i = 0; i < size; i++)
+                leaves.add(randomHash());
+            MerkleTree tree = new MerkleTree(leaves);
+            for (int round = 0; round < 10; round++) {
+                Set<Sha256Hash> matched = new HashSet<Sha256Hash>();
+                List<Sha256Hash> expected = new ArrayList<Sha256Hash>();
+                for (Sha256Hash leaf : leaves) {
+                    if (random.nextInt(round + 2) == 0) {
+                        matched.add(leaf);
+                        expected.add(leaf);
+                    }
+                }
+                PartialMerkleTree partialTree = tree.getPartialMerkleTree(params, matched);
+                // Through the wire format and back, as a peer would receive it.
+                byte[] bytes = partialTree.bitcoinSerialize();
+                assertEquals(bytes.length, partialTree.getMessageSize());
+                PartialMerkleTree parsed = new PartialMerkleTree(params, bytes, 0);
+                List<Sha256Hash> extracted = new ArrayList<Sha256Hash>();
+                assertEquals(tree.getRoot(), parsed.getTxnHashAndMerkleRoot(extracted));
+                assertEquals(expected, extracted);
+            }
+        }
+    }
+
+    private Sha256Hash randomHash() {
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        return new Sha256Hash(bytes);
+    }
+
+    // The whole tree built from scratch, as blocks used to.
+    private static Sha256Hash expectedRoot(List<Sha256Hash> leaves) {
+        List<byte[]> level = new ArrayList<byte[]>();
+        for (Sha256Hash leaf : leaves)
+            level.add(leaf.getBytes());
+        while (level.size() > 1) {
+            List<byte[]> parents = new ArrayList<byte[]>();
+            for (int left = 0; left < level.size(); left += 2) {
+                int right = Math.min(left + 1, level.size() - 1);
+                parents.add(Utils.reverseBytes(Utils.doubleDigestTwoBuffers(
+                        Utils.reverseBytes(level.get(left)), 0, 32, Utils.reverseBytes(level.get(right)), 0, 32)));
+            }
+            level = parents;
+        }
+        return new Sha256Hash(level.get(0));
+    }
+}
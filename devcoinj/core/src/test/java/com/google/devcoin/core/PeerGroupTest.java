@@ -22,11 +22,13 @@ import com.google.devcoin.params.UnitTestParams;
 import com.google.devcoin.store.MemoryBlockStore;
 import com.google.devcoin.utils.TestUtils;
 import com.google.devcoin.utils.Threading;
+import org.jboss.netty.bootstrap.ClientBootstrap;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.math.BigInteger;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.HashSet;
 import java.util.Set;
@@ -327,4 +329,25 @@ public class PeerGroupTest extends TestWithPeerGroup {
         Peer d = PeerGroup.peerFromChannel(connectPeer(5, versionMessage4));
         assertEquals(d, peerGroup.getDownloadPeer());
     }
+
+    @Test
+    public void memoryPoolForgetsConfirmed() throws Exception {
+        MemoryPool pool = new MemoryPool(MemoryPool.MAX_SIZE, 100000);
+        PeerGroup group = new PeerGroup(params, blockChain, new ClientBootstrap(), pool);
+        PeerAddress address = new PeerAddress(InetAddress.getByAddress(new byte[] {127, 0, 0, 1}));
+        Transaction tx = TestUtils.createFakeTx(params, Utils.toNanoCoins(1, 0), new ECKey().toAddress(params));
+        pool.seen(tx, address);
+        assertTrue(pool.isRetained(tx.getHash()));
+        blockChain.add(TestUtils.makeSolvedTestBlock(blockStore.getChainHead().getHeader(), tx));
+        assertFalse(pool.isRetained(tx.getHash()));
+        assertEquals(0, pool.getRetainedBytes());
+
+        // Once stopped, the group no longer listens to the chain.
+        group.startAndWait();
+        group.stopAndWait();
+        tx = TestUtils.createFakeTx(params, Utils.toNanoCoins(1, 0), new ECKey().toAddress(params));
+        pool.seen(tx, address);
+        blockChain.add(TestUtils.makeSolvedTestBlock(blockStore.getChainHead().getHeader(), tx));
+        assertTrue(pool.isRetained(tx.getHash()));
+    }
 }
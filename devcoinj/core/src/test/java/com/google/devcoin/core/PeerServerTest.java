@@ -0,0 +1,304 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.core;
+
+import com.google.devcoin.params.UnitTestParams;
+import com.google.devcoin.store.MemoryFullPrunedBlockStore;
+import com.google.devcoin.utils.Threading;
+import com.google.common.primitives.Bytes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PeerServerTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private MemoryFullPrunedBlockStore store;
+    private PeerServer server;
+    private final List<Block> blocks = new ArrayList<Block>();
+    private final ECKey key = new ECKey();
+    private final BlockingQueue<Message> received = new LinkedBlockingQueue<Message>();
+    private Peer client;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new MemoryFullPrunedBlockStore(params, 100);
+        extendChain(store.getChainHead(), 10, key.toAddress(params));
+        server = new PeerServer(params, store);
+        server.start(new InetSocketAddress("127.0.0.1", 0));
+        client = connect();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    // Adds blocks with their transactions to the store, as a full store has them before it connects them.
+    private List<Block> extendChain(StoredBlock prev, int count, Address to) throws Exception {
+        List<Block> added = new ArrayList<Block>();
+        for (int i = 0; i < count; i++) {
+            Block block = prev.getHeader().createNextBlock(to);
+            StoredBlock stored = prev.build(block);
+            store.put(stored, new StoredUndoableBlock(block.getHash(), block.getTransactions()));
+            store.setChainHead(stored);
+            added.add(block);
+            prev = stored;
+        }
+        blocks.addAll(added);
+        return added;
+    }
+
+    private Peer connect() throws Exception {
+        Peer peer = new Peer(params, null, new VersionMessage(params, 0), null);
+        peer.addEventListener(new AbstractPeerEventListener() {
+            @Override
+            public Message onPreMessageReceived(Peer peer, Message m) {
+                if (m instanceof VersionMessage || m instanceof VersionAck)
+                    return m;
+                received.add(m);
+                return null;
+            }
+        }, Threading.SAME_THREAD);
+        TCPNetworkConnection.connectTo(params, server.getLocalAddress(), 2000, peer).get(5, TimeUnit.SECONDS);
+        return peer;
+    }
+
+    private <T extends Message> T receive(Class<T> type) throws Exception {
+        Message m = received.poll(5, TimeUnit.SECONDS);
+        assertNotNull("Nothing received", m);
+        assertTrue("Received " + m, type.isInstance(m));
+        return type.cast(m);
+    }
+
+    // Returns the block merge mined, that is, with the auxiliary proof of work flag set and a proof that uses the
+    // genesis block as the parent block. It isn't valid, but it is parsed as one.
+    private static Block mergeMine(Block block) throws Exception {
+        Transaction parentCoinbase = new Transaction(params);
+        parentCoinbase.addInput(new TransactionInput(params, parentCoinbase, new byte[] {1, 2}));
+        parentCoinbase.addOutput(Utils.toNanoCoins(50, 0), new ECKey());
+        Block parent = params.getGenesisBlock().cloneAsHeader();
+        ByteArrayOutputStream auxPow = new ByteArrayOutputStream();
+        auxPow.write(parentCoinbase.bitcoinSerialize());
+        auxPow.write(Utils.reverseBytes(parent.getHash().getBytes()));
+        // Empty merkle branches to the coinbase and the chain, and the parent block's header.
+        auxPow.write(new byte[] {0, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+        parent.writeHeader(auxPow);
+
+        byte[] bytes = block.bitcoinSerialize();
+        Utils.uint32ToByteArrayLE(block.getVersion() | BlockMergeMined.BLOCK_VERSION_AUXPOW, bytes, 0);
+        return new Block(params, Bytes.concat(Arrays.copyOf(bytes, Block.HEADER_SIZE), auxPow.toByteArray(),
+                Arrays.copyOfRange(bytes, Block.HEADER_SIZE, bytes.length)));
+    }
+
+    private static List<Sha256Hash> hashesOf(List<Block> blocks) {
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        for (Block block : blocks)
+            hashes.add(block.getHash());
+        return hashes;
+    }
+
+    private static List<Sha256Hash> headerHashes(HeadersMessage m) {
+        return hashesOf(m.getBlockHeaders());
+    }
+
+    @Test
+    public void servesHeaders() throws Exception {
+        client.sendMessage(new GetHeadersMessage(params, Arrays.asList(params.getGenesisBlock().getHash()),
+                Sha256Hash.ZERO_HASH));
+        assertEquals(hashesOf(blocks), headerHashes(receive(HeadersMessage.class)));
+
+        // From the first locator hash we have, up to and including the stop hash.
+        client.sendMessage(new GetHeadersMessage(params, Arrays.asList(new Sha256Hash(new byte[32]),
+                blocks.get(2).getHash()), blocks.get(5).getHash()));
+        assertEquals(hashesOf(blocks.subList(3, 6)), headerHashes(receive(HeadersMessage.class)));
+
+        assertEquals(1, server.getConnectedPeers().size());
+    }
+
+    @Test
+    public void followsReorganizations() throws Exception {
+        client.sendMessage(new GetHeadersMessage(params, Arrays.asList(blocks.get(0).getHash()), Sha256Hash.ZERO_HASH));
+        assertEquals(9, receive(HeadersMessage.class).getBlockHeaders().size());
+
+        // A longer fork from the eighth block becomes the best chain.
+        List<Block> oldBlocks = new ArrayList<Block>(blocks);
+        List<Block> fork = extendChain(store.get(oldBlocks.get(7).getHash()), 4, new ECKey().toAddress(params));
+        client.sendMessage(new GetHeadersMessage(params, Arrays.asList(oldBlocks.get(9).getHash(),
+                oldBlocks.get(7).getHash()), Sha256Hash.ZERO_HASH));
+        assertEquals(hashesOf(fork), headerHashes(receive(HeadersMessage.class)));
+    }
+
+    @Test
+    public void servesBlockInventory() throws Exception {
+        client.sendMessage(new GetBlocksMessage(params, Arrays.asList(blocks.get(6).getHash()), Sha256Hash.ZERO_HASH));
+        InventoryMessage inv = receive(InventoryMessage.class);
+        assertEquals(3, inv.getItems().size());
+        assertEquals(blocks.get(7).getHash(), inv.getItems().get(0).hash);
+        assertEquals(InventoryItem.Type.Block, inv.getItems().get(0).type);
+
+        // Unlike getheaders, the stop hash is left out.
+        client.sendMessage(new GetBlocksMessage(params, Arrays.asList(params.getGenesisBlock().getHash()),
+                blocks.get(3).getHash()));
+        inv = receive(InventoryMessage.class);
+        assertEquals(3, inv.getItems().size());
+        assertEquals(blocks.get(2).getHash(), inv.getItems().get(2).hash);
+    }
+
+    @Test
+    public void servesBlocks() throws Exception {
+        Block block = blocks.get(4);
+        Sha256Hash unknown = new Sha256Hash(new byte[32]);
+        GetDataMessage getdata = new GetDataMessage(params);
+        getdata.addBlock(block.getHash());
+        getdata.addItem(new InventoryItem(InventoryItem.Type.Block, unknown));
+        client.sendMessage(getdata);
+        Block served = receive(Block.class);
+        assertEquals(block.getHash(), served.getHash());
+        assertEquals(block.getTransactions(), served.getTransactions());
+        NotFoundMessage notFound = receive(NotFoundMessage.class);
+        assertEquals(1, notFound.getItems().size());
+        assertEquals(unknown, notFound.getItems().get(0).hash);
+
+        // And filtered, with the transactions paying the filter's key.
+        BloomFilter filter = new BloomFilter(1, 0.0001, 0);
+        filter.insert(key.getPubKeyHash());
+        client.sendMessage(filter);
+        getdata = new GetDataMessage(params);
+        getdata.addItem(new InventoryItem(InventoryItem.Type.FilteredBlock, block.getHash()));
+        client.sendMessage(getdata);
+        FilteredBlock filtered = receive(FilteredBlock.class);
+        assertEquals(block.getHash(), filtered.getHash());
+        Transaction payment = block.getTransactions().get(1);
+        assertEquals(Arrays.asList(payment.getHash()), filtered.getTransactionHashes());
+        assertEquals(payment.getHash(), receive(Transaction.class).getHash());
+    }
+
+    @Test
+    public void prunedBlocksAreNotServed() throws Exception {
+        // While the store has the transactions of every block, the whole chain is served.
+        assertTrue(client.getPeerVersionMessage().hasBlockChain());
+        assertTrue(server.canServeFullChain());
+        // Once it has pruned the first blocks, it can't be, so new peers aren't told that it can.
+        for (Block block : extendChain(store.getChainHead(), 100, key.toAddress(params)))
+            store.setVerifiedChainHead(store.get(block.getHash()));
+        assertFalse(server.canServeFullChain());
+        GetDataMessage getdata = new GetDataMessage(params);
+        getdata.addBlock(blocks.get(0).getHash());
+        getdata.addBlock(blocks.get(10).getHash());
+        client.sendMessage(getdata);
+        assertEquals(blocks.get(10).getHash(), receive(Block.class).getHash());
+        NotFoundMessage notFound = receive(NotFoundMessage.class);
+        assertEquals(1, notFound.getItems().size());
+        assertEquals(blocks.get(0).getHash(), notFound.getItems().get(0).hash);
+    }
+
+    @Test
+    public void servesAddedBlocks() throws Exception {
+        Block block = blocks.get(9).createNextBlock(key.toAddress(params));
+        server.addBlock(block);
+        GetDataMessage getdata = new GetDataMessage(params);
+        getdata.addBlock(block.getHash());
+        client.sendMessage(getdata);
+        assertEquals(block.getHash(), receive(Block.class).getHash());
+    }
+
+    @Test
+    public void servesMergeMinedBlocks() throws Exception {
+        // A merge mined block, stored as the chain stores it, without its auxiliary proof of work.
+        StoredBlock head = store.getChainHead();
+        Block block = mergeMine(head.getHeader().createNextBlock(key.toAddress(params)));
+        assertNotNull(block.getAuxPowBytes());
+        StoredBlock stored = head.build(block.cloneAsHeader());
+        store.put(stored, new StoredUndoableBlock(block.getHash(), block.getTransactions()));
+        store.setChainHead(stored);
+        GetHeadersMessage getheaders = new GetHeadersMessage(params, Arrays.asList(blocks.get(9).getHash()),
+                Sha256Hash.ZERO_HASH);
+        GetDataMessage getdata = new GetDataMessage(params);
+        getdata.addBlock(block.getHash());
+
+        // Without the proof, neither the header nor the block can be sent.
+        client.sendMessage(getheaders);
+        assertEquals(0, receive(HeadersMessage.class).getBlockHeaders().size());
+        client.sendMessage(getdata);
+        assertEquals(1, receive(NotFoundMessage.class).getItems().size());
+
+        // Once the header is downloaded, both are sent with it.
+        server.addBlock(block.cloneAsHeader(block.getAuxPowBytes()));
+        client.sendMessage(getheaders);
+        Block header = receive(HeadersMessage.class).getBlockHeaders().get(0);
+        assertEquals(block.getHash(), header.getHash());
+        assertArrayEquals(block.getAuxPowBytes(), header.getAuxPowBytes());
+        client.sendMessage(getdata);
+        Block served = receive(Block.class);
+        assertEquals(block.getHash(), served.getHash());
+        assertArrayEquals(block.getAuxPowBytes(), served.getAuxPowBytes());
+        assertEquals(block.getTransactions(), served.getTransactions());
+    }
+
+    @Test
+    public void sendsInOrder() throws Exception {
+        // About a block a second, and the blocks are looked up one at a time.
+        server.setMaxBytesPerSecond(blocks.get(1).bitcoinSerialize().length);
+        server.setMaxQueuedBytes(1);
+        GetDataMessage getdata = new GetDataMessage(params);
+        getdata.addBlock(blocks.get(1).getHash());
+        getdata.addBlock(blocks.get(2).getHash());
+        client.sendMessage(getdata);
+        client.sendMessage(new GetBlocksMessage(params, Arrays.asList(blocks.get(8).getHash()), Sha256Hash.ZERO_HASH));
+        // The inventory is small, but waits for the blocks asked for before it.
+        assertEquals(blocks.get(1).getHash(), receive(Block.class).getHash());
+        assertEquals(blocks.get(2).getHash(), receive(Block.class).getHash());
+        assertEquals(1, receive(InventoryMessage.class).getItems().size());
+    }
+
+    @Test
+    public void limitsConnections() throws Exception {
+        server.setMaxConnections(1);
+        Socket socket = new Socket();
+        socket.setSoTimeout(5000);
+        socket.connect(server.getLocalAddress());
+        // Closed by the server without a version message.
+        assertEquals(-1, socket.getInputStream().read());
+        socket.close();
+    }
+
+    @Test
+    public void pacesSending() throws Exception {
+        PeerServer.SendPacer pacer = new PeerServer.SendPacer();
+        long second = TimeUnit.SECONDS.toNanos(1);
+        // A second's worth goes at once, then the rest is held back to the limit.
+        assertEquals(0, pacer.reserve(600, 1000, 0));
+        assertEquals(0, pacer.reserve(400, 1000, 0));
+        assertEquals(second / 2, pacer.reserve(500, 1000, 0));
+        assertEquals(second / 2, pacer.reserve(500, 1000, second / 2));
+        // After a pause the peer can burst again.
+        assertEquals(0, pacer.reserve(1000, 1000, 10 * second));
+    }
+}
@@ -43,6 +43,7 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static com.google.devcoin.utils.TestUtils.*;
 import static org.easymock.EasyMock.*;
@@ -488,6 +489,40 @@ public class PeerTest extends TestWithNetworkConnections {
         assertEquals(7250, peer.getPingTime());
     }
 
+    private FilterAddMessage filterAdd(byte[] data) throws Exception {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        payload.write(new VarInt(data.length).encode());
+        payload.write(data);
+        return new FilterAddMessage(unitTestParams, payload.toByteArray());
+    }
+
+    @Test
+    public void remotePeerFilter() throws Exception {
+        control.replay();
+        connect();
+        byte[] key = new ECKey().getPubKey();
+        // Adding to a filter that was never loaded does nothing.
+        inbound(peer, filterAdd(key));
+        assertNull(peer.getPeerBloomFilter());
+
+        BloomFilter filter = new BloomFilter(10, 0.0001, 1);
+        inbound(peer, filter);
+        assertSame(filter, peer.getPeerBloomFilter());
+        assertFalse(filter.contains(key));
+        inbound(peer, filterAdd(key));
+        assertTrue(filter.contains(key));
+        inbound(peer, new FilterClearMessage());
+        assertNull(peer.getPeerBloomFilter());
+
+        // Elements bigger than a script can push are rejected, as by the reference client.
+        try {
+            filterAdd(new byte[521]);
+            fail();
+        } catch (ProtocolException e) {
+            // Expected.
+        }
+    }
+
     @Test
     public void recursiveDownloadNew() throws Exception {
         recursiveDownload(true);
@@ -607,6 +642,76 @@ public class PeerTest extends TestWithNetworkConnections {
         assertTrue(results.contains(t4));
     }
 
+    @Test
+    public void recursiveDownloadSharesRequests() throws Exception {
+        // A pool that keeps transactions holds the ones waiting for a parent, so the parent is only asked for once.
+        memoryPool = new MemoryPool(MemoryPool.MAX_SIZE, 100000);
+        peer = new Peer(unitTestParams, blockChain, new VersionMessage(unitTestParams, 100), memoryPool);
+        handler = peer.getHandler();
+        control.replay();
+        connect();
+
+        Transaction parent = TestUtils.createFakeTx(unitTestParams, Utils.toNanoCoins(2, 0), new ECKey());
+        Sha256Hash grandparent = parent.getInput(0).getOutpoint().getHash();
+        Transaction child1 = new Transaction(unitTestParams);
+        child1.addInput(parent.getOutput(0));
+        child1.addOutput(Utils.toNanoCoins(1, 0), new ECKey());
+        child1 = TestUtils.roundTripTransaction(unitTestParams, child1);
+        Transaction child2 = new Transaction(unitTestParams);
+        child2.addInput(parent.getOutput(1));
+        child2.addOutput(Utils.toNanoCoins(1, 0), new ECKey());
+        child2 = TestUtils.roundTripTransaction(unitTestParams, child2);
+
+        ListenableFuture<List<Transaction>> futures1 = peer.downloadDependencies(child1);
+        GetDataMessage getdata = (GetDataMessage) outbound();
+        assertEquals(1, getdata.getItems().size());
+        assertEquals(parent.getHash(), getdata.getItems().get(0).hash);
+        // The second walk waits for the same download.
+        ListenableFuture<List<Transaction>> futures2 = peer.downloadDependencies(child2);
+        assertTrue(event.getValues().isEmpty());
+        assertTrue(memoryPool.isAwaitingParent(parent.getHash()));
+
+        // Both walks carry on into the parent, and only one asks for the grandparent, which is in the chain.
+        inbound(peer, parent);
+        Threading.waitForUserCode();
+        getdata = (GetDataMessage) outbound();
+        assertEquals(1, getdata.getItems().size());
+        assertEquals(grandparent, getdata.getItems().get(0).hash);
+        assertTrue(event.getValues().isEmpty());
+        NotFoundMessage notFound = new NotFoundMessage(unitTestParams);
+        notFound.addItem(new InventoryItem(InventoryItem.Type.Transaction, grandparent));
+        inbound(peer, notFound);
+        Threading.waitForUserCode();
+        assertEquals(parent, futures1.get().get(0));
+        assertEquals(parent, futures2.get().get(0));
+        assertEquals(0, memoryPool.getOrphanCount());
+    }
+
+    @Test
+    public void recursiveDownloadDisconnect() throws Exception {
+        // A parent asked of a peer that goes away is given up on, by every walk waiting for it.
+        memoryPool = new MemoryPool(MemoryPool.MAX_SIZE, 100000);
+        peer = new Peer(unitTestParams, blockChain, new VersionMessage(unitTestParams, 100), memoryPool);
+        handler = peer.getHandler();
+        control.replay();
+        connect();
+
+        Transaction parent = TestUtils.createFakeTx(unitTestParams, Utils.toNanoCoins(2, 0), new ECKey());
+        Transaction child = new Transaction(unitTestParams);
+        child.addInput(parent.getOutput(0));
+        child.addOutput(Utils.toNanoCoins(1, 0), new ECKey());
+        child = TestUtils.roundTripTransaction(unitTestParams, child);
+        ListenableFuture<List<Transaction>> future = peer.downloadDependencies(child);
+        assertEquals(parent.getHash(), ((GetDataMessage) outbound()).getItems().get(0).hash);
+        assertTrue(memoryPool.isAwaitingParent(parent.getHash()));
+
+        closePeer(peer);
+        Threading.waitForUserCode();
+        assertTrue(future.get(5, TimeUnit.SECONDS).isEmpty());
+        assertFalse(memoryPool.isAwaitingParent(parent.getHash()));
+        assertEquals(0, memoryPool.getOrphanCount());
+    }
+
     private void bouncePing() throws Exception {
         Ping ping = (Ping) outbound();
         inbound(peer, new Pong(ping.getNonce()));
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.core;
+
+import com.google.devcoin.params.UnitTestParams;
+import com.google.devcoin.utils.TestUtils;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ShardedMemoryPoolTest {
+    private final NetworkParameters params = UnitTestParams.get();
+
+    private static PeerAddress peer(int i) throws Exception {
+        return new PeerAddress(InetAddress.getByAddress(new byte[] { 10, 0, (byte) (i >> 8), (byte) i }));
+    }
+
+    private Transaction fakeTx() throws Exception {
+        return TestUtils.createFakeTx(params, Utils.toNanoCoins(1, 0), new ECKey().toAddress(params));
+    }
+
+    @Test
+    public void countsBroadcastsAsOnePool() throws Exception {
+        ShardedMemoryPool pool = new ShardedMemoryPool(MemoryPool.MAX_SIZE, 4);
+        assertEquals(4, pool.getNumShards());
+        List<Transaction> txns = new ArrayList<Transaction>();
+        for (int i = 0; i < 20; i++)
+            txns.add(fakeTx());
+        for (Transaction tx : txns) {
+            pool.seen(tx.getHash(), peer(1));
+            pool.seen(tx.getHash(), peer(2));
+            assertTrue(pool.maybeWasSeen(tx.getHash()));
+            assertEquals(2, pool.numBroadcastPeers(tx.getHash()));
+            assertNull(pool.get(tx.getHash()));
+        }
+        for (Transaction tx : txns) {
+            // Downloading moves the count into the confidence, and a second copy gives back the first.
+            Transaction downloaded = pool.seen(tx, peer(3));
+            assertSame(tx, downloaded);
+            assertEquals(3, tx.getConfidence().numBroadcastPeers());
+            assertSame(tx, pool.intern(new Transaction(params, tx.bitcoinSerialize())));
+            assertSame(tx, pool.get(tx.getHash()));
+        }
+        assertFalse(pool.isRetaining());
+    }
+
+    // Spends the given output, paying the rest of its value less the fee to a new key.
+    private Transaction spend(TransactionOutput output, BigInteger fee) {
+        Transaction tx = new Transaction(params);
+        tx.addInput(output);
+        tx.addOutput(new TransactionOutput(params, tx, output.getValue().subtract(fee), new ECKey().toAddress(params)));
+        return tx;
+    }
+
+    @Test
+    public void retainsAcrossShards() throws Exception {
+        Transaction funding = fakeTx();
+        Transaction parent = spend(funding.getOutput(0), Utils.toNanoCoins(0, 1));
+        Transaction child = spend(parent.getOutput(0), Utils.toNanoCoins(0, 1));
+        Transaction cheap = spend(fakeTx().getOutput(0), BigInteger.valueOf(1000));
+        long budget = parent.getMessageSize() + child.getMessageSize() + cheap.getMessageSize() - 1;
+        ShardedMemoryPool pool = new ShardedMemoryPool(MemoryPool.MAX_SIZE, 8, budget);
+        assertTrue(pool.isRetaining());
+        pool.seen(cheap, peer(1));
+        pool.seen(parent, peer(1));
+        pool.seen(child, peer(1));
+        // The budget is shared, so the lowest fee rate of any shard goes.
+        assertTrue(pool.isRetained(parent.getHash()));
+        assertTrue(pool.isRetained(child.getHash()));
+        assertFalse(pool.isRetained(cheap.getHash()));
+        assertEquals(parent.getMessageSize() + child.getMessageSize(), pool.getRetainedBytes());
+        pool.seen(parent.getHash(), peer(2));
+        assertEquals(2, pool.numBroadcastPeers(parent.getHash()));
+        assertSame(parent, pool.intern(new Transaction(params, parent.bitcoinSerialize())));
+
+        // Double spends are found whatever shard they fall in.
+        Transaction doubleSpend = spend(funding.getOutput(0), Utils.toNanoCoins(0, 5));
+        assertEquals(Collections.singleton(parent), pool.getConflicts(doubleSpend));
+        pool.seen(doubleSpend, peer(3));
+        assertFalse(pool.isRetained(doubleSpend.getHash()));
+        assertEquals(parent, pool.getSpendingTransaction(new TransactionOutPoint(params, 0, funding.getHash())));
+
+        // Once the double spend confirms, the parent and its child are let go of and tracked as before.
+        pool.removeConfirmed(doubleSpend);
+        assertFalse(pool.isRetained(parent.getHash()));
+        assertFalse(pool.isRetained(child.getHash()));
+        assertEquals(0, pool.getRetainedBytes());
+        assertSame(parent, pool.get(parent.getHash()));
+        assertSame(child, pool.get(child.getHash()));
+        assertEquals(2, pool.numBroadcastPeers(parent.getHash()));
+    }
+
+    @Test
+    public void orphans() throws Exception {
+        ShardedMemoryPool pool = new ShardedMemoryPool();
+        Transaction parent = fakeTx();
+        Transaction child = new Transaction(params);
+        child.addInput(parent.getOutput(0));
+        child.addOutput(Utils.toNanoCoins(1, 0), new ECKey());
+        pool.addOrphan(child, parent.getHash());
+        assertTrue(pool.isAwaitingParent(parent.getHash()));
+        assertEquals(1, pool.getOrphanCount());
+        pool.intern(parent);
+        assertFalse(pool.isAwaitingParent(parent.getHash()));
+        assertEquals(0, pool.getOrphanCount());
+    }
+
+    @Test
+    public void concurrentPeers() throws Exception {
+        final ShardedMemoryPool pool = new ShardedMemoryPool(MemoryPool.MAX_SIZE, 8);
+        final List<Transaction> txns = new ArrayList<Transaction>();
+        for (int i = 0; i < 100; i++)
+            txns.add(fakeTx());
+        // Each peer announces every transaction and then downloads it, all at once.
+        final int numPeers = 6;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(numPeers);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        for (int i = 0; i < numPeers; i++) {
+            final PeerAddress address = peer(i);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (Transaction tx : txns)
+                            pool.seen(tx.getHash(), address);
+                        for (Transaction tx : txns)
+                            assertSame(tx, pool.seen(tx, address));
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+        assertNull(failure.get());
+        for (Transaction tx : txns) {
+            assertSame(tx, pool.get(tx.getHash()));
+            assertEquals(numPeers, tx.getConfidence().numBroadcastPeers());
+            assertEquals(numPeers, pool.numBroadcastPeers(tx.getHash()));
+        }
+    }
+}
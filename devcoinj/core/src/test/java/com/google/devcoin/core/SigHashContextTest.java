@@ -0,0 +1,112 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.core;
+
+import com.google.devcoin.core.Transaction.SigHash;
+import com.google.devcoin.params.UnitTestParams;
+import com.google.devcoin.script.Script;
+import com.google.devcoin.script.ScriptBuilder;
+import com.google.devcoin.script.ScriptOpCodes;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class SigHashContextTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void matchesFullSerialization() throws Exception {
+        for (int numInputs : new int[] {1, 2, 7, 40}) {
+            Transaction tx = createTransaction(numInputs, 3);
+            byte[] pubKeyScript = ScriptBuilder.createOutputScript(new ECKey()).getProgram();
+            // A script with OP_CODESEPARATORs in it, which are removed before hashing.
+            byte[] separatedScript = new byte[] {(byte) ScriptOpCodes.OP_CODESEPARATOR,
+                    (byte) ScriptOpCodes.OP_1, (byte) ScriptOpCodes.OP_CODESEPARATOR, (byte) ScriptOpCodes.OP_DROP};
+            for (int i = 0; i < numInputs; i++) {
+                for (byte type : new byte[] {1, 0, 0x21, 0x41}) {
+                    assertEquals(expectedHash(tx, i, pubKeyScript, type), tx.hashForSignature(i, pubKeyScript, type));
+                    assertEquals(expectedHash(tx, i, separatedScript, type),
+                            tx.hashForSignature(i, separatedScript, type));
+                }
+                // Asking again gives the same answer, from the cache this time.
+                assertEquals(expectedHash(tx, i, pubKeyScript, (byte) 1),
+                        tx.hashForSignature(i, pubKeyScript, SigHash.ALL, false));
+            }
+        }
+    }
+
+    @Test
+    public void changesDropTheContext() throws Exception {
+        Transaction tx = createTransaction(3, 2);
+        byte[] pubKeyScript = ScriptBuilder.createOutputScript(new ECKey()).getProgram();
+        Sha256Hash before = tx.hashForSignature(1, pubKeyScript, SigHash.ALL, false);
+
+        // The other input scripts are blanked before hashing, so changing them makes no difference.
+        tx.getInput(0).setScriptBytes(new byte[] {(byte) ScriptOpCodes.OP_1});
+        assertEquals(before, tx.hashForSignature(1, pubKeyScript, SigHash.ALL, false));
+
+        tx.getOutputs().get(0).setValue(BigInteger.valueOf(12345));
+        Sha256Hash after = tx.hashForSignature(1, pubKeyScript, SigHash.ALL, false);
+        assertFalse(before.equals(after));
+        assertEquals(expectedHash(tx, 1, pubKeyScript, (byte) 1), after);
+
+        tx.getInput(2).setSequenceNumber(7);
+        assertEquals(expectedHash(tx, 1, pubKeyScript, (byte) 1),
+                tx.hashForSignature(1, pubKeyScript, SigHash.ALL, false));
+        tx.addOutput(new TransactionOutput(params, tx, BigInteger.ONE, new ECKey()));
+        assertEquals(expectedHash(tx, 1, pubKeyScript, (byte) 1),
+                tx.hashForSignature(1, pubKeyScript, SigHash.ALL, false));
+    }
+
+    private Transaction createTransaction(int numInputs, int numOutputs) {
+        Transaction tx = new Transaction(params);
+        for (int i = 0; i < numInputs; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            byte[] scriptSig = new byte[random.nextInt(120)];
+            random.nextBytes(scriptSig);
+            tx.addInput(new TransactionInput(params, tx, scriptSig,
+                    new TransactionOutPoint(params, random.nextInt(5), new Sha256Hash(hash))));
+        }
+        for (int i = 0; i < numOutputs; i++)
+            tx.addOutput(new TransactionOutput(params, tx, BigInteger.valueOf(random.nextInt(1000000)), new ECKey()));
+        return tx;
+    }
+
+    // Serializes a copy of the transaction with every input script but the one being signed blanked, as the reference
+    // client's SignatureHash does.
+    private Sha256Hash expectedHash(Transaction tx, int inputIndex, byte[] connectedScript, byte type)
+            throws Exception {
+        Transaction copy = new Transaction(params, tx.bitcoinSerialize());
+        for (int i = 0; i < copy.getInputs().size(); i++) {
+            copy.getInput(i).setScriptBytes(i == inputIndex ?
+                    Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR) :
+                    TransactionInput.EMPTY_ARRAY);
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        copy.bitcoinSerialize(bos);
+        Utils.uint32ToByteStreamLE(0x000000ff & type, bos);
+        return new Sha256Hash(Utils.doubleDigest(bos.toByteArray()));
+    }
+}
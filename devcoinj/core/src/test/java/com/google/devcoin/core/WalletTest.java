@@ -28,6 +28,7 @@ import com.google.devcoin.utils.TestWithWallet;
 import com.google.devcoin.utils.Threading;
 import com.google.devcoin.wallet.KeyTimeCoinSelector;
 import com.google.devcoin.wallet.WalletFiles;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.ByteString;
@@ -46,8 +47,12 @@ import java.math.BigInteger;
 import java.net.InetAddress;
 import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.google.devcoin.utils.TestUtils.*;
@@ -931,6 +936,54 @@ public class WalletTest extends TestWithWallet {
         assertFalse("Wallet not saved after chain add.2", hash4.equals(Sha256Hash.hashFileContents(f)));  // File has changed again.
     }
 
+    @Test
+    public void autosaveWithoutLock() throws Exception {
+        // The wallet is locked while it's snapshotted, but not while the snapshot is written to disk, so other threads
+        // can use the wallet meanwhile.
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicInteger lockedWhileSaving = new AtomicInteger();
+        final long[] timings = new long[2];
+        final ExecutorService otherThread = Executors.newSingleThreadExecutor();
+        File f = File.createTempFile("bitcoinj-unit-test", null);
+        wallet.autosaveToFile(f, 10, TimeUnit.MILLISECONDS,
+                new WalletFiles.SaveTimingListener() {
+                    public void onBeforeAutoSave(File tempFile) {
+                        // Called on the saving thread between taking the snapshot and writing it out.
+                        try {
+                            boolean locked = otherThread.submit(new Callable<Boolean>() {
+                                public Boolean call() throws Exception {
+                                    if (!wallet.lock.tryLock(5, TimeUnit.SECONDS))
+                                        return false;
+                                    wallet.lock.unlock();
+                                    return true;
+                                }
+                            }).get();
+                            if (locked)
+                                lockedWhileSaving.incrementAndGet();
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+
+                    public void onAfterAutoSave(File newlySavedFile) {
+                    }
+
+                    public void onSaveCompleted(long saveMillis, long lockHeldMillis) {
+                        timings[0] = saveMillis;
+                        timings[1] = lockHeldMillis;
+                        latch.countDown();
+                    }
+                }
+        );
+        Block b0 = createFakeBlock(blockStore).block;
+        chain.add(b0);
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        otherThread.shutdown();
+        assertEquals(1, lockedWhileSaving.get());
+        assertTrue(timings[1] <= timings[0]);
+        assertEquals(b0.getHash(), Wallet.loadFromFile(f).getLastBlockSeenHash());
+    }
+
     @Test
     public void autosaveDelayed() throws Exception {
         // Test that the wallet will save itself automatically when it changes, but not immediately and near-by
@@ -1173,6 +1226,90 @@ public class WalletTest extends TestWithWallet {
         assertTrue("Wrong number of keys in wallet after key addition", oneKey && !iterator.hasNext());
     }
 
+    @Test
+    public void encryptionDecryptionManyKeys() throws Exception {
+        // Enough keys for the work to be spread over several threads.
+        List<ECKey> keys = new ArrayList<ECKey>();
+        for (int i = 0; i < 200; i++) {
+            ECKey key = new ECKey();
+            keys.add(key);
+            wallet.addKey(new ECKey(key.getPrivKeyBytes(), key.getPubKey()));
+        }
+        wallet.encrypt(keyCrypter, aesKey);
+        for (ECKey key : wallet.getKeys())
+            assertTrue(key.isEncrypted());
+        wallet.setKeyCacheTimeout(1, TimeUnit.HOURS);
+        assertTrue(wallet.checkPassword(PASSWORD1));
+        wallet.decrypt(wallet.deriveKey(PASSWORD1));
+        for (ECKey key : keys) {
+            ECKey decrypted = wallet.findKeyFromPubKey(key.getPubKey());
+            assertFalse(decrypted.isEncrypted());
+            assertArrayEquals(key.getPrivKeyBytes(), decrypted.getPrivKeyBytes());
+        }
+    }
+
+    @Test
+    public void deriveKeyWithoutLock() throws Exception {
+        final AtomicBoolean lockedWhileDeriving = new AtomicBoolean();
+        final Wallet[] holder = new Wallet[1];
+        KeyCrypter crypter = new KeyCrypterScrypt(((KeyCrypterScrypt) keyCrypter).getScryptParameters()) {
+            @Override
+            public KeyParameter deriveKey(CharSequence password) throws KeyCrypterException {
+                if (holder[0].lock.isHeldByCurrentThread())
+                    lockedWhileDeriving.set(true);
+                return super.deriveKey(password);
+            }
+        };
+        Wallet wallet = holder[0] = new Wallet(params, crypter);
+        wallet.addNewEncryptedKey(PASSWORD1);
+        assertTrue(wallet.checkPassword(PASSWORD1));
+        wallet.setKeyCacheTimeout(1, TimeUnit.HOURS);
+        assertFalse(wallet.checkPassword(WRONG_PASSWORD));
+        assertTrue(wallet.checkPassword(PASSWORD1));
+        assertFalse(lockedWhileDeriving.get());
+    }
+
+    @Test
+    public void emptyEncryptedWalletSignsInParallel() throws Exception {
+        // Enough inputs to be signed on several threads, spread over two keys so each is used many times.
+        Address otherAddress = encryptedWallet.addNewEncryptedKey(keyCrypter, aesKey).toAddress(params);
+        for (int i = 0; i < 40; i++) {
+            sendMoneyToWallet(encryptedWallet, Utils.toNanoCoins(1, 0), i % 2 == 0 ? myEncryptedAddress : otherAddress,
+                    AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        }
+        Address destination = new ECKey().toAddress(params);
+
+        Wallet.SendRequest req = Wallet.SendRequest.emptyWallet(destination);
+        req.aesKey = wrongAesKey;
+        try {
+            encryptedWallet.completeTx(req);
+            fail("No exception was thrown trying to sign an encrypted key with the wrong password supplied.");
+        } catch (KeyCrypterException kce) {
+            assertEquals("Could not decrypt bytes", kce.getMessage());
+        }
+
+        req = Wallet.SendRequest.emptyWallet(destination);
+        req.aesKey = aesKey;
+        assertTrue(encryptedWallet.completeTx(req));
+        Transaction tx = req.tx;
+        assertEquals(40, tx.getInputs().size());
+        for (int i = 0; i < tx.getInputs().size(); i++) {
+            TransactionInput input = tx.getInput(i);
+            input.getScriptSig().correctlySpends(tx, i, input.getConnectedOutput().getScriptPubKey(), true);
+        }
+        // Whatever the number of processors here, sign again on several threads and check that gives the same result.
+        for (TransactionInput input : tx.getInputs())
+            input.setScriptBytes(TransactionInput.EMPTY_ARRAY);
+        tx.signInputs(Transaction.SigHash.ALL, encryptedWallet, aesKey, 4);
+        for (int i = 0; i < tx.getInputs().size(); i++) {
+            TransactionInput input = tx.getInput(i);
+            input.getScriptSig().correctlySpends(tx, i, input.getConnectedOutput().getScriptPubKey(), true);
+        }
+        // The wallet's keys are still encrypted.
+        for (ECKey key : encryptedWallet.getKeys())
+            assertTrue(key.isEncrypted());
+    }
+
     @Test
     public void ageMattersDuringSelection() throws Exception {
         // Test that we prefer older coins to newer coins when building spends. This reduces required fees and improves
@@ -1973,6 +2110,91 @@ public class WalletTest extends TestWithWallet {
         assertEquals(null, broadcaster.broadcasts.poll(1, TimeUnit.SECONDS));
     }
 
+    @Test
+    public void coldStorage() throws Exception {
+        // Receive some coins and spend them, leaving t1 with nothing more to spend.
+        Transaction t1 = sendMoneyToWallet(toNanoCoins(10, 0), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        Transaction t2 = wallet.createSend(new ECKey().toAddress(params), toNanoCoins(1, 0));
+        wallet.commitTx(t2);
+        sendMoneyToWallet(t2, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        BigInteger balance = wallet.getBalance();
+        BigInteger t2Value = t2.getValue(wallet);
+
+        // t1 is two blocks deep, not deep enough yet.
+        wallet.setColdStorageDepth(3);
+        assertTrue(wallet.getColdTransactions().isEmpty());
+        wallet.notifyNewBestBlock(createFakeBlock(blockStore).storedBlock);
+        List<ColdTransaction> records = wallet.getColdTransactions();
+        assertEquals(1, records.size());
+        assertEquals(t1.getHash(), records.get(0).getHash());
+        assertEquals(Pool.SPENT, records.get(0).getPool());
+        assertEquals(toNanoCoins(10, 0), records.get(0).getValue());
+        assertEquals(3, records.get(0).getDepthInBlocks());
+        assertFalse(wallet.spent.containsKey(t1.getHash()));
+
+        // From the outside the wallet looks the same.
+        assertEquals(1, wallet.getPoolSize(Pool.SPENT));
+        assertEquals(2, wallet.getPoolSize(Pool.ALL));
+        assertTrue(wallet.getTransactions(false).contains(t1));
+        assertEquals(balance, wallet.getBalance());
+        assertEquals(t2Value, t2.getValue(wallet));
+        assertTrue(wallet.isConsistent());
+        Transaction copy = null;
+        for (Transaction tx : wallet.getTransactions(false)) {
+            if (tx.equals(t1))
+                copy = tx;
+        }
+        assertEquals(3, copy.getConfidence().getDepthInBlocks());
+        wallet.notifyNewBestBlock(createFakeBlock(blockStore).storedBlock);
+        assertEquals(4, wallet.getColdTransactions().get(0).getDepthInBlocks());
+        // The copy is kept until cold storage changes, with its depth brought up to date.
+        assertTrue(wallet.getTransactions(false).contains(t1));
+        assertEquals(4, copy.getConfidence().getDepthInBlocks());
+        // The wallet transactions include the same copy, in its pool.
+        int walletTransactions = 0;
+        for (WalletTransaction wtx : wallet.getWalletTransactions()) {
+            walletTransactions++;
+            if (wtx.getTransaction().equals(t1)) {
+                assertSame(copy, wtx.getTransaction());
+                assertEquals(Pool.SPENT, wtx.getPool());
+            }
+        }
+        assertEquals(2, walletTransactions);
+        assertEquals(1, Iterables.size(wallet.getWalletTransactions(false)));
+
+        // Cold transactions are saved like any other, straight from their records.
+        Protos.Wallet protos = new WalletProtobufSerializer().walletToProto(wallet);
+        assertEquals(protos, wallet.snapshotToProto());
+        Wallet loaded = new Wallet(params);
+        new WalletProtobufSerializer().readWallet(protos, loaded);
+        assertTrue(loaded.isConsistent());
+        assertEquals(1, loaded.getPoolSize(Pool.SPENT));
+        Transaction loadedT1 = loaded.getTransaction(t1.getHash());
+        assertEquals(t2.getHash(), loadedT1.getOutput(0).getSpentBy().getParentTransaction().getHash());
+        assertEquals(4, loadedT1.getConfidence().getDepthInBlocks());
+        assertEquals(t1.getUpdateTime(), loadedT1.getUpdateTime());
+
+        // Asking for t1 brings it back into memory, connected to what spends it, until the next block.
+        Transaction rehydrated = wallet.getTransaction(t1.getHash());
+        assertTrue(wallet.getColdTransactions().isEmpty());
+        assertTrue(wallet.spent.containsKey(t1.getHash()));
+        assertSame(wallet.getTransaction(t2.getHash()), rehydrated.getOutput(0).getSpentBy().getParentTransaction());
+        assertEquals(4, rehydrated.getConfidence().getDepthInBlocks());
+        assertTrue(wallet.isConsistent());
+        wallet.notifyNewBestBlock(createFakeBlock(blockStore).storedBlock);
+        assertEquals(1, wallet.getColdTransactions().size());
+
+        // The change can still be spent, and turning cold storage off brings everything back.
+        Transaction t3 = wallet.createSend(new ECKey().toAddress(params), toNanoCoins(1, 0));
+        assertNotNull(t3);
+        wallet.commitTx(t3);
+        assertTrue(wallet.isConsistent());
+        wallet.setColdStorageDepth(0);
+        assertTrue(wallet.getColdTransactions().isEmpty());
+        assertEquals(3, wallet.getPoolSize(Pool.ALL));
+        assertTrue(wallet.isConsistent());
+    }
+
     @Test
     public void fragmentedReKeying() throws Exception {
         // Send lots of small coins and check the fee is correct.
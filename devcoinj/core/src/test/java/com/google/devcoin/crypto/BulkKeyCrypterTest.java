@@ -0,0 +1,75 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.crypto;
+
+import com.google.devcoin.core.ECKey;
+import org.junit.Test;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BulkKeyCrypterTest {
+    private final KeyCrypter keyCrypter = new KeyCrypterScrypt();
+    private final KeyParameter aesKey = keyCrypter.deriveKey("password");
+
+    @Test
+    public void roundTripKeepsOrder() throws Exception {
+        List<ECKey> keys = new ArrayList<ECKey>();
+        for (int i = 0; i < 150; i++)
+            keys.add(new ECKey());
+        ECKey alreadyEncrypted = new ECKey().encrypt(keyCrypter, aesKey);
+        keys.add(alreadyEncrypted);
+
+        BulkKeyCrypter crypter = new BulkKeyCrypter(4);
+        List<ECKey> encrypted = crypter.encrypt(keys, keyCrypter, aesKey);
+        assertEquals(keys.size(), encrypted.size());
+        assertSame(alreadyEncrypted, encrypted.get(keys.size() - 1));
+        for (int i = 0; i < keys.size(); i++) {
+            assertTrue(encrypted.get(i).isEncrypted());
+            assertArrayEquals(keys.get(i).getPubKey(), encrypted.get(i).getPubKey());
+        }
+
+        List<ECKey> decrypted = crypter.decrypt(encrypted, keyCrypter, aesKey);
+        for (int i = 0; i < keys.size() - 1; i++) {
+            assertFalse(decrypted.get(i).isEncrypted());
+            assertArrayEquals(keys.get(i).getPrivKeyBytes(), decrypted.get(i).getPrivKeyBytes());
+        }
+        // The same results on a single thread.
+        List<ECKey> serial = new BulkKeyCrypter(1).decrypt(encrypted, keyCrypter, aesKey);
+        for (int i = 0; i < keys.size(); i++)
+            assertArrayEquals(decrypted.get(i).getPrivKeyBytes(), serial.get(i).getPrivKeyBytes());
+    }
+
+    @Test
+    public void wrongKeyFails() throws Exception {
+        List<ECKey> keys = new ArrayList<ECKey>();
+        for (int i = 0; i < 100; i++)
+            keys.add(new ECKey().encrypt(keyCrypter, aesKey));
+        byte[] wrongBytes = Arrays.copyOf(aesKey.getKey(), aesKey.getKey().length);
+        wrongBytes[0] ^= 1;
+        try {
+            new BulkKeyCrypter(4).decrypt(keys, keyCrypter, new KeyParameter(wrongBytes));
+            fail();
+        } catch (KeyCrypterException e) {
+            // Expected.
+        }
+    }
+}
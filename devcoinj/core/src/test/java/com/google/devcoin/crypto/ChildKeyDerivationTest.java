@@ -17,9 +17,15 @@
 package com.google.devcoin.crypto;
 
 import org.junit.Test;
+import org.spongycastle.math.ec.ECPoint;
 import org.spongycastle.util.encoders.Hex;
 
+import java.math.BigInteger;
+import java.util.List;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
 
 /**
  * This test is adapted from Armory's BIP 32 tests.
@@ -121,6 +127,57 @@ public class ChildKeyDerivationTest {
         }
     }
 
+    @Test
+    public void testSiblingBatch() throws Exception {
+        DeterministicKey master = HDKeyDerivation.createMasterPrivateKey("sibling batch".getBytes());
+        DeterministicKey account = HDKeyDerivation.deriveChildKey(master, new ChildNumber(0, true));
+        DeterministicKey accountPub = account.getPubOnly();
+        checkSiblingBatch(account, 5, 20, false);
+        checkSiblingBatch(account, 0, 10, true);
+        checkSiblingBatch(accountPub, 5, 20, false);
+        assertEquals(0, HDKeyDerivation.deriveChildKeys(accountPub, 0, 0, false).size());
+        try {
+            HDKeyDerivation.deriveChildKeys(accountPub, 0, 1, true);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testFixedBaseMultiplier() throws Exception {
+        ECPoint g = HDUtils.getEcParams().getG();
+        BigInteger n = HDUtils.getEcParams().getN();
+        BigInteger k = new BigInteger(1, Hex.decode(
+                "be05d9ded0a73f81b814c93792f753b35c575fe446760005d44e0be13ba8935a"));
+        ECPoint[] points = FixedBaseMultiplier.multiplyAndAdd(
+                new BigInteger[] {BigInteger.ONE, k, n.subtract(BigInteger.ONE)}, null);
+        assertEquals(g, points[0]);
+        assertEquals(g.multiply(k), points[1]);
+        assertEquals(g.negate(), points[2]);
+        // Adding G to G doubles it, and adding G to -G gives the point at infinity.
+        points = FixedBaseMultiplier.multiplyAndAdd(
+                new BigInteger[] {BigInteger.ONE, k, n.subtract(BigInteger.ONE)}, g);
+        assertEquals(g.twice(), points[0]);
+        assertEquals(g.multiply(k).add(g), points[1]);
+        assertNull(points[2]);
+    }
+
+    private static void checkSiblingBatch(DeterministicKey parent, int first, int count, boolean privateDerivation) {
+        List<DeterministicKey> batch = HDKeyDerivation.deriveChildKeys(parent, first, count, privateDerivation);
+        assertEquals(count, batch.size());
+        for (int i = 0; i < count; i++) {
+            DeterministicKey expected = HDKeyDerivation.deriveChildKey(parent, new ChildNumber(first + i, privateDerivation));
+            DeterministicKey actual = batch.get(i);
+            assertEquals(expected.getChildNumberPath(), actual.getChildNumberPath());
+            assertEquals(hexEncode(expected.getChainCode()), hexEncode(actual.getChainCode()));
+            assertEquals(hexEncodePub(expected), hexEncodePub(actual));
+            assertEquals(expected.hasPrivate(), actual.hasPrivate());
+            if (expected.hasPrivate())
+                assertEquals(expected.getPrivAsFieldElement(), actual.getPrivAsFieldElement());
+        }
+    }
+
     private static String hexEncodePub(DeterministicKey pubKey) {
         return hexEncode(pubKey.getPubKeyBytes());
     }
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.crypto;
+
+import com.google.devcoin.core.*;
+import com.google.devcoin.params.UnitTestParams;
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DeterministicKeyPoolTest {
+    private final DeterministicKey master = HDKeyDerivation.createMasterPrivateKey("pool test seed".getBytes());
+    private final List<ChildNumber> accountPath = ImmutableList.of(new ChildNumber(0, true));
+
+    @Test
+    public void issuesKeysInOrder() throws Exception {
+        DeterministicHierarchy hierarchy = new DeterministicHierarchy(master);
+        DeterministicKeyPool pool = new DeterministicKeyPool(hierarchy, accountPath, false, 20);
+        DeterministicKey account = hierarchy.get(accountPath, false, false);
+        for (int i = 0; i < 50; i++) {
+            DeterministicKey key = pool.getNextKey();
+            DeterministicKey expected = HDKeyDerivation.deriveChildKey(account, new ChildNumber(i, false));
+            assertEquals(expected.getChildNumberPath(), key.getChildNumberPath());
+            assertArrayEquals(expected.getPubKeyBytes(), key.getPubKeyBytes());
+            assertArrayEquals(expected.getPrivKeyBytes(), key.getPrivKeyBytes());
+        }
+        assertEquals(50, pool.getIssuedCount());
+        pool.waitForLookahead();
+        assertEquals(70, pool.getDerivedCount());
+
+        // Private derivation works as well.
+        DeterministicKeyPool privatePool = new DeterministicKeyPool(hierarchy, accountPath, true, 5);
+        DeterministicKey expected = HDKeyDerivation.deriveChildKey(account, new ChildNumber(0, true));
+        assertArrayEquals(expected.getPubKeyBytes(), privatePool.getNextKey().getPubKeyBytes());
+    }
+
+    @Test
+    public void windowFollowsKeysSeenInUse() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        DeterministicHierarchy hierarchy = new DeterministicHierarchy(master);
+        DeterministicKeyPool pool = new DeterministicKeyPool(hierarchy, accountPath, false, 10);
+        pool.waitForLookahead();
+        assertEquals(10, pool.getDerivedCount());
+        DeterministicKey account = hierarchy.get(accountPath, false, false);
+        byte[] lastPubHash = HDKeyDerivation.deriveChildKey(account, new ChildNumber(9, false)).getIdentifier();
+        DeterministicKey last = pool.findKeyFromPubHash(lastPubHash);
+        assertEquals(new ChildNumber(9, false), last.getChildNumber());
+        assertNull(pool.findKeyFromPubHash(new ECKey().getPubKeyHash()));
+
+        // A payment to the last key in the window, for instance from a copy of the wallet elsewhere, extends it.
+        Transaction tx = new Transaction(params);
+        tx.addOutput(Utils.toNanoCoins(1, 0), new Address(params, last.getIdentifier()));
+        tx.addOutput(Utils.toNanoCoins(1, 0), new ECKey());
+        assertTrue(pool.notifyTransaction(tx));
+        pool.waitForLookahead();
+        assertEquals(20, pool.getDerivedCount());
+        assertNotNull(pool.findKeyFromPubHash(
+                HDKeyDerivation.deriveChildKey(account, new ChildNumber(19, false)).getIdentifier()));
+        // And keys up to it are not handed out again.
+        assertEquals(new ChildNumber(10, false), pool.getNextKey().getChildNumber());
+
+        Transaction unrelated = new Transaction(params);
+        unrelated.addOutput(Utils.toNanoCoins(1, 0), new ECKey());
+        assertFalse(pool.notifyTransaction(unrelated));
+    }
+
+    @Test
+    public void getKeyStaysWithinWindow() throws Exception {
+        DeterministicHierarchy hierarchy = new DeterministicHierarchy(master);
+        DeterministicKeyPool pool = new DeterministicKeyPool(hierarchy, accountPath, false, 10);
+        assertEquals(new ChildNumber(9, false), pool.getKey(9).getChildNumber());
+        pool.waitForLookahead();
+        assertEquals(20, pool.getDerivedCount());
+        for (int childNumber : new int[] { -1, ChildNumber.PRIV_BIT, 20, Integer.MAX_VALUE }) {
+            try {
+                pool.getKey(childNumber);
+                fail();
+            } catch (IllegalArgumentException e) {
+                // Expected.
+            }
+        }
+        assertEquals(20, pool.getDerivedCount());
+        assertEquals(new ChildNumber(10, false), pool.getNextKey().getChildNumber());
+    }
+}
@@ -30,6 +30,7 @@ import java.io.UnsupportedEncodingException;
 import java.security.SecureRandom;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
@@ -160,4 +161,18 @@ public class KeyCrypterScryptTest {
             assertEquals(Utils.bytesToHexString(plainBytes), Utils.bytesToHexString(rebornPlainBytes));
         }
     }
+
+    @Test
+    public void testCalibrate() throws KeyCrypterException {
+        ScryptParameters calibrated = KeyCrypterScrypt.calibrate(50, TimeUnit.MILLISECONDS);
+        long n = calibrated.getN();
+        assertTrue(n >= KeyCrypterScrypt.MIN_CALIBRATED_N && n <= KeyCrypterScrypt.MAX_CALIBRATED_N);
+        assertEquals(0, n & (n - 1));
+        assertTrue(calibrated.getP() >= 1 && calibrated.getP() <= KeyCrypterScrypt.MAX_CALIBRATED_P);
+        assertEquals(KeyCrypterScrypt.SALT_LENGTH, calibrated.getSalt().size());
+
+        KeyCrypterScrypt keyCrypter = new KeyCrypterScrypt(calibrated);
+        EncryptedPrivateKey encryptedPrivateKey = keyCrypter.encrypt(TEST_BYTES1, keyCrypter.deriveKey(PASSWORD1));
+        assertArrayEquals(TEST_BYTES1, keyCrypter.decrypt(encryptedPrivateKey, keyCrypter.deriveKey(PASSWORD1)));
+    }
 }
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.crypto;
+
+import org.devcoinj.wallet.Protos.Wallet.EncryptionType;
+import org.junit.Test;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class KeyParameterCacheTest {
+    // Counts how many times the key derivation function runs.
+    private static class CountingKeyCrypter implements KeyCrypter {
+        final KeyCrypter delegate = new KeyCrypterScrypt();
+        final AtomicInteger derivations = new AtomicInteger();
+
+        @Override
+        public EncryptionType getUnderstoodEncryptionType() {
+            return delegate.getUnderstoodEncryptionType();
+        }
+
+        @Override
+        public KeyParameter deriveKey(CharSequence password) throws KeyCrypterException {
+            derivations.incrementAndGet();
+            return delegate.deriveKey(password);
+        }
+
+        @Override
+        public byte[] decrypt(EncryptedPrivateKey encryptedBytesToDecode, KeyParameter aesKey) throws KeyCrypterException {
+            return delegate.decrypt(encryptedBytesToDecode, aesKey);
+        }
+
+        @Override
+        public EncryptedPrivateKey encrypt(byte[] plainBytes, KeyParameter aesKey) throws KeyCrypterException {
+            return delegate.encrypt(plainBytes, aesKey);
+        }
+    }
+
+    @Test
+    public void derivesOncePerPassword() throws Exception {
+        CountingKeyCrypter crypter = new CountingKeyCrypter();
+        KeyParameterCache cache = new KeyParameterCache(crypter, 1, TimeUnit.HOURS);
+        KeyParameter first = cache.deriveKey("password");
+        KeyParameter second = cache.deriveKey(new StringBuilder("password"));
+        assertEquals(1, crypter.derivations.get());
+        assertArrayEquals(first.getKey(), second.getKey());
+        assertNotSame(first.getKey(), second.getKey());
+
+        // Wiping a returned copy doesn't affect the cache.
+        java.util.Arrays.fill(second.getKey(), (byte) 0);
+        assertArrayEquals(first.getKey(), cache.deriveKey("password").getKey());
+
+        // A different password replaces the cached key.
+        KeyParameter other = cache.deriveKey("other");
+        assertEquals(2, crypter.derivations.get());
+        assertFalse(java.util.Arrays.equals(first.getKey(), other.getKey()));
+        cache.deriveKey("password");
+        assertEquals(3, crypter.derivations.get());
+
+        cache.clear();
+        assertFalse(cache.isCached());
+        cache.deriveKey("password");
+        assertEquals(4, crypter.derivations.get());
+    }
+
+    @Test
+    public void expires() throws Exception {
+        CountingKeyCrypter crypter = new CountingKeyCrypter();
+        KeyParameterCache cache = new KeyParameterCache(crypter, 100, TimeUnit.MILLISECONDS);
+        cache.deriveKey("password");
+        assertTrue(cache.isCached());
+        for (int i = 0; cache.isCached(); i++) {
+            assertTrue(i < 100);
+            Thread.sleep(50);
+        }
+        cache.deriveKey("password");
+        assertEquals(2, crypter.derivations.get());
+    }
+}
@@ -17,6 +17,8 @@
 package com.google.devcoin.script;
 
 import com.google.devcoin.core.*;
+import com.google.devcoin.core.Transaction.SigHash;
+import com.google.devcoin.crypto.TransactionSignature;
 import com.google.devcoin.params.TestNet3Params;
 import com.google.common.collect.Lists;
 import org.junit.Test;
@@ -31,6 +33,8 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 
+import static com.google.devcoin.script.ScriptOpCodes.OP_EQUAL;
+import static com.google.devcoin.script.ScriptOpCodes.OP_HASH160;
 import static com.google.devcoin.script.ScriptOpCodes.OP_INVALIDOPCODE;
 import static org.junit.Assert.*;
 
@@ -91,6 +95,63 @@ public class ScriptTest {
         Script s = new Script(bytes);
         assertTrue(s.isSentToRawPubKey());
     }
+
+    private Transaction createSpendingTransaction() {
+        Transaction tx = new Transaction(params);
+        tx.addInput(new TransactionInput(params, tx, new byte[0], new TransactionOutPoint(params, 0, Sha256Hash.ZERO_HASH)));
+        tx.addOutput(Utils.COIN, new ECKey().toAddress(params));
+        return tx;
+    }
+
+    private void assertSpends(boolean expected, Script scriptSig, Transaction tx, Script scriptPubKey) throws Exception {
+        // Round trip through the wire format, like scripts taken from a block.
+        scriptSig = new Script(scriptSig.getProgram());
+        try {
+            scriptSig.correctlySpends(tx, 0, new Script(scriptPubKey.getProgram()), true);
+            assertTrue(expected);
+        } catch (ScriptException e) {
+            assertFalse(expected);
+        }
+    }
+
+    @Test
+    public void standardTemplates() throws Exception {
+        // Spends of the standard templates don't go through the interpreter, check they still verify the signatures.
+        ECKey key1 = new ECKey(), key2 = new ECKey(), key3 = new ECKey();
+
+        Script toAddress = ScriptBuilder.createOutputScript(key1.toAddress(params));
+        Transaction tx = createSpendingTransaction();
+        TransactionSignature sig1 = tx.calculateSignature(0, key1, toAddress, SigHash.ALL, false);
+        TransactionSignature sig2 = tx.calculateSignature(0, key2, toAddress, SigHash.ALL, false);
+        assertSpends(true, ScriptBuilder.createInputScript(sig1, key1), tx, toAddress);
+        assertSpends(false, ScriptBuilder.createInputScript(sig2, key1), tx, toAddress);
+        assertSpends(false, ScriptBuilder.createInputScript(sig2, key2), tx, toAddress);
+
+        Script toKey = ScriptBuilder.createOutputScript(key1);
+        tx = createSpendingTransaction();
+        sig1 = tx.calculateSignature(0, key1, toKey, SigHash.ALL, false);
+        sig2 = tx.calculateSignature(0, key2, toKey, SigHash.ALL, false);
+        assertSpends(true, ScriptBuilder.createInputScript(sig1), tx, toKey);
+        assertSpends(false, ScriptBuilder.createInputScript(sig2), tx, toKey);
+
+        Script multiSig = ScriptBuilder.createMultiSigOutputScript(2, Lists.newArrayList(key1, key2, key3));
+        tx = createSpendingTransaction();
+        sig1 = tx.calculateSignature(0, key1, multiSig, SigHash.ALL, false);
+        TransactionSignature sig3 = tx.calculateSignature(0, key3, multiSig, SigHash.ALL, false);
+        assertSpends(true, ScriptBuilder.createMultiSigInputScript(Lists.newArrayList(sig1, sig3)), tx, multiSig);
+        // Signatures must be in the same order as the keys.
+        assertSpends(false, ScriptBuilder.createMultiSigInputScript(Lists.newArrayList(sig3, sig1)), tx, multiSig);
+        assertSpends(false, ScriptBuilder.createMultiSigInputScript(Lists.newArrayList(sig1, sig1)), tx, multiSig);
+
+        byte[] redeemScript = multiSig.getProgram();
+        Script toScriptHash = new ScriptBuilder().op(OP_HASH160).data(Utils.sha256hash160(redeemScript)).op(OP_EQUAL).build();
+        Script p2shSig = new ScriptBuilder().smallNum(0).data(sig1.encodeToBitcoin()).data(sig3.encodeToBitcoin())
+                .data(redeemScript).build();
+        assertSpends(true, p2shSig, tx, toScriptHash);
+        p2shSig = new ScriptBuilder().smallNum(0).data(sig1.encodeToBitcoin()).data(sig1.encodeToBitcoin())
+                .data(redeemScript).build();
+        assertSpends(false, p2shSig, tx, toScriptHash);
+    }
     
     private Script parseScriptString(String string) throws Exception {
         String[] words = string.split("[ \\t\\n]");
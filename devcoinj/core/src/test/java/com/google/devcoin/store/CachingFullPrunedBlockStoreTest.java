@@ -0,0 +1,155 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.store;
+
+import com.google.devcoin.core.*;
+import com.google.devcoin.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CachingFullPrunedBlockStoreTest {
+    private NetworkParameters params;
+    private MemoryFullPrunedBlockStore underlying;
+    private CachingFullPrunedBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        underlying = new MemoryFullPrunedBlockStore(params, 10);
+        store = new CachingFullPrunedBlockStore(underlying, 10);
+    }
+
+    private StoredTransactionOutput output(int n) {
+        Sha256Hash hash = Sha256Hash.create(new byte[] { (byte) n });
+        return new StoredTransactionOutput(hash, 0, BigInteger.valueOf(n), 1, false, new byte[] { (byte) n });
+    }
+
+    private StoredBlock nextHead() throws BlockStoreException, VerificationException {
+        StoredBlock head = store.getVerifiedChainHead();
+        return head.build(head.getHeader().createNextBlock(new ECKey().toAddress(params)).cloneAsHeader());
+    }
+
+    @Test
+    public void writeBack() throws Exception {
+        StoredTransactionOutput a = output(1), b = output(2);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(b);
+        StoredBlock head = nextHead();
+        store.setVerifiedChainHead(head);
+        store.commitDatabaseBatchWrite();
+        // Visible through the cache but not yet written out.
+        assertEquals(a, store.getTransactionOutput(a.getHash(), 0));
+        assertTrue(store.hasUnspentOutputs(b.getHash(), 1));
+        assertNull(underlying.getTransactionOutput(a.getHash(), 0));
+        assertEquals(head, store.getVerifiedChainHead());
+        assertEquals(params.getGenesisBlock(), underlying.getVerifiedChainHead().getHeader());
+
+        // Spending a before it is flushed means it never reaches the underlying store.
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(a);
+        store.commitDatabaseBatchWrite();
+        assertEquals(1, store.getAbsorbedOutputCount());
+        assertNull(store.getTransactionOutput(a.getHash(), 0));
+        assertFalse(store.hasUnspentOutputs(a.getHash(), 1));
+
+        store.flush();
+        assertEquals(1, store.getFlushCount());
+        assertEquals(1, store.getFlushedOutputCount());
+        assertNull(underlying.getTransactionOutput(a.getHash(), 0));
+        assertEquals(b, underlying.getTransactionOutput(b.getHash(), 0));
+        assertEquals(head, underlying.getVerifiedChainHead());
+
+        // Spends of flushed outputs are written back as well.
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(b);
+        store.commitDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(b.getHash(), 0));
+        assertFalse(store.hasUnspentOutputs(b.getHash(), 1));
+        assertEquals(b, underlying.getTransactionOutput(b.getHash(), 0));
+        store.flush();
+        assertNull(underlying.getTransactionOutput(b.getHash(), 0));
+    }
+
+    @Test
+    public void abort() throws Exception {
+        StoredTransactionOutput a = output(1), b = output(2);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(a);
+        store.commitDatabaseBatchWrite();
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(b);
+        store.setVerifiedChainHead(nextHead());
+        assertNull(store.getTransactionOutput(a.getHash(), 0));
+        store.abortDatabaseBatchWrite();
+
+        assertEquals(a, store.getTransactionOutput(a.getHash(), 0));
+        assertNull(store.getTransactionOutput(b.getHash(), 0));
+        assertEquals(params.getGenesisBlock(), store.getVerifiedChainHead().getHeader());
+        try {
+            store.removeUnspentTransactionOutput(b);
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void readThroughAndEviction() throws Exception {
+        for (int i = 0; i < 20; i++)
+            underlying.addUnspentTransactionOutput(output(i));
+        List<StoredTransactionOutput> outs = store.getTransactionOutputs(Arrays.asList(
+                new TransactionOutPoint(params, 0, output(3).getHash()),
+                new TransactionOutPoint(params, 1, output(3).getHash())));
+        assertEquals(output(3), outs.get(0));
+        assertNull(outs.get(1));
+        assertEquals(2, store.getMissCount());
+        assertEquals(output(3), store.getTransactionOutput(output(3).getHash(), 0));
+        assertEquals(1, store.getHitCount());
+
+        // Reading more outputs than the cache holds drops the older ones once the batch is committed.
+        store.beginDatabaseBatchWrite();
+        for (int i = 0; i < 20; i++)
+            assertEquals(output(i), store.getTransactionOutput(output(i).getHash(), 0));
+        store.commitDatabaseBatchWrite();
+        assertTrue(store.getCachedOutputCount() <= 10);
+        assertEquals(output(0), store.getTransactionOutput(output(0).getHash(), 0));
+    }
+
+    @Test
+    public void flushesWhenFull() throws Exception {
+        // Five dirty outputs is half the cache, which triggers a flush at the next commit.
+        store.beginDatabaseBatchWrite();
+        for (int i = 0; i < 5; i++)
+            store.addUnspentTransactionOutput(output(i));
+        StoredBlock head = nextHead();
+        store.setVerifiedChainHead(head);
+        store.commitDatabaseBatchWrite();
+        assertEquals(1, store.getFlushCount());
+        for (int i = 0; i < 5; i++)
+            assertEquals(output(i), underlying.getTransactionOutput(output(i).getHash(), 0));
+        assertEquals(head, underlying.getVerifiedChainHead());
+    }
+}
@@ -0,0 +1,223 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.store;
+
+import com.google.devcoin.core.*;
+import com.google.devcoin.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class H2FullPrunedBlockStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private H2FullPrunedBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new H2FullPrunedBlockStore(UnitTestParams.get(),
+                new File(folder.newFolder("store"), "h2").getAbsolutePath(), 10);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+    }
+
+    private StoredTransactionOutput output(int n) {
+        Sha256Hash hash = Sha256Hash.create(new byte[] { (byte) n });
+        return new StoredTransactionOutput(hash, 0, BigInteger.valueOf(n), 1, false, new byte[] { (byte) n });
+    }
+
+    @Test
+    public void batchedWrites() throws Exception {
+        StoredTransactionOutput a = output(1), b = output(2);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(b);
+        // Queued writes are seen by reads within the batch.
+        assertEquals(a, store.getTransactionOutput(a.getHash(), 0));
+        store.removeUnspentTransactionOutput(a);
+        assertFalse(store.hasUnspentOutputs(a.getHash(), 1));
+        // Adding an output that is already there is ignored, as it is outside a batch.
+        store.addUnspentTransactionOutput(b);
+        store.addUnspentTransactionOutput(output(3));
+        store.commitDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(a.getHash(), 0));
+        assertEquals(b, store.getTransactionOutput(b.getHash(), 0));
+        assertEquals(output(3), store.getTransactionOutput(output(3).getHash(), 0));
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(b);
+        store.addUnspentTransactionOutput(a);
+        store.abortDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(a.getHash(), 0));
+        assertEquals(b, store.getTransactionOutput(b.getHash(), 0));
+    }
+
+    @Test
+    public void batchedRemoveOfMissingOutput() throws Exception {
+        // Within a batch the delete still fails at the call, though the inserts before it are queued.
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(output(1));
+        try {
+            store.removeUnspentTransactionOutput(output(2));
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+        store.abortDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(output(1).getHash(), 0));
+
+        try {
+            store.removeUnspentTransactionOutput(output(2));
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void compactUndoBlocks() throws Exception {
+        StoredBlock head = store.getChainHead();
+        StoredBlock next = head.build(head.getHeader().createNextBlock(new ECKey().toAddress(UnitTestParams.get())));
+        TransactionOutputChanges changes = new TransactionOutputChanges(Arrays.asList(output(1), output(2)),
+                Arrays.asList(output(3)));
+        store.put(next, new StoredUndoableBlock(next.getHeader().getHash(), changes));
+
+        StoredUndoableBlock undoBlock = store.getUndoBlock(next.getHeader().getHash());
+        assertNull(undoBlock.getTransactions());
+        Iterator<StoredTransactionOutput> spent = undoBlock.getTxOutsSpent().iterator();
+        assertEquals(output(3), spent.next());
+        assertFalse(spent.hasNext());
+        assertEquals(Arrays.asList(output(1), output(2)), undoBlock.getTxOutChanges().txOutsCreated);
+        assertArrayEquals(output(2).getScriptBytes(),
+                undoBlock.getTxOutChanges().txOutsCreated.get(1).getScriptBytes());
+    }
+
+    private StoredBlock putUndoableBlock(StoredBlock prev, int n) throws Exception {
+        StoredBlock block = prev.build(prev.getHeader().createNextBlock(new ECKey().toAddress(UnitTestParams.get())));
+        TransactionOutputChanges changes = new TransactionOutputChanges(Arrays.asList(output(n)),
+                Arrays.<StoredTransactionOutput>asList());
+        store.beginDatabaseBatchWrite();
+        store.put(block, new StoredUndoableBlock(block.getHeader().getHash(), changes));
+        store.setVerifiedChainHead(block);
+        store.commitDatabaseBatchWrite();
+        return block;
+    }
+
+    @Test
+    public void backgroundPruning() throws Exception {
+        // Only pruned when asked to below.
+        store.setPruningRate(1, TimeUnit.DAYS, 2);
+        NetworkParameters params = UnitTestParams.get();
+        StoredBlock genesis = store.getChainHead();
+        StoredBlock head = genesis;
+        for (int i = 0; i < 15; i++)
+            head = putUndoableBlock(head, i);
+        // Setting the head deletes nothing itself. Blocks 0 to 5 are more than 10 behind the head at 15.
+        assertNotNull(store.getUndoBlock(genesis.getHeader().getHash()));
+        assertEquals(6, store.getPruningLag());
+
+        // An aborted head doesn't move the target.
+        store.beginDatabaseBatchWrite();
+        store.setVerifiedChainHead(head.build(head.getHeader().createNextBlock(new ECKey().toAddress(params))));
+        store.abortDatabaseBatchWrite();
+        assertEquals(6, store.getPruningLag());
+
+        assertEquals(2, store.pruneUndoableBlocks());
+        assertEquals(4, store.getPruningLag());
+        assertNull(store.getUndoBlock(genesis.getHeader().getHash()));
+        assertEquals(2, store.pruneUndoableBlocks());
+        assertEquals(2, store.pruneUndoableBlocks());
+        assertEquals(0, store.getPruningLag());
+        assertEquals(0, store.pruneUndoableBlocks());
+        assertEquals(6, store.getPrunedUndoableBlockCount());
+        assertNotNull(store.getUndoBlock(head.getPrev(store).getHeader().getHash()));
+
+        // The background thread does the same as blocks are added.
+        store.setPruningRate(10, TimeUnit.MILLISECONDS, 100);
+        for (int i = 15; i < 18; i++)
+            head = putUndoableBlock(head, i);
+        for (int i = 0; i < 500 && store.getPrunedUndoableBlockCount() < 9; i++)
+            Thread.sleep(10);
+        assertEquals(9, store.getPrunedUndoableBlockCount());
+        assertEquals(0, store.getPruningLag());
+    }
+
+    @Test
+    public void pruningDoesNotBlockConnecting() throws Exception {
+        store.setPruningRate(1, TimeUnit.DAYS, 100);
+        StoredBlock head = store.getChainHead();
+        for (int i = 0; i < 15; i++)
+            head = putUndoableBlock(head, i);
+        // An uncommitted write holds the lock on the undoable blocks table, so the pruner waits for it.
+        store.beginDatabaseBatchWrite();
+        StoredBlock next = head.build(head.getHeader().createNextBlock(new ECKey().toAddress(UnitTestParams.get())));
+        store.put(next, new StoredUndoableBlock(next.getHeader().getHash(), new TransactionOutputChanges(
+                Arrays.asList(output(15)), Arrays.<StoredTransactionOutput>asList())));
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            Future<Integer> pruned = executor.submit(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    return store.pruneUndoableBlocks();
+                }
+            });
+            Thread.sleep(500);
+            assertFalse(pruned.isDone());
+            // A thread making its first connection meanwhile isn't held up by the pruner.
+            Future<StoredTransactionOutput> read = executor.submit(new Callable<StoredTransactionOutput>() {
+                public StoredTransactionOutput call() throws Exception {
+                    return store.getTransactionOutput(output(1).getHash(), 0);
+                }
+            });
+            assertNull(read.get(10, TimeUnit.SECONDS));
+            store.abortDatabaseBatchWrite();
+            assertEquals(6, (int) pruned.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void closeStopsPruning() throws Exception {
+        store.setPruningRate(1, TimeUnit.DAYS, 100);
+        StoredBlock head = store.getChainHead();
+        for (int i = 0; i < 15; i++)
+            head = putUndoableBlock(head, i);
+        store.close();
+        assertEquals(0, store.pruneUndoableBlocks());
+        assertEquals(0, store.getPrunedUndoableBlockCount());
+        try {
+            store.setPruningRate(10, TimeUnit.MILLISECONDS, 100);
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+}
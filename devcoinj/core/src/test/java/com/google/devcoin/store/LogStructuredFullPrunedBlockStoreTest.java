@@ -0,0 +1,277 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.store;
+
+import com.google.devcoin.core.*;
+import com.google.devcoin.params.UnitTestParams;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LogStructuredFullPrunedBlockStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private NetworkParameters params;
+    private File directory;
+    private LogStructuredFullPrunedBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        directory = folder.newFolder("store");
+        store = open();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+    }
+
+    private LogStructuredFullPrunedBlockStore open() throws BlockStoreException {
+        return new LogStructuredFullPrunedBlockStore(params, directory, 2, 4096);
+    }
+
+    private StoredTransactionOutput output(int n) {
+        Sha256Hash hash = Sha256Hash.create(new byte[] { (byte) n, (byte) (n >> 8) });
+        // Every fourth output is a coinbase, and some have scripts too long to read in one go.
+        byte[] scriptBytes = new byte[n % 7 == 0 ? 300 : 25];
+        scriptBytes[0] = (byte) n;
+        return new StoredTransactionOutput(hash, n % 3, BigInteger.valueOf(n * 1000L), n, n % 4 == 0, scriptBytes);
+    }
+
+    private static void assertOutputEquals(StoredTransactionOutput expected, StoredTransactionOutput actual) {
+        assertEquals(expected, actual);
+        assertEquals(expected.getValue(), actual.getValue());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        assertArrayEquals(expected.getScriptBytes(), actual.getScriptBytes());
+    }
+
+    private StoredBlock nextHead() throws BlockStoreException, VerificationException {
+        StoredBlock head = store.getVerifiedChainHead();
+        return head.build(head.getHeader().createNextBlock(new ECKey().toAddress(params)).cloneAsHeader());
+    }
+
+    /** Adds a block which creates the given outputs and spends the others. */
+    private StoredBlock addBlock(List<StoredTransactionOutput> created, List<StoredTransactionOutput> spent)
+            throws Exception {
+        StoredBlock head = nextHead();
+        store.beginDatabaseBatchWrite();
+        for (StoredTransactionOutput out : spent)
+            store.removeUnspentTransactionOutput(out);
+        for (StoredTransactionOutput out : created)
+            store.addUnspentTransactionOutput(out);
+        store.put(head, new StoredUndoableBlock(head.getHeader().getHash(),
+                new TransactionOutputChanges(created, spent)));
+        store.setVerifiedChainHead(head);
+        store.commitDatabaseBatchWrite();
+        return head;
+    }
+
+    @Test
+    public void genesis() throws Exception {
+        assertEquals(params.getGenesisBlock(), store.getChainHead().getHeader());
+        assertEquals(params.getGenesisBlock(), store.getVerifiedChainHead().getHeader());
+        assertNotNull(store.getUndoBlock(params.getGenesisBlock().getHash()));
+        store.close();
+        store = open();
+        assertEquals(params.getGenesisBlock(), store.getVerifiedChainHead().getHeader());
+    }
+
+    @Test
+    public void batches() throws Exception {
+        StoredTransactionOutput a = output(1), b = output(2);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(a);
+        assertOutputEquals(a, store.getTransactionOutput(a.getHash(), a.getIndex()));
+        store.abortDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(a.getHash(), a.getIndex()));
+
+        addBlock(Collections.singletonList(a), Collections.<StoredTransactionOutput>emptyList());
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(b);
+        assertNull(store.getTransactionOutput(a.getHash(), a.getIndex()));
+        try {
+            store.removeUnspentTransactionOutput(a);
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+        store.commitDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(a.getHash(), a.getIndex()));
+        assertFalse(store.hasUnspentOutputs(a.getHash(), 3));
+        assertOutputEquals(b, store.getTransactionOutput(b.getHash(), b.getIndex()));
+        assertTrue(store.hasUnspentOutputs(b.getHash(), 3));
+        assertEquals(1, store.getUnspentOutputCount());
+    }
+
+    @Test
+    public void reopen() throws Exception {
+        List<StoredTransactionOutput> created = new ArrayList<StoredTransactionOutput>();
+        for (int i = 0; i < 100; i++)
+            created.add(output(i));
+        addBlock(created, Collections.<StoredTransactionOutput>emptyList());
+        StoredBlock head = addBlock(Collections.singletonList(output(100)), created.subList(0, 50));
+        store.close();
+
+        store = open();
+        assertEquals(head, store.getVerifiedChainHead());
+        assertEquals(head, store.getChainHead());
+        assertEquals(head, store.getOnceUndoableStoredBlock(head.getHeader().getHash()));
+        assertEquals(51, store.getUnspentOutputCount());
+        for (int i = 0; i < 50; i++)
+            assertNull(store.getTransactionOutput(output(i).getHash(), output(i).getIndex()));
+        for (int i = 50; i <= 100; i++)
+            assertOutputEquals(output(i), store.getTransactionOutput(output(i).getHash(), output(i).getIndex()));
+        TransactionOutputChanges changes = store.getUndoBlock(head.getHeader().getHash()).getTxOutChanges();
+        assertEquals(50, changes.txOutsSpent.size());
+        assertOutputEquals(output(100), changes.txOutsCreated.get(0));
+    }
+
+    @Test
+    public void recoversFromCrash() throws Exception {
+        addBlock(Collections.singletonList(output(1)), Collections.<StoredTransactionOutput>emptyList());
+        StoredBlock head = addBlock(Collections.singletonList(output(2)), Collections.singletonList(output(1)));
+        // Copy the files while the store is open, as if the process had died, and leave a partly written record
+        // after the checkpoint.
+        File crashed = folder.newFolder("crashed");
+        for (File file : directory.listFiles())
+            Files.copy(file, new File(crashed, file.getName()));
+        RandomAccessFile file = new RandomAccessFile(new File(crashed, "outputs-00000001.log"), "rw");
+        file.seek(file.length());
+        file.write(new byte[] { 1, 2, 3, 4, 5 });
+        file.close();
+
+        LogStructuredFullPrunedBlockStore reopened = new LogStructuredFullPrunedBlockStore(params, crashed, 2, 4096);
+        try {
+            assertEquals(head, reopened.getVerifiedChainHead());
+            assertNull(reopened.getTransactionOutput(output(1).getHash(), output(1).getIndex()));
+            assertOutputEquals(output(2), reopened.getTransactionOutput(output(2).getHash(), output(2).getIndex()));
+            assertEquals(1, reopened.getUnspentOutputCount());
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void checkpointsUnbatchedWritesLater() throws Exception {
+        // A header put outside a batch, as for a side chain block, is written but not checkpointed straight away.
+        StoredBlock side = nextHead();
+        store.put(side);
+        assertEquals(side, store.get(side.getHeader().getHash()));
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            File crashed = folder.newFolder("crashed" + System.nanoTime());
+            for (File file : directory.listFiles())
+                Files.copy(file, new File(crashed, file.getName()));
+            LogStructuredFullPrunedBlockStore reopened =
+                    new LogStructuredFullPrunedBlockStore(params, crashed, 2, 4096);
+            try {
+                if (reopened.get(side.getHeader().getHash()) != null)
+                    break;
+            } finally {
+                reopened.close();
+            }
+            assertTrue("Header was never checkpointed", System.currentTimeMillis() < deadline);
+            Thread.sleep(100);
+        }
+    }
+
+    @Test
+    public void indexGrows() throws Exception {
+        // Enough outputs to grow the index past its initial size, in segments big enough not to need thousands.
+        store.close();
+        store = new LogStructuredFullPrunedBlockStore(params, directory, 2,
+                LogStructuredFullPrunedBlockStore.DEFAULT_SEGMENT_SIZE);
+        List<StoredTransactionOutput> created = new ArrayList<StoredTransactionOutput>();
+        for (int i = 0; i < 40000; i++)
+            created.add(output(i));
+        addBlock(created, Collections.<StoredTransactionOutput>emptyList());
+        assertEquals(40000, store.getUnspentOutputCount());
+        store.close();
+        store = open();
+        assertEquals(40000, store.getUnspentOutputCount());
+        for (int i = 0; i < 40000; i += 997)
+            assertOutputEquals(output(i), store.getTransactionOutput(output(i).getHash(), output(i).getIndex()));
+    }
+
+    @Test
+    public void prunesUndoBlocks() throws Exception {
+        StoredBlock first = addBlock(Collections.singletonList(output(1)), Collections.<StoredTransactionOutput>emptyList());
+        StoredBlock last = first;
+        for (int i = 2; i < 5; i++)
+            last = addBlock(Collections.singletonList(output(i)), Collections.<StoredTransactionOutput>emptyList());
+        // Only the last two blocks keep their undo data, but headers are kept for good.
+        assertNull(store.getUndoBlock(first.getHeader().getHash()));
+        assertNotNull(store.getUndoBlock(last.getHeader().getHash()));
+        assertEquals(first, store.getOnceUndoableStoredBlock(first.getHeader().getHash()));
+        store.close();
+        store = open();
+        assertNull(store.getUndoBlock(first.getHeader().getHash()));
+        assertNotNull(store.getUndoBlock(last.getHeader().getHash()));
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        // Fill several segments, then spend most of what is in them.
+        List<StoredTransactionOutput> created = new ArrayList<StoredTransactionOutput>();
+        for (int i = 0; i < 400; i++)
+            created.add(output(i));
+        addBlock(created, Collections.<StoredTransactionOutput>emptyList());
+        List<StoredTransactionOutput> spent = new ArrayList<StoredTransactionOutput>();
+        for (int i = 0; i < 400; i++)
+            if (i % 10 != 0)
+                spent.add(output(i));
+        int segmentsBefore = store.getOutputSegmentCount();
+        long sizeBefore = store.getOutputLogSize();
+        addBlock(Collections.<StoredTransactionOutput>emptyList(), spent);
+        store.compact();
+        assertTrue(store.getOutputSegmentCount() < segmentsBefore);
+        assertTrue(store.getOutputLogSize() < sizeBefore);
+        assertEquals(40, store.getUnspentOutputCount());
+        for (int i = 0; i < 400; i++) {
+            StoredTransactionOutput out = store.getTransactionOutput(output(i).getHash(), output(i).getIndex());
+            if (i % 10 == 0)
+                assertOutputEquals(output(i), out);
+            else
+                assertNull(out);
+        }
+
+        // The compacted log replays to the same outputs.
+        store.close();
+        UnspentOutputIndex index = UnspentOutputIndex.open(new File(directory, "outputs.index"));
+        index.markDirty();
+        index.close();
+        store = open();
+        assertEquals(40, store.getUnspentOutputCount());
+        for (int i = 0; i < 400; i += 10)
+            assertOutputEquals(output(i), store.getTransactionOutput(output(i).getHash(), output(i).getIndex()));
+    }
+}
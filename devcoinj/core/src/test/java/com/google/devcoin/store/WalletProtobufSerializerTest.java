@@ -18,7 +18,9 @@ import java.io.ByteArrayOutputStream;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 import static com.google.devcoin.utils.TestUtils.createFakeTx;
@@ -93,6 +95,43 @@ public class WalletProtobufSerializerTest {
         assertEquals(t1p.getTransactionOutput(0).getValue(), v1.longValue());
     }
 
+    @Test
+    public void streamingRead() throws Exception {
+        Transaction t1 = createFakeTx(params, Utils.toNanoCoins(10, 0), myAddress);
+        TestUtils.BlockPair block = TestUtils.createFakeBlock(new MemoryBlockStore(params), t1);
+        myWallet.receiveFromBlock(t1, block.storedBlock, BlockChain.NewBlockType.BEST_CHAIN, 0);
+        myWallet.notifyNewBestBlock(block.storedBlock);
+        Transaction t2 = myWallet.createSend(new ECKey().toAddress(params), Utils.toNanoCoins(1, 0));
+        myWallet.commitTx(t2);
+        Protos.Wallet walletProto = new WalletProtobufSerializer().walletToProto(myWallet);
+        assertEquals(2, walletProto.getTransactionCount());
+        // Transactions can come before or after the ones spending them.
+        List<Protos.Transaction> transactions = new ArrayList<Protos.Transaction>(walletProto.getTransactionList());
+        for (int i = 0; i < 2; i++) {
+            Collections.reverse(transactions);
+            byte[] bytes = walletProto.toBuilder().clearTransaction().addAllTransaction(transactions).build()
+                    .toByteArray();
+            final long[] progress = new long[2];
+            Wallet wallet = new WalletProtobufSerializer().readWallet(new ByteArrayInputStream(bytes),
+                    new WalletProtobufSerializer.ProgressListener() {
+                        @Override
+                        public void onProgress(long bytesRead, int transactionsRead) {
+                            progress[0] = bytesRead;
+                            progress[1] = transactionsRead;
+                        }
+                    });
+            assertEquals(bytes.length, progress[0]);
+            assertEquals(2, progress[1]);
+            assertEquals(myWallet.getKeychainSize(), wallet.getKeychainSize());
+            assertEquals(WALLET_DESCRIPTION, wallet.getDescription());
+            assertEquals(myWallet.getBalance(), wallet.getBalance());
+            assertEquals(myWallet.getBalance(Wallet.BalanceType.ESTIMATED), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+            Transaction t1copy = wallet.getTransaction(t1.getHash());
+            assertEquals(t2.getHash(), t1copy.getOutput(0).getSpentBy().getParentTransaction().getHash());
+            assertEquals(wallet.getTransaction(t2.getHash()), t1copy.getOutput(0).getSpentBy().getParentTransaction());
+        }
+    }
+
     @Test
     public void doubleSpend() throws Exception {
         // Check that we can serialize double spends correctly, as this is a slightly tricky case.
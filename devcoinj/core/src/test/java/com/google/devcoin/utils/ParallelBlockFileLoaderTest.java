@@ -0,0 +1,150 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.utils;
+
+import com.google.devcoin.core.*;
+import com.google.devcoin.params.UnitTestParams;
+import com.google.devcoin.store.MemoryBlockStore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ParallelBlockFileLoaderTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final NetworkParameters params = UnitTestParams.get();
+
+    private void writeBlock(OutputStream out, byte[] bytes) throws IOException {
+        byte[] header = new byte[8];
+        Utils.uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
+        Utils.uint32ToByteArrayLE(bytes.length, header, 4);
+        out.write(header);
+        out.write(bytes);
+    }
+
+    private List<Block> createBlocks(int count) throws Exception {
+        Address address = new ECKey().toAddress(params);
+        List<Block> blocks = new ArrayList<Block>();
+        Block block = params.getGenesisBlock();
+        for (int i = 0; i < count; i++) {
+            block = block.createNextBlock(address);
+            blocks.add(block);
+        }
+        return blocks;
+    }
+
+    @Test
+    public void sameBlocksAsBlockFileLoader() throws Exception {
+        File blockFile = folder.newFile("blk00000.dat");
+        OutputStream out = new FileOutputStream(blockFile);
+        for (Block block : createBlocks(50))
+            writeBlock(out, block.bitcoinSerialize());
+        out.close();
+        List<Sha256Hash> expected = new ArrayList<Sha256Hash>();
+        for (Block block : new BlockFileLoader(params, Arrays.asList(blockFile)))
+            expected.add(block.getHash());
+        List<Sha256Hash> actual = new ArrayList<Sha256Hash>();
+        for (Block block : new ParallelBlockFileLoader(params, Arrays.asList(blockFile, blockFile), 3))
+            actual.add(block.getHash());
+        assertEquals(50, expected.size());
+        assertEquals(expected, actual.subList(0, expected.size()));
+        assertEquals(expected, actual.subList(expected.size(), actual.size()));
+    }
+
+    @Test
+    public void skipsJunkAndFeedsChainInOrder() throws Exception {
+        List<Block> blocks = createBlocks(30);
+
+        File first = folder.newFile("blk00000.dat");
+        OutputStream out = new FileOutputStream(first);
+        for (int i = 0; i < 20; i++) {
+            writeBlock(out, blocks.get(i).bitcoinSerialize());
+            // Junk and padding between blocks is skipped, as are blocks with an impossible length or that can't be
+            // parsed.
+            if (i == 3)
+                out.write(new byte[1000]);
+            if (i == 5)
+                writeBlock(out, new byte[0]);
+            if (i == 7)
+                writeBlock(out, new byte[] { 1, 2, 3 });
+        }
+        out.close();
+        File second = folder.newFile("blk00001.dat");
+        out = new FileOutputStream(second);
+        for (int i = 20; i < 30; i++)
+            writeBlock(out, blocks.get(i).bitcoinSerialize());
+        // A block cut off by the end of the file.
+        byte[] header = new byte[8];
+        Utils.uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
+        Utils.uint32ToByteArrayLE(1000, header, 4);
+        out.write(header);
+        out.write(new byte[10]);
+        out.close();
+
+        BlockChain chain = new BlockChain(params, new MemoryBlockStore(params));
+        ParallelBlockFileLoader loader = new ParallelBlockFileLoader(params, Arrays.asList(first, second), 2);
+        int i = 0;
+        for (Block loaded : loader) {
+            assertEquals(blocks.get(i++).getHash(), loaded.getHash());
+            assertTrue(chain.add(loaded));
+        }
+        assertEquals(30, i);
+        assertEquals(1, loader.getSkippedBlockCount());
+        assertEquals(30, chain.getBestChainHeight());
+        assertFalse(loader.hasNext());
+    }
+
+    @Test
+    public void invalidBlocksAreLeftToTheChain() throws Exception {
+        ECKey key = new ECKey();
+        Block block = params.getGenesisBlock().createNextBlockWithCoinbase(key.getPubKey(), Utils.toNanoCoins(50, 0));
+        byte[] bytes = block.bitcoinSerialize();
+        // Changes the coinbase script, so the merkle root no longer matches. The header, a transaction count, version,
+        // input count, outpoint and script length come first.
+        bytes[Block.HEADER_SIZE + 1 + 4 + 1 + 36 + 1] ^= 1;
+        File file = folder.newFile("blk00000.dat");
+        OutputStream out = new FileOutputStream(file);
+        writeBlock(out, bytes);
+        out.close();
+
+        // The chain only checks the contents of blocks relevant to a wallet.
+        Wallet wallet = new Wallet(params);
+        wallet.addKey(key);
+        BlockChain chain = new BlockChain(params, wallet, new MemoryBlockStore(params));
+        ParallelBlockFileLoader loader = new ParallelBlockFileLoader(params, Arrays.asList(file), 1);
+        Block loaded = loader.next();
+        assertEquals(block.getHash(), loaded.getHash());
+        try {
+            chain.add(loaded);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertFalse(loader.hasNext());
+    }
+}
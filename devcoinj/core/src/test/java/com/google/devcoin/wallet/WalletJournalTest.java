@@ -0,0 +1,199 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.wallet;
+
+import com.google.devcoin.core.*;
+import com.google.devcoin.utils.TestWithWallet;
+import com.google.protobuf.ByteString;
+import org.devcoinj.wallet.Protos;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.devcoin.core.Utils.toNanoCoins;
+import static com.google.devcoin.utils.TestUtils.createFakeBlock;
+import static org.junit.Assert.*;
+
+public class WalletJournalTest extends TestWithWallet {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private File journalFile;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        file = folder.newFile("test.wallet");
+        journalFile = WalletJournal.getJournalFile(file);
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    private void assertWalletsEqual(Wallet expected, Wallet actual) {
+        assertEquals(expected.getKeychainSize(), actual.getKeychainSize());
+        assertEquals(expected.getBalance(), actual.getBalance());
+        assertEquals(expected.getBalance(Wallet.BalanceType.ESTIMATED), actual.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(expected.getTransactions(true), actual.getTransactions(true));
+        assertEquals(expected.getLastBlockSeenHash(), actual.getLastBlockSeenHash());
+        // The height is only saved along with the hash.
+        if (expected.getLastBlockSeenHash() != null)
+            assertEquals(expected.getLastBlockSeenHeight(), actual.getLastBlockSeenHeight());
+    }
+
+    @Test
+    public void journaledSaves() throws Exception {
+        // A long delay, so that only the saves made here happen.
+        WalletFiles files = wallet.autosaveToFile(file, 1, TimeUnit.HOURS, null);
+        files.setJournaled(true);
+        files.saveNow();
+        Sha256Hash baseHash = Sha256Hash.hashFileContents(file);
+        assertEquals(32, journalFile.length());
+
+        Transaction tx = sendMoneyToWallet(toNanoCoins(1, 0), null);
+        files.saveNow();
+        long journalSize = journalFile.length();
+        assertTrue(journalSize > 32);
+        assertWalletsEqual(wallet, Wallet.loadFromFile(file));
+
+        // The pending transaction confirms, moving it to another pool.
+        sendMoneyToWallet(tx, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        wallet.addKey(new ECKey());  // Saves.
+        assertTrue(journalFile.length() > journalSize);
+        assertEquals(baseHash, Sha256Hash.hashFileContents(file));
+        Wallet loaded = Wallet.loadFromFile(file);
+        assertWalletsEqual(wallet, loaded);
+        assertEquals(toNanoCoins(1, 0), loaded.getBalance());
+
+        // Nothing changed, so nothing is written.
+        journalSize = journalFile.length();
+        files.saveNow();
+        assertEquals(journalSize, journalFile.length());
+
+        // Turning journaled mode off writes the whole wallet again, and the journal goes.
+        files.setJournaled(false);
+        sendMoneyToWallet(toNanoCoins(2, 0), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        files.saveNow();
+        assertFalse(journalFile.exists());
+        assertWalletsEqual(wallet, Wallet.loadFromFile(file));
+    }
+
+    private List<Protos.Wallet> readEntries() throws Exception {
+        List<Protos.Wallet> entries = new ArrayList<Protos.Wallet>();
+        InputStream stream = new FileInputStream(journalFile);
+        try {
+            assertEquals(32, stream.skip(32));
+            Protos.Wallet entry;
+            while ((entry = Protos.Wallet.parseDelimitedFrom(stream)) != null)
+                entries.add(entry);
+        } finally {
+            stream.close();
+        }
+        return entries;
+    }
+
+    @Test
+    public void newBlocksDoNotRewriteConfirmedTransactions() throws Exception {
+        WalletFiles files = wallet.autosaveToFile(file, 1, TimeUnit.HOURS, null);
+        files.setJournaled(true);
+        Transaction tx = sendMoneyToWallet(toNanoCoins(1, 0), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        files.saveNow();
+        int before = readEntries().size();
+        for (int i = 0; i < 3; i++) {
+            wallet.notifyNewBestBlock(createFakeBlock(blockStore).storedBlock);
+            files.saveNow();
+        }
+        // Only the depth and work done of the transaction changed, so each block appended just the last block seen.
+        List<Protos.Wallet> entries = readEntries();
+        assertEquals(before + 3, entries.size());
+        for (Protos.Wallet entry : entries.subList(before, entries.size()))
+            assertEquals(0, entry.getTransactionCount());
+
+        // They are worked out again when the journal is read back.
+        Wallet loaded = Wallet.loadFromFile(file);
+        assertWalletsEqual(wallet, loaded);
+        TransactionConfidence confidence = loaded.getTransaction(tx.getHash()).getConfidence();
+        assertEquals(4, confidence.getDepthInBlocks());
+        assertEquals(tx.getConfidence().getWorkDone(), confidence.getWorkDone());
+    }
+
+    @Test
+    public void incompleteAndStaleJournals() throws Exception {
+        WalletFiles files = wallet.autosaveToFile(file, 1, TimeUnit.HOURS, null);
+        files.setJournaled(true);
+        files.saveNow();
+        sendMoneyToWallet(toNanoCoins(1, 0), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        files.saveNow();
+
+        // An entry cut short by a crash part way through writing it is ignored.
+        FileOutputStream stream = new FileOutputStream(journalFile, true);
+        stream.write(new byte[] { 100, 1, 2, 3 });
+        stream.close();
+        assertWalletsEqual(wallet, Wallet.loadFromFile(file));
+
+        // So is a journal written for a different base snapshot, as left by a crash part way through compacting.
+        sendMoneyToWallet(toNanoCoins(2, 0), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        wallet.saveToFile(file);
+        assertTrue(journalFile.exists());
+        assertWalletsEqual(wallet, Wallet.loadFromFile(file));
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        WalletJournal journal = new WalletJournal(file);
+        Protos.Wallet base = wallet.snapshotToProto();
+        assertFalse(journal.append(base));
+        journal.compact(base, File.createTempFile("wallet", null, folder.getRoot()));
+        assertFalse(journal.isCompactionDue());
+        assertTrue(journal.append(base));
+        assertEquals(32, journal.getJournalSize());
+
+        Protos.Wallet snapshot = base;
+        for (int i = 0; !journal.isCompactionDue(); i++) {
+            assertTrue(i < 100);
+            Protos.Extension extension = Protos.Extension.newBuilder()
+                    .setId("test")
+                    .setData(ByteString.copyFrom(new byte[1000 + i]))
+                    .setMandatory(false)
+                    .build();
+            snapshot = base.toBuilder().addExtension(extension).setLastSeenBlockHeight(i).build();
+            assertTrue(journal.append(snapshot));
+        }
+        assertEquals(snapshot, WalletJournal.readWallet(file));
+
+        // Removing something can only be done by compacting.
+        assertFalse(journal.append(base));
+        journal.compact(base, File.createTempFile("wallet", null, folder.getRoot()));
+        assertEquals(32, journal.getJournalSize());
+        assertEquals(base, WalletJournal.readWallet(file));
+    }
+}
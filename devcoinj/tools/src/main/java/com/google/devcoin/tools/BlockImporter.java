@@ -14,18 +14,21 @@ import com.google.devcoin.params.TestNet3Params;
 import com.google.devcoin.store.BlockStore;
 import com.google.devcoin.store.BlockStoreException;
 import com.google.devcoin.store.BoundedOverheadBlockStore;
+import com.google.devcoin.store.CachingFullPrunedBlockStore;
 import com.google.devcoin.store.FullPrunedBlockStore;
 import com.google.devcoin.store.H2FullPrunedBlockStore;
+import com.google.devcoin.store.LogStructuredFullPrunedBlockStore;
 import com.google.devcoin.store.MemoryBlockStore;
 import com.google.devcoin.store.MemoryFullPrunedBlockStore;
 import com.google.devcoin.store.SPVBlockStore;
 import com.google.devcoin.utils.BlockFileLoader;
+import com.google.devcoin.utils.ParallelBlockFileLoader;
 import com.google.common.base.Preconditions;
 
-/** Very thin wrapper around {@link com.google.devcoin.util.BlockFileLoader} */
+/** Very thin wrapper around {@link com.google.devcoin.utils.ParallelBlockFileLoader} */
 public class BlockImporter {
     public static void main(String[] args) throws BlockStoreException, VerificationException, PrunedException {
-        System.out.println("USAGE: BlockImporter (prod|test) (H2|BoundedOverhead|Disk|MemFull|Mem|SPV) [blockStore]");
+        System.out.println("USAGE: BlockImporter (prod|test) (H2|CachedH2|Log|BoundedOverhead|Disk|MemFull|Mem|SPV) [blockStore]");
         System.out.println("       blockStore is required unless type is Mem or MemFull");
         System.out.println("       eg BlockImporter prod H2 /home/user/bitcoinj.h2store");
         System.out.println("       Does full verification if the store supports it");
@@ -37,23 +40,7 @@ public class BlockImporter {
         else
             params = MainNetParams.get();
         
-        BlockStore store = null;
-        if (args[1].equals("H2")) {
-            Preconditions.checkArgument(args.length == 3);
-            store = new H2FullPrunedBlockStore(params, args[2], 100);
-        } else if (args[1].equals("BoundedOverhead")) {
-            Preconditions.checkArgument(args.length == 3);
-            store = new BoundedOverheadBlockStore(params, new File(args[2]));
-        } else if (args[1].equals("MemFull")) {
-            Preconditions.checkArgument(args.length == 2);
-            store = new MemoryFullPrunedBlockStore(params, 100);
-        } else if (args[1].equals("Mem")) {
-            Preconditions.checkArgument(args.length == 2);
-            store = new MemoryBlockStore(params);
-        } else if (args[1].equals("SPV")) {
-            Preconditions.checkArgument(args.length == 3);
-            store = new SPVBlockStore(params, new File(args[2]));
-        }
+        BlockStore store = createStore(params, args[1], args.length == 3 ? args[2] : null);
         
         AbstractBlockChain chain = null;
         if (store instanceof FullPrunedBlockStore)
@@ -61,9 +48,40 @@ public class BlockImporter {
         else
             chain = new BlockChain(params, store);
         
-        BlockFileLoader loader = new BlockFileLoader(params, BlockFileLoader.getReferenceClientBlockFileList());
+        // Blocks are read, parsed and checked on other threads while the chain connects earlier ones.
+        ParallelBlockFileLoader loader =
+                new ParallelBlockFileLoader(params, BlockFileLoader.getReferenceClientBlockFileList());
         
         for (Block block : loader)
             chain.add(block);
+        // Makes sure any cached changes are written out.
+        store.close();
+    }
+
+    /** Creates a block store of one of the types listed in the usage message. */
+    static BlockStore createStore(NetworkParameters params, String type, String path) throws BlockStoreException {
+        if (type.equals("H2")) {
+            Preconditions.checkArgument(path != null);
+            return new H2FullPrunedBlockStore(params, path, 100);
+        } else if (type.equals("CachedH2")) {
+            Preconditions.checkArgument(path != null);
+            return new CachingFullPrunedBlockStore(new H2FullPrunedBlockStore(params, path, 100));
+        } else if (type.equals("Log")) {
+            Preconditions.checkArgument(path != null);
+            return new LogStructuredFullPrunedBlockStore(params, new File(path), 100);
+        } else if (type.equals("BoundedOverhead")) {
+            Preconditions.checkArgument(path != null);
+            return new BoundedOverheadBlockStore(params, new File(path));
+        } else if (type.equals("MemFull")) {
+            Preconditions.checkArgument(path == null);
+            return new MemoryFullPrunedBlockStore(params, 100);
+        } else if (type.equals("Mem")) {
+            Preconditions.checkArgument(path == null);
+            return new MemoryBlockStore(params);
+        } else if (type.equals("SPV")) {
+            Preconditions.checkArgument(path != null);
+            return new SPVBlockStore(params, new File(path));
+        }
+        throw new IllegalArgumentException("Unknown block store type " + type);
     }
 }
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.tools;
+
+import com.google.devcoin.core.*;
+import com.google.devcoin.core.Transaction.SigHash;
+import com.google.devcoin.crypto.TransactionSignature;
+import com.google.devcoin.params.UnitTestParams;
+import com.google.devcoin.script.Script;
+import com.google.devcoin.script.ScriptBuilder;
+import com.google.devcoin.store.BlockStore;
+import com.google.devcoin.store.FullPrunedBlockStore;
+import com.google.devcoin.utils.ParallelBlockFileLoader;
+import com.google.common.base.Preconditions;
+import com.google.common.io.Files;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+/**
+ * Generates a chain of blocks full of transactions spending each other's outputs, writes it out in the reference
+ * client's block file format and then times importing it with {@link BlockImporter}'s stores, doing full
+ * verification. Unlike importing the real chain this needs no network or downloaded block files, and the shape of
+ * the chain (how many transactions per block) can be varied.
+ */
+public class BlockImporterBenchmark {
+    private static class SpendableOutput {
+        final TransactionOutPoint outpoint;
+        final BigInteger value;
+
+        SpendableOutput(TransactionOutPoint outpoint, BigInteger value) {
+            this.outpoint = outpoint;
+            this.value = value;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: BlockImporterBenchmark (H2|CachedH2|Log|MemFull) [blocks] [transactionsPerBlock]");
+        Preconditions.checkArgument(args.length >= 1 && args.length <= 3);
+        int numBlocks = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int transactionsPerBlock = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        NetworkParameters params = new UnitTestParams() {
+            // Keep the difficulty the same throughout, so that blocks can be generated quickly.
+            @Override public int getInterval() {
+                return Integer.MAX_VALUE;
+            }
+        };
+
+        File directory = Files.createTempDir();
+        try {
+            File blockFile = new File(directory, "blk0001.dat");
+            long startTime = System.currentTimeMillis();
+            int numTransactions = generateChain(params, blockFile, numBlocks, transactionsPerBlock);
+            System.out.println(String.format("Generated %d blocks with %d transactions in %dms", numBlocks,
+                    numTransactions, System.currentTimeMillis() - startTime));
+
+            String path = args[0].equals("MemFull") ? null : new File(directory, "store").getAbsolutePath();
+            BlockStore store = BlockImporter.createStore(params, args[0], path);
+            Preconditions.checkArgument(store instanceof FullPrunedBlockStore, "Only full stores can be benchmarked");
+            FullPrunedBlockChain chain = new FullPrunedBlockChain(params, (FullPrunedBlockStore) store);
+            ParallelBlockFileLoader loader = new ParallelBlockFileLoader(params, Arrays.asList(blockFile));
+            startTime = System.currentTimeMillis();
+            for (Block block : loader)
+                chain.add(block);
+            // Makes sure any cached changes are written out, which is part of the cost.
+            store.close();
+            long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+            System.out.println(String.format("Imported %d blocks into %s in %dms: %.1f blocks/s, %.1f transactions/s",
+                    chain.getBestChainHeight(), args[0], elapsed, numBlocks * 1000.0 / elapsed,
+                    numTransactions * 1000.0 / elapsed));
+            Preconditions.checkState(chain.getBestChainHeight() == numBlocks, "Not all blocks connected");
+        } finally {
+            deleteRecursively(directory);
+        }
+        // The chain's script verification threads would otherwise keep the JVM running.
+        System.exit(0);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                deleteRecursively(child);
+        if (!file.delete())
+            System.err.println("Could not delete " + file);
+    }
+
+    /**
+     * Writes a chain of the given length to the file, where once coinbases mature each block has up to the given
+     * number of transactions, each spending an earlier output into two new ones. Returns the number of transactions
+     * written, not counting coinbases.
+     */
+    private static int generateChain(NetworkParameters params, File file, int numBlocks, int transactionsPerBlock)
+            throws IOException, ScriptException {
+        ECKey key = new ECKey();
+        byte[] outputScript = ScriptBuilder.createOutputScript(key).getProgram();
+        LinkedList<SpendableOutput> spendable = new LinkedList<SpendableOutput>();
+        LinkedList<SpendableOutput> immatureCoinbases = new LinkedList<SpendableOutput>();
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        int numTransactions = 0;
+        try {
+            Block block = params.getGenesisBlock();
+            for (int height = 1; height <= numBlocks; height++) {
+                block = block.createNextBlockWithCoinbase(key.getPubKey(), Utils.toNanoCoins(50, 0));
+                Transaction coinbase = block.getTransactions().get(0);
+                immatureCoinbases.add(new SpendableOutput(new TransactionOutPoint(params, 0, coinbase.getHash()),
+                        coinbase.getOutput(0).getValue()));
+                if (immatureCoinbases.size() > params.getSpendableCoinbaseDepth())
+                    spendable.add(immatureCoinbases.removeFirst());
+
+                LinkedList<SpendableOutput> created = new LinkedList<SpendableOutput>();
+                for (int i = 0; i < transactionsPerBlock && !spendable.isEmpty(); i++) {
+                    SpendableOutput prev = spendable.removeFirst();
+                    Transaction tx = new Transaction(params);
+                    BigInteger half = prev.value.shiftRight(1);
+                    if (half.signum() > 0)
+                        tx.addOutput(new TransactionOutput(params, tx, half, outputScript));
+                    tx.addOutput(new TransactionOutput(params, tx, prev.value.subtract(half), outputScript));
+                    // The signature hash doesn't cover input scripts, so sign with an empty one and then replace it.
+                    tx.addInput(new TransactionInput(params, tx, new byte[] {}, prev.outpoint));
+                    Sha256Hash hash = tx.hashForSignature(0, outputScript, SigHash.ALL, false);
+                    byte[] signature = new TransactionSignature(key.sign(hash), SigHash.ALL, false).encodeToBitcoin();
+                    tx.clearInputs();
+                    tx.addInput(new TransactionInput(params, tx, Script.createInputScript(signature), prev.outpoint));
+                    block.addTransaction(tx);
+                    for (int index = 0; index < tx.getOutputs().size(); index++)
+                        created.add(new SpendableOutput(new TransactionOutPoint(params, index, tx.getHash()),
+                                tx.getOutput(index).getValue()));
+                    numTransactions++;
+                }
+                // Outputs created in this block are spent in later ones, so that they reach the store.
+                spendable.addAll(created);
+                block.solve();
+
+                byte[] bytes = block.bitcoinSerialize();
+                byte[] header = new byte[8];
+                Utils.uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
+                Utils.uint32ToByteArrayLE(bytes.length, header, 4);
+                out.write(header);
+                out.write(bytes);
+            }
+        } finally {
+            out.close();
+        }
+        return numTransactions;
+    }
+}
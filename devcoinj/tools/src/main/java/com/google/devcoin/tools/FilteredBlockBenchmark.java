@@ -0,0 +1,179 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.tools;
+
+import com.google.devcoin.core.*;
+import com.google.devcoin.params.UnitTestParams;
+import com.google.common.base.Preconditions;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Times building {@link FilteredBlock}s of one block for many Bloom filters, as a full node serving SPV clients
+ * does for each new block, with one {@link FilteredBlockBuilder} shared by all the filters and from several threads
+ * at once. For comparison it also times making a new builder for every filter.</p>
+ *
+ * <p>The block and the filters are generated, each filter holding some addresses paid in the block and some that
+ * aren't, so nothing needs downloading and {@link #run(PrintStream, int, int, int)} can be called from a test app on
+ * a phone too.</p>
+ */
+public class FilteredBlockBenchmark {
+    // Addresses in each filter, and how many of them are paid in the block.
+    private static final int KEYS_PER_FILTER = 20;
+    private static final int MATCHING_KEYS_PER_FILTER = 2;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: FilteredBlockBenchmark [transactions] [filters] [threads]");
+        Preconditions.checkArgument(args.length <= 3);
+        int numTransactions = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int numFilters = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        run(System.out, numTransactions, numFilters, threads);
+    }
+
+    /**
+     * Generates a block of the given number of transactions and the given number of filters, and times building a
+     * filtered block for every filter, from one thread and from the given number of threads, printing the results.
+     */
+    public static void run(PrintStream out, int numTransactions, int numFilters, int threads) throws Exception {
+        Preconditions.checkArgument(numTransactions > 0 && numFilters > 0 && threads > 0);
+        NetworkParameters params = UnitTestParams.get();
+        Random random = new Random(1);
+        List<ECKey> paid = new ArrayList<ECKey>();
+        Block block = generateBlock(params, numTransactions, paid);
+        List<byte[]> filters = generateFilters(numFilters, paid, random);
+
+        long start = System.nanoTime();
+        FilteredBlockBuilder builder = new FilteredBlockBuilder(block);
+        long prepareNanos = System.nanoTime() - start;
+        out.println(String.format("Preparing a block of %d transactions: %.1fms", numTransactions, prepareNanos / 1e6));
+
+        // Warms up the JIT compiler, and checks the filters match what they should.
+        long matched = buildAll(params, builder, filters, 1).matched;
+        out.println(String.format("Each filter matched %.1f transactions on average", (double) matched / numFilters));
+
+        out.println(String.format("%22s %8s %16s %16s", "", "threads", "us per filter", "filters per sec"));
+        for (int numThreads : new int[] {1, threads}) {
+            long nanos = Long.MAX_VALUE;
+            for (int round = 0; round < 5; round++)
+                nanos = Math.min(nanos, buildAll(params, builder, filters, numThreads).nanos);
+            out.println(String.format("%22s %8d %16.1f %16.0f", "shared builder", numThreads,
+                    nanos / 1e3 / numFilters, numFilters / (nanos / 1e9)));
+        }
+        long nanos = Long.MAX_VALUE;
+        for (int round = 0; round < 3; round++)
+            nanos = Math.min(nanos, buildAll(params, block, filters).nanos);
+        out.println(String.format("%22s %8d %16.1f %16.0f", "builder per filter", 1,
+                nanos / 1e3 / numFilters, numFilters / (nanos / 1e9)));
+    }
+
+    private static Block generateBlock(NetworkParameters params, int numTransactions, List<ECKey> paid) {
+        Block block = params.getGenesisBlock().createNextBlock(new ECKey().toAddress(params));
+        Sha256Hash previous = block.getTransactions().get(0).getHash();
+        for (int i = 1; i < numTransactions; i++) {
+            Transaction tx = new Transaction(params);
+            // The script is about the size of a signature and a public key, as in a typical input.
+            tx.addInput(new TransactionInput(params, tx, new byte[72 + 34], new TransactionOutPoint(params, 0, previous)));
+            for (int j = 0; j < 2; j++) {
+                ECKey key = new ECKey();
+                paid.add(key);
+                tx.addOutput(new TransactionOutput(params, tx, Utils.CENT, key.toAddress(params)));
+            }
+            block.addTransaction(tx);
+            previous = tx.getHash();
+        }
+        return block;
+    }
+
+    // Returns the filters serialized, so that each build can start from a fresh copy, as building updates them.
+    private static List<byte[]> generateFilters(int numFilters, List<ECKey> paid, Random random) {
+        List<byte[]> filters = new ArrayList<byte[]>(numFilters);
+        for (int i = 0; i < numFilters; i++) {
+            BloomFilter filter = new BloomFilter(KEYS_PER_FILTER, 0.0005, random.nextLong());
+            for (int j = 0; j < KEYS_PER_FILTER; j++) {
+                ECKey key = j < MATCHING_KEYS_PER_FILTER ? paid.get(random.nextInt(paid.size())) : new ECKey();
+                filter.insert(key.getPubKeyHash());
+            }
+            filters.add(filter.bitcoinSerialize());
+        }
+        return filters;
+    }
+
+    private static class Result {
+        long nanos;
+        long matched;
+    }
+
+    // Builds a filtered block for every filter, split between the given number of threads.
+    private static Result buildAll(final NetworkParameters params, final FilteredBlockBuilder builder,
+                                   List<byte[]> serializedFilters, int numThreads) throws Exception {
+        final List<List<BloomFilter>> perThread = new ArrayList<List<BloomFilter>>();
+        for (int i = 0; i < numThreads; i++)
+            perThread.add(new ArrayList<BloomFilter>());
+        for (int i = 0; i < serializedFilters.size(); i++)
+            perThread.get(i % numThreads).add(new BloomFilter(params, serializedFilters.get(i)));
+
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final CountDownLatch doneLatch = new CountDownLatch(numThreads);
+        final AtomicLong matched = new AtomicLong();
+        for (int i = 0; i < numThreads; i++) {
+            final List<BloomFilter> filters = perThread.get(i);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                        for (BloomFilter filter : filters)
+                            matched.addAndGet(builder.build(filter).size() - 1);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        doneLatch.countDown();
+                    }
+                }
+            }, "FilteredBlockBenchmark thread " + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        long start = System.nanoTime();
+        startLatch.countDown();
+        doneLatch.await();
+        Result result = new Result();
+        result.nanos = System.nanoTime() - start;
+        result.matched = matched.get();
+        return result;
+    }
+
+    // Builds a filtered block for every filter with a new builder each time.
+    private static Result buildAll(NetworkParameters params, Block block, List<byte[]> serializedFilters)
+            throws Exception {
+        List<BloomFilter> filters = new ArrayList<BloomFilter>();
+        for (byte[] bytes : serializedFilters)
+            filters.add(new BloomFilter(params, bytes));
+        Result result = new Result();
+        long start = System.nanoTime();
+        for (BloomFilter filter : filters)
+            result.matched += new FilteredBlockBuilder(block).build(filter).size() - 1;
+        result.nanos = System.nanoTime() - start;
+        return result;
+    }
+}
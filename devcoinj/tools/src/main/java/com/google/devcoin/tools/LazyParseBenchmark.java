@@ -0,0 +1,155 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.tools;
+
+import com.google.devcoin.core.*;
+import com.google.devcoin.params.UnitTestParams;
+import com.google.common.base.Preconditions;
+
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Times the getters of transactions that were parsed lazily, which call into {@link Message} to check whether the
+ * transaction still needs parsing on every access, against those of transactions parsed up front, from one thread and
+ * then from several at once. Also times the first access to a lazily parsed transaction, which does the parsing.</p>
+ *
+ * <p>Each transaction has two inputs and two outputs with scripts of typical sizes, and is parsed without retaining its
+ * bytes. Once parsed, lazy and eager transactions hold the same objects, so any gap between the two rows for a thread
+ * count is the cost of the parse check, and a gap that grows with the threads means the check contends.</p>
+ */
+public class LazyParseBenchmark {
+    // The getter calls read() makes on each transaction, or on one of its parts, per round.
+    private static final int ACCESSES_PER_TRANSACTION = 4;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: LazyParseBenchmark [transactions] [rounds] [threads]");
+        Preconditions.checkArgument(args.length <= 3);
+        int numTransactions = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        run(System.out, numTransactions, rounds, threads);
+    }
+
+    /**
+     * Generates the given number of transactions and reads them the given number of rounds over, from one thread and
+     * from the given number of threads, printing the results.
+     */
+    public static void run(PrintStream out, int numTransactions, int rounds, int threads) throws Exception {
+        Preconditions.checkArgument(numTransactions > 0 && rounds > 0 && threads > 0);
+        NetworkParameters params = UnitTestParams.get();
+        List<byte[]> serialized = generate(params, numTransactions);
+
+        // Round zero warms up the JIT compiler and isn't counted.
+        long parseNanos = Long.MAX_VALUE;
+        List<Transaction> lazy = null;
+        for (int round = 0; round <= 5; round++) {
+            List<Transaction> transactions = deserialize(params, serialized, true);
+            long start = System.nanoTime();
+            read(transactions, 1);
+            long elapsed = System.nanoTime() - start;
+            if (round > 0)
+                parseNanos = Math.min(parseNanos, elapsed);
+            lazy = transactions;
+        }
+        out.println(String.format("First access to %d lazily parsed transactions: %.1fms (%.0fns each)",
+                numTransactions, parseNanos / 1e6, (double) parseNanos / numTransactions));
+
+        List<Transaction> eager = deserialize(params, serialized, false);
+        long accesses = (long) numTransactions * rounds * ACCESSES_PER_TRANSACTION;
+        out.println(String.format("%10s %8s %16s", "parsing", "threads", "ns per access"));
+        for (int numThreads : new int[] {1, threads}) {
+            out.println(String.format("%10s %8d %16.2f", "eager", numThreads,
+                    (double) timeReads(eager, rounds, numThreads) / accesses));
+            out.println(String.format("%10s %8d %16.2f", "lazy", numThreads,
+                    (double) timeReads(lazy, rounds, numThreads) / accesses));
+        }
+    }
+
+    private static List<byte[]> generate(NetworkParameters params, int numTransactions) {
+        List<byte[]> serialized = new ArrayList<byte[]>(numTransactions);
+        for (int i = 0; i < numTransactions; i++) {
+            Transaction tx = new Transaction(params);
+            Sha256Hash spentHash = Sha256Hash.create(BigInteger.valueOf(i).toByteArray());
+            for (int j = 0; j < 2; j++) {
+                // The script is about the size of a signature and a public key, as in a typical input.
+                TransactionOutPoint outpoint = new TransactionOutPoint(params, j, spentHash);
+                tx.addInput(new TransactionInput(params, tx, new byte[72 + 34], outpoint));
+                tx.addOutput(new TransactionOutput(params, tx, BigInteger.valueOf(i + j), new ECKey()));
+            }
+            serialized.add(tx.bitcoinSerialize());
+        }
+        return serialized;
+    }
+
+    private static List<Transaction> deserialize(NetworkParameters params, List<byte[]> serialized,
+                                                 boolean parseLazy) throws ProtocolException {
+        List<Transaction> transactions = new ArrayList<Transaction>(serialized.size());
+        for (byte[] bytes : serialized)
+            transactions.add(new Transaction(params, bytes, null, parseLazy, false, bytes.length));
+        return transactions;
+    }
+
+    private static long read(List<Transaction> transactions, int rounds) {
+        long sum = 0;
+        for (int round = 0; round < rounds; round++) {
+            for (Transaction tx : transactions) {
+                sum += tx.getVersion();
+                sum += tx.getLockTime();
+                TransactionOutput output = tx.getOutputs().get(0);
+                sum += output.getValue().longValue();
+            }
+        }
+        return sum;
+    }
+
+    // Returns the nanoseconds taken by the given number of threads each reading all the transactions for the rounds.
+    private static long timeReads(final List<Transaction> transactions, final int rounds, int numThreads)
+            throws InterruptedException {
+        read(transactions, Math.max(1, rounds / 10));  // Warm up.
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final CountDownLatch doneLatch = new CountDownLatch(numThreads);
+        // Keeps the sums, so the reads can't be optimized away.
+        final AtomicLong sink = new AtomicLong();
+        for (int i = 0; i < numThreads; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                        sink.addAndGet(read(transactions, rounds));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        doneLatch.countDown();
+                    }
+                }
+            }, "LazyParseBenchmark thread " + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        long start = System.nanoTime();
+        startLatch.countDown();
+        doneLatch.await();
+        // Every thread makes the same number of accesses, so per access this is the time seen by each of them.
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.tools;
+
+import com.google.devcoin.core.*;
+import com.google.devcoin.params.UnitTestParams;
+import com.google.common.base.Preconditions;
+
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Stresses a {@link MemoryPool} the way the network threads of a {@link PeerGroup} do, with many threads at once
+ * each reporting the invs of its peers and then the transactions it downloads, and times a single pool against a
+ * {@link ShardedMemoryPool}.</p>
+ *
+ * <p>Every peer announces every transaction, each thread in its own order, and the first peer of each thread then
+ * hands over its own copy of each, as a peer does after a getdata. Each copy is parsed just before it is handed over
+ * and dropped right after, so the garbage collector collects them during the run and the pools clear them out of
+ * their reference queues as they would in an app. The parsing is part of the times, the same for both pools.</p>
+ *
+ * <p>For one thread and for the given number of threads it prints the best of five rounds for each pool, as the
+ * average time of a pool call and the number of calls made per second by all the threads together.</p>
+ */
+public class MemoryPoolBenchmark {
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: MemoryPoolBenchmark [transactions] [threads] [peers per thread] [shards]");
+        Preconditions.checkArgument(args.length <= 4);
+        int numTransactions = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) :
+                Math.max(4, Runtime.getRuntime().availableProcessors());
+        int peersPerThread = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        int shards = args.length > 3 ? Integer.parseInt(args[3]) : ShardedMemoryPool.DEFAULT_SHARDS;
+        run(System.out, numTransactions, threads, peersPerThread, shards);
+    }
+
+    /**
+     * Generates the given number of transactions and times the given number of threads, each playing the given number
+     * of peers, reporting all of them to a single pool and to one of the given number of shards, printing the results.
+     */
+    public static void run(PrintStream out, int numTransactions, int threads, int peersPerThread, int shards)
+            throws Exception {
+        Preconditions.checkArgument(numTransactions > 0 && threads > 0 && peersPerThread > 0 && shards > 0);
+        NetworkParameters params = UnitTestParams.get();
+        List<byte[]> serialized = generateTransactions(params, numTransactions);
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(numTransactions);
+        for (byte[] bytes : serialized)
+            hashes.add(new Transaction(params, bytes).getHash());
+
+        out.println(String.format("%d transactions announced by %d peers on each thread", numTransactions,
+                peersPerThread));
+        out.println(String.format("%22s %8s %16s %16s", "", "threads", "ns per call", "calls per sec"));
+        for (int numThreads : new int[] {1, threads}) {
+            for (int sharded = 0; sharded < 2; sharded++) {
+                long nanos = Long.MAX_VALUE;
+                long calls = 0;
+                for (int round = 0; round < 5; round++) {
+                    TransactionPool pool = sharded == 0 ? new MemoryPool(numTransactions) :
+                            new ShardedMemoryPool(numTransactions, shards);
+                    // So that what the last round left behind is collected before this one starts.
+                    System.gc();
+                    Result result = runPeers(params, pool, serialized, hashes, numThreads, peersPerThread);
+                    nanos = Math.min(nanos, result.nanos);
+                    calls = result.calls;
+                }
+                out.println(String.format("%22s %8d %16.1f %16.0f",
+                        sharded == 0 ? "single lock" : shards + " shards", numThreads,
+                        (double) nanos / calls, calls / (nanos / 1e9)));
+            }
+        }
+    }
+
+    private static List<byte[]> generateTransactions(NetworkParameters params, int numTransactions) {
+        List<byte[]> serialized = new ArrayList<byte[]>(numTransactions);
+        Sha256Hash previous = Sha256Hash.ZERO_HASH;
+        for (int i = 0; i < numTransactions; i++) {
+            Transaction tx = new Transaction(params);
+            // The script is about the size of a signature and a public key, as in a typical input.
+            tx.addInput(new TransactionInput(params, tx, new byte[72 + 34], new TransactionOutPoint(params, 0, previous)));
+            tx.addOutput(new TransactionOutput(params, tx, Utils.CENT, new ECKey().toAddress(params)));
+            serialized.add(tx.bitcoinSerialize());
+            previous = tx.getHash();
+        }
+        return serialized;
+    }
+
+    private static class Result {
+        long nanos;
+        long calls;
+    }
+
+    private static Result runPeers(final NetworkParameters params, final TransactionPool pool, List<byte[]> serialized,
+                                   List<Sha256Hash> hashes, int numThreads, final int peersPerThread)
+            throws Exception {
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final CountDownLatch doneLatch = new CountDownLatch(numThreads);
+        final AtomicLong calls = new AtomicLong();
+        for (int i = 0; i < numThreads; i++) {
+            final List<PeerAddress> peers = new ArrayList<PeerAddress>();
+            for (int j = 0; j < peersPerThread; j++) {
+                int n = i * peersPerThread + j;
+                byte[] ip = {10, (byte) (n >> 16), (byte) (n >> 8), (byte) n};
+                peers.add(new PeerAddress(InetAddress.getByAddress(ip)));
+            }
+            // Each thread sees the transactions in its own order.
+            final List<Integer> order = new ArrayList<Integer>();
+            for (int j = 0; j < hashes.size(); j++)
+                order.add(j);
+            Collections.shuffle(order, new Random(i));
+            final List<Sha256Hash> threadHashes = new ArrayList<Sha256Hash>(hashes.size());
+            final List<byte[]> threadSerialized = new ArrayList<byte[]>(hashes.size());
+            for (int j : order) {
+                threadHashes.add(hashes.get(j));
+                threadSerialized.add(serialized.get(j));
+            }
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                        long n = 0;
+                        for (PeerAddress peer : peers) {
+                            for (Sha256Hash hash : threadHashes) {
+                                // As Peer does for each transaction of an inv.
+                                pool.maybeWasSeen(hash);
+                                pool.seen(hash, peer);
+                                n += 2;
+                            }
+                        }
+                        for (byte[] bytes : threadSerialized) {
+                            // Nothing holds on to the copy after, so it is the garbage collector's.
+                            Transaction tx = new Transaction(params, bytes);
+                            pool.seen(tx, peers.get(0));
+                            pool.numBroadcastPeers(tx.getHash());
+                            n += 2;
+                        }
+                        calls.addAndGet(n);
+                    } catch (ProtocolException e) {
+                        throw new RuntimeException(e);  // Cannot happen.
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        doneLatch.countDown();
+                    }
+                }
+            }, "MemoryPoolBenchmark thread " + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        long start = System.nanoTime();
+        startLatch.countDown();
+        doneLatch.await();
+        Result result = new Result();
+        result.nanos = System.nanoTime() - start;
+        result.calls = calls.get();
+        return result;
+    }
+}
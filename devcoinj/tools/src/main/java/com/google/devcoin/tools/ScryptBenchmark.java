@@ -0,0 +1,111 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devcoin.tools;
+
+import com.google.devcoin.crypto.KeyCrypterScrypt;
+import com.google.common.base.Preconditions;
+import com.google.protobuf.ByteString;
+import com.lambdaworks.crypto.SCrypt;
+import org.devcoinj.wallet.Protos.ScryptParameters;
+
+import java.io.PrintStream;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Times key derivation with scrypt for a range of costs, using the native implementation where the scrypt library
+ * could load one for this platform and the pure Java one everywhere, followed by
+ * {@link KeyCrypterScrypt#deriveKey(CharSequence)} itself, which picks between them. Then shows what
+ * {@link KeyCrypterScrypt#calibrate(long, TimeUnit)} chooses for the given target time.</p>
+ *
+ * <p>Where the native library doesn't load, its column shows a dash and deriveKey runs the Java code, so the Java
+ * and deriveKey columns should then be about equal. The deriveKey column also includes turning the password into
+ * bytes, which is negligible next to scrypt. The final line shows how long calibration took, about twice the target
+ * since it times each doubling of N on the way up.</p>
+ */
+public class ScryptBenchmark {
+    private static final int R = 8;
+    private static final int P = 1;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: ScryptBenchmark [maxN] [rounds] [targetMillis]");
+        Preconditions.checkArgument(args.length <= 3);
+        int maxN = args.length > 0 ? Integer.parseInt(args[0]) : 1 << 17;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        long targetMillis = args.length > 2 ? Long.parseLong(args[2]) : 1000;
+        run(System.out, maxN, rounds, targetMillis);
+    }
+
+    /**
+     * Times every power of two N from {@link KeyCrypterScrypt#MIN_CALIBRATED_N} up to maxN, taking the best of the
+     * given number of rounds after a warm up round, and prints the results.
+     */
+    public static void run(PrintStream out, int maxN, int rounds, long targetMillis) throws GeneralSecurityException {
+        Preconditions.checkArgument(rounds > 0);
+        byte[] password = new byte[16];
+        byte[] salt = new byte[KeyCrypterScrypt.SALT_LENGTH];
+
+        boolean nativeAvailable = true;
+        try {
+            SCrypt.scryptN(password, salt, KeyCrypterScrypt.MIN_CALIBRATED_N, R, P, KeyCrypterScrypt.KEY_LENGTH);
+        } catch (UnsatisfiedLinkError e) {
+            nativeAvailable = false;
+            out.println("The native scrypt library is not available on this platform, timing pure Java only.");
+        }
+
+        out.println(String.format("%10s %12s %12s %12s", "N", "Java ms", "native ms", "deriveKey ms"));
+        for (int n = KeyCrypterScrypt.MIN_CALIBRATED_N; n > 0 && n <= maxN; n <<= 1) {
+            long javaNanos = Long.MAX_VALUE, nativeNanos = Long.MAX_VALUE, deriveNanos = Long.MAX_VALUE;
+            KeyCrypterScrypt keyCrypter = new KeyCrypterScrypt(ScryptParameters.newBuilder()
+                    .setSalt(ByteString.copyFrom(salt)).setN(n).setR(R).setP(P).build());
+            // Round zero warms up the JIT compiler and isn't counted.
+            for (int round = 0; round <= rounds; round++) {
+                long start = System.nanoTime();
+                SCrypt.scryptJ(password, salt, n, R, P, KeyCrypterScrypt.KEY_LENGTH);
+                long elapsed = System.nanoTime() - start;
+                if (round > 0)
+                    javaNanos = Math.min(javaNanos, elapsed);
+
+                if (nativeAvailable) {
+                    start = System.nanoTime();
+                    SCrypt.scryptN(password, salt, n, R, P, KeyCrypterScrypt.KEY_LENGTH);
+                    elapsed = System.nanoTime() - start;
+                    if (round > 0)
+                        nativeNanos = Math.min(nativeNanos, elapsed);
+                }
+
+                start = System.nanoTime();
+                keyCrypter.deriveKey("password");
+                elapsed = System.nanoTime() - start;
+                if (round > 0)
+                    deriveNanos = Math.min(deriveNanos, elapsed);
+            }
+            out.println(String.format("%10d %12.1f %12s %12.1f", n, javaNanos / 1e6,
+                    nativeAvailable ? String.format("%.1f", nativeNanos / 1e6) : "-", deriveNanos / 1e6));
+        }
+
+        long start = System.nanoTime();
+        ScryptParameters calibrated = KeyCrypterScrypt.calibrate(targetMillis, TimeUnit.MILLISECONDS);
+        long calibrationMillis = (System.nanoTime() - start) / 1000000;
+        KeyCrypterScrypt keyCrypter = new KeyCrypterScrypt(calibrated);
+        start = System.nanoTime();
+        keyCrypter.deriveKey("password");
+        long deriveMillis = (System.nanoTime() - start) / 1000000;
+        out.println(String.format("Calibrated for %dms in %dms: N = %d, r = %d, p = %d, deriveKey takes %dms",
+                targetMillis, calibrationMillis, calibrated.getN(), calibrated.getR(), calibrated.getP(), deriveMillis));
+    }
+}